@@ -25,11 +25,33 @@ package com.uraroji.garage.android.ladiostar;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.uraroji.garage.android.ladiostar.util.BacklogDrainer;
+import com.uraroji.garage.android.ladiostar.util.PcmOverflowHandler;
+import com.uraroji.garage.android.ladiostar.util.SpeechProfile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * 配信設定
  */
 public final class BroadcastConfig implements Parcelable {
 
+    /**
+     * エンコードプロファイル「標準」。<br />
+     * 録音したサンプリングレートのままエンコードする。
+     */
+    public static final int ENCODE_PROFILE_STANDARD = 0;
+
+    /**
+     * エンコードプロファイル「トーク」。<br />
+     * モノラルで録音し、ビットレートに応じてサンプリングレートを下げ、ローパスフィルタをかけてからエンコードする。
+     * 
+     * @see SpeechProfile
+     */
+    public static final int ENCODE_PROFILE_SPEECH = 1;
+
     /**
      * ビットレート（kbps）
      */
@@ -86,6 +108,81 @@ public final class BroadcastConfig implements Parcelable {
      */
     private final String mChannelServer;
 
+    /**
+     * 切断時にすぐ切り替えられるように、別の配信サーバに予備の接続を用意しておくか
+     */
+    private final boolean mChannelHotStandby;
+
+    /**
+     * ねとらじ以外の配信先のリスト。<br />
+     * 同じエンコード結果をねとらじと各配信先に送る。
+     */
+    private final List<BroadcastDestination> mRelayDestinations;
+
+    /**
+     * LAN内の聴取者に直接配信するか
+     */
+    private final boolean mLocalServer;
+
+    /**
+     * PCMバッファがオーバーフローした場合の動作
+     * 
+     * @see PcmOverflowHandler#POLICY_ABORT
+     * @see PcmOverflowHandler#POLICY_DROP_OLDEST
+     * @see PcmOverflowHandler#POLICY_DECIMATE
+     * @see PcmOverflowHandler#POLICY_SKIP_SILENT
+     */
+    private final int mPcmOverflowPolicy;
+
+    /**
+     * エンコードプロファイル
+     * 
+     * @see #ENCODE_PROFILE_STANDARD
+     * @see #ENCODE_PROFILE_SPEECH
+     */
+    private final int mAudioEncodeProfile;
+
+    /**
+     * 送信を始める前にMP3バッファにためておく音声の長さ（ミリ秒）
+     */
+    private final int mAudioPrebufferMsec;
+
+    /**
+     * 小さな送信をまとめるために、データを待たせる最大の時間（ミリ秒）。<br />
+     * 0の場合はまとめない。
+     */
+    private final int mSendBatchMsec;
+
+    /**
+     * 送信速度をビットレートに合わせて平準化するか
+     */
+    private final boolean mSendPacing;
+
+    /**
+     * 再接続するまでにたまったデータの送り方
+     * 
+     * @see BacklogDrainer#POLICY_FULL_SPEED
+     * @see BacklogDrainer#POLICY_LIVE_EDGE
+     * @see BacklogDrainer#POLICY_CATCH_UP
+     */
+    private final int mSendBacklogPolicy;
+
+    /**
+     * たまったデータを追いつくように送る場合の、ビットレートに対する送信速度の倍率（パーセント）
+     */
+    private final int mSendCatchUpPercent;
+
+    /**
+     * 過去に配信した際の回線の速さから、ビットレートを自動で下げるか
+     */
+    private final boolean mAudioBrateAuto;
+
+    /**
+     * 停止した後に、送信していないデータを送り切るまで待つ最大の時間（ミリ秒）。<br />
+     * 0の場合は送り切らずに停止する。
+     */
+    private final int mSendDrainMsec;
+
     /**
      * コンストラクタ
      * 
@@ -115,12 +212,30 @@ public final class BroadcastConfig implements Parcelable {
             String channelDjName, String channelTitle,
             String channelDescription, String channelUrl, String channelGenre,
             String channelMount, String channelServer) {
-        if (audioBrate <= 0) {
+        this(new Builder(audioBrate, audioChannel, audioSampleRate, audioMp3EncodeQuality,
+                channelMount)
+                .channelDjName(channelDjName)
+                .channelTitle(channelTitle)
+                .channelDescription(channelDescription)
+                .channelUrl(channelUrl)
+                .channelGenre(channelGenre)
+                .channelServer(channelServer));
+    }
+
+    /**
+     * コンストラクタ
+     * 
+     * @param builder 配信設定のビルダー
+     * @see BroadcastConfig#BroadcastConfig(int, int, int, int, String, String,
+     *      String, String, String, String, String)
+     */
+    private BroadcastConfig(Builder builder) {
+        if (builder.mAudioBrate <= 0) {
             throw new IllegalArgumentException(
                     "audioBrate must be greater than 0.");
         }
 
-        switch (audioChannel) {
+        switch (builder.mAudioChannel) {
             case 1:
             case 2:
                 break;
@@ -128,56 +243,423 @@ public final class BroadcastConfig implements Parcelable {
                 throw new IllegalArgumentException("audioChannel must be 1 or 2.");
         }
 
-        if (audioSampleRate <= 0) {
+        if (builder.mAudioSampleRate <= 0) {
             throw new IllegalArgumentException(
                     "audioSampleRate must be greater than 0.");
         }
 
-        if (audioMp3EncodeQuality < 0 || audioMp3EncodeQuality > 9) {
+        if (builder.mAudioMp3EncodeQuality < 0 || builder.mAudioMp3EncodeQuality > 9) {
             throw new IllegalArgumentException(
                     "audioMp3EncodeQuality must be 0-9.");
         }
 
-        if (channelMount == null) {
+        if (builder.mChannelMount == null) {
             throw new IllegalArgumentException(
                     "channelMount must be not null.");
         }
-        if ((channelMount.length() == 0)
-                || (channelMount.length() == 1 && channelMount.charAt(0) == '/')) {
+        if ((builder.mChannelMount.length() == 0)
+                || (builder.mChannelMount.length() == 1 && builder.mChannelMount.charAt(0) == '/')) {
             throw new IllegalArgumentException("channelMount is invalid.");
         }
 
-        this.mAudioBrate = audioBrate;
-        this.mAudioChannel = audioChannel;
-        this.mAudioSampleRate = audioSampleRate;
-        this.mAudioMp3EncodeQuality = audioMp3EncodeQuality;
-        if (channelDjName != null) {
+        if (!PcmOverflowHandler.isValidPolicy(builder.mPcmOverflowPolicy)) {
+            throw new IllegalArgumentException("pcmOverflowPolicy is invalid.");
+        }
+
+        switch (builder.mAudioEncodeProfile) {
+            case ENCODE_PROFILE_STANDARD:
+            case ENCODE_PROFILE_SPEECH:
+                break;
+            default:
+                throw new IllegalArgumentException("audioEncodeProfile is invalid.");
+        }
+
+        if (builder.mAudioPrebufferMsec < 0
+                || builder.mAudioPrebufferMsec >= C.MP3_BUFFER_SEC * 1000) {
+            throw new IllegalArgumentException("audioPrebufferMsec is out of range.");
+        }
+
+        if (builder.mSendBatchMsec < 0) {
+            throw new IllegalArgumentException("sendBatchMsec must be 0 or greater.");
+        }
+
+        if (!BacklogDrainer.isValidPolicy(builder.mSendBacklogPolicy)) {
+            throw new IllegalArgumentException("sendBacklogPolicy is invalid.");
+        }
+
+        // 100パーセント以下ではいつまでも追いつかない
+        if (builder.mSendCatchUpPercent <= 100) {
+            throw new IllegalArgumentException("sendCatchUpPercent must be greater than 100.");
+        }
+
+        if (builder.mSendDrainMsec < 0 || builder.mSendDrainMsec > C.MAX_SEND_DRAIN_MSEC) {
+            throw new IllegalArgumentException("sendDrainMsec is out of range.");
+        }
+
+        this.mAudioBrate = builder.mAudioBrate;
+        // トークの場合はモノラルで録音・エンコードする
+        this.mAudioChannel = (builder.mAudioEncodeProfile == ENCODE_PROFILE_SPEECH) ? 1
+                : builder.mAudioChannel;
+        this.mAudioSampleRate = builder.mAudioSampleRate;
+        this.mAudioMp3EncodeQuality = builder.mAudioMp3EncodeQuality;
+        this.mChannelDjName = (builder.mChannelDjName != null) ? builder.mChannelDjName : "";
+        this.mChannelTitle = (builder.mChannelTitle != null) ? builder.mChannelTitle : "";
+        this.mChannelDescription = (builder.mChannelDescription != null) ? builder.mChannelDescription
+                : "";
+        this.mChannelUrl = (builder.mChannelUrl != null) ? builder.mChannelUrl : "";
+        this.mChannelGenre = (builder.mChannelGenre != null) ? builder.mChannelGenre : "";
+        this.mChannelMount = builder.mChannelMount;
+        this.mChannelServer = builder.mChannelServer;
+        this.mChannelHotStandby = builder.mChannelHotStandby;
+        this.mRelayDestinations = Collections
+                .unmodifiableList(new ArrayList<BroadcastDestination>(builder.mRelayDestinations));
+        this.mLocalServer = builder.mLocalServer;
+        this.mPcmOverflowPolicy = builder.mPcmOverflowPolicy;
+        this.mAudioEncodeProfile = builder.mAudioEncodeProfile;
+        this.mAudioPrebufferMsec = builder.mAudioPrebufferMsec;
+        this.mSendBatchMsec = builder.mSendBatchMsec;
+        this.mSendPacing = builder.mSendPacing;
+        this.mSendBacklogPolicy = builder.mSendBacklogPolicy;
+        this.mSendCatchUpPercent = builder.mSendCatchUpPercent;
+        this.mAudioBrateAuto = builder.mAudioBrateAuto;
+        this.mSendDrainMsec = builder.mSendDrainMsec;
+    }
+
+    /**
+     * 配信設定のビルダー
+     * 
+     * 必須の設定をコンストラクタで、それ以外の設定をメソッドで指定し、{@link #create()}で配信設定を生成する。
+     */
+    public static class Builder {
+
+        private int mAudioBrate;
+
+        private final int mAudioChannel;
+
+        private final int mAudioSampleRate;
+
+        private final int mAudioMp3EncodeQuality;
+
+        private final String mChannelMount;
+
+        private String mChannelDjName;
+
+        private String mChannelTitle;
+
+        private String mChannelDescription;
+
+        private String mChannelUrl;
+
+        private String mChannelGenre;
+
+        private String mChannelServer;
+
+        private boolean mChannelHotStandby = C.DEFAULT_CHANNEL_HOT_STANDBY;
+
+        private ArrayList<BroadcastDestination> mRelayDestinations = new ArrayList<BroadcastDestination>();
+
+        private boolean mLocalServer = C.DEFAULT_LOCAL_SERVER;
+
+        private int mPcmOverflowPolicy = C.DEFAULT_PCM_OVERFLOW_POLICY;
+
+        private int mAudioEncodeProfile = C.DEFAULT_AUDIO_ENCODE_PROFILE;
+
+        private int mAudioPrebufferMsec = C.DEFAULT_AUDIO_PREBUFFER_MSEC;
+
+        private int mSendBatchMsec = C.DEFAULT_SEND_BATCH_MSEC;
+
+        private boolean mSendPacing = C.DEFAULT_SEND_PACING;
+
+        private int mSendBacklogPolicy = C.DEFAULT_SEND_BACKLOG_POLICY;
+
+        private int mSendCatchUpPercent = C.DEFAULT_SEND_CATCH_UP_PERCENT;
+
+        private boolean mAudioBrateAuto = C.DEFAULT_AUDIO_BITRATE_AUTO;
+
+        private int mSendDrainMsec = C.DEFAULT_SEND_DRAIN_MSEC;
+
+        /**
+         * コンストラクタ
+         * 
+         * @param audioBrate ビットレート（kbps）
+         * @param audioChannel 録音するチャンネル数
+         * @param audioSampleRate 録音するサンプリングレート（Hz）
+         * @param audioMp3EncodeQuality エンコードの品質。<br />
+         *            0〜9で指定する。0が高品質・低速、9が低品質・高速である。
+         * @param channelMount マウント
+         */
+        public Builder(int audioBrate, int audioChannel, int audioSampleRate,
+                int audioMp3EncodeQuality, String channelMount) {
+            this.mAudioBrate = audioBrate;
+            this.mAudioChannel = audioChannel;
+            this.mAudioSampleRate = audioSampleRate;
+            this.mAudioMp3EncodeQuality = audioMp3EncodeQuality;
+            this.mChannelMount = channelMount;
+        }
+
+        /**
+         * 既存の配信設定の内容を引き継ぐコンストラクタ
+         * 
+         * @param config 元にする配信設定
+         */
+        public Builder(BroadcastConfig config) {
+            this(config.mAudioBrate, config.mAudioChannel, config.mAudioSampleRate,
+                    config.mAudioMp3EncodeQuality, config.mChannelMount);
+            this.mChannelDjName = config.mChannelDjName;
+            this.mChannelTitle = config.mChannelTitle;
+            this.mChannelDescription = config.mChannelDescription;
+            this.mChannelUrl = config.mChannelUrl;
+            this.mChannelGenre = config.mChannelGenre;
+            this.mChannelServer = config.mChannelServer;
+            this.mChannelHotStandby = config.mChannelHotStandby;
+            this.mRelayDestinations.addAll(config.mRelayDestinations);
+            this.mLocalServer = config.mLocalServer;
+            this.mPcmOverflowPolicy = config.mPcmOverflowPolicy;
+            this.mAudioEncodeProfile = config.mAudioEncodeProfile;
+            this.mAudioPrebufferMsec = config.mAudioPrebufferMsec;
+            this.mSendBatchMsec = config.mSendBatchMsec;
+            this.mSendPacing = config.mSendPacing;
+            this.mSendBacklogPolicy = config.mSendBacklogPolicy;
+            this.mSendCatchUpPercent = config.mSendCatchUpPercent;
+            this.mAudioBrateAuto = config.mAudioBrateAuto;
+            this.mSendDrainMsec = config.mSendDrainMsec;
+        }
+
+        /**
+         * ビットレートを設定する
+         * 
+         * @param audioBrate ビットレート（kbps）
+         * @return ビルダー
+         */
+        public Builder audioBrate(int audioBrate) {
+            this.mAudioBrate = audioBrate;
+            return this;
+        }
+
+        /**
+         * DJ名を設定する
+         * 
+         * @param channelDjName DJ名
+         * @return ビルダー
+         */
+        public Builder channelDjName(String channelDjName) {
             this.mChannelDjName = channelDjName;
-        } else {
-            this.mChannelDjName = "";
+            return this;
         }
-        if (channelTitle != null) {
+
+        /**
+         * タイトルを設定する
+         * 
+         * @param channelTitle タイトル
+         * @return ビルダー
+         */
+        public Builder channelTitle(String channelTitle) {
             this.mChannelTitle = channelTitle;
-        } else {
-            this.mChannelTitle = "";
+            return this;
         }
-        if (channelDescription != null) {
+
+        /**
+         * 番組の説明を設定する
+         * 
+         * @param channelDescription 番組の説明
+         * @return ビルダー
+         */
+        public Builder channelDescription(String channelDescription) {
             this.mChannelDescription = channelDescription;
-        } else {
-            this.mChannelDescription = "";
+            return this;
         }
-        if (channelUrl != null) {
+
+        /**
+         * 関連URLを設定する
+         * 
+         * @param channelUrl 関連URL
+         * @return ビルダー
+         */
+        public Builder channelUrl(String channelUrl) {
             this.mChannelUrl = channelUrl;
-        } else {
-            this.mChannelUrl = "";
+            return this;
         }
-        if (channelGenre != null) {
+
+        /**
+         * ジャンルを設定する
+         * 
+         * @param channelGenre ジャンル
+         * @return ビルダー
+         */
+        public Builder channelGenre(String channelGenre) {
             this.mChannelGenre = channelGenre;
-        } else {
-            this.mChannelGenre = "";
+            return this;
+        }
+
+        /**
+         * 配信サーバを設定する
+         * 
+         * @param channelServer 配信サーバ。<br />
+         *            配信サーバを自動で選択する場合はの場合はnullもしくは空文字列を指定すること。
+         * @return ビルダー
+         */
+        public Builder channelServer(String channelServer) {
+            this.mChannelServer = channelServer;
+            return this;
+        }
+
+        /**
+         * 予備の接続を用意しておくかを設定する
+         * 
+         * @param channelHotStandby 切断時にすぐ切り替えられるように、別の配信サーバに予備の接続を用意しておく場合はtrue。<br />
+         *            配信サーバを自動で選択する場合のみ有効。
+         * @return ビルダー
+         */
+        public Builder channelHotStandby(boolean channelHotStandby) {
+            this.mChannelHotStandby = channelHotStandby;
+            return this;
+        }
+
+        /**
+         * ねとらじ以外の配信先を追加する
+         * 
+         * @param relayDestination 配信先。nullの場合は何もしない。
+         * @return ビルダー
+         */
+        public Builder relayDestination(BroadcastDestination relayDestination) {
+            if (relayDestination != null) {
+                this.mRelayDestinations.add(relayDestination);
+            }
+            return this;
+        }
+
+        /**
+         * LAN内の聴取者に直接配信するかを設定する
+         * 
+         * @param localServer LAN内の聴取者に直接配信する場合はtrue
+         * @return ビルダー
+         */
+        public Builder localServer(boolean localServer) {
+            this.mLocalServer = localServer;
+            return this;
+        }
+
+        /**
+         * PCMバッファがオーバーフローした場合の動作を設定する
+         * 
+         * @param pcmOverflowPolicy PCMバッファがオーバーフローした場合の動作
+         * @return ビルダー
+         * @see PcmOverflowHandler#POLICY_ABORT
+         * @see PcmOverflowHandler#POLICY_DROP_OLDEST
+         * @see PcmOverflowHandler#POLICY_DECIMATE
+         * @see PcmOverflowHandler#POLICY_SKIP_SILENT
+         */
+        public Builder pcmOverflowPolicy(int pcmOverflowPolicy) {
+            this.mPcmOverflowPolicy = pcmOverflowPolicy;
+            return this;
+        }
+
+        /**
+         * エンコードプロファイルを設定する
+         * 
+         * @param audioEncodeProfile エンコードプロファイル
+         * @return ビルダー
+         * @see BroadcastConfig#ENCODE_PROFILE_STANDARD
+         * @see BroadcastConfig#ENCODE_PROFILE_SPEECH
+         */
+        public Builder audioEncodeProfile(int audioEncodeProfile) {
+            this.mAudioEncodeProfile = audioEncodeProfile;
+            return this;
+        }
+
+        /**
+         * 送信を始める前にMP3バッファにためておく音声の長さを設定する
+         * 
+         * @param audioPrebufferMsec 送信を始める前にためておく音声の長さ（ミリ秒）。<br />
+         *            0の場合は、エンコードしたデータができ次第送信を始める。
+         * @return ビルダー
+         */
+        public Builder audioPrebufferMsec(int audioPrebufferMsec) {
+            this.mAudioPrebufferMsec = audioPrebufferMsec;
+            return this;
+        }
+
+        /**
+         * 小さな送信をまとめるために、データを待たせる最大の時間を設定する
+         * 
+         * @param sendBatchMsec データを待たせる最大の時間（ミリ秒）。<br />
+         *            まとめない場合は0を指定すること。
+         * @return ビルダー
+         */
+        public Builder sendBatchMsec(int sendBatchMsec) {
+            this.mSendBatchMsec = sendBatchMsec;
+            return this;
+        }
+
+        /**
+         * 送信速度をビットレートに合わせて平準化するかを設定する
+         * 
+         * @param sendPacing 送信速度を平準化する場合はtrue
+         * @return ビルダー
+         */
+        public Builder sendPacing(boolean sendPacing) {
+            this.mSendPacing = sendPacing;
+            return this;
+        }
+
+        /**
+         * 再接続するまでにたまったデータの送り方を設定する
+         * 
+         * @param sendBacklogPolicy たまったデータの送り方
+         * @return ビルダー
+         * @see BacklogDrainer#POLICY_FULL_SPEED
+         * @see BacklogDrainer#POLICY_LIVE_EDGE
+         * @see BacklogDrainer#POLICY_CATCH_UP
+         */
+        public Builder sendBacklogPolicy(int sendBacklogPolicy) {
+            this.mSendBacklogPolicy = sendBacklogPolicy;
+            return this;
+        }
+
+        /**
+         * たまったデータを追いつくように送る場合の、ビットレートに対する送信速度の倍率を設定する
+         * 
+         * @param sendCatchUpPercent 送信速度の倍率（パーセント）。100より大きい値を指定すること。
+         * @return ビルダー
+         */
+        public Builder sendCatchUpPercent(int sendCatchUpPercent) {
+            this.mSendCatchUpPercent = sendCatchUpPercent;
+            return this;
+        }
+
+        /**
+         * 過去に配信した際の回線の速さから、ビットレートを自動で下げるかを設定する
+         * 
+         * @param audioBrateAuto ビットレートを自動で下げる場合はtrue。<br />
+         *            設定したビットレートより上げることはない。
+         * @return ビルダー
+         */
+        public Builder audioBrateAuto(boolean audioBrateAuto) {
+            this.mAudioBrateAuto = audioBrateAuto;
+            return this;
+        }
+
+        /**
+         * 停止した後に、送信していないデータを送り切るまで待つ最大の時間を設定する
+         * 
+         * @param sendDrainMsec 送り切るまで待つ最大の時間（ミリ秒）。0の場合は送り切らずに停止する。<br />
+         *            {@link C#MAX_SEND_DRAIN_MSEC}まで指定できる。
+         * @return ビルダー
+         */
+        public Builder sendDrainMsec(int sendDrainMsec) {
+            this.mSendDrainMsec = sendDrainMsec;
+            return this;
+        }
+
+        /**
+         * 配信設定を生成する
+         * 
+         * @return 配信設定
+         * @throws IllegalArgumentException 設定値が不正
+         */
+        public BroadcastConfig create() {
+            return new BroadcastConfig(this);
         }
-        this.mChannelMount = channelMount;
-        this.mChannelServer = channelServer;
     }
 
     public static final Parcelable.Creator<BroadcastConfig> CREATOR = new Parcelable.Creator<BroadcastConfig>() {
@@ -202,6 +684,24 @@ public final class BroadcastConfig implements Parcelable {
         this.mChannelGenre = in.readString();
         this.mChannelMount = in.readString();
         this.mChannelServer = in.readString();
+        this.mChannelHotStandby = (in.readInt() != 0);
+        final int relayDestinationCount = in.readInt();
+        final ArrayList<BroadcastDestination> relayDestinations = new ArrayList<BroadcastDestination>(
+                relayDestinationCount);
+        for (int i = 0; i < relayDestinationCount; ++i) {
+            relayDestinations.add(BroadcastDestination.CREATOR.createFromParcel(in));
+        }
+        this.mRelayDestinations = Collections.unmodifiableList(relayDestinations);
+        this.mLocalServer = (in.readInt() != 0);
+        this.mPcmOverflowPolicy = in.readInt();
+        this.mAudioEncodeProfile = in.readInt();
+        this.mAudioPrebufferMsec = in.readInt();
+        this.mSendBatchMsec = in.readInt();
+        this.mSendPacing = (in.readInt() != 0);
+        this.mSendBacklogPolicy = in.readInt();
+        this.mSendCatchUpPercent = in.readInt();
+        this.mAudioBrateAuto = (in.readInt() != 0);
+        this.mSendDrainMsec = in.readInt();
     }
 
     @Override
@@ -222,6 +722,21 @@ public final class BroadcastConfig implements Parcelable {
         dest.writeString(mChannelGenre);
         dest.writeString(mChannelMount);
         dest.writeString(mChannelServer);
+        dest.writeInt(mChannelHotStandby ? 1 : 0);
+        dest.writeInt(mRelayDestinations.size());
+        for (BroadcastDestination relayDestination : mRelayDestinations) {
+            relayDestination.writeToParcel(dest, flags);
+        }
+        dest.writeInt(mLocalServer ? 1 : 0);
+        dest.writeInt(mPcmOverflowPolicy);
+        dest.writeInt(mAudioEncodeProfile);
+        dest.writeInt(mAudioPrebufferMsec);
+        dest.writeInt(mSendBatchMsec);
+        dest.writeInt(mSendPacing ? 1 : 0);
+        dest.writeInt(mSendBacklogPolicy);
+        dest.writeInt(mSendCatchUpPercent);
+        dest.writeInt(mAudioBrateAuto ? 1 : 0);
+        dest.writeInt(mSendDrainMsec);
     }
 
     @Override
@@ -233,7 +748,18 @@ public final class BroadcastConfig implements Parcelable {
                 + ", mChannelTitle=" + mChannelTitle + ", mChannelDescription="
                 + mChannelDescription + ", mChannelUrl=" + mChannelUrl
                 + ", mChannelGenre=" + mChannelGenre + ", mChannelMount="
-                + mChannelMount + ", mChannelServer=" + mChannelServer + "]";
+                + mChannelMount + ", mChannelServer=" + mChannelServer
+                + ", mChannelHotStandby=" + mChannelHotStandby
+                + ", mRelayDestinations=" + mRelayDestinations
+                + ", mLocalServer=" + mLocalServer
+                + ", mPcmOverflowPolicy=" + mPcmOverflowPolicy
+                + ", mAudioEncodeProfile=" + mAudioEncodeProfile
+                + ", mAudioPrebufferMsec=" + mAudioPrebufferMsec
+                + ", mSendBatchMsec=" + mSendBatchMsec + ", mSendPacing=" + mSendPacing
+                + ", mSendBacklogPolicy=" + mSendBacklogPolicy
+                + ", mSendCatchUpPercent=" + mSendCatchUpPercent
+                + ", mAudioBrateAuto=" + mAudioBrateAuto
+                + ", mSendDrainMsec=" + mSendDrainMsec + "]";
     }
 
     /**
@@ -335,4 +861,146 @@ public final class BroadcastConfig implements Parcelable {
     public final String getChannelServer() {
         return mChannelServer;
     }
+
+    /**
+     * 予備の接続を用意しておくかを取得する
+     * 
+     * @return 切断時にすぐ切り替えられるように、別の配信サーバに予備の接続を用意しておく場合はtrue
+     */
+    public final boolean isChannelHotStandby() {
+        return mChannelHotStandby;
+    }
+
+    /**
+     * ねとらじ以外の配信先のリストを取得する
+     * 
+     * @return ねとらじ以外の配信先のリスト。変更できない。
+     */
+    public final List<BroadcastDestination> getRelayDestinations() {
+        return mRelayDestinations;
+    }
+
+    /**
+     * LAN内の聴取者に直接配信するかを取得する
+     * 
+     * @return LAN内の聴取者に直接配信する場合はtrue
+     */
+    public final boolean isLocalServer() {
+        return mLocalServer;
+    }
+
+    /**
+     * PCMバッファがオーバーフローした場合の動作を取得する
+     * 
+     * @return PCMバッファがオーバーフローした場合の動作
+     * @see PcmOverflowHandler#POLICY_ABORT
+     * @see PcmOverflowHandler#POLICY_DROP_OLDEST
+     * @see PcmOverflowHandler#POLICY_DECIMATE
+     * @see PcmOverflowHandler#POLICY_SKIP_SILENT
+     */
+    public final int getPcmOverflowPolicy() {
+        return mPcmOverflowPolicy;
+    }
+
+    /**
+     * エンコードプロファイルを取得する
+     * 
+     * @return エンコードプロファイル
+     * @see #ENCODE_PROFILE_STANDARD
+     * @see #ENCODE_PROFILE_SPEECH
+     */
+    public final int getAudioEncodeProfile() {
+        return mAudioEncodeProfile;
+    }
+
+    /**
+     * 送信を始める前にMP3バッファにためておく音声の長さ（ミリ秒）を取得する
+     * 
+     * @return 送信を始める前にためておく音声の長さ（ミリ秒）
+     */
+    public final int getAudioPrebufferMsec() {
+        return mAudioPrebufferMsec;
+    }
+
+    /**
+     * 小さな送信をまとめるために、データを待たせる最大の時間（ミリ秒）を取得する
+     * 
+     * @return データを待たせる最大の時間（ミリ秒）。まとめない場合は0。
+     */
+    public final int getSendBatchMsec() {
+        return mSendBatchMsec;
+    }
+
+    /**
+     * 送信速度をビットレートに合わせて平準化するかを取得する
+     * 
+     * @return 送信速度を平準化する場合はtrue
+     */
+    public final boolean isSendPacing() {
+        return mSendPacing;
+    }
+
+    /**
+     * 再接続するまでにたまったデータの送り方を取得する
+     * 
+     * @return たまったデータの送り方
+     * @see BacklogDrainer#POLICY_FULL_SPEED
+     * @see BacklogDrainer#POLICY_LIVE_EDGE
+     * @see BacklogDrainer#POLICY_CATCH_UP
+     */
+    public final int getSendBacklogPolicy() {
+        return mSendBacklogPolicy;
+    }
+
+    /**
+     * たまったデータを追いつくように送る場合の、ビットレートに対する送信速度の倍率を取得する
+     * 
+     * @return 送信速度の倍率（パーセント）
+     */
+    public final int getSendCatchUpPercent() {
+        return mSendCatchUpPercent;
+    }
+
+    /**
+     * 過去に配信した際の回線の速さから、ビットレートを自動で下げるかを取得する
+     * 
+     * @return ビットレートを自動で下げる場合はtrue
+     */
+    public final boolean isAudioBrateAuto() {
+        return mAudioBrateAuto;
+    }
+
+    /**
+     * 停止した後に、送信していないデータを送り切るまで待つ最大の時間を取得する
+     * 
+     * @return 送り切るまで待つ最大の時間（ミリ秒）。0の場合は送り切らずに停止する。
+     */
+    public final int getSendDrainMsec() {
+        return mSendDrainMsec;
+    }
+
+    /**
+     * エンコードするサンプリングレート（Hz）を取得する。<br />
+     * トークの場合は録音するサンプリングレート以下の、ビットレートに応じた値になる。
+     * 
+     * @return エンコードするサンプリングレート（Hz）
+     */
+    public final int getAudioEncodeSampleRate() {
+        if (mAudioEncodeProfile == ENCODE_PROFILE_SPEECH) {
+            return SpeechProfile.getSampleRate(mAudioBrate, mAudioSampleRate);
+        }
+        return mAudioSampleRate;
+    }
+
+    /**
+     * エンコード前にかけるローパスフィルタの周波数（Hz）を取得する
+     * 
+     * @return ローパスフィルタの周波数（Hz）。ローパスフィルタをかけない場合は0。
+     */
+    public final int getAudioLowpassFrequency() {
+        if (mAudioEncodeProfile == ENCODE_PROFILE_SPEECH) {
+            return SpeechProfile.getLowpassFrequency(mAudioBrate, mAudioSampleRate);
+        }
+        return 0;
+    }
 }
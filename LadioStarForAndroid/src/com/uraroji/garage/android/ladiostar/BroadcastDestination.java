@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * ねとらじ以外の配信先（Icecastサーバ）
+ * 
+ * ねとらじに配信しているストリームを、同じエンコード結果のまま中継サーバなどにも送るための配信先。
+ */
+public final class BroadcastDestination implements Parcelable {
+
+    /**
+     * ポート番号を省略した場合のポート番号
+     */
+    public static final int DEFAULT_PORT = 8000;
+
+    /**
+     * ユーザー名を省略した場合のユーザー名
+     */
+    public static final String DEFAULT_USER = "source";
+
+    /**
+     * ホスト名
+     */
+    private final String mHost;
+
+    /**
+     * ポート番号
+     */
+    private final int mPort;
+
+    /**
+     * マウント名。"/"から始まる。
+     */
+    private final String mMount;
+
+    /**
+     * ユーザー名
+     */
+    private final String mUser;
+
+    /**
+     * パスワード
+     */
+    private final String mPassword;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param host ホスト名
+     * @param port ポート番号
+     * @param mount マウント名。"/"から始まること。
+     * @param user ユーザー名
+     * @param password パスワード
+     * @throws IllegalArgumentException host、mount、user、passwordにnullを指定した。もしくはmountが"/"から始まらない。
+     */
+    public BroadcastDestination(String host, int port, String mount, String user,
+            String password) {
+        if (host == null || host.length() == 0) {
+            throw new IllegalArgumentException("host must be not empty.");
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid port " + port + ".");
+        }
+        if (mount == null || mount.length() < 2 || mount.charAt(0) != '/') {
+            throw new IllegalArgumentException("mount must start with \"/\".");
+        }
+        if (user == null || password == null) {
+            throw new IllegalArgumentException("user and password must be not null.");
+        }
+        this.mHost = host;
+        this.mPort = port;
+        this.mMount = mount;
+        this.mUser = user;
+        this.mPassword = password;
+    }
+
+    /**
+     * "http://ユーザー名:パスワード@ホスト名:ポート番号/マウント名"の形式の文字列から配信先を生成する。<br />
+     * ユーザー名を省略した場合は{@link #DEFAULT_USER}、ポート番号を省略した場合は{@link #DEFAULT_PORT}とする。
+     * 
+     * @param url 配信先
+     * @return 配信先。形式が正しくない場合はnull。
+     */
+    public static BroadcastDestination parse(String url) {
+        if (url == null || url.trim().length() == 0) {
+            return null;
+        }
+        final URI uri;
+        try {
+            uri = new URI(url.trim());
+        } catch (URISyntaxException e) {
+            return null;
+        }
+        if (!"http".equalsIgnoreCase(uri.getScheme())
+                && !"icecast".equalsIgnoreCase(uri.getScheme())) {
+            return null;
+        }
+        if (uri.getHost() == null || uri.getPath() == null || uri.getPath().length() < 2) {
+            return null;
+        }
+
+        String user = DEFAULT_USER;
+        String password = "";
+        final String userInfo = uri.getUserInfo();
+        if (userInfo != null) {
+            final int colon = userInfo.indexOf(':');
+            if (colon < 0) {
+                password = userInfo;
+            } else {
+                user = userInfo.substring(0, colon);
+                password = userInfo.substring(colon + 1);
+            }
+        }
+        final int port = (uri.getPort() > 0) ? uri.getPort() : DEFAULT_PORT;
+        return new BroadcastDestination(uri.getHost(), port, uri.getPath(), user, password);
+    }
+
+    public static final Parcelable.Creator<BroadcastDestination> CREATOR = new Parcelable.Creator<BroadcastDestination>() {
+        public BroadcastDestination createFromParcel(Parcel in) {
+            return new BroadcastDestination(in);
+        }
+
+        public BroadcastDestination[] newArray(int size) {
+            return new BroadcastDestination[size];
+        }
+    };
+
+    private BroadcastDestination(Parcel in) {
+        this.mHost = in.readString();
+        this.mPort = in.readInt();
+        this.mMount = in.readString();
+        this.mUser = in.readString();
+        this.mPassword = in.readString();
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(mHost);
+        dest.writeInt(mPort);
+        dest.writeString(mMount);
+        dest.writeString(mUser);
+        dest.writeString(mPassword);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BroadcastDestination)) {
+            return false;
+        }
+        final BroadcastDestination other = (BroadcastDestination) o;
+        return mHost.equals(other.mHost) && mPort == other.mPort
+                && mMount.equals(other.mMount) && mUser.equals(other.mUser)
+                && mPassword.equals(other.mPassword);
+    }
+
+    @Override
+    public int hashCode() {
+        return ((mHost.hashCode() * 31 + mPort) * 31 + mMount.hashCode()) * 31
+                + mUser.hashCode();
+    }
+
+    /**
+     * パスワードは含めない
+     */
+    @Override
+    public String toString() {
+        return "BroadcastDestination [" + getAddress() + mMount + ", mUser=" + mUser + "]";
+    }
+
+    /**
+     * ホスト名を取得する
+     * 
+     * @return ホスト名
+     */
+    public final String getHost() {
+        return mHost;
+    }
+
+    /**
+     * ポート番号を取得する
+     * 
+     * @return ポート番号
+     */
+    public final int getPort() {
+        return mPort;
+    }
+
+    /**
+     * "ホスト名:ポート番号"の形式のアドレスを取得する
+     * 
+     * @return アドレス
+     */
+    public final String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    /**
+     * マウント名を取得する
+     * 
+     * @return マウント名。"/"から始まる。
+     */
+    public final String getMount() {
+        return mMount;
+    }
+
+    /**
+     * ユーザー名を取得する
+     * 
+     * @return ユーザー名
+     */
+    public final String getUser() {
+        return mUser;
+    }
+
+    /**
+     * パスワードを取得する
+     * 
+     * @return パスワード
+     */
+    public final String getPassword() {
+        return mPassword;
+    }
+}
@@ -52,6 +52,30 @@ public final class BroadcastInfo implements Parcelable {
      * {@link System#currentTimeMillis()}}で取得した配信開始時刻を格納する。
      */
     private final long mStartTime;
+
+    /**
+     * 推定した上りの回線の速さ（バイト/秒）。<br />
+     * 推定できていない場合は-1。
+     */
+    private final long mUplinkBytesPerSec;
+
+    /**
+     * 推定した上りの回線の速さで送れるビットレート（kbps）。<br />
+     * 推定できていない場合は0。
+     */
+    private final int mRecommendedAudioBrate;
+
+    /**
+     * 直近1分間の1分あたりの書き込み回数。<br />
+     * 書き込んでいない場合は0。
+     */
+    private final long mWritesPerMinute;
+
+    /**
+     * 1回の書き込みの平均サイズ（バイト）。<br />
+     * 書き込んでいない場合は0。
+     */
+    private final long mAverageWriteBytes;
     
     /**
      * コンストラクタ
@@ -68,6 +92,31 @@ public final class BroadcastInfo implements Parcelable {
         this.mServerName = serverName;
         this.mServerPort = serverPort;
         this.mStartTime = startTime;
+        this.mUplinkBytesPerSec = -1;
+        this.mRecommendedAudioBrate = 0;
+        this.mWritesPerMinute = 0;
+        this.mAverageWriteBytes = 0;
+    }
+
+    /**
+     * 既存の番組の情報に、推定した上りの回線の速さと書き込みの統計を加えるコンストラクタ
+     * 
+     * @param info 元にする番組の情報
+     * @param uplinkBytesPerSec 推定した上りの回線の速さ（バイト/秒）。推定できていない場合は-1。
+     * @param recommendedAudioBrate 推定した回線の速さで送れるビットレート（kbps）。推定できていない場合は0。
+     * @param writesPerMinute 直近1分間の1分あたりの書き込み回数
+     * @param averageWriteBytes 1回の書き込みの平均サイズ（バイト）
+     */
+    public BroadcastInfo(BroadcastInfo info, long uplinkBytesPerSec, int recommendedAudioBrate,
+            long writesPerMinute, long averageWriteBytes) {
+        this.mBroadcastConfig = info.mBroadcastConfig;
+        this.mServerName = info.mServerName;
+        this.mServerPort = info.mServerPort;
+        this.mStartTime = info.mStartTime;
+        this.mUplinkBytesPerSec = uplinkBytesPerSec;
+        this.mRecommendedAudioBrate = recommendedAudioBrate;
+        this.mWritesPerMinute = writesPerMinute;
+        this.mAverageWriteBytes = averageWriteBytes;
     }
 
     public static final Parcelable.Creator<BroadcastInfo> CREATOR = new Parcelable.Creator<BroadcastInfo>() {
@@ -85,6 +134,10 @@ public final class BroadcastInfo implements Parcelable {
         this.mServerName = in.readString();
         this.mServerPort = in.readInt();
         this.mStartTime = in.readLong();
+        this.mUplinkBytesPerSec = in.readLong();
+        this.mRecommendedAudioBrate = in.readInt();
+        this.mWritesPerMinute = in.readLong();
+        this.mAverageWriteBytes = in.readLong();
     }
 
     @Override
@@ -98,6 +151,10 @@ public final class BroadcastInfo implements Parcelable {
         dest.writeString(mServerName);
         dest.writeInt(mServerPort);
         dest.writeLong(mStartTime);
+        dest.writeLong(mUplinkBytesPerSec);
+        dest.writeInt(mRecommendedAudioBrate);
+        dest.writeLong(mWritesPerMinute);
+        dest.writeLong(mAverageWriteBytes);
     }
 
     @Override
@@ -105,7 +162,10 @@ public final class BroadcastInfo implements Parcelable {
         return "BroadcastInfo [mBroadcastConfig=" + mBroadcastConfig.toString()
                 + ", mServerName=" + mServerName + ", mServerPort="
                 + Integer.toString(mServerPort) + " mStartTime=" + Long.toString(mStartTime)
-                + "]";
+                + ", mUplinkBytesPerSec=" + mUplinkBytesPerSec
+                + ", mRecommendedAudioBrate=" + mRecommendedAudioBrate
+                + ", mWritesPerMinute=" + mWritesPerMinute
+                + ", mAverageWriteBytes=" + mAverageWriteBytes + "]";
     }
 
     /**
@@ -225,4 +285,40 @@ public final class BroadcastInfo implements Parcelable {
     public final long getStartTime() {
         return mStartTime;
     }
+
+    /**
+     * 推定した上りの回線の速さを取得する
+     * 
+     * @return 推定した上りの回線の速さ（バイト/秒）。推定できていない場合は-1。
+     */
+    public final long getUplinkBytesPerSec() {
+        return mUplinkBytesPerSec;
+    }
+
+    /**
+     * 推定した上りの回線の速さで送れるビットレートを取得する
+     * 
+     * @return 推定した回線の速さで送れるビットレート（kbps）。推定できていない場合は0。
+     */
+    public final int getRecommendedAudioBrate() {
+        return mRecommendedAudioBrate;
+    }
+
+    /**
+     * 直近1分間の1分あたりの書き込み回数を取得する
+     * 
+     * @return 1分あたりの書き込み回数。書き込んでいない場合は0。
+     */
+    public final long getWritesPerMinute() {
+        return mWritesPerMinute;
+    }
+
+    /**
+     * 1回の書き込みの平均サイズを取得する
+     * 
+     * @return 1回の書き込みの平均サイズ（バイト）。書き込んでいない場合は0。
+     */
+    public final long getAverageWriteBytes() {
+        return mAverageWriteBytes;
+    }
 }
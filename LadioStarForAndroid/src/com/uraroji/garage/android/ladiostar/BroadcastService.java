@@ -26,12 +26,15 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.telephony.PhoneStateListener;
@@ -39,6 +42,11 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import com.uraroji.garage.android.ladiostar.util.ConnectivityWatcher;
+import com.uraroji.garage.android.ladiostar.util.EventBus;
+
+import java.io.File;
+
 public class BroadcastService extends Service {
 
     /**
@@ -46,6 +54,22 @@ public class BroadcastService extends Service {
      */
     private VoiceSender mVoiceSender = new VoiceSender();
 
+    /**
+     * 接続しているネットワークの監視
+     */
+    private final ConnectivityWatcher mConnectivityWatcher = new ConnectivityWatcher();
+
+    /**
+     * ネットワークの切り替えを感知するためのBroadcastReceiver
+     */
+    private final BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            updateConnectivity();
+        }
+    };
+
     /**
      * 着信時に配信を停止するために着信を感知するためのTelephonyManager
      */
@@ -73,22 +97,46 @@ public class BroadcastService extends Service {
     public void onCreate() {
         super.onCreate();
 
-        // 配信の開始時、停止時にメッセージを表示するためのHandlerを登録する
-        mVoiceSender.addBroadcastStateChangedHandler(new Handler() {
+        // 前回取得した配信サーバ情報リストを、サービスを再起動しても使えるようにする
+        mVoiceSender.setServerDirectoryCacheFile(new File(getCacheDir(),
+                C.SERVER_DIRECTORY_CACHE_FILE_NAME));
+
+        // ネットワークの種類ごとの回線の速さは、次の配信でビットレートを選ぶのに使うので消えない場所に保存する
+        mVoiceSender.setUplinkHistoryFile(new File(getFilesDir(), C.UPLINK_HISTORY_FILE_NAME));
+
+        // ネットワークが切り替わった際に、古い接続がタイムアウトするのを待たずに接続し直す
+        mVoiceSender.setConnectivityWatcher(mConnectivityWatcher);
+        updateConnectivity();
+        registerReceiver(mConnectivityReceiver, new IntentFilter(
+                ConnectivityManager.CONNECTIVITY_ACTION));
+
+        // イベントはメインスレッドで受け取る
+        mVoiceSender.setEventDispatcher(new EventBus.Dispatcher() {
+
+            private final Handler mHandler = new Handler();
+
+            @Override
+            public void dispatch(Runnable drain) {
+                mHandler.post(drain);
+            }
+        });
+
+        // 配信の開始時、停止時にメッセージを表示するためのSubscriberを登録する
+        mVoiceSender.addMessageSubscriber(new EventBus.Subscriber<VoiceSender.MessageEvent>() {
 
             @Override
-            public void handleMessage(Message msg) {
+            public void onEvent(VoiceSender.MessageEvent event) {
                 // 受け取ったメッセージにあわせてToastを表示する
-                showToastMessage(msg);
+                showToastMessage(event.getWhat());
             }
 
             /**
              * {@link VoiceSender} から受け取ったメッセージにあわせてToastを表示する
              * 
-             * @param msg メッセージ
+             * @param what メッセージ
              */
-            private void showToastMessage(Message msg) {
-                switch (msg.what) {
+            private void showToastMessage(int what) {
+                switch (what) {
                     case VoiceSender.MSG_ERROR_NOT_SUPPORTED_RECORDING_PARAMETERS:
                         Toast.makeText(
                                 BroadcastService.this,
@@ -178,32 +226,41 @@ public class BroadcastService extends Service {
                     case VoiceSender.MSG_RECONNECT_STARTED:
                     case VoiceSender.MSG_STOP_WAIT_RECONNECT:
                         break;
+                    case VoiceSender.MSG_PCM_BUFFER_OVERFLOW_DEGRADED:
+                        Toast.makeText(BroadcastService.this,
+                                R.string.encode_too_slow_degraded, Toast.LENGTH_SHORT).show();
+                        break;
+                    case VoiceSender.MSG_RECONFIGURED:
+                    case VoiceSender.MSG_DRAIN_COMPLETED:
+                        break;
                     default:
-                        Log.w(C.TAG, "Unknown received message " + msg.what
+                        Log.w(C.TAG, "Unknown received message " + what
                                 + " when start.");
                         break;
                 }
             }
         });
 
-        // 配信状態変化通知のコールバックを配信するためのHandlerを登録する
-        mVoiceSender.addBroadcastStateChangedHandler(new Handler() {
+        // 配信状態変化通知のコールバックを配信するためのSubscriberを登録する
+        mVoiceSender.addMessageSubscriber(new EventBus.Subscriber<VoiceSender.MessageEvent>() {
 
             @Override
-            public void handleMessage(Message msg) {
+            public void onEvent(VoiceSender.MessageEvent event) {
                 // コールバックを実行する
-                execCallback(msg);
+                execCallback(event.getWhat());
 
-                // Notificationを更新する
-                updateNotification();
+                // 配信設定の変更でビットレートやチャンネル名が変わるので、Notificationを更新する
+                if (event.getWhat() == VoiceSender.MSG_RECONFIGURED) {
+                    updateNotification();
+                }
             }
 
             /**
              * コールバックを実行する。
              * 
-             * @param msg メッセージ
+             * @param what メッセージ
              */
-            private void execCallback(Message msg) {
+            private void execCallback(int what) {
                 final int n = mBroadcastStateChangedCallbackList
                         .beginBroadcast();
 
@@ -212,7 +269,7 @@ public class BroadcastService extends Service {
                             .getBroadcastItem(i);
                     if (callback != null) {
                         try {
-                            callback.changed(msg.what);
+                            callback.changed(what);
                         } catch (RemoteException e) {
                             // 例外はどうしようもないので無視しておく
                             Log.w(C.TAG,
@@ -224,77 +281,34 @@ public class BroadcastService extends Service {
 
                 mBroadcastStateChangedCallbackList.finishBroadcast();
             }
+        });
 
-            /**
-             * Notificationを更新する
-             */
-            private void updateNotification() {
-                // 配信情報を取得する
-                final BroadcastInfo broadcastingInfo = mVoiceSender
-                        .getBroadcastInfo();
-
-                NotificationManager nm = (NotificationManager) BroadcastService.this
-                        .getSystemService(Context.NOTIFICATION_SERVICE);
-
-                /*
-                 * 配信中で無い場合はNotificationを消す。
-                 * 
-                 * 配信中でもbroadcastingInfoが取得できないこともある（配信開始直後）ので、
-                 * broadcastingInfoがnullであるかもチェックする。
-                 */
-                if ((mVoiceSender.getBroadcastState() == VoiceSender.BROADCAST_STATE_STOPPING
-                        || mVoiceSender.getBroadcastState() == VoiceSender.BROADCAST_STATE_STOPPED)
-                        || broadcastingInfo == null) {
-                    // Notificationを消す
-                    nm.cancel(C.NOTIFICATION_ID);
-                }
-                // 配信中の場合はNotification表示する
-                else {
-                    // Android 2.2以下と2.3以上でステータスバーに表示するアイコンを分ける
-                    final int iconId = ((Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
-                            ? R.drawable.ic_stat_2_3 : R.drawable.ic_stat_2_2);
-                    
-                    // Notificationを表示する
-                    final String notificationTitle = String.format(
-                            BroadcastService.this
-                                    .getString(R.string.broadcasting_notification_title_format),
-                            broadcastingInfo.getChannelTitle());
-                    
-                    Notification n = new Notification(iconId,
-                            notificationTitle, System.currentTimeMillis());
-                    n.flags = Notification.FLAG_ONGOING_EVENT;
-                    Intent intent = new Intent(BroadcastService.this,
-                            MainActivity.class);
-                    PendingIntent contentIntent = PendingIntent
-                            .getActivity(BroadcastService.this, 0, intent,
-                                    Intent.FLAG_ACTIVITY_NEW_TASK);
-                    n.setLatestEventInfo(
-                            BroadcastService.this,
-                            notificationTitle,
-                            String.valueOf(broadcastingInfo.getAudioBrate())
-                                    + "kbps/"
-                                    + getChsString(broadcastingInfo
-                                            .getAudioChannel()),
-                            contentIntent);
-                    nm.notify(C.NOTIFICATION_ID, n);
-                }
+        // Notificationを更新するためのSubscriberを登録する
+        mVoiceSender.addBroadcastStateSubscriber(
+                new EventBus.Subscriber<VoiceSender.BroadcastStateEvent>() {
+
+            @Override
+            public void onEvent(VoiceSender.BroadcastStateEvent event) {
+                // Notificationを更新する
+                updateNotification();
             }
         });
 
-        // 音の大きさ通知のコールバックを配信するためのHandlerを登録する
-        mVoiceSender.addLoudnessdHandler(new Handler(){
+        // 音の大きさ通知のコールバックを配信するためのSubscriberを登録する
+        mVoiceSender.addLoudnessSubscriber(new EventBus.Subscriber<VoiceSender.LoudnessEvent>() {
+
             @Override
-            public void handleMessage(Message msg) {
+            public void onEvent(VoiceSender.LoudnessEvent event) {
                 // コールバックを実行する
-                execCallback(msg);
+                execCallback(event.getLoudness());
             }
 
             /**
              * コールバックを実行する。
              * 
-             * @param msg メッセージ
+             * @param loudness 音の大きさ
              */
-            private void execCallback(Message msg) {
+            private void execCallback(int loudness) {
                 final int n = mLoudnessCallbackList.beginBroadcast();
 
                 for (int i = 0; i < n; ++i) {
@@ -302,7 +316,7 @@ public class BroadcastService extends Service {
                             .getBroadcastItem(i);
                     if (callback != null) {
                         try {
-                            callback.loudness(msg.arg1);
+                            callback.loudness(loudness);
                         } catch (RemoteException e) {
                             // 例外はどうしようもないので無視しておく
                             Log.w(C.TAG,
@@ -329,6 +343,82 @@ public class BroadcastService extends Service {
         // 着信の感知をしないようにする
         mTelephonyManager.listen(mPhoneStateListener,
                 PhoneStateListener.LISTEN_NONE);
+
+        // ネットワークの切り替えを感知しないようにする
+        unregisterReceiver(mConnectivityReceiver);
+        mVoiceSender.setConnectivityWatcher(null);
+
+        // 停止する。録音とエンコーダは、送り切った後にそれぞれのスレッドが解放する。
+        mVoiceSender.stop();
+    }
+
+    /**
+     * Notificationを更新する
+     */
+    private void updateNotification() {
+        // 配信情報を取得する
+        final BroadcastInfo broadcastingInfo = mVoiceSender
+                .getBroadcastInfo();
+
+        NotificationManager nm = (NotificationManager) BroadcastService.this
+                .getSystemService(Context.NOTIFICATION_SERVICE);
+
+        /*
+         * 配信中で無い場合はNotificationを消す。
+         * 
+         * 配信中でもbroadcastingInfoが取得できないこともある（配信開始直後）ので、
+         * broadcastingInfoがnullであるかもチェックする。
+         */
+        if ((mVoiceSender.getBroadcastState() == VoiceSender.BROADCAST_STATE_STOPPING
+                || mVoiceSender.getBroadcastState() == VoiceSender.BROADCAST_STATE_STOPPED)
+                || broadcastingInfo == null) {
+            // Notificationを消す
+            nm.cancel(C.NOTIFICATION_ID);
+        }
+        // 配信中の場合はNotification表示する
+        else {
+            // Android 2.2以下と2.3以上でステータスバーに表示するアイコンを分ける
+            final int iconId = ((Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD)
+                    ? R.drawable.ic_stat_2_3 : R.drawable.ic_stat_2_2);
+            
+            // Notificationを表示する
+            final String notificationTitle = String.format(
+                    BroadcastService.this
+                            .getString(R.string.broadcasting_notification_title_format),
+                    broadcastingInfo.getChannelTitle());
+            
+            Notification n = new Notification(iconId,
+                    notificationTitle, System.currentTimeMillis());
+            n.flags = Notification.FLAG_ONGOING_EVENT;
+            Intent intent = new Intent(BroadcastService.this,
+                    MainActivity.class);
+            PendingIntent contentIntent = PendingIntent
+                    .getActivity(BroadcastService.this, 0, intent,
+                            Intent.FLAG_ACTIVITY_NEW_TASK);
+            n.setLatestEventInfo(
+                    BroadcastService.this,
+                    notificationTitle,
+                    String.valueOf(broadcastingInfo.getAudioBrate())
+                            + "kbps/"
+                            + getChsString(broadcastingInfo
+                                    .getAudioChannel()),
+                    contentIntent);
+            nm.notify(C.NOTIFICATION_ID, n);
+        }
+    }
+
+    /**
+     * 接続しているネットワークを調べて、ネットワークの監視に伝える。<br />
+     * 携帯電話回線の場合は、LTEなどの回線の種類も伝える。
+     */
+    private void updateConnectivity() {
+        final ConnectivityManager cm = (ConnectivityManager) getSystemService(CONNECTIVITY_SERVICE);
+        final NetworkInfo info = cm.getActiveNetworkInfo();
+        if (info == null || !info.isConnected()) {
+            mConnectivityWatcher.update(null, null);
+        } else {
+            mConnectivityWatcher.update(info.getTypeName(), info.getSubtypeName());
+        }
     }
 
     /**
@@ -379,6 +469,16 @@ public class BroadcastService extends Service {
             mVoiceSender.stop();
         }
 
+        @Override
+        public void reconfigure(BroadcastConfig broadcastConfig) throws RemoteException {
+            mVoiceSender.reconfigure(broadcastConfig);
+        }
+
+        @Override
+        public void updateChannelInfo(String title, String description) throws RemoteException {
+            mVoiceSender.updateChannelInfo(title, description);
+        }
+
         @Override
         public int getBroadcastState() throws RemoteException {
             return mVoiceSender.getBroadcastState();
@@ -22,8 +22,6 @@
 
 package com.uraroji.garage.android.ladiostar;
 
-import java.util.ArrayList;
-
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -33,6 +31,8 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.uraroji.garage.android.ladiostar.util.ListenerRegistry;
+
 /**
  * 配信サービスとの通信クラス
  */
@@ -59,6 +59,13 @@ public class BroadcastServiceConnector {
      */
     public static final int MSG_ERROR_STOP_SERVICE_CONNECTION = 2;
 
+    /**
+     * サービスへの接続に失敗したため配信設定を変更できない
+     * 
+     * {@link BroadcastServiceConnector#reconfigure(BroadcastConfig)}で配信設定を変更できない場合にのみ発行される。
+     */
+    public static final int MSG_ERROR_RECONFIGURE_SERVICE_CONNECTION = 3;
+
     /**
      * BroadcastServiceへのインターフェース
      */
@@ -72,32 +79,20 @@ public class BroadcastServiceConnector {
     /**
      * 配信の状態変化を通知するハンドラのリスト
      */
-    private ArrayList<Handler> mBroadcastStateChangedHandlerList = new ArrayList<Handler>();;
-
-    /**
-     * {@link BroadcastServiceConnector#mBroadcastStateChangedHandlerList}のロックオブジェクト
-     */
-    private final Object mBroadcastStateChangedHandlerListLock = new Object();
+    private final ListenerRegistry<Handler> mBroadcastStateChangedHandlers = new ListenerRegistry<Handler>(
+            Handler.class);
 
     /**
      * サービス接続の状態変化を通知するハンドラのリスト
      */
-    private ArrayList<Handler> mServiceConnectChangeHandlerList = new ArrayList<Handler>();;
-
-    /**
-     * {@link BroadcastServiceConnector#mServiceConnectChangeHandlerList}のロックオブジェクト
-     */
-    private final Object mServiceConnectChangeHandlerListLock = new Object();
+    private final ListenerRegistry<Handler> mServiceConnectChangeHandlers = new ListenerRegistry<Handler>(
+            Handler.class);
 
     /**
      * 音の大きさを通知するハンドラのリスト
      */
-    private ArrayList<Handler> mLoudnessHandlerList = new ArrayList<Handler>();;
-
-    /**
-     * {@link BroadcastServiceConnector#mLoudnessHandlerList}のロックオブジェクト
-     */
-    private final Object mLoudnessHandlerListLock = new Object();
+    private final ListenerRegistry<Handler> mLoudnessHandlers = new ListenerRegistry<Handler>(
+            Handler.class);
 
     /**
      * サービスがバインド済みか
@@ -162,6 +157,50 @@ public class BroadcastServiceConnector {
         }
     }
 
+    /**
+     * 配信中に配信設定を変更する
+     * 
+     * @param broadcastConfig 変更後の配信設定
+     */
+    public void reconfigure(BroadcastConfig broadcastConfig) {
+        if (C.LOCAL_LOG) {
+            Log.v(C.TAG, "Trying to reconfigure.");
+        }
+
+        try {
+            if (mBroadcastServiceInterface != null) {
+                mBroadcastServiceInterface.reconfigure(broadcastConfig);
+            } else {
+                Log.w(C.TAG, "Service interface is NULL in reconfigure.");
+                notifyServiceConnectChanged(MSG_ERROR_RECONFIGURE_SERVICE_CONNECTION);
+            }
+        } catch (RemoteException e) {
+            Log.w(C.TAG, "RemoteException(" + e.toString() + ") occurred in reconfigure.");
+            notifyServiceConnectChanged(MSG_ERROR_RECONFIGURE_SERVICE_CONNECTION);
+        }
+    }
+
+    /**
+     * 配信中に番組のタイトルと説明を変更する。<br />
+     * ねとらじサーバには接続し直して通知する。短い間隔の変更はまとめて最後の変更だけを反映する。
+     * 
+     * @param title 番組のタイトル
+     * @param description 番組の説明
+     */
+    public void updateChannelInfo(String title, String description) {
+        try {
+            if (mBroadcastServiceInterface != null) {
+                mBroadcastServiceInterface.updateChannelInfo(title, description);
+            } else {
+                Log.w(C.TAG, "Service interface is NULL in updateChannelInfo.");
+                notifyServiceConnectChanged(MSG_ERROR_RECONFIGURE_SERVICE_CONNECTION);
+            }
+        } catch (RemoteException e) {
+            Log.w(C.TAG, "RemoteException(" + e.toString() + ") occurred in updateChannelInfo.");
+            notifyServiceConnectChanged(MSG_ERROR_RECONFIGURE_SERVICE_CONNECTION);
+        }
+    }
+
     /**
      * 配信に使用したリソースを解放する。 アプリケーションの終了時などにリソースを解放すること。
      */
@@ -301,13 +340,12 @@ public class BroadcastServiceConnector {
      * @see VoiceSender#MSG_SEND_STREAM_ENDED
      * @see VoiceSender#MSG_RECONNECT_STARTED
      * @see VoiceSender#MSG_STOP_WAIT_RECONNECT
+     * @see VoiceSender#MSG_PCM_BUFFER_OVERFLOW_DEGRADED
+     * @see VoiceSender#MSG_RECONFIGURED
+     * @see VoiceSender#MSG_DRAIN_COMPLETED
      */
     public void addBroadcastStateChangedHandler(Handler handler) {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            if (handler != null) {
-                mBroadcastStateChangedHandlerList.add(handler);
-            }
-        }
+        mBroadcastStateChangedHandlers.add(handler);
     }
 
     /**
@@ -316,18 +354,14 @@ public class BroadcastServiceConnector {
      * @param handler 動作の状態変化を通知するハンドラ
      */
     public void removeBroadcastStateChangedHandler(Handler handler) {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            mBroadcastStateChangedHandlerList.remove(handler);
-        }
+        mBroadcastStateChangedHandlers.remove(handler);
     }
 
     /**
      * 配信の状態変化を通知するハンドラをクリアする
      */
     public void clearBroadcastStateChangedHandler() {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            mBroadcastStateChangedHandlerList.clear();
-        }
+        mBroadcastStateChangedHandlers.clear();
     }
 
     /**
@@ -336,22 +370,8 @@ public class BroadcastServiceConnector {
      * @param what
      */
     private void notifyBroadcastStateChanged(int what) {
-        for (Handler h : getBroadcastStateChangedHandlerListClone()) {
-            if (h != null) {
-                h.sendEmptyMessage(what);
-            }
-        }
-    }
-
-    /**
-     * 配信の状態変化を通知するハンドラリストのクローンしたリストを取得する。 浅いクローンなので注意。
-     * 
-     * @return 配信の状態変化を通知するハンドラリストのクローンしたリスト
-     */
-    @SuppressWarnings("unchecked")
-    private ArrayList<Handler> getBroadcastStateChangedHandlerListClone() {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            return (ArrayList<Handler>) mBroadcastStateChangedHandlerList.clone();
+        for (Handler h : mBroadcastStateChangedHandlers.snapshot()) {
+            h.sendEmptyMessage(what);
         }
     }
 
@@ -361,11 +381,7 @@ public class BroadcastServiceConnector {
      * @param handler 音の大きさを通知するハンドラ
      */
     public void addLoudnessHandler(Handler handler) {
-        synchronized (mLoudnessHandlerListLock) {
-            if (handler != null) {
-                mLoudnessHandlerList.add(handler);
-            }
-        }
+        mLoudnessHandlers.add(handler);
     }
 
     /**
@@ -374,18 +390,14 @@ public class BroadcastServiceConnector {
      * @param handler 音の大きさを通知するハンドラ
      */
     public void removeLoudnessHandler(Handler handler) {
-        synchronized (mLoudnessHandlerListLock) {
-            mLoudnessHandlerList.remove(handler);
-        }
+        mLoudnessHandlers.remove(handler);
     }
 
     /**
      * 音の大きさを通知するハンドラをクリアする
      */
     public void clearLoudnessHandler() {
-        synchronized (mLoudnessHandlerListLock) {
-            mLoudnessHandlerList.clear();
-        }
+        mLoudnessHandlers.clear();
     }
 
     /**
@@ -394,22 +406,8 @@ public class BroadcastServiceConnector {
      * @param loudness
      */
     private void notifyLoudness(int loudness) {
-        for (Handler h : getLoudnessHandlerListClone()) {
-            if (h != null) {
-                h.sendMessage(h.obtainMessage(VoiceSender.MSG_LOUDNESS, loudness, loudness));
-            }
-        }
-    }
-
-    /**
-     * 音の大きさを通知するハンドラリストのクローンしたリストを取得する。 浅いクローンなので注意。
-     * 
-     * @return 音の大きさを通知するハンドラリストのクローンしたリスト
-     */
-    @SuppressWarnings("unchecked")
-    private ArrayList<Handler> getLoudnessHandlerListClone() {
-        synchronized (mLoudnessHandlerListLock) {
-            return (ArrayList<Handler>) mLoudnessHandlerList.clone();
+        for (Handler h : mLoudnessHandlers.snapshot()) {
+            h.sendMessage(h.obtainMessage(VoiceSender.MSG_LOUDNESS, loudness, loudness));
         }
     }
 
@@ -423,11 +421,7 @@ public class BroadcastServiceConnector {
      * @see BroadcastServiceConnector#MSG_ERROR_STOP_SERVICE_CONNECTION
      */
     public void addServiceConnectChangeHandler(Handler handler) {
-        synchronized (mServiceConnectChangeHandlerListLock) {
-            if (handler != null) {
-                mServiceConnectChangeHandlerList.add(handler);
-            }
-        }
+        mServiceConnectChangeHandlers.add(handler);
     }
 
     /**
@@ -436,18 +430,14 @@ public class BroadcastServiceConnector {
      * @param handler 動作の状態変化を通知するハンドラ
      */
     public void removeServiceConnectChangeHandler(Handler handler) {
-        synchronized (mServiceConnectChangeHandlerListLock) {
-            mServiceConnectChangeHandlerList.remove(handler);
-        }
+        mServiceConnectChangeHandlers.remove(handler);
     }
 
     /**
      * 配信の状態変化を通知するハンドラをクリアする
      */
     public void clearServiceConnectChangeHandler() {
-        synchronized (mServiceConnectChangeHandlerListLock) {
-            mServiceConnectChangeHandlerList.clear();
-        }
+        mServiceConnectChangeHandlers.clear();
     }
 
     /**
@@ -456,22 +446,8 @@ public class BroadcastServiceConnector {
      * @param what
      */
     private void notifyServiceConnectChanged(int what) {
-        for (Handler h : getServiceConnectChangeHandlerListClone()) {
-            if (h != null) {
-                h.sendEmptyMessage(what);
-            }
-        }
-    }
-
-    /**
-     * 配信の状態変化を通知するハンドラリストのクローンしたリストを取得する。 浅いクローンなので注意。
-     * 
-     * @return 配信の状態変化を通知するハンドラリストのクローンしたリスト
-     */
-    @SuppressWarnings("unchecked")
-    private ArrayList<Handler> getServiceConnectChangeHandlerListClone() {
-        synchronized (mServiceConnectChangeHandlerListLock) {
-            return (ArrayList<Handler>) mServiceConnectChangeHandlerList.clone();
+        for (Handler h : mServiceConnectChangeHandlers.snapshot()) {
+            h.sendEmptyMessage(what);
         }
     }
 
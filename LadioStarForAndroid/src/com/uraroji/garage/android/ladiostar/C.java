@@ -22,6 +22,9 @@
 
 package com.uraroji.garage.android.ladiostar;
 
+import com.uraroji.garage.android.ladiostar.util.BacklogDrainer;
+import com.uraroji.garage.android.ladiostar.util.PcmOverflowHandler;
+
 /**
  * アプリケーションの静的な設定情報保持
  */
@@ -39,6 +42,19 @@ public class C {
      */
     public static final int DEFAULT_AUDIO_BITRATE = 32;
 
+    /**
+     * 設定値「ビットレートの自動調整」のデフォルト値
+     */
+    public static final boolean DEFAULT_AUDIO_BITRATE_AUTO = false;
+
+    /**
+     * 選べるビットレート（kbps）。小さい順に並べること。<br />
+     * ビットレートを自動で調整する場合は、この中から選ぶ。
+     */
+    public static final int[] AUDIO_BITRATES = {
+            24, 32, 48, 64
+    };
+
     /**
      * 設定値「モノラル・ステレオ」のデフォルト値。<br />
      * 1か2を指定すること
@@ -65,6 +81,24 @@ public class C {
      */
     public static final int DEFAULT_AUDIO_MP3_ENCODE_QUALITY = 7;
 
+    /**
+     * 設定値「エンコードプロファイル」のデフォルト値
+     * 
+     * @see BroadcastConfig#ENCODE_PROFILE_STANDARD
+     * @see BroadcastConfig#ENCODE_PROFILE_SPEECH
+     */
+    public static final int DEFAULT_AUDIO_ENCODE_PROFILE = BroadcastConfig.ENCODE_PROFILE_STANDARD;
+
+    /**
+     * 設定値「予備接続」のデフォルト値
+     */
+    public static final boolean DEFAULT_CHANNEL_HOT_STANDBY = false;
+
+    /**
+     * 設定値「LAN内に配信」のデフォルト値
+     */
+    public static final boolean DEFAULT_LOCAL_SERVER = false;
+
     /**
      * ログのタグ
      */
@@ -86,6 +120,29 @@ public class C {
      */
     public static final int PCM_BUFFER_SEC = 5;
 
+    /**
+     * PCMバッファがオーバーフローした場合の動作のデフォルト値。<br />
+     * <br />
+     * 他のアプリによる一時的な負荷などで配信が止まらないように、古いデータを捨てて録音を続ける。
+     *
+     * @see PcmOverflowHandler
+     */
+    public static final int DEFAULT_PCM_OVERFLOW_POLICY = PcmOverflowHandler.POLICY_DROP_OLDEST;
+
+    /**
+     * PCMバッファがオーバーフローした際に、無音とみなす録音データのRMS。<br />
+     * <br />
+     * {@link PcmOverflowHandler#POLICY_SKIP_SILENT} の場合に使用する。
+     */
+    public static final double PCM_OVERFLOW_SILENT_RMS = 100.0;
+
+    /**
+     * PCMバッファのオーバーフローを通知する最小間隔（ミリ秒）<br />
+     * <br />
+     * オーバーフローが続いている間に通知が大量に発行されないようにする。
+     */
+    public static final long PCM_OVERFLOW_NOTIFY_INTERVAL_MSEC = 10000;
+
     /**
      * 録音バッファに最大何秒分のデータをためこむかを指定する。<br />
      * <br />
@@ -124,12 +181,42 @@ public class C {
     public static final int MP3_BUFFER_SEC = 40;
 
     /**
-     * 録音を開始してから、送信開始までに待つ時間を指定する。<br />
+     * 設定値「送信前のバッファ」のデフォルト値（ミリ秒）<br />
+     * <br />
+     * 送信を始める前にMP3バッファにためておく音声の長さ。ため込んでおくと音声の途切れなどに強くなるが、配信の開始が遅れる。<br />
+     * 配信サーバへの接続は録音・エンコードと並行して行うので、接続にかかる時間はこの時間に含まれる。
+     * {@link #MP3_BUFFER_SEC} よりも十分小さい値にすること。
+     */
+    public static final int DEFAULT_AUDIO_PREBUFFER_MSEC = 500;
+
+    /**
+     * 設定値「まとめて送信」のデフォルト値（ミリ秒）<br />
+     * 0の場合はまとめずに、エンコードしたデータをすぐに送る。
+     */
+    public static final int DEFAULT_SEND_BATCH_MSEC = 0;
+
+    /**
+     * 設定値「送信速度の平準化」のデフォルト値
+     */
+    public static final boolean DEFAULT_SEND_PACING = false;
+
+    /**
+     * 設定値「再接続後の送信」のデフォルト値<br />
      * <br />
-     * 録音開始から送信開始まで少し待たせることで、MP3バッファにデータがため込まれるので、音声の途切れなどに強くなるはず。
-     * {@link #MP3_BUFFER_SEC} よりも十分小さい値にすること。 0以下を指定した場合は、録音開始直後に送信開始する。
+     * 再接続するまでにたまったデータを一度に送ると、配信サーバに切断されたり、リスナーに一度に届いたりするので、
+     * ビットレートより少し速く送って追いつく。
+     */
+    public static final int DEFAULT_SEND_BACKLOG_POLICY = BacklogDrainer.POLICY_CATCH_UP;
+
+    /**
+     * 設定値「追いつく速さ」のデフォルト値（ビットレートに対するパーセント）
+     */
+    public static final int DEFAULT_SEND_CATCH_UP_PERCENT = 200;
+
+    /**
+     * 設定値「停止時に送り切る時間」のデフォルト値（ミリ秒）
      */
-    public static final int WAIT_SEC_FROM_REC_START_TO_SEND_DATA = 5;
+    public static final int DEFAULT_SEND_DRAIN_MSEC = 5000;
 
     /**
      * リスナー数取得した後に次回リスナー数の取得を開始するまでの秒数
@@ -137,9 +224,241 @@ public class C {
     public static final int LISTENER_FETCH_INTERVAL_SEC = 30;
 
     /**
-     * 切断した際の再接続までの待ち時間（ミリ秒）
+     * 取得した配信サーバ情報リストを、取得し直さずに使う時間（ミリ秒）
+     */
+    public static final long SERVER_DIRECTORY_TTL_MSEC = 5 * 60 * 1000;
+
+    /**
+     * 取得した配信サーバ情報リストを使う最大の時間（ミリ秒）。<br />
+     * <br />
+     * {@link #SERVER_DIRECTORY_TTL_MSEC} を過ぎてからこの時間までは、古い配信サーバ情報リストで接続しつつ裏で取得し直す。
+     * この時間を過ぎた場合は、配信サーバ情報リストを取得してから接続する。
+     */
+    public static final long SERVER_DIRECTORY_MAX_STALE_MSEC = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * 配信サーバ情報リストのキャッシュを保存するファイル名
+     */
+    public static final String SERVER_DIRECTORY_CACHE_FILE_NAME = "netladio_servers.txt";
+
+    /**
+     * 配信サーバを選ぶ際に、各サーバへの接続を待つ最大の時間（ミリ秒）。<br />
+     * <br />
+     * 全てのサーバに同時に接続するので、サーバの数によらずこの時間以内に選び終わる。
+     */
+    public static final long SERVER_PROBE_TIMEOUT_MSEC = 1500;
+
+    /**
+     * 配信サーバを選ぶ際に、混雑度1あたり応答時間に何ミリ秒加えて比べるか
+     */
+    public static final long SERVER_CONGESTION_WEIGHT_MSEC = 50;
+
+    /**
+     * 配信サーバを選ぶ際に、接続に失敗し続けているサーバの応答時間に何ミリ秒加えて比べるか
+     */
+    public static final long SERVER_FAILURE_PENALTY_MSEC = 1000;
+
+    /**
+     * 配信サーバへの接続を待つ最大の時間（ミリ秒）
+     */
+    public static final long CONNECT_TIMEOUT_MSEC = 10000;
+
+    /**
+     * ヘッダを送信してから配信サーバのレスポンスを待つ最大の時間（ミリ秒）
+     */
+    public static final long HANDSHAKE_TIMEOUT_MSEC = 10000;
+
+    /**
+     * 1回の送信を待つ最大の時間（ミリ秒）
+     */
+    public static final long SEND_WRITE_TIMEOUT_MSEC = 20000;
+
+    /**
+     * 配信サーバがデータを受け取らない状態が何ミリ秒続いたら、送信が止まったとみなして再接続するか。<br />
+     * <br />
+     * 通信状態が悪い時に再接続を繰り返さないよう、数秒以上にすること。
+     */
+    public static final long SEND_STALL_TIMEOUT_MSEC = 8000;
+
+    /**
+     * 送信に使うソケットの送信バッファのサイズ（バイト）。<br />
+     * <br />
+     * OSの送信バッファが大きいと、配信サーバがデータを受け取らなくなってもしばらく送信できてしまい、検出が遅れる。
+     * 0以下を指定した場合はOSのデフォルトのサイズを使う。
+     */
+    public static final int SEND_SOCKET_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * まとめて送信する場合に、期間を待たずに送るデータの大きさ（バイト）
+     */
+    public static final int SEND_BATCH_TARGET_BYTES = 8 * 1024;
+
+    /**
+     * 送信速度を平準化する場合の、ビットレートに対する送信速度の倍率。<br />
+     * 再接続などでたまったデータを送り切れるように、1より大きい値にすること。
+     */
+    public static final double SEND_PACING_RATE_FACTOR = 1.5;
+
+    /**
+     * 送信速度を平準化する場合に、一度に送れるデータの秒数
+     */
+    public static final int SEND_PACING_BUCKET_SEC = 2;
+
+    /**
+     * 再接続後にたまったデータを送る場合に、送信が追いついたとみなす音声の長さ（ミリ秒）。<br />
+     * 最新の音声だけを送る場合は、この長さだけを残して古い音声を捨てる。
+     */
+    public static final int SEND_BACKLOG_LIVE_EDGE_MSEC = 1000;
+
+    /**
+     * 回線の速さの推定で、新しい測定値の重み
+     */
+    public static final double UPLINK_ESTIMATE_ALPHA = 0.2;
+
+    /**
+     * 回線の速さを何ミリ秒ごとに測定するか
+     */
+    public static final long UPLINK_ESTIMATE_INTERVAL_MSEC = 1000;
+
+    /**
+     * 回線の速さの測定で、1回の測定の間に送信待ちのデータがこれ以上増えた場合に回線が詰まっているとみなす（バイト）。<br />
+     * エンコードのむらで増えた分を詰まりとみなさないようにする。
+     */
+    public static final int UPLINK_ESTIMATE_GROWTH_TOLERANCE_BYTES = 4 * 1024;
+
+    /**
+     * 回線の速さの推定を記録するのに必要な測定の回数。<br />
+     * 短い配信の推定は当てにならないので記録しない。
+     */
+    public static final int UPLINK_ESTIMATE_MIN_SAMPLES = 30;
+
+    /**
+     * ビットレートを選ぶ際に、回線の速さに残す余裕（ビットレートに対する倍率）
+     */
+    public static final double UPLINK_BITRATE_HEADROOM = 1.25;
+
+    /**
+     * ネットワークの種類ごとの回線の速さを保存するファイル名
+     */
+    public static final String UPLINK_HISTORY_FILE_NAME = "uplink_history.txt";
+
+    /**
+     * 予備の接続を何ミリ秒ごとに接続し直すか。<br />
+     * <br />
+     * 配信サーバはヘッダを送らない接続をしばらくすると切断するので、それより短い時間にすること。
+     */
+    public static final long STANDBY_MAX_IDLE_MSEC = 10000;
+
+    /**
+     * 予備の接続に切り替える際に、配信サーバのレスポンスを待つ最大の時間（ミリ秒）
+     */
+    public static final long STANDBY_HANDSHAKE_TIMEOUT_MSEC = 3000;
+
+    /**
+     * ネットワークが切り替わった際に、新しいネットワークでの接続を待つ最大の時間（ミリ秒）。<br />
+     * <br />
+     * 時間内に接続できない場合は、古い接続を切断して接続し直す。
+     */
+    public static final long NETWORK_SWITCH_TIMEOUT_MSEC = 5000;
+
+    /**
+     * 配信中に番組のタイトルと説明を変更する最小の間隔（ミリ秒）。<br />
+     * <br />
+     * ねとらじサーバには接続し直して通知するので、この間隔の間の変更はまとめて最後の変更だけを反映する。
+     */
+    public static final long CHANNEL_INFO_UPDATE_INTERVAL_MSEC = 10000;
+
+    /**
+     * LAN内の聴取者に直接配信するサーバのポート番号
+     */
+    public static final int LOCAL_SERVER_PORT = 8080;
+
+    /**
+     * LAN内に配信するサーバに同時に接続できる聴取者の最大数
+     */
+    public static final int LOCAL_SERVER_MAX_CLIENTS = 100;
+
+    /**
+     * LAN内に配信するサーバが、聴取者の接続時にまとめて送る直近のデータの秒数。<br />
+     * プレイヤーがバッファがたまるのを待たずに再生を始められる。
+     */
+    public static final int LOCAL_SERVER_BURST_SEC = 3;
+
+    /**
+     * LAN内に配信するサーバが保持するデータの秒数。<br />
+     * これ以上遅れた聴取者は古いデータを飛ばす。{@link #LOCAL_SERVER_BURST_SEC}よりも大きい値にすること。
+     */
+    public static final int LOCAL_SERVER_BUFFER_SEC = 10;
+
+    /**
+     * LAN内に配信するサーバがICYメタデータを挟む間隔（バイト）
+     */
+    public static final int LOCAL_SERVER_ICY_METAINT = 16000;
+
+    /**
+     * LAN内に配信するサーバがMP3バッファを読み込む間隔（ミリ秒）
+     */
+    public static final long LOCAL_SERVER_POLL_MSEC = 50;
+
+    /**
+     * LAN内に配信するサーバが、聴取者のリクエストを待つ最大の時間（ミリ秒）
+     */
+    public static final long LOCAL_SERVER_REQUEST_TIMEOUT_MSEC = 5000;
+
+    /**
+     * LAN内に配信するサーバが、データを受け取らなくなった聴取者を切断するまでの時間（ミリ秒）
+     */
+    public static final long LOCAL_SERVER_STALL_TIMEOUT_MSEC = 15000;
+
+    /**
+     * 切断した際の再接続までの最初の待ち時間（ミリ秒）。<br />
+     * <br />
+     * 前回接続できたサーバへの再接続は待たずに行い、それに失敗した場合にこの時間から待ち始める。
+     * 再接続に失敗するたびに待ち時間を倍にする。
+     */
+    public static final long RECONNECT_BACKOFF_BASE_MSEC = 500;
+
+    /**
+     * 切断した際の再接続までの最大の待ち時間（ミリ秒）
+     */
+    public static final long RECONNECT_BACKOFF_MAX_MSEC = 30000;
+
+    /**
+     * 再接続までの待ち時間のうち、ランダムに短くする割合。<br />
+     * <br />
+     * 0〜1で指定する。配信サーバの障害時に、多数の配信者の再接続が同時に集中しないようにする。
+     */
+    public static final double RECONNECT_BACKOFF_JITTER = 0.5;
+
+    /**
+     * 再接続にかかった時間の分布を集計する区切り（ミリ秒）
+     */
+    public static final long[] RECONNECT_HISTOGRAM_BOUNDS_MSEC = {
+            250, 500, 1000, 2000, 4000, 8000, 16000, 32000
+    };
+
+    /**
+     * 停止した後に、送信していないデータを送り切るまで待つ時間の上限（ミリ秒）
+     */
+    public static final int MAX_SEND_DRAIN_MSEC = 10000;
+
+    /**
+     * 停止してから、録音・エンコード・送信スレッドが終了するまでにかかる最大の時間の目安（ミリ秒）。<br />
+     * <br />
+     * 送り切るまで待つ時間に、録音とエンコーダの解放にかかる時間を加えたもの。
+     * これを過ぎても終了しない場合は、スレッドが止まっていると見なす。
+     */
+    public static final long TEARDOWN_TIMEOUT_MSEC = MAX_SEND_DRAIN_MSEC + 3000;
+
+    /**
+     * 通知に使うイベントを、種類ごとにいくつまで使い回すために取っておくか
+     */
+    public static final int EVENT_POOL_SIZE = 8;
+
+    /**
+     * 送信したデータ量を直近何秒分で計測するか
      */
-    public static final long WAIT_RECONNECT_MSEC = 4000;
+    public static final int SENT_BYTE_RATE_WINDOW_SEC = 10;
 
     /**
      * 1秒間に何回音の大きさを通知するか<br />
@@ -0,0 +1,493 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar;
+
+import android.util.Log;
+
+import com.uraroji.garage.android.ladiostar.util.Mp3Link;
+import com.uraroji.garage.android.ladiostar.util.PcmLink;
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+import com.uraroji.garage.android.ladiostar.util.PipelineStage;
+import com.uraroji.garage.android.ladiostar.util.Resampler;
+import com.uraroji.garage.android.lame.Encoder;
+import com.uraroji.garage.android.lame.Lame;
+
+import java.nio.BufferOverflowException;
+import java.util.Calendar;
+
+/**
+ * エンコードステージ<br />
+ * PCMバッファから読み込んだ音声をMP3にエンコードして、MP3リンクに書き込む。
+ */
+final class EncodeStage extends PipelineStage {
+
+    /**
+     * 録音・エンコード・送信のステージを持つVoiceSender
+     */
+    private final VoiceSender mVoiceSender;
+
+    /**
+     * 配信状態
+     */
+    private final VoiceSender.BroadcastState mBroadcastState;
+
+    /**
+     * 録音データを読み込むPCMバッファ
+     */
+    private final PcmLink mPcmLink;
+
+    /**
+     * エンコードしたデータを書き込むMP3バッファ。<br />
+     * エンコーダを作り直してもタイムスタンプが続くように、フレームへの分割はMP3バッファが行う。
+     */
+    private final Mp3Link mMp3Link;
+
+    /**
+     * 配信設定
+     */
+    private BroadcastConfig mBroadcastConfig;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param voiceSender 録音・エンコード・送信のステージを持つVoiceSender
+     * @param lifecycle ステージの管理
+     * @param broadcastConfig 配信設定
+     * @param pcmLink 録音データを読み込むPCMバッファ
+     * @param mp3Link エンコードしたデータを書き込むMP3バッファ
+     */
+    public EncodeStage(VoiceSender voiceSender, PipelineLifecycle lifecycle,
+            BroadcastConfig broadcastConfig, PcmLink pcmLink, Mp3Link mp3Link) {
+        super("Encode", lifecycle);
+        mVoiceSender = voiceSender;
+        mBroadcastState = voiceSender.getState();
+        mPcmLink = pcmLink;
+        mMp3Link = mp3Link;
+        mBroadcastConfig = broadcastConfig;
+    }
+
+    /**
+     * PCMバッファが空の場合に、待たずに戻る条件。<br />
+     * 配信設定の変更が指示されているか停止した場合は待たない。
+     */
+    private final PcmLink.ReadCondition mPcmReadCondition = new PcmLink.ReadCondition() {
+
+        @Override
+        public boolean isCancelled() {
+            return isReconfigureReady() || !mBroadcastState.isConnectingOrBroadcasting();
+        }
+    };
+
+    /**
+     * 反映待ちの配信設定<br />
+     * 反映待ちの配信設定がない場合はnull。
+     */
+    private BroadcastConfig mPendingBroadcastConfig;
+
+    /**
+     * 配信設定の変更により止めた録音ステージ<br />
+     * 録音をやり直さない場合はnull。
+     */
+    private RecordStage mReleasedRecordStage;
+
+    /**
+     * 取り出した配信設定の変更で、録音をやり直すか
+     */
+    private boolean mIsRecordRestarted;
+
+    /**
+     * 配信設定の変更を指示する。<br />
+     * 変更前の設定でPCMバッファのデータをエンコードし終えてから、エンコーダをフラッシュして作り直す。
+     * 録音をやり直す場合は、止めた録音ステージの録音データをエンコードし終えてから、新しい配信設定で録音を開始する。<br />
+     * 入れ替えを待たずに戻る。入れ替えた時点で{@link VoiceSender#MSG_RECONFIGURED}を通知する。
+     * 
+     * @param broadcastConfig 変更後の配信設定
+     * @param releasedRecordStage 配信設定の変更により止めた録音ステージ。録音をやり直さない場合はnull。
+     */
+    public void requestReconfigure(BroadcastConfig broadcastConfig,
+            RecordStage releasedRecordStage) {
+        synchronized (this) {
+            mPendingBroadcastConfig = broadcastConfig;
+            // 録音のやり直しを待っている間に別の変更が指示されても、録音はやり直す
+            if (releasedRecordStage != null) {
+                mReleasedRecordStage = releasedRecordStage;
+            }
+        }
+        mPcmLink.wakeUp();
+    }
+
+    /**
+     * PCMバッファを待っている場合は起こして、配信状態を確かめさせる
+     */
+    @Override
+    public void requestStop() {
+        mPcmLink.wakeUp();
+    }
+
+    /**
+     * 配信設定の変更を反映できるかを取得する。<br />
+     * 録音をやり直す場合は、止めた録音ステージが終了するまで反映できない。
+     * 
+     * @return 反映できる場合はtrue、それ以外はfalse
+     */
+    private synchronized boolean isReconfigureReady() {
+        return mPendingBroadcastConfig != null
+                && (mReleasedRecordStage == null || mReleasedRecordStage.isFinished());
+    }
+
+    /**
+     * 反映待ちの配信設定を取り出す。<br />
+     * 録音をやり直すかは{@link #mIsRecordRestarted}に設定する。
+     * 
+     * @return 反映待ちの配信設定。反映待ちの配信設定がないか、まだ反映できない場合はnull。
+     */
+    private synchronized BroadcastConfig takePendingBroadcastConfig() {
+        if (!isReconfigureReady()) {
+            return null;
+        }
+        final BroadcastConfig result = mPendingBroadcastConfig;
+        mPendingBroadcastConfig = null;
+        mIsRecordRestarted = (mReleasedRecordStage != null);
+        mReleasedRecordStage = null;
+        return result;
+    }
+
+    @Override
+    protected void runStage() {
+        Log.d(C.TAG, "Start Encode thread.");
+
+        Encoder encoder = null;
+        try {
+            Lame.log(C.LOCAL_LOG);
+            // Lame init
+            encoder = createEncoder();
+
+            // エンコードが開始した
+            mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ENCODE_STARTED);
+
+            while (true) {
+                int encResult = encode(encoder);
+                if (encResult < 0) {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                    // エンコードに失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_AUDIO_ENCODE);
+                    return;
+                }
+
+                encResult = flush(encoder);
+                if (encResult < 0) {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                    // エンコードに失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_AUDIO_ENCODE);
+                    return;
+                }
+
+                // 停止した場合は終了
+                if (!mBroadcastState.isConnectingOrBroadcasting()) {
+                    break;
+                }
+                // 録音のやり直しを待っている間に別の変更が指示された場合は、今のエンコーダで続ける
+                final BroadcastConfig pendingConfig = takePendingBroadcastConfig();
+                if (pendingConfig == null) {
+                    continue;
+                }
+
+                // エンコーダを作り直す
+                encoder.close();
+                encoder = null;
+                Log.d(C.TAG, "SimpleLame is closed.");
+                mBroadcastConfig = pendingConfig;
+                encoder = createEncoder();
+
+                // 古い録音データをエンコードし終えたので、新しい配信設定で録音をやり直す
+                if (mIsRecordRestarted) {
+                    mPcmLink.resize(VoiceSender.getPcmBufferSize(pendingConfig));
+                    mVoiceSender.startRecordStage(pendingConfig);
+                }
+
+                Log.i(C.TAG, "Reconfigured encoder.");
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_RECONFIGURED);
+            }
+        } catch (InterruptedException e) {
+            Log.w(C.TAG, "Interrupted wait to writing PCM bufffer.", e);
+            mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+            // エンコードに失敗した
+            mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_AUDIO_ENCODE);
+        } catch (BufferOverflowException e) {
+            Log.w(C.TAG, "MP3 buffer overflowed.");
+            mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+            // エンコードに対して送信が遅いなどの理由でバッファオーバーフローした
+            mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_MP3_BUFFER_OVERFLOW);
+            return;
+        } finally {
+            if (encoder != null) {
+                encoder.close();
+                Log.d(C.TAG, "SimpleLame is closed.");
+            }
+            // これ以上書き込まないことを、送り切ろうとしている送信ステージに伝える
+            mMp3Link.finish();
+            Log.d(C.TAG, "Finish Encode thread. " + this);
+        }
+    }
+
+    /**
+     * 配信設定からエンコーダを生成する
+     * 
+     * @return エンコーダ
+     */
+    private Encoder createEncoder() {
+        // トークの場合はサンプリングレートを変換してからエンコーダに渡す
+        final Encoder encoder = new Encoder.Builder(
+                mBroadcastConfig.getAudioEncodeSampleRate(),
+                mBroadcastConfig.getAudioChannel(),
+                mBroadcastConfig.getAudioEncodeSampleRate(),
+                mBroadcastConfig.getAudioBrate())
+                .quality(mBroadcastConfig.getAudioMp3EncodeQuality())
+                .id3tagTitle(mBroadcastConfig.getChannelTitle())
+                .id3tagArtist(mBroadcastConfig.getChannelDjName())
+                .id3tagYear(String.valueOf(Calendar.getInstance().get(Calendar.YEAR)))
+                .id3tagComment(mBroadcastConfig.getChannelDescription())
+                .create();
+        Log.d(C.TAG,
+                "SimpleLame is initialized. (SampleRate="
+                        + String.valueOf(mBroadcastConfig.getAudioEncodeSampleRate())
+                        + ", Channel=" + String.valueOf(mBroadcastConfig.getAudioChannel())
+                        + ", BitRate=" + String.valueOf(mBroadcastConfig.getAudioBrate())
+                        + ", Quality="
+                        + String.valueOf(mBroadcastConfig.getAudioMp3EncodeQuality()) + ")");
+        return encoder;
+    }
+
+    /**
+     * PCMバッファ{@link #mPcmLink}からデータを読み込み、エンコードしてMP3バッファ{@link #mMp3Link}に書き込む。<br />
+     * <br />
+     * 配信が終了するか、エラーが発生するか、配信設定の変更が指示されてPCMバッファが空になるまでループする。
+     * 
+     * @param encoder エンコーダ
+     * @return 0:成功 -1:エンコード失敗
+     * @throws InterruptedException
+     */
+    private int encode(Encoder encoder)
+            throws InterruptedException {
+        final int readBufferSize = getReadPcmBufferSize();
+        // 読み込みバッファ
+        short[] readBuffer = new short[readBufferSize];
+        Log.d(C.TAG, "Read buffersize is " + String.valueOf(readBufferSize / 2) + " bytes.");
+
+        // MP3バッファサイズ
+        final int mp3BufferSize = getMp3BufferSize(readBufferSize);
+        // MP3バッファ
+        byte[] mp3buffer = new byte[mp3BufferSize];
+        Log.d(C.TAG, "Temporary MP3 encode buffersize is " + String.valueOf(mp3BufferSize)
+                + " bytes.");
+
+        // サンプリングレート変換。エンコードするサンプリングレートが録音と同じ場合はnull。
+        Resampler resampler = null;
+        // サンプリングレート変換後のデータを格納するバッファ
+        short[] resampleBuffer = null;
+        if (mBroadcastConfig.getAudioEncodeSampleRate() != mBroadcastConfig
+                .getAudioSampleRate()) {
+            resampler = new Resampler(mBroadcastConfig.getAudioSampleRate(),
+                    mBroadcastConfig.getAudioEncodeSampleRate(),
+                    mBroadcastConfig.getAudioLowpassFrequency(), readBufferSize);
+            resampleBuffer = new short[resampler.getMaxOutputLength(readBufferSize)];
+            Log.d(C.TAG, "Resample " + String.valueOf(resampler.getInSampleRate())
+                    + "Hz to " + String.valueOf(resampler.getOutSampleRate()) + "Hz.");
+        }
+
+        // 読み込みサイズ
+        int readSize = 0;
+        // エンコード後のバイトサイズ
+        int encResult = 0;
+        while (mBroadcastState.isConnectingOrBroadcasting() || mVoiceSender.getDrainMsec() > 0) {
+            readSize = copyFromPcmBufferToBuffer(readBuffer);
+            // 配信設定の変更が指示されているか停止していて、PCMバッファが空になった
+            if (readSize == 0
+                    && (isReconfigureReady() || !mBroadcastState
+                            .isConnectingOrBroadcasting())) {
+                break;
+            }
+
+            encResult = 0;
+            if (readSize != 0) {
+                final long encodeStartTime = System.nanoTime();
+                // 録音データのチャンネル数とエンコードのチャンネル数は、配信設定の変更により異なることがある
+                switch (mVoiceSender.getPcmChannel()) {
+                    case 1: // モノラルの場合
+                        // エンコードがステレオの場合は、左右に同じデータを渡す
+                        encResult = encodeMono(encoder, resampler, readBuffer, readSize,
+                                resampleBuffer, mp3buffer);
+                        break;
+                    case 2: // ステレオの場合
+                        if (mBroadcastConfig.getAudioChannel() == 1) {
+                            // エンコードがモノラルの場合は、左右を混ぜる
+                            final int monoSize = downmixToMono(readBuffer, readSize);
+                            encResult = encodeMono(encoder, resampler, readBuffer, monoSize,
+                                    resampleBuffer, mp3buffer);
+                        } else {
+                            encResult = encoder.encodeBufferInterleaved(readBuffer,
+                                    readSize / 2, mp3buffer);
+                        }
+                        break;
+                    default: // ここに到達することはあり得ないはずだが一応エラーとする。
+                        Log.w(C.TAG, "Failed LAME encode. PCM channels unknown.");
+                        return -1;
+                }
+                if (encResult < 0) {
+                    Log.w(C.TAG, "Failed LAME encode(error=" + encResult + ").");
+                    return -1;
+                }
+                getMetrics().record(readSize, System.nanoTime() - encodeStartTime);
+            }
+            if (encResult != 0) {
+                if (C.LOCAL_LOG) {
+                    Log.v(C.TAG, "Encoded " + String.valueOf(readSize) + " bytes PCM to "
+                            + String.valueOf(encResult) + " bytes MP3.");
+                }
+
+                // フレームに分割してバッファに書き込み、待っている送信ステージを起こす
+                mMp3Link.write(mp3buffer, 0, encResult);
+                if (C.LOCAL_LOG) {
+                    Log.v(C.TAG,
+                            "Wrote MP3 buffer(" + String.valueOf(encResult)
+                                    + " bytes). Available buffersize is "
+                                    + String.valueOf(mMp3Link.getByteCount()) + " bytes.");
+                }
+            }
+        }
+        
+        return 0;
+    }
+
+    /**
+     * モノラルのPCMデータをエンコードする。<br />
+     * サンプリングレート変換が指定されている場合は、変換してからエンコードする。
+     * 
+     * @param encoder エンコーダ
+     * @param resampler サンプリングレート変換。変換しない場合はnull。
+     * @param buf モノラルのPCMデータ
+     * @param size バッファの長さ
+     * @param resampleBuffer サンプリングレート変換後のデータを格納するバッファ
+     * @param mp3buffer エンコードしたデータを格納するバッファ
+     * @return エンコードしたデータのバイト数。0未満の場合はエンコード失敗。
+     */
+    private int encodeMono(Encoder encoder, Resampler resampler, short[] buf, int size,
+            short[] resampleBuffer, byte[] mp3buffer) {
+        if (resampler == null) {
+            return encoder.encode(buf, buf, size, mp3buffer);
+        }
+        final int resampledSize = resampler.process(buf, 0, size, resampleBuffer, 0);
+        return encoder.encode(resampleBuffer, resampleBuffer, resampledSize, mp3buffer);
+    }
+
+    /**
+     * ステレオのPCMデータの左右を混ぜてモノラルにする
+     * 
+     * @param buf ステレオのPCMデータ。ここで指定したバッファの先頭にモノラルのデータを書き込む。
+     * @param size バッファの長さ
+     * @return モノラルのデータの長さ
+     */
+    private int downmixToMono(short[] buf, int size) {
+        final int monoSize = size / 2;
+        for (int i = 0; i < monoSize; ++i) {
+            buf[i] = (short) ((buf[i * 2] + buf[i * 2 + 1]) / 2);
+        }
+        return monoSize;
+    }
+
+    /**
+     * PCMバッファからデータをコピーするためのバッファのサイズを取得する
+     * 
+     * @return PCMバッファからデータをコピーするためのバッファのサイズ
+     */
+    private int getReadPcmBufferSize() {
+        // 読み込みバッファサイズ。指定の秒数分だけ確保する。
+        return (mBroadcastConfig.getAudioSampleRate()
+                * mBroadcastConfig.getAudioChannel() * 2 * C.ENCODE_PCM_BUFFER_SEC);
+    }
+
+    /**
+     * 適切なMP3バッファサイズを取得する
+     * 
+     * @param readPcmBufferSize PCMバッファからデータをコピーするためのバッファのサイズ
+     * @return MP3バッファサイズ
+     */
+    private int getMp3BufferSize(int readPcmBufferSize){
+        return (int) (7200 + (readPcmBufferSize * 1.25));
+    }
+    /**
+     * PCMバッファ{@link #mPcmLink}から指定のバッファにデータをコピーする
+     * 
+     * @param buffer コピー先のバッファ
+     * @return コピーしたデータの長さ。配信設定の変更が指示されているか停止していて、PCMバッファが空の場合は0。
+     * @throws InterruptedException 
+     */
+    private int copyFromPcmBufferToBuffer(short[] buffer) throws InterruptedException {
+        if (!mBroadcastState.isConnectingOrBroadcasting() && mVoiceSender.getDrainMsec() <= 0) {
+            return 0;
+        }
+        final int copyLength = mPcmLink.read(buffer, 0, buffer.length, mPcmReadCondition);
+        if (copyLength != 0 && C.LOCAL_LOG) {
+            Log.v(C.TAG, "Read PCM buffer(" + String.valueOf(copyLength / 2) + " bytes).");
+        }
+
+        return copyLength;
+    }
+
+    /**
+     * エンコーダに残っているデータをフラッシュして、MP3バッファ{@link #mMp3Link}に書き込む。
+     * 
+     * @param encoder エンコーダ
+     * @return 0:成功 -1:エンコード失敗
+     */
+    private int flush(Encoder encoder) {
+        // MP3バッファサイズ
+        final int mp3BufferSize = getMp3BufferSize(getReadPcmBufferSize());
+        // MP3バッファ
+        byte[] mp3buffer = new byte[mp3BufferSize];
+        Log.d(C.TAG, "Temporary MP3 encode buffersize is " + String.valueOf(mp3BufferSize)
+                + " bytes.");
+
+        int flushResult = encoder.flush(mp3buffer);
+        if (flushResult < 0) {
+            Log.w(C.TAG, "Failed LAME flush(error=" + flushResult + ").");
+            return -1;
+        }
+        if (flushResult != 0) {
+            if (C.LOCAL_LOG) {
+                Log.v(C.TAG, "Encoded remain PCM to " + String.valueOf(flushResult)
+                        + " bytes MP3.");
+            }
+            // フレームに分割してバッファに書き込み、待っている送信ステージを起こす
+            mMp3Link.write(mp3buffer, 0, flushResult);
+            if (C.LOCAL_LOG) {
+                Log.v(C.TAG,
+                        "Wrote MP3 buffer(" + String.valueOf(flushResult)
+                                + " bytes). Available buffersize is "
+                                + String.valueOf(mMp3Link.getByteCount()) + " bytes.");
+            }
+        }
+        
+        return 0;
+    }
+}
@@ -132,10 +132,13 @@ public class MainActivity extends Activity {
                 case VoiceSender.MSG_SEND_STREAM_ENDED:
                 case VoiceSender.MSG_RECONNECT_STARTED:
                 case VoiceSender.MSG_STOP_WAIT_RECONNECT:
+                case VoiceSender.MSG_RECONFIGURED:
                     switchViewAsBroadcastState();
                     break;
                 case VoiceSender.MSG_REC_STARTED:
                 case VoiceSender.MSG_ENCODE_STARTED:
+                case VoiceSender.MSG_PCM_BUFFER_OVERFLOW_DEGRADED:
+                case VoiceSender.MSG_DRAIN_COMPLETED:
                     break;
                 default:
                     Log.w(C.TAG, "Unknown received message " + msg.what + " when start.");
@@ -169,6 +172,13 @@ public class MainActivity extends Activity {
                             .setPositiveButton(R.string.close, null).create()
                             .show();
                     break;
+                case BroadcastServiceConnector.MSG_ERROR_RECONFIGURE_SERVICE_CONNECTION:
+                    switchViewAsBroadcastState();
+                    (new AlertDialog.Builder(MainActivity.this))
+                            .setMessage(R.string.failed_reconfigure)
+                            .setPositiveButton(R.string.close, null).create()
+                            .show();
+                    break;
                 default:
                     Log.w(C.TAG, "Unknown received message " + msg.what + " when start.");
                     break;
@@ -245,6 +255,16 @@ public class MainActivity extends Activity {
                 public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
                         String key) {
                     invalidateBroadcastSetting();
+
+                    // 配信中の場合は変更した設定を配信に反映する
+                    switch (BroadcastManager.getConnector().getBroadcastState()) {
+                        case VoiceSender.BROADCAST_STATE_CONNECTING:
+                        case VoiceSender.BROADCAST_STATE_BROADCASTING:
+                            BroadcastManager.getConnector().reconfigure(createBroadcastConfig());
+                            break;
+                        default:
+                            break;
+                    }
                 }
             });
 
@@ -424,10 +444,10 @@ public class MainActivity extends Activity {
     public boolean onPrepareOptionsMenu(Menu menu) {
         // 関連サイトが存在する場合にのみ有効にする
         menu.findItem(MENU_ID_REFERENCE_SITE).setEnabled(getSettingChannelUrl().length() != 0);
-        // 配信中は設定を無効にする
+        // 停止中は設定を無効にする。配信中に変更した設定は配信に反映する。
         menu.findItem(MENU_ID_SETTING)
                 .setEnabled(
-                        BroadcastManager.getConnector().getBroadcastState() == VoiceSender.BROADCAST_STATE_STOPPED);
+                        BroadcastManager.getConnector().getBroadcastState() != VoiceSender.BROADCAST_STATE_STOPPING);
 
         return super.onPrepareOptionsMenu(menu);
     }
@@ -457,7 +477,7 @@ public class MainActivity extends Activity {
                     return super.onOptionsItemSelected(item);
                 }
             case MENU_ID_SETTING:
-                if (BroadcastManager.getConnector().getBroadcastState() == VoiceSender.BROADCAST_STATE_STOPPED) {
+                if (BroadcastManager.getConnector().getBroadcastState() != VoiceSender.BROADCAST_STATE_STOPPING) {
                     try {
                         startActivity(new Intent(this,
                                 LadioStarPreferenceActivity.class));
@@ -573,6 +593,46 @@ public class MainActivity extends Activity {
                     String.valueOf(C.DEFAULT_AUDIO_MP3_ENCODE_QUALITY));
         }
 
+        String encodeProfile = mPref.getString("audio_encode_profile", "");
+        if (encodeProfile.length() == 0) {
+            prefEditor.putString("audio_encode_profile",
+                    String.valueOf(C.DEFAULT_AUDIO_ENCODE_PROFILE));
+        }
+
+        String pcmOverflowPolicy = mPref.getString("audio_pcm_overflow_policy", "");
+        if (pcmOverflowPolicy.length() == 0) {
+            prefEditor.putString("audio_pcm_overflow_policy",
+                    String.valueOf(C.DEFAULT_PCM_OVERFLOW_POLICY));
+        }
+
+        String prebuffer = mPref.getString("audio_prebuffer", "");
+        if (prebuffer.length() == 0) {
+            prefEditor.putString("audio_prebuffer",
+                    String.valueOf(C.DEFAULT_AUDIO_PREBUFFER_MSEC));
+        }
+
+        String sendBatch = mPref.getString("send_batch", "");
+        if (sendBatch.length() == 0) {
+            prefEditor.putString("send_batch", String.valueOf(C.DEFAULT_SEND_BATCH_MSEC));
+        }
+
+        String sendBacklogPolicy = mPref.getString("send_backlog_policy", "");
+        if (sendBacklogPolicy.length() == 0) {
+            prefEditor.putString("send_backlog_policy",
+                    String.valueOf(C.DEFAULT_SEND_BACKLOG_POLICY));
+        }
+
+        String sendCatchUp = mPref.getString("send_catch_up", "");
+        if (sendCatchUp.length() == 0) {
+            prefEditor.putString("send_catch_up",
+                    String.valueOf(C.DEFAULT_SEND_CATCH_UP_PERCENT));
+        }
+
+        String sendDrain = mPref.getString("send_drain", "");
+        if (sendDrain.length() == 0) {
+            prefEditor.putString("send_drain", String.valueOf(C.DEFAULT_SEND_DRAIN_MSEC));
+        }
+
         prefEditor.commit();
     }
 
@@ -733,6 +793,38 @@ public class MainActivity extends Activity {
         return mPref.getString("channel_server", "");
     }
 
+    /**
+     * 設定値「予備接続」を取得する
+     * 
+     * @return 設定値「予備接続」
+     */
+    private boolean getSettingChannelHotStandby() {
+        return mPref.getBoolean("channel_hot_standby", C.DEFAULT_CHANNEL_HOT_STANDBY);
+    }
+
+    /**
+     * 設定値「LAN内に配信」を取得する
+     * 
+     * @return 設定値「LAN内に配信」
+     */
+    private boolean getSettingLocalServer() {
+        return mPref.getBoolean("local_server", C.DEFAULT_LOCAL_SERVER);
+    }
+
+    /**
+     * 設定値「中継サーバ」を取得する
+     * 
+     * @return 設定値「中継サーバ」。設定していないか、形式が正しくない場合はnull。
+     */
+    private BroadcastDestination getSettingChannelRelay() {
+        final String result = mPref.getString("channel_relay", "");
+        final BroadcastDestination destination = BroadcastDestination.parse(result);
+        if (destination == null && result.length() != 0) {
+            Log.w(C.TAG, "Ignore invalid relay server setting.");
+        }
+        return destination;
+    }
+
     /**
      * 設定値「ビットレート」を取得する
      * 
@@ -751,6 +843,15 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * 設定値「ビットレートの自動調整」を取得する
+     * 
+     * @return 設定値「ビットレートの自動調整」
+     */
+    private boolean getSettingAudioBitrateAuto() {
+        return mPref.getBoolean("audio_bitrate_auto", C.DEFAULT_AUDIO_BITRATE_AUTO);
+    }
+
     /**
      * 設定値「モノラル・ステレオ」を取得する
      * 
@@ -805,6 +906,139 @@ public class MainActivity extends Activity {
         }
     }
 
+    /**
+     * 設定値「エンコードプロファイル」を取得する
+     * 
+     * @return 設定値「エンコードプロファイル」
+     */
+    private int getSettingAudioEncodeProfile() {
+        String result = mPref.getString("audio_encode_profile",
+                String.valueOf(C.DEFAULT_AUDIO_ENCODE_PROFILE));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("audio_encode_profile");
+            prefEditor.commit();
+            return C.DEFAULT_AUDIO_ENCODE_PROFILE;
+        }
+    }
+
+    /**
+     * 設定値「エンコードが間に合わない場合」を取得する
+     * 
+     * @return 設定値「エンコードが間に合わない場合」
+     */
+    private int getSettingAudioPcmOverflowPolicy() {
+        String result = mPref.getString("audio_pcm_overflow_policy",
+                String.valueOf(C.DEFAULT_PCM_OVERFLOW_POLICY));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("audio_pcm_overflow_policy");
+            prefEditor.commit();
+            return C.DEFAULT_PCM_OVERFLOW_POLICY;
+        }
+    }
+
+    /**
+     * 設定値「送信前のバッファ」を取得する
+     * 
+     * @return 設定値「送信前のバッファ」（ミリ秒）
+     */
+    private int getSettingAudioPrebuffer() {
+        String result = mPref.getString("audio_prebuffer",
+                String.valueOf(C.DEFAULT_AUDIO_PREBUFFER_MSEC));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("audio_prebuffer");
+            prefEditor.commit();
+            return C.DEFAULT_AUDIO_PREBUFFER_MSEC;
+        }
+    }
+
+    /**
+     * 設定値「まとめて送信」を取得する
+     * 
+     * @return 設定値「まとめて送信」（ミリ秒）
+     */
+    private int getSettingSendBatch() {
+        String result = mPref.getString("send_batch", String.valueOf(C.DEFAULT_SEND_BATCH_MSEC));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("send_batch");
+            prefEditor.commit();
+            return C.DEFAULT_SEND_BATCH_MSEC;
+        }
+    }
+
+    /**
+     * 設定値「送信速度の平準化」を取得する
+     * 
+     * @return 設定値「送信速度の平準化」
+     */
+    private boolean getSettingSendPacing() {
+        return mPref.getBoolean("send_pacing", C.DEFAULT_SEND_PACING);
+    }
+
+    /**
+     * 設定値「再接続後の送信」を取得する
+     * 
+     * @return 設定値「再接続後の送信」
+     */
+    private int getSettingSendBacklogPolicy() {
+        String result = mPref.getString("send_backlog_policy",
+                String.valueOf(C.DEFAULT_SEND_BACKLOG_POLICY));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("send_backlog_policy");
+            prefEditor.commit();
+            return C.DEFAULT_SEND_BACKLOG_POLICY;
+        }
+    }
+
+    /**
+     * 設定値「追いつく速さ」を取得する
+     * 
+     * @return 設定値「追いつく速さ」（ビットレートに対するパーセント）
+     */
+    private int getSettingSendCatchUp() {
+        String result = mPref.getString("send_catch_up",
+                String.valueOf(C.DEFAULT_SEND_CATCH_UP_PERCENT));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("send_catch_up");
+            prefEditor.commit();
+            return C.DEFAULT_SEND_CATCH_UP_PERCENT;
+        }
+    }
+
+    /**
+     * 設定値「停止時に送り切る時間」を取得する
+     * 
+     * @return 設定値「停止時に送り切る時間」（ミリ秒）
+     */
+    private int getSettingSendDrain() {
+        String result = mPref.getString("send_drain", String.valueOf(C.DEFAULT_SEND_DRAIN_MSEC));
+        try {
+            return Integer.parseInt(result);
+        } catch (NumberFormatException e) {
+            SharedPreferences.Editor prefEditor = mPref.edit();
+            prefEditor.remove("send_drain");
+            prefEditor.commit();
+            return C.DEFAULT_SEND_DRAIN_MSEC;
+        }
+    }
+
     /**
      * 設定情報の表示を更新する
      */
@@ -886,6 +1120,9 @@ public class MainActivity extends Activity {
                     case VoiceSender.MSG_REC_STARTED:
                     case VoiceSender.MSG_ENCODE_STARTED:
                     case VoiceSender.MSG_RECONNECT_STARTED:
+                    case VoiceSender.MSG_PCM_BUFFER_OVERFLOW_DEGRADED:
+                    case VoiceSender.MSG_RECONFIGURED:
+                    case VoiceSender.MSG_DRAIN_COMPLETED:
                         break;
                     default:
                         Log.w(C.TAG, "Unknown received message " + msg.what
@@ -919,14 +1156,40 @@ public class MainActivity extends Activity {
             }
         };
         loadingDialogDismissScheduler.schedule(runnable,
-                C.WAIT_SEC_FROM_REC_START_TO_SEND_DATA + 3, TimeUnit.SECONDS);
-
-        BroadcastManager.getConnector().start(new BroadcastConfig(getSettingAudioBitrate(),
-                getSettingAudioChannel(), getSettingAudioSampleRate(),
-                getSettingAudioMp3EncodeQuarity(), getSettingChannelDjName(),
-                getSettingChannelTitle(), getSettingChannelDescription(),
-                getSettingChannelUrl(), getSettingChannelGenre(),
-                getSettingChannelMount(), getSettingChannelServer()));
+                getSettingAudioPrebuffer() + 3000, TimeUnit.MILLISECONDS);
+
+        BroadcastManager.getConnector().start(createBroadcastConfig());
+    }
+
+    /**
+     * 設定情報から配信設定を生成する
+     * 
+     * @return 配信設定
+     */
+    private BroadcastConfig createBroadcastConfig() {
+        return new BroadcastConfig.Builder(
+                getSettingAudioBitrate(), getSettingAudioChannel(),
+                getSettingAudioSampleRate(), getSettingAudioMp3EncodeQuarity(),
+                getSettingChannelMount())
+                .channelDjName(getSettingChannelDjName())
+                .channelTitle(getSettingChannelTitle())
+                .channelDescription(getSettingChannelDescription())
+                .channelUrl(getSettingChannelUrl())
+                .channelGenre(getSettingChannelGenre())
+                .channelServer(getSettingChannelServer())
+                .channelHotStandby(getSettingChannelHotStandby())
+                .relayDestination(getSettingChannelRelay())
+                .localServer(getSettingLocalServer())
+                .pcmOverflowPolicy(getSettingAudioPcmOverflowPolicy())
+                .audioPrebufferMsec(getSettingAudioPrebuffer())
+                .sendBatchMsec(getSettingSendBatch())
+                .sendPacing(getSettingSendPacing())
+                .sendBacklogPolicy(getSettingSendBacklogPolicy())
+                .sendCatchUpPercent(getSettingSendCatchUp())
+                .sendDrainMsec(getSettingSendDrain())
+                .audioBrateAuto(getSettingAudioBitrateAuto())
+                .audioEncodeProfile(getSettingAudioEncodeProfile())
+                .create();
     }
 
     /**
@@ -982,6 +1245,9 @@ public class MainActivity extends Activity {
                     case VoiceSender.MSG_ENCODE_STARTED:
                     case VoiceSender.MSG_SEND_STREAM_STARTED:
                     case VoiceSender.MSG_RECONNECT_STARTED:
+                    case VoiceSender.MSG_PCM_BUFFER_OVERFLOW_DEGRADED:
+                    case VoiceSender.MSG_RECONFIGURED:
+                    case VoiceSender.MSG_DRAIN_COMPLETED:
                         break;
                     default:
                         Log.w(C.TAG, "Unknown received message " + msg.what
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import com.uraroji.garage.android.ladiostar.util.PcmLink;
+import com.uraroji.garage.android.ladiostar.util.PcmOverflowHandler;
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+import com.uraroji.garage.android.ladiostar.util.PipelineStage;
+
+import java.nio.BufferOverflowException;
+
+/**
+ * 録音ステージ<br />
+ * マイクから録音した音声の音量を調整して、PCMバッファに書き込む。
+ */
+final class RecordStage extends PipelineStage {
+
+    /**
+     * 録音・エンコード・送信のステージを持つVoiceSender
+     */
+    private final VoiceSender mVoiceSender;
+
+    /**
+     * 配信状態
+     */
+    private final VoiceSender.BroadcastState mBroadcastState;
+
+    /**
+     * 録音データを書き込むPCMバッファ
+     */
+    private final PcmLink mPcmLink;
+
+    /**
+     * 配信設定
+     */
+    private BroadcastConfig mBroadcastConfig;
+
+    /**
+     * 配信設定の変更により録音をやめるか
+     */
+    private volatile boolean mIsReleased = false;
+
+    /**
+     * 録音を停止して、録音の資源を解放したか
+     */
+    private volatile boolean mIsFinished = false;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param voiceSender 録音・エンコード・送信のステージを持つVoiceSender
+     * @param lifecycle ステージの管理
+     * @param broadcastConfig 配信設定
+     * @param pcmLink 録音データを書き込むPCMバッファ
+     */
+    public RecordStage(VoiceSender voiceSender, PipelineLifecycle lifecycle,
+            BroadcastConfig broadcastConfig, PcmLink pcmLink) {
+        super("Record", lifecycle);
+        mVoiceSender = voiceSender;
+        mBroadcastState = voiceSender.getState();
+        mPcmLink = pcmLink;
+        mBroadcastConfig = broadcastConfig;
+        mVoiceSender.setPcmChannel(mBroadcastConfig.getAudioChannel());
+        mLoudnessTotalLengthLimit = (mBroadcastConfig.getAudioSampleRate()
+                * mBroadcastConfig.getAudioChannel()) / C.LOUDNESS_NOTIFY_TIMES_PER_SEC;
+        // 録音し直した場合はチャンネル数が変わることがあるので、オーバーフロー処理も作り直す
+        mPcmLink.setOverflowHandler(VoiceSender.createPcmOverflowHandler(mBroadcastConfig));
+    }
+
+    @Override
+    protected void runStage() {
+        Log.d(C.TAG, "Start Record thread.");
+        android.os.Process
+                .setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        try {
+            final int recBufferSize = getRecBufferSize();
+
+            // バッファサイズが取得できない。サンプリングレート等の設定を端末がサポートしていない可能性がある。
+            if (recBufferSize < 0) {
+                mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_NOT_SUPPORTED_RECORDING_PARAMETERS); // エラー名を変える
+                return;
+            }
+
+            Log.d(C.TAG, "Recording buffersize is " + String.valueOf(recBufferSize) + " bytes.");
+            AudioRecord audioRecord = new AudioRecord(
+                    MediaRecorder.AudioSource.MIC,
+                    mBroadcastConfig.getAudioSampleRate(),
+                    getAudioChannelConfig(mBroadcastConfig.getAudioChannel()),
+                    AudioFormat.ENCODING_PCM_16BIT, recBufferSize);
+
+            try {
+                try {
+                    audioRecord.startRecording(); // 録音を開始する
+                } catch (IllegalStateException e) {
+                    Log.w(C.TAG, "IllegalStateException occurred when audio record start.", e);
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                    // 録音の開始に失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_REC_START);
+                    return;
+                }
+
+                // 配信設定の変更により録音をやり直した場合は、録音を開始した時刻を変えない
+                if (mVoiceSender.getRecStartTime() < 0) {
+                    mVoiceSender.setRecStartTime(System.currentTimeMillis()); // 録音を開始した時刻を記憶する
+
+                    // 録音が開始した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_REC_STARTED);
+                }
+
+                try {
+                    int result = copyFormAudioRecordToRecBuffer(audioRecord);
+                    if (result < 0) {
+                        mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                        // 録音ができない
+                        mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_AUDIO_RECORD);
+                        return;
+                    }
+                } catch (BufferOverflowException e) {
+                    Log.w(C.TAG,
+                            "MP3 encoding is slow, it seems to have PCM buffer overflowed.");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                    // 録音に対してエンコードが遅いなどの理由でバッファオーバーフローした
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_PCM_BUFFER_OVERFLOW);
+                    return;
+                }
+            } finally {
+                audioRecord.stop(); // 録音を停止する
+                audioRecord.release();
+                if (!mIsReleased) {
+                    mVoiceSender.setRecStartTime(-1);
+                }
+            }
+        } finally {
+            // 録音をやめたので、PCMバッファを待っているエンコードステージを起こす
+            mIsFinished = true;
+            mPcmLink.wakeUp();
+            Log.d(C.TAG, "Finish Record thread. " + this + " " + mPcmLink);
+        }
+    }
+
+    /**
+     * オーディオのチャンネル数からふさわしいChannelConfigを返す
+     * 
+     * @param channel オーディオのチャンネル数
+     * @return ChannelConfig
+     */
+    private int getAudioChannelConfig(int channel) {
+        switch (channel) {
+            case 1:
+                return AudioFormat.CHANNEL_IN_MONO;
+            case 2:
+                return AudioFormat.CHANNEL_IN_STEREO;
+            default:
+                throw new IllegalArgumentException("Unknown channel num.");
+        }
+    }
+
+    /**
+     * 録音バッファのサイズを取得する
+     * 
+     * @return 録音バッファのサイズ。0未満の場合はOSからバッファサイズが取得できない。
+     */
+    private int getRecBufferSize() {
+        // 録音に最低限必要なバッファサイズ
+        final int recBufferSizeMin = AudioRecord.getMinBufferSize(
+                mBroadcastConfig.getAudioSampleRate(),
+                getAudioChannelConfig(mBroadcastConfig.getAudioChannel()),
+                AudioFormat.ENCODING_PCM_16BIT);
+        // バッファサイズが取得できない。サンプリングレート等の設定を端末がサポートしていない可能性がある。
+        if (recBufferSizeMin < 0) {
+            return recBufferSizeMin;
+        }
+
+        // 録音バッファサイズ。指定の秒数分だけ確保する。
+        final int recBufferSize = (int) (mBroadcastConfig.getAudioSampleRate()
+                * mBroadcastConfig.getAudioChannel() * 2 * C.REC_BUFFER_SEC);
+
+        return Math.max(recBufferSizeMin, recBufferSize);
+    }
+
+    /**
+     * 配信設定の変更により録音をやめる。<br />
+     * 配信自体は継続する。
+     */
+    public void release() {
+        mIsReleased = true;
+    }
+
+    /**
+     * 録音を停止して、録音の資源を解放したかを取得する
+     * 
+     * @return 解放した場合はtrue、それ以外はfalse
+     */
+    public boolean isFinished() {
+        return mIsFinished;
+    }
+    
+    /**
+     * AudioRecordからデータを読み込みPCMバッファ{@link #mPcmLink}に書き込む
+     * 
+     * @param audioRecord AudioRecord
+     * @return 0:成功 -1:録音ができない
+     */
+    private int copyFormAudioRecordToRecBuffer(AudioRecord audioRecord) {
+        int readLength = 0;
+        int availableDataSize = 0;
+
+        final int readRecBufferSize = (int) (mBroadcastConfig.getAudioSampleRate()
+                * mBroadcastConfig.getAudioChannel() * (C.READ_REC_BUFFER_MSEC / 1000f));
+        Log.d(C.TAG, "Read rec buffersize is " + String.valueOf(readRecBufferSize / 2)
+                + " bytes.");
+        short[] readRecBuffer = new short[readRecBufferSize];
+
+        try {
+            while (mBroadcastState.isConnectingOrBroadcasting() && !mIsReleased) {
+                readLength = audioRecord.read(readRecBuffer, 0, readRecBuffer.length);
+                if (readLength < 0) {
+                    return -1;
+                }
+                // データが読み込めなかった場合は何もしない
+                else if (readLength == 0) {
+                    ;
+                }
+                // データが入っている場合
+                else {
+                    final long processStartTime = System.nanoTime();
+
+                    // 音声のボリュームを調整する
+                    changeVolume(readRecBuffer, readLength);
+
+                    notifyLoudness(readRecBuffer, readLength);
+
+                    // バッファに書き込む。あふれた場合は配信設定に従って処理する。
+                    final int writeResult = mPcmLink.write(readRecBuffer, 0, readLength);
+                    getMetrics().record(readLength, System.nanoTime() - processStartTime);
+                    if (writeResult != PcmOverflowHandler.RESULT_WRITTEN) {
+                        notifyPcmOverflowDegraded(mPcmLink.getOverflowHandler(),
+                                writeResult);
+                    }
+                    if (C.LOCAL_LOG) {
+                        availableDataSize = mPcmLink.getAvailable();
+                        Log.v(C.TAG,
+                                "Wrote PCM buffer(" + String.valueOf(readLength / 2)
+                                        + " bytes). Available buffersize is "
+                                        + String.valueOf(availableDataSize) + " bytes.");
+                    }
+                }
+            }
+        } finally {
+            mPcmLink.wakeUp();
+        }
+        
+        return 0;
+    }
+
+    /**
+     * 最後にPCMバッファのオーバーフローを通知した時刻
+     */
+    private long mLastPcmOverflowNotifyTime = 0;
+
+    /**
+     * PCMバッファがオーバーフローしたが録音を継続したことを通知する。<br />
+     * 通知の間隔は {@link C#PCM_OVERFLOW_NOTIFY_INTERVAL_MSEC} 以上空ける。
+     * 
+     * @param overflowHandler オーバーフロー処理
+     * @param writeResult 書き込み結果
+     */
+    private void notifyPcmOverflowDegraded(PcmOverflowHandler overflowHandler,
+            int writeResult) {
+        final long now = System.currentTimeMillis();
+        if (now - mLastPcmOverflowNotifyTime < C.PCM_OVERFLOW_NOTIFY_INTERVAL_MSEC) {
+            return;
+        }
+        mLastPcmOverflowNotifyTime = now;
+
+        Log.w(C.TAG, "PCM buffer overflowed, continue recording.(result=" + writeResult
+                + ", overflow=" + overflowHandler.getOverflowCount()
+                + ", droppedOldest=" + overflowHandler.getDroppedOldestSamples()
+                + ", decimated=" + overflowHandler.getDecimatedSamples()
+                + ", skippedSilentBlocks=" + overflowHandler.getSkippedSilentBlocks() + ")");
+        mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_PCM_BUFFER_OVERFLOW_DEGRADED);
+    }
+
+    /**
+     * ボリュームを調整する
+     * 
+     * @param buf ボリュームを調整するPCMバッファ。ここで指定したPCMバッファを直接書き換える。
+     * @param size バッファの長さ
+     */
+    private void changeVolume(short[] buf, int size) {
+        if (mVoiceSender.isVolumeRateChanged() == true) {
+            final float volumeRate = mVoiceSender.getVolumeRateFloat();
+            int vi;
+            short vs;
+
+            for (int i = 0; i < size; ++i) {
+                vi = (int) (buf[i] * volumeRate);
+                if (vi > Short.MAX_VALUE) {
+                    vs = Short.MAX_VALUE;
+                } else if (vi < Short.MIN_VALUE) {
+                    vs = Short.MIN_VALUE;
+                } else {
+                    vs = (short) vi;
+                }
+                buf[i] = vs;
+            }
+        }
+    }
+
+    /**
+     * 音の大きさを通知通知するまでに計測するバッファの長さ
+     */
+    private final int mLoudnessTotalLengthLimit;
+    
+    /**
+     * 録音した音の大きさの総和の2乗を格納しておくための領域
+     */
+    private double mLoudnessSquareTotal = 0;
+
+    /**
+     * {@link #mLoudnessSquareTotal}にため込んだ量
+     */
+    private int mLoudnessTotalLength = 0;
+
+    /**
+     * 音の大きさを通知する
+     * 
+     * @param buf PCMバッファ。
+     * @param size バッファの長さ
+     */
+    private void notifyLoudness(short[] buf, int size) {
+        if (!mVoiceSender.hasLoudnessSubscribers()) {
+            return;
+        }
+
+        for (int i = 0; i < size; ++i) {
+            mLoudnessSquareTotal += buf[i] * buf[i];
+            ++mLoudnessTotalLength;
+
+            // 一定量の録音バッファのRMSが計算し終わったら、音の大きさを送信する
+            if (mLoudnessTotalLength >= mLoudnessTotalLengthLimit) {
+                final double rmsdB = 20.0 * Math.log10(Math.sqrt(mLoudnessSquareTotal / mLoudnessTotalLength));
+
+                if (C.LOCAL_LOG) {
+                    Log.v(C.TAG, "Loudness " + rmsdB);
+                }
+
+                mVoiceSender.notifyLoudness((int) rmsdB);
+                
+                mLoudnessSquareTotal = 0;
+                mLoudnessTotalLength = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.uraroji.garage.android.ladiostar.util.DestinationStats;
+import com.uraroji.garage.android.ladiostar.util.ExponentialBackoff;
+import com.uraroji.garage.android.ladiostar.util.Mp3Link;
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+import com.uraroji.garage.android.ladiostar.util.PipelineStage;
+import com.uraroji.garage.android.ladiostar.util.SocketChannelSender;
+import com.uraroji.garage.android.ladiostar.util.SourceHandshake;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Random;
+
+/**
+ * ねとらじ以外の配信先への中継ステージ<br />
+ * MP3リンクはねとらじへの送信ステージと共有し、配信先ごとの読み込み位置から読み込んで送る。<br />
+ * 送信が遅れてもエンコードや他の配信先は待たせない。追いつけずに上書きされたフレームは捨てて数える。<br />
+ * 中継に失敗しても配信状態は変えず、ログに残して再接続する。
+ */
+final class RelayStage extends PipelineStage {
+
+    /**
+     * 配信の状態を持つVoiceSender
+     */
+    private final VoiceSender mVoiceSender;
+
+    /**
+     * 配信状態
+     */
+    private final VoiceSender.BroadcastState mBroadcastState;
+
+    /**
+     * 中継するデータを読み込むMP3リンク
+     */
+    private final Mp3Link mMp3Link;
+
+    /**
+     * 配信先
+     */
+    private final BroadcastDestination mDestination;
+
+    /**
+     * 配信先への送信の統計
+     */
+    private final DestinationStats mStats;
+
+    /**
+     * この配信先がMP3リンクを読み込む位置
+     */
+    private final Mp3Link.Reader mReader;
+
+    /**
+     * 再接続の待ち時間
+     */
+    private final ExponentialBackoff mReconnectBackoff = new ExponentialBackoff(
+            C.RECONNECT_BACKOFF_BASE_MSEC, C.RECONNECT_BACKOFF_MAX_MSEC,
+            C.RECONNECT_BACKOFF_JITTER, new Random());
+
+    /**
+     * 終了を指示されたか
+     */
+    private volatile boolean mIsReleased = false;
+
+    /**
+     * 配信先とのヘッダのやりとり。配信設定が変わるまで使い回す。
+     */
+    private SourceHandshake mHandshake;
+
+    /**
+     * {@link #mHandshake}を生成した配信設定
+     */
+    private BroadcastConfig mHandshakeConfig;
+
+    /**
+     * コンストラクタ
+     * 
+     * @param voiceSender 配信の状態を持つVoiceSender
+     * @param lifecycle パイプラインのライフサイクル
+     * @param destination 配信先
+     * @param mp3Link 中継するデータを読み込むMP3リンク
+     */
+    public RelayStage(VoiceSender voiceSender, PipelineLifecycle lifecycle,
+            BroadcastDestination destination, Mp3Link mp3Link) {
+        super("Relay " + destination, lifecycle);
+        mVoiceSender = voiceSender;
+        mBroadcastState = voiceSender.getState();
+        mMp3Link = mp3Link;
+        mDestination = destination;
+        mStats = new DestinationStats(destination.toString());
+        mReader = mp3Link.openReader();
+    }
+
+    /**
+     * 配信先への送信の統計を取得する
+     * 
+     * @return 配信先への送信の統計
+     */
+    public DestinationStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * 終了を指示する。<br />
+     * 終了を待たずに戻る。
+     */
+    @Override
+    public void requestStop() {
+        mIsReleased = true;
+        mMp3Link.wakeUp();
+    }
+
+    /**
+     * 送信を続けるか
+     * 
+     * @return 送信を続ける場合はtrue、それ以外はfalse
+     */
+    private boolean isRunning() {
+        return !mIsReleased && mBroadcastState.isConnectingOrBroadcasting();
+    }
+
+    @Override
+    protected void runStage() {
+        Log.d(C.TAG, "Start relay stage to " + mDestination + ".");
+
+        try {
+            while (isRunning()) {
+                sendStream();
+
+                // 再接続まで待つ
+                final long waitTime = System.currentTimeMillis()
+                        + mReconnectBackoff.nextDelayMs();
+                while (isRunning() && waitTime > System.currentTimeMillis()) {
+                    Thread.sleep(Math.min(waitTime - System.currentTimeMillis(), 100));
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(C.TAG, "Interrupted relay stage to " + mDestination + ".", e);
+        } finally {
+            Log.d(C.TAG, "Finish relay stage to " + mDestination + ". " + mStats
+                    + " " + this);
+        }
+    }
+
+    /**
+     * 配信先に接続してストリームを送信する。<br />
+     * 接続が切れるか、終了を指示されると戻る。
+     * 
+     * @throws InterruptedException MP3リンクを待っている間に割り込みが入った
+     */
+    private void sendStream() throws InterruptedException {
+        final SocketChannelSender sender = new SocketChannelSender(
+                C.SEND_WRITE_TIMEOUT_MSEC, C.SEND_STALL_TIMEOUT_MSEC,
+                C.SEND_SOCKET_BUFFER_SIZE);
+        boolean isFailed = true;
+        try {
+            sender.connect(mDestination.getHost(), mDestination.getPort(),
+                    C.CONNECT_TIMEOUT_MSEC);
+
+            final SourceHandshake handshake = getHandshake();
+            handshake.send(sender, null, 0, 0);
+            final int status = handshake.readStatus(sender, C.HANDSHAKE_TIMEOUT_MSEC);
+            if (status != SourceHandshake.STATUS_OK) {
+                Log.w(C.TAG, "Received relay error from " + mDestination + ".("
+                        + handshake.getStatusLine() + ")");
+                return;
+            }
+
+            Log.i(C.TAG, "Relay connected to " + mDestination + ".");
+            mReconnectBackoff.reset();
+            mStats.onConnected();
+            // 接続していなかった間のフレームは送らず、最新のフレームから送る
+            mReader.skipToNext();
+            long droppedFrames = mReader.getDroppedFrames();
+
+            // 読み込みバッファ。フレーム単位で読み込むので、最大のフレームよりも大きくすること。
+            final byte[] readBuffer = new byte[16 * 1024];
+            while (isRunning()) {
+                final int readSize = mReader.read(readBuffer, 0, readBuffer.length);
+                if (readSize == 0) {
+                    // 配信状態の変化は通知されないので、期限を設けて待つ
+                    mReader.await(100);
+                }
+                if (droppedFrames != mReader.getDroppedFrames()) {
+                    Log.w(C.TAG, "Relay to " + mDestination + " is too slow. Dropped "
+                            + (mReader.getDroppedFrames() - droppedFrames) + " frames.");
+                    droppedFrames = mReader.getDroppedFrames();
+                    mStats.setDroppedFrames(droppedFrames);
+                }
+                // MP3リンクのロックを持たずに送るので、送信が詰まってもエンコードは止まらない
+                if (readSize != 0) {
+                    final long writeStartTime = System.nanoTime();
+                    sender.write(readBuffer, 0, readSize);
+                    getMetrics().record(readSize, System.nanoTime() - writeStartTime);
+                    mStats.addSentBytes(readSize);
+                }
+            }
+            isFailed = false;
+        } catch (IOException e) {
+            Log.w(C.TAG, "IOException occurred when relay to " + mDestination + ".", e);
+        } finally {
+            if (mStats.isConnected()) {
+                mStats.onDisconnected(isFailed);
+            }
+            try {
+                sender.close();
+            } catch (IOException e) {
+                Log.w(C.TAG, "IOException occurred when close relay socket.", e);
+            }
+        }
+    }
+
+    /**
+     * 配信先とのヘッダのやりとりを取得する。<br />
+     * 配信設定が変わっていなければ、前回生成したヘッダを使う。
+     * 
+     * @return 配信先とのヘッダのやりとり
+     * @throws UnsupportedEncodingException ヘッダを変換できなかった
+     */
+    private SourceHandshake getHandshake() throws UnsupportedEncodingException {
+        final BroadcastConfig broadcastConfig = mVoiceSender.getCurrentBroadcastConfig();
+        if (mHandshake == null || mHandshakeConfig != broadcastConfig) {
+            mHandshake = new SourceHandshake(createHeader(broadcastConfig), "UTF-8");
+            mHandshakeConfig = broadcastConfig;
+        }
+        return mHandshake;
+    }
+
+    /**
+     * 配信先に送るヘッダを生成する
+     * 
+     * @param broadcastConfig 配信設定
+     * @return 生成したヘッダ
+     * @throws UnsupportedEncodingException 認証情報をエンコードできない
+     */
+    private String createHeader(BroadcastConfig broadcastConfig)
+            throws UnsupportedEncodingException {
+        final String credentials = Base64.encodeToString(
+                (mDestination.getUser() + ":" + mDestination.getPassword())
+                        .getBytes("UTF-8"), Base64.NO_WRAP);
+        final StringBuilder result = new StringBuilder(512);
+        result.append("SOURCE ").append(mDestination.getMount()).append(" HTTP/1.0\r\n");
+        result.append("Authorization: Basic ").append(credentials).append("\r\n");
+        result.append("Content-Type: audio/mpeg\r\n");
+        result.append(VoiceSender.getUserAgent()).append("\r\n");
+        VoiceSender.appendChannelHeader(result, broadcastConfig);
+        result.append("\r\n"); // ヘッダの終了は空行
+
+        return result.toString();
+    }
+}
@@ -0,0 +1,1159 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar;
+
+import android.util.Log;
+
+import com.uraroji.garage.android.ladiostar.util.BacklogDrainer;
+import com.uraroji.garage.android.ladiostar.util.ByteRateMeter;
+import com.uraroji.garage.android.ladiostar.util.DestinationStats;
+import com.uraroji.garage.android.ladiostar.util.ExponentialBackoff;
+import com.uraroji.garage.android.ladiostar.util.LatencyHistogram;
+import com.uraroji.garage.android.ladiostar.util.Mp3Link;
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+import com.uraroji.garage.android.ladiostar.util.PipelineStage;
+import com.uraroji.garage.android.ladiostar.util.SendScheduler;
+import com.uraroji.garage.android.ladiostar.util.ServerDirectory;
+import com.uraroji.garage.android.ladiostar.util.ServerEntry;
+import com.uraroji.garage.android.ladiostar.util.ServerSelector;
+import com.uraroji.garage.android.ladiostar.util.SocketChannelSender;
+import com.uraroji.garage.android.ladiostar.util.SourceHandshake;
+import com.uraroji.garage.android.ladiostar.util.StandbyConnection;
+import com.uraroji.garage.android.ladiostar.util.StreamDrainer;
+import com.uraroji.garage.android.ladiostar.util.UplinkEstimator;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 送信ステージ。<br />
+ * MP3リンクから読み込んだデータを配信サーバに送信する。
+ */
+final class SendStage extends PipelineStage {
+
+    /**
+     * 配信の状態を持つVoiceSender
+     */
+    private final VoiceSender mVoiceSender;
+
+    /**
+     * 配信状態
+     */
+    private final VoiceSender.BroadcastState mBroadcastState;
+
+    /**
+     * 送信するデータを読み込むMP3リンク
+     */
+    private final Mp3Link mMp3Link;
+
+    /**
+     * MP3リンクの読み込み位置。再接続しても引き継ぐ。
+     */
+    private final Mp3Link.Reader mReader;
+
+    /**
+     * 送信の速さの測定
+     */
+    private final ByteRateMeter mSentByteRateMeter;
+
+    /**
+     * 送信の統計
+     */
+    private final DestinationStats mSendStats;
+
+    /**
+     * 再接続にかかった時間の分布
+     */
+    private final LatencyHistogram mReconnectHistogram;
+
+    /**
+     * 回線の速さの推定
+     */
+    private final UplinkEstimator mUplinkEstimator;
+
+    /**
+     * 配信サーバの選択
+     */
+    private final ServerSelector mServerSelector;
+
+    /**
+     * 配信を開始した時刻
+     */
+    private final long mStartTime;
+
+    /**
+     * 配信設定
+     */
+    private BroadcastConfig mBroadcastConfig;
+
+    /**
+     * コンストラクタ。<br />
+     * 最初に書き込まれたデータから送信できるように、録音とエンコードを開始する前に生成する。
+     * 
+     * @param voiceSender 配信の状態を持つVoiceSender
+     * @param lifecycle パイプラインのライフサイクル
+     * @param broadcastConfig 配信設定
+     * @param mp3Link 送信するデータを読み込むMP3リンク
+     */
+    public SendStage(VoiceSender voiceSender, PipelineLifecycle lifecycle,
+            BroadcastConfig broadcastConfig, Mp3Link mp3Link) {
+        super("Send", lifecycle);
+        mVoiceSender = voiceSender;
+        mBroadcastState = voiceSender.getState();
+        mMp3Link = mp3Link;
+        mReader = mp3Link.openReader();
+        mSentByteRateMeter = voiceSender.getSentByteRateMeter();
+        mSendStats = voiceSender.getSendStats();
+        mReconnectHistogram = voiceSender.getReconnectHistogram();
+        mUplinkEstimator = voiceSender.getUplinkEstimator();
+        mServerSelector = voiceSender.getServerSelector();
+        mStartTime = voiceSender.getStartTime();
+        mBroadcastConfig = broadcastConfig;
+    }
+
+    /**
+     * 配信設定の変更により接続し直すか
+     */
+    private volatile boolean mIsReconnectRequested = false;
+
+    /**
+     * 再接続が予約されているか
+     */
+    private boolean mIsReconnectScheduled = false;
+
+    /**
+     * 再接続を待っている間に割り込みが入った場合に通知するエラー
+     */
+    private int mReconnectErrorMessage;
+
+    /**
+     * 最後に接続に成功した配信サーバ。<br />
+     * 再接続の最初の試行では、サーバ情報リストを取得せずにこのサーバに接続する。
+     */
+    private ServerEntry mLastGoodServer;
+
+    /**
+     * 次の接続で{@link #mLastGoodServer}に接続するか
+     */
+    private boolean mUseLastGoodServer = false;
+
+    /**
+     * 最後に接続に成功してから、{@link #mLastGoodServer}への再接続を試したか
+     */
+    private boolean mIsLastGoodServerTried = false;
+
+    /**
+     * 再接続の待ち時間
+     */
+    private final ExponentialBackoff mReconnectBackoff = new ExponentialBackoff(
+            C.RECONNECT_BACKOFF_BASE_MSEC, C.RECONNECT_BACKOFF_MAX_MSEC,
+            C.RECONNECT_BACKOFF_JITTER, new Random());
+
+    /**
+     * 切断を検出した時刻。<br />
+     * 再接続中でない場合は-1。
+     */
+    private long mReconnectStartTime = -1;
+
+    /**
+     * 接続しようとしている配信サーバ。<br />
+     * 接続に成功するか失敗した時点でnullに戻す。
+     */
+    private ServerEntry mConnectingServer;
+
+    /**
+     * 予備の接続。<br />
+     * 予備接続が無効の場合はnull。
+     */
+    private StandbyConnection mStandby;
+
+    /**
+     * 配信サーバを選んだ際の順位。予備の接続先を選ぶのに使う。<br />
+     * 配信サーバを順位から選んでいない場合はnull。
+     */
+    private List<ServerEntry> mRankedServers;
+
+    /**
+     * 予備の接続に切り替える前に接続していた配信サーバ。予備の接続先に選ばないようにする。
+     */
+    private ServerEntry mFailedOverServer;
+
+    /**
+     * ネットワークが切り替わったか
+     */
+    private volatile boolean mIsNetworkChanged = false;
+
+    /**
+     * 配信サーバとのヘッダのやりとり。<br />
+     * ヘッダは配信設定ごとに一度だけ生成する。
+     */
+    private SourceHandshake mHandshake;
+
+    /**
+     * {@link #mHandshake}を生成した配信設定
+     */
+    private BroadcastConfig mHandshakeConfig;
+
+    /**
+     * ヘッダと一緒にデータを送ると応答しなかった配信サーバのアドレス。<br />
+     * これらのサーバにはヘッダのレスポンスを受信してからデータを送る。
+     */
+    private final HashSet<String> mNoPipelineServers = new HashSet<String>();
+
+    /**
+     * ネットワークが切り替わった際に、新しいネットワークで用意する接続。<br />
+     * 切り替え中でない場合はnull。
+     */
+    private StandbyConnection mNetworkSwitch;
+
+    /**
+     * 新しいネットワークでの接続を待つ期限。<br />
+     * 期限までに接続できない場合は、切断して接続し直す。
+     */
+    private long mNetworkSwitchDeadline;
+
+    /**
+     * 配信設定の変更により接続し直すことを指示する。<br />
+     * 録音とエンコードは継続しているので、再接続までの待ち時間と録音開始から送信開始までの待ち時間は待たない。
+     */
+    public void requestReconnect() {
+        mIsReconnectRequested = true;
+        mMp3Link.wakeUp();
+    }
+
+    /**
+     * ネットワークが切り替わったことを通知する。<br />
+     * 古いネットワークの接続は、送信がタイムアウトするまで切れたことが分からないので、
+     * 新しいネットワークで接続を用意して、フレームの区切りで切り替える。
+     */
+    public void onNetworkChanged() {
+        mIsNetworkChanged = true;
+        mMp3Link.wakeUp();
+    }
+
+    @Override
+    public void requestStop() {
+        // 送信待ちで眠っている場合に、停止に気づかせる
+        mMp3Link.wakeUp();
+    }
+
+    @Override
+    protected void runStage() {
+        Log.d(C.TAG, "Start Send data thread.");
+
+        try {
+            while (true) {
+                mIsReconnectScheduled = false;
+                mIsReconnectRequested = false;
+                // 再接続の間に配信設定が変更されていることがあるので、最新の配信設定で接続する
+                final BroadcastConfig broadcastConfig = mVoiceSender.getCurrentBroadcastConfig();
+                if (!VoiceSender.equalsString(mBroadcastConfig.getChannelServer(),
+                        broadcastConfig.getChannelServer())) {
+                    // 配信サーバの設定が変わった場合は、前回接続できたサーバには接続しない
+                    mLastGoodServer = null;
+                }
+                mBroadcastConfig = broadcastConfig;
+
+                if (sendStream()) {
+                    // 配信設定の変更かネットワークの切り替えにより接続し直す。録音とエンコードは継続しているので待たない。
+                    Log.i(C.TAG, "Reconnect without waiting.");
+                    if (!mBroadcastState.set(VoiceSender.BROADCAST_STATE_CONNECTING)) {
+                        // 接続し直す間に停止した
+                        break;
+                    }
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_RECONNECT_STARTED);
+                    mUseLastGoodServer = true;
+                    mReconnectStartTime = System.currentTimeMillis();
+                    continue;
+                }
+
+                if (!mIsReconnectScheduled) {
+                    break;
+                }
+                try {
+                    if (!waitReconnect()) {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                    mVoiceSender.notifyRecStateChangedHandle(mReconnectErrorMessage);
+                    break;
+                }
+            }
+        } finally {
+            // 配信を終えるので、LAN内の聴取者も切断する
+            mVoiceSender.stopStreamServer();
+
+            mVoiceSender.saveUplinkEstimate();
+
+            Log.d(C.TAG, "Finish Send data thread. " + this);
+        }
+    }
+
+    /**
+     * 配信サーバに接続してストリームを送信する。<br />
+     * 接続が切れて再接続する場合は、{@link #scheduleReconnect(int)}で再接続を予約してから戻る。
+     * 
+     * @return 配信設定の変更により接続し直す場合はtrue、それ以外はfalse
+     */
+    private boolean sendStream() {
+        // 配信設定の変更により接続し直すか
+        boolean isReconnectForReconfigure = false;
+        // 接続が切れてから接続し直すか。接続に成功すると再接続中ではなくなるので、先に覚えておく。
+        final boolean isReconnect = (mReconnectStartTime >= 0);
+
+        // ねとらじの接続先サーバ
+        ServerEntry broadcastServer = null;
+        mConnectingServer = null;
+        mRankedServers = null;
+        mFailedOverServer = null;
+        // これから接続するのは今のネットワークなので、それまでの切り替えは済んでいる
+        mIsNetworkChanged = false;
+
+        // 接続先のサーバを決める
+        if (mUseLastGoodServer && mLastGoodServer != null) {
+            // 再接続の最初の試行は、サーバ情報リストを取得せずに前回接続できたサーバに接続する
+            broadcastServer = mLastGoodServer;
+            Log.i(C.TAG, "Reconnect to the last good server.");
+        } else {
+            // 配信サーバ情報リストを取得する。
+            // キャッシュがあれば、古くてもネットワークを待たずに使う（裏で更新する）。
+            List<ServerEntry> servers = mVoiceSender.getServerDirectory().get(System.currentTimeMillis());
+            if (servers == null) {
+                try {
+                    servers = mVoiceSender.getServerDirectory().fetch();
+                } catch (IOException e) {
+                    Log.w(C.TAG,
+                            "IOException occurred when fetch netladio server information.", e);
+                    if (mVoiceSender.isRecoonect()) {
+                        scheduleReconnect(VoiceSender.MSG_ERROR_FETCH_NET_LADIO_SERVER_LIST);
+                    } else {
+                        mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                        mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_FETCH_NET_LADIO_SERVER_LIST);
+                    }
+                    return false;
+                }
+            }
+
+            // 配信サーバを設定していない場合はもっとも空いているサーバを取得する
+            if (mBroadcastConfig.getChannelServer() == null
+                    || mBroadcastConfig.getChannelServer().length() == 0) {
+                // 空いているサーバに同時に接続してみて、応答の速さと混雑度、過去の接続の成否から選ぶ
+                mRankedServers = mServerSelector.rank(servers);
+                broadcastServer = mRankedServers.isEmpty() ? null : mRankedServers.get(0);
+                if (broadcastServer == null) {
+                    // どのサーバも応答しなかった場合は、もっとも空いているサーバに接続してみる
+                    broadcastServer = ServerDirectory.findVacant(servers);
+                }
+            }
+            // 配信サーバを設定している場合
+            else {
+                broadcastServer = ServerDirectory.find(servers,
+                        mBroadcastConfig.getChannelServer());
+            }
+
+            // 何らかの理由で配信サーバが決まらなかった場合はエラーで終了
+            if (broadcastServer == null) {
+                Log.w(C.TAG, "Not found the broadcast server.");
+                // キャッシュが古い可能性があるので、次はサーバ情報リストを取得し直す
+                mVoiceSender.getServerDirectory().invalidate();
+                if (mVoiceSender.isRecoonect()) {
+                    scheduleReconnect(VoiceSender.MSG_ERROR_NOT_FOUND_NET_LADIO_BROADCAST_SERVER);
+                } else {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_NOT_FOUND_NET_LADIO_BROADCAST_SERVER);
+                }
+                return false;
+            }
+        }
+
+        mConnectingServer = broadcastServer;
+
+        // サーバがデータを読まなくなったことを検出できるように、期限を設けて送信する
+        SocketChannelSender sender = new SocketChannelSender(
+                C.SEND_WRITE_TIMEOUT_MSEC, C.SEND_STALL_TIMEOUT_MSEC,
+                C.SEND_SOCKET_BUFFER_SIZE);
+        try {
+            sender.connect(broadcastServer.getHost(), broadcastServer.getPort(),
+                    C.CONNECT_TIMEOUT_MSEC);
+        } catch (UnknownHostException e) {
+            Log.w(C.TAG, "UnknownHostException occurred when create socket.", e);
+            if (mVoiceSender.isRecoonect()) {
+                scheduleReconnect(VoiceSender.MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
+            } else {
+                mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
+            }
+            return false;
+        } catch (IOException e) {
+            Log.w(C.TAG, "IOException occurred when create socket.", e);
+            if (mVoiceSender.isRecoonect()) {
+                scheduleReconnect(VoiceSender.MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
+            } else {
+                mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
+            }
+            return false;
+        }
+
+        try {
+            // ここに到達するまでにユーザーにより停止が指示されている場合は終了
+            if (mBroadcastState.get() == VoiceSender.BROADCAST_STATE_STOPPING) {
+                // ストリーム配信正常終了
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_SEND_STREAM_ENDED);
+                return false;
+            }
+
+            // 読み込みバッファ。フレーム単位で読み込むので、最大のフレームよりも大きくすること。
+            final byte[] readBuffer = new byte[16 * 1024];
+            // ヘッダと一緒に送ったデータの大きさ
+            int firstBurstSize = 0;
+            // ヘッダと一緒に送ったデータの長さ（マイクロ秒）
+            long firstBurstUs = 0;
+            // ヘッダと一緒に送る前のMP3バッファの位置。受け付けられなかった場合は、ここから送り直す。
+            long firstBurstPosition = 0;
+            // ヘッダと一緒にデータを送った時刻
+            long firstBurstTime = -1;
+
+            // ヘッダ送信
+            final SourceHandshake handshake;
+            try {
+                handshake = getHandshake();
+                // 初回の接続では、それまでにエンコードしたデータをヘッダと一緒に送って、レスポンスを待つ間に届くようにする。
+                // 再接続の場合は、たまったデータの送り方をBacklogDrainerに任せる。
+                if (!isReconnect && !mNoPipelineServers.contains(broadcastServer.getAddress())) {
+                    firstBurstPosition = mReader.getPosition();
+                    final long availableUs = mReader.availableUs();
+                    firstBurstSize = mReader.read(readBuffer, 0, readBuffer.length);
+                    firstBurstUs = availableUs - mReader.availableUs();
+                }
+                handshake.send(sender, readBuffer, 0, firstBurstSize);
+                if (firstBurstSize > 0) {
+                    firstBurstTime = System.currentTimeMillis();
+                }
+            } catch (IOException e) {
+                Log.w(C.TAG, "IOException occurred when send header.", e);
+                rewindFirstBurst(firstBurstPosition, firstBurstSize);
+                if (mVoiceSender.isRecoonect()) {
+                    scheduleReconnect(VoiceSender.MSG_ERROR_SEND_HEADER_DATA);
+                } else {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // ヘッダの送信に失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_SEND_HEADER_DATA);
+                }
+                return false;
+            }
+
+            try {
+                final int status = handshake.readStatus(sender, C.HANDSHAKE_TIMEOUT_MSEC);
+                final String responseStr = handshake.getStatusLine();
+                if (status != SourceHandshake.STATUS_OK) {
+                    // 受け付けられなかったので、ヘッダと一緒に送ったデータは送り直す
+                    rewindFirstBurst(firstBurstPosition, firstBurstSize);
+                }
+                // 接続に成功
+                if (status == SourceHandshake.STATUS_OK) {
+                    Log.i(C.TAG, "Connected to "
+                            + sender.socket().getInetAddress().getHostAddress() + ":"
+                            + sender.socket().getPort() + ".");
+                    onConnected(broadcastServer);
+                    if (firstBurstSize > 0) {
+                        mVoiceSender.getSendScheduler().onWrite(firstBurstSize, firstBurstTime);
+                        mSentByteRateMeter.add(firstBurstSize, firstBurstTime);
+                        mSendStats.addSentBytes(firstBurstSize);
+                        if (mVoiceSender.getTimeToFirstByte() < 0) {
+                            mVoiceSender.setTimeToFirstByte(firstBurstTime - mStartTime);
+                            Log.i(C.TAG, "Time to first byte is " + mVoiceSender.getTimeToFirstByte()
+                                    + " msec. (Sent " + firstBurstSize
+                                    + " bytes with header)");
+                        }
+                    }
+                }
+                // 認証失敗
+                else if (responseStr.equals("HTTP/1.0 401 Authentication Required")) {
+                    Log.w(C.TAG, "Received error.(" + responseStr + ")");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // 認証失敗
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECEIVED_RESPONSE_AUTHENTICATION_REQUIRED);
+                    return false;
+                }
+                // 同名のマウントが使用中
+                else if (responseStr.equals("HTTP/1.0 403 Mountpoint in use")) {
+                    Log.w(C.TAG, "Received error.(" + responseStr + ")");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // 同名のマウントが使用中
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECEIVED_RESPONSE_MOUNTPOINT_IN_USE);
+                    return false;
+                }
+                // マウント名前が長すぎるか短すぎる
+                else if (responseStr.equals("HTTP/1.0 403 Mountpoint too long")) {
+                    Log.w(C.TAG, "Received error.(" + responseStr + ")");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // ヘッダのレスポンス受信に失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECEIVED_RESPONSE_MOUNTPOINT_TOO_LONG);
+                    return false;
+                }
+                // サポート外のストリーム
+                else if (responseStr.equals("HTTP/1.0 403 Content-type not supported")) {
+                    Log.w(C.TAG, "Received error.(" + responseStr + ")");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // ヘッダのレスポンス受信に失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECEIVED_RESPONSE_CONTENT_TYPE_NOT_SUPPORTED);
+                    return false;
+                }
+                // 混んでいて接続できない
+                else if (responseStr.equals("HTTP/1.0 403 too many sources connected")) {
+                    Log.w(C.TAG, "Received error.(" + responseStr + ")");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // ヘッダのレスポンス受信に失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECEIVED_RESPONSE_TOO_MANY_SOURCES_CONNECTED);
+                    return false;
+                }
+                // 未知のレスポンスを受信した
+                else {
+                    Log.w(C.TAG, "Received unknown error.(" + responseStr + ")");
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // 未知のレスポンスを受信した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECEIVED_RESPONSE_UNKNOWN_ERROR);
+                    return false;
+                }
+            } catch (IOException e) {
+                Log.w(C.TAG, "IOException occurred when header response receved.", e);
+                if (firstBurstSize > 0) {
+                    // ヘッダと一緒に送ったデータを受け付けないサーバかもしれないので、次からは分けて送る
+                    mNoPipelineServers.add(broadcastServer.getAddress());
+                    rewindFirstBurst(firstBurstPosition, firstBurstSize);
+                }
+                if (mVoiceSender.isRecoonect()) {
+                    scheduleReconnect(VoiceSender.MSG_ERROR_RECV_HEADER_RESPONSE);
+                } else {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    // ヘッダのレスポンス受信に失敗した
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_RECV_HEADER_RESPONSE);
+                }
+                return false;
+            }
+
+            mVoiceSender.setBroadcastingInfo(new BroadcastInfo(mBroadcastConfig,
+                    broadcastServer.getHost(), broadcastServer.getPort(), mStartTime));
+
+            // 接続とヘッダのやりとりは録音・エンコードと並行して済ませたので、後は音声がたまるのを待つだけ
+            try {
+                waitPrebuffer(firstBurstUs);
+            } catch (InterruptedException e) {
+                if (mVoiceSender.isRecoonect()) {
+                    scheduleReconnect(VoiceSender.MSG_ERROR_INTERRUPTED_WAIT_FROM_REC_START_TO_SEND_DATA);
+                } else {
+                    mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                    mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_INTERRUPTED_WAIT_FROM_REC_START_TO_SEND_DATA);
+                }
+                return false;
+            }
+
+            // ここに到達するまでにユーザーにより停止が指示されている場合は終了
+            if (mBroadcastState.get() == VoiceSender.BROADCAST_STATE_STOPPING) {
+                // ストリーム配信正常終了
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_SEND_STREAM_ENDED);
+                return false;
+            }
+
+            if (isReconnect) {
+                // 接続が切れている間にたまったデータを、設定に従って送る
+                final BacklogDrainer backlogDrainer = mVoiceSender.getBacklogDrainer();
+                mReader.onReconnected(backlogDrainer);
+                Log.i(C.TAG, "Backlog after reconnect. " + backlogDrainer);
+            }
+
+            if (mBroadcastState.compareAndSet(VoiceSender.BROADCAST_STATE_CONNECTING,
+                    VoiceSender.BROADCAST_STATE_BROADCASTING)) {
+                // ストリーム配信開始
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_SEND_STREAM_STARTED);
+            }
+
+            // 読み込みサイズ
+            int readSize = 0;
+            // 送信する前に上書きされたフレームの数
+            long droppedFrames = -1;
+            // 読み込む前のMP3バッファの位置。予備の接続に切り替えた際に、ここから送り直す。
+            long readPosition = 0;
+            // 送信していないデータがたまり始めた時刻。送信していないデータがない場合は-1。
+            long pendingSinceTime = -1;
+
+            while (mBroadcastState.get() == VoiceSender.BROADCAST_STATE_BROADCASTING
+                    && !mIsReconnectRequested) {
+                if (mIsNetworkChanged) {
+                    mIsNetworkChanged = false;
+                    startNetworkSwitch(broadcastServer);
+                }
+                if (mNetworkSwitch != null) {
+                    // 新しいネットワークで接続できたら、送信中のフレームの区切りで切り替える
+                    final ServerEntry switchServer = mNetworkSwitch.getTarget();
+                    if (mNetworkSwitch.isReady()) {
+                        final SocketChannelSender switchSender = takeStandby(mNetworkSwitch);
+                        mNetworkSwitch.close();
+                        mNetworkSwitch = null;
+                        if (switchSender == null) {
+                            Log.w(C.TAG, "Failed to switch network. Reconnect.");
+                            mIsReconnectRequested = true;
+                            continue;
+                        }
+                        disconnect(sender);
+                        sender = switchSender;
+                        mFailedOverServer = broadcastServer;
+                        mRankedServers = null;
+                        broadcastServer = switchServer;
+                        mVoiceSender.setBroadcastingInfo(new BroadcastInfo(mBroadcastConfig,
+                                broadcastServer.getHost(), broadcastServer.getPort(),
+                                mStartTime));
+                        // 新しいネットワークでの回線の速さは測り直す
+                        mUplinkEstimator.resetInterval();
+                        Log.i(C.TAG, "Switched network to " + broadcastServer.getAddress()
+                                + ".");
+                        onConnected(broadcastServer);
+                    } else if (System.currentTimeMillis() >= mNetworkSwitchDeadline) {
+                        Log.w(C.TAG, "Timed out to switch network. Reconnect.");
+                        mNetworkSwitch.close();
+                        mNetworkSwitch = null;
+                        mIsReconnectRequested = true;
+                        continue;
+                    }
+                } else {
+                    updateStandby(broadcastServer);
+                }
+
+                readSize = 0;
+                final BacklogDrainer backlogDrainer = mVoiceSender.getBacklogDrainer();
+                SendScheduler sendScheduler;
+                long sendDelay;
+                // 読み込んだ後に残っている送信待ちのデータの大きさ。回線の速さの推定に使う。
+                int backlogBytes = 0;
+                // 再接続後にたまったデータを追いついて送っている間は、決まった速さで送る
+                sendScheduler = backlogDrainer.select(mVoiceSender.getSendScheduler(),
+                        mReader.availableUs());
+                // 小さな送信が続かないように、送信スケジューラが許すまでデータをためる
+                final int pendingBytes = mReader.availableBytes();
+                final long now = System.currentTimeMillis();
+                if (pendingBytes == 0) {
+                    pendingSinceTime = -1;
+                } else if (pendingSinceTime < 0) {
+                    pendingSinceTime = now;
+                }
+                sendDelay = sendScheduler.delayMs(pendingBytes, pendingSinceTime, now);
+
+                readPosition = mReader.getPosition();
+                if (sendDelay == 0) {
+                    readSize = mReader.read(readBuffer, 0, Math.min(readBuffer.length,
+                            sendScheduler.writableBytes(pendingBytes, now)));
+                    backlogBytes = mReader.availableBytes();
+                }
+                if (droppedFrames != mReader.getDroppedFrames()) {
+                    if (droppedFrames >= 0) {
+                        Log.w(C.TAG, "MP3 buffer overflowed. Dropped "
+                                + (mReader.getDroppedFrames() - droppedFrames)
+                                + " frames.");
+                        // 送り切れずに捨てたので、回線が詰まっている
+                        mUplinkEstimator.onOverflow();
+                    }
+                    droppedFrames = mReader.getDroppedFrames();
+                    mSendStats.setDroppedFrames(droppedFrames);
+                }
+                if (readSize == 0) {
+                    try {
+                        if (C.LOCAL_LOG) {
+                            Log.v(C.TAG, "Wait to read MP3 buffer.");
+                        }
+
+                        // 最後に残りを確かめた後に書き込まれていれば、待たずに戻る
+                        if (sendDelay < 0 && mNetworkSwitch == null) {
+                            mReader.await(0);
+                        } else if (sendDelay < 0) {
+                            // 新しいネットワークで接続できたかを確かめるため、期限を設けて待つ
+                            mReader.await(100);
+                        } else {
+                            // データが増えずに期間が過ぎた場合も送れるように、期限を設けて待つ
+                            mReader.await(Math.max(sendDelay, 1));
+                        }
+                    } catch (InterruptedException e) {
+                        Log.w(C.TAG, "Interrupted wait to writing MP3 bufffer.", e);
+                        if (mVoiceSender.isRecoonect()) {
+                            scheduleReconnect(VoiceSender.MSG_ERROR_SEND_STREAM_DATA);
+                        } else {
+                            mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                            // データの送信に失敗した
+                            mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_SEND_STREAM_DATA);
+                        }
+                        return false;
+                    }
+                }
+                try {
+                    if (readSize != 0) {
+                        final long writeStartTime = System.nanoTime();
+                        sender.write(readBuffer, 0, readSize);
+                        getMetrics().record(readSize, System.nanoTime() - writeStartTime);
+                        sendScheduler.onWrite(readSize, System.currentTimeMillis());
+                        mUplinkEstimator.onWrite(readSize, backlogBytes,
+                                System.currentTimeMillis());
+                        mSentByteRateMeter.add(readSize, System.currentTimeMillis());
+                        mSendStats.addSentBytes(readSize);
+                        if (mVoiceSender.getTimeToFirstByte() < 0) {
+                            mVoiceSender.setTimeToFirstByte(System.currentTimeMillis() - mStartTime);
+                            Log.i(C.TAG, "Time to first byte is " + mVoiceSender.getTimeToFirstByte()
+                                    + " msec.");
+                        }
+                        if (C.LOCAL_LOG) {
+                            Log.v(C.TAG, "Sent " + String.valueOf(readSize)
+                                    + " bytes data.");
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(C.TAG, "IOException occurred when send stream.", e);
+
+                    // 予備の接続があれば切り替えて、送信に失敗したデータから送り直す
+                    mReconnectStartTime = System.currentTimeMillis();
+                    final ServerEntry standbyServer = (mStandby != null) ? mStandby
+                            .getTarget() : null;
+                    final SocketChannelSender standbySender = takeStandby(mStandby);
+                    if (standbySender != null) {
+                        disconnect(sender);
+                        sender = standbySender;
+                        mFailedOverServer = broadcastServer;
+                        mRankedServers = null;
+                        broadcastServer = standbyServer;
+                        mReader.setPosition(readPosition);
+                        mVoiceSender.setBroadcastingInfo(new BroadcastInfo(mBroadcastConfig,
+                                broadcastServer.getHost(), broadcastServer.getPort(),
+                                mStartTime));
+                        Log.i(C.TAG, "Failed over to " + broadcastServer.getAddress() + " in "
+                                + (System.currentTimeMillis() - mReconnectStartTime)
+                                + " msec.");
+                        onConnected(broadcastServer);
+                        continue;
+                    }
+
+                    if (mVoiceSender.isRecoonect()) {
+                        scheduleReconnect(VoiceSender.MSG_ERROR_SEND_STREAM_DATA);
+                    } else {
+                        mBroadcastState.set(VoiceSender.BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
+                        // データの送信に失敗した
+                        mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_ERROR_SEND_STREAM_DATA);
+                    }
+                    return false;
+                }
+            }
+
+            final long now = System.currentTimeMillis();
+            Log.i(C.TAG, "Sent " + mSentByteRateMeter.getTotalBytes()
+                    + " bytes. (Average " + mSentByteRateMeter.getAverageBytesPerSec(now)
+                    + " bytes/sec, recent " + mSentByteRateMeter.getBytesPerSec(now)
+                    + " bytes/sec) " + mVoiceSender.getSendScheduler() + " " + mVoiceSender.getBacklogDrainer() + " "
+                    + mUplinkEstimator);
+
+            if (mIsReconnectRequested && mBroadcastState.isConnectingOrBroadcasting()) {
+                // 配信設定の変更により接続し直す。接続は切断してから行う。
+                isReconnectForReconfigure = true;
+            } else {
+                if (mVoiceSender.getDrainMsec() > 0 && !mIsReconnectRequested) {
+                    // 停止する前に、録音済みのデータを送り切る
+                    drainStream(sender, readBuffer);
+                }
+                // ストリーム配信正常終了
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_SEND_STREAM_ENDED);
+            }
+        } finally {
+            mVoiceSender.setBroadcastingInfo(null); // 配信情報を空にする
+
+            if (mSendStats.isConnected()) {
+                mSendStats.onDisconnected(mIsReconnectScheduled);
+            }
+
+            // 接続していない間は送れないので、測定中の期間は捨てる
+            mUplinkEstimator.resetInterval();
+
+            if (mStandby != null) {
+                mStandby.close();
+                mStandby = null;
+            }
+            if (mNetworkSwitch != null) {
+                mNetworkSwitch.close();
+                mNetworkSwitch = null;
+            }
+
+            disconnect(sender);
+        }
+
+        return isReconnectForReconfigure;
+    }
+
+    /**
+     * 配信サーバとの接続を切断する
+     * 
+     * @param sender 切断する接続
+     */
+    private void disconnect(SocketChannelSender sender) {
+        final Socket socket = sender.socket();
+        try {
+            sender.close();
+            if (socket != null) {
+                Log.i(C.TAG,
+                        "Disconnected to " + socket.getInetAddress().getHostAddress()
+                                + ":" + socket.getPort() + ".");
+            }
+        } catch (IOException e) {
+            Log.w(C.TAG, "IOException occurred when close socket.", e);
+        }
+    }
+
+    /**
+     * 配信設定に合わせて予備の接続を用意する。<br />
+     * 予備接続が有効で、配信サーバを自動で選択する場合のみ用意する。
+     * 
+     * @param activeServer 接続中の配信サーバ
+     */
+    private void updateStandby(ServerEntry activeServer) {
+        final BroadcastConfig broadcastConfig = mVoiceSender.getCurrentBroadcastConfig();
+        final boolean isEnabled = broadcastConfig.isChannelHotStandby()
+                && (broadcastConfig.getChannelServer() == null || broadcastConfig
+                        .getChannelServer().length() == 0);
+        if (!isEnabled) {
+            if (mStandby != null) {
+                mStandby.close();
+                mStandby = null;
+            }
+            return;
+        }
+
+        if (mStandby == null) {
+            mStandby = new StandbyConnection(C.CONNECT_TIMEOUT_MSEC,
+                    C.STANDBY_MAX_IDLE_MSEC, C.SEND_WRITE_TIMEOUT_MSEC,
+                    C.SEND_STALL_TIMEOUT_MSEC, C.SEND_SOCKET_BUFFER_SIZE);
+        }
+        if (mStandby.getTarget() == null) {
+            final ServerEntry standbyServer = chooseStandbyServer(activeServer);
+            if (standbyServer != null) {
+                Log.i(C.TAG, "Keep standby connection to " + standbyServer.getAddress()
+                        + ".");
+                mStandby.setTarget(standbyServer);
+            }
+        }
+    }
+
+    /**
+     * 予備の接続先を選ぶ
+     * 
+     * @param activeServer 接続中の配信サーバ
+     * @return 予備の接続先。選べない場合はnull。
+     */
+    private ServerEntry chooseStandbyServer(ServerEntry activeServer) {
+        if (mRankedServers != null) {
+            for (ServerEntry server : mRankedServers) {
+                if (!server.getAddress().equals(activeServer.getAddress())) {
+                    return server;
+                }
+            }
+            return null;
+        }
+
+        final List<ServerEntry> servers = mVoiceSender.getServerDirectory().get(System.currentTimeMillis());
+        if (servers == null) {
+            return null;
+        }
+        final ArrayList<ServerEntry> candidates = new ArrayList<ServerEntry>();
+        for (ServerEntry server : servers) {
+            if (!server.getAddress().equals(activeServer.getAddress())
+                    && (mFailedOverServer == null || !server.getAddress().equals(
+                            mFailedOverServer.getAddress()))) {
+                candidates.add(server);
+            }
+        }
+        return ServerDirectory.findVacant(candidates);
+    }
+
+    /**
+     * ネットワークが切り替わった際に、新しいネットワークで接続を用意する。<br />
+     * 古い接続は配信サーバのマウントを使っているので、別の配信サーバに接続する。
+     * 別の配信サーバを選べない場合は、古い接続を切断してすぐに接続し直す。
+     * 
+     * @param activeServer 接続中の配信サーバ
+     */
+    private void startNetworkSwitch(ServerEntry activeServer) {
+        // 古いネットワークで用意した予備の接続は使えない
+        if (mStandby != null) {
+            mStandby.close();
+            mStandby = null;
+        }
+        if (mNetworkSwitch != null) {
+            mNetworkSwitch.close();
+            mNetworkSwitch = null;
+        }
+
+        final String channelServer = mVoiceSender.getCurrentBroadcastConfig().getChannelServer();
+        final ServerEntry switchServer;
+        if (channelServer == null || channelServer.length() == 0) {
+            switchServer = chooseStandbyServer(activeServer);
+        } else {
+            // 配信サーバを設定している場合は、別の配信サーバに切り替えられない
+            switchServer = null;
+        }
+        if (switchServer == null) {
+            Log.i(C.TAG, "Network changed. Reconnect.");
+            mIsReconnectRequested = true;
+            return;
+        }
+
+        Log.i(C.TAG, "Network changed. Connect to " + switchServer.getAddress() + ".");
+        mNetworkSwitch = new StandbyConnection(C.CONNECT_TIMEOUT_MSEC,
+                C.STANDBY_MAX_IDLE_MSEC, C.SEND_WRITE_TIMEOUT_MSEC,
+                C.SEND_STALL_TIMEOUT_MSEC, C.SEND_SOCKET_BUFFER_SIZE);
+        mNetworkSwitch.setTarget(switchServer);
+        mNetworkSwitchDeadline = System.currentTimeMillis() + C.NETWORK_SWITCH_TIMEOUT_MSEC;
+    }
+
+    /**
+     * 配信サーバとのヘッダのやりとりを取得する。<br />
+     * 配信設定が変わっていなければ、前回生成したヘッダを使う。
+     * 
+     * @return 配信サーバとのヘッダのやりとり
+     * @throws UnsupportedEncodingException ヘッダを変換できなかった
+     */
+    private SourceHandshake getHandshake() throws UnsupportedEncodingException {
+        if (mHandshake == null || mHandshakeConfig != mBroadcastConfig) {
+            // ヘッダの後に改行を付けて送る
+            mHandshake = new SourceHandshake(createHeader()
+                    + System.getProperty("line.separator"), "Shift_JIS");
+            mHandshakeConfig = mBroadcastConfig;
+        }
+        return mHandshake;
+    }
+
+    /**
+     * ヘッダと一緒に送ったデータを、送る前の位置から送り直す
+     * 
+     * @param position ヘッダと一緒に送る前のMP3バッファの位置
+     * @param size ヘッダと一緒に送ったデータの大きさ
+     */
+    private void rewindFirstBurst(long position, int size) {
+        if (size == 0) {
+            return;
+        }
+        mReader.setPosition(position);
+    }
+
+    /**
+     * 用意した接続にヘッダを送って、配信に使えるようにする
+     * 
+     * @param standby 用意した接続
+     * @return 配信に使える接続。接続がないか、配信サーバに受け付けられなかった場合はnull。
+     */
+    private SocketChannelSender takeStandby(StandbyConnection standby) {
+        if (standby == null || !standby.isReady()) {
+            return null;
+        }
+        try {
+            return standby.take(getHandshake(), C.STANDBY_HANDSHAKE_TIMEOUT_MSEC);
+        } catch (UnsupportedEncodingException e) {
+            Log.w(C.TAG, "UnsupportedEncodingException occurred when create header.", e);
+            return null;
+        }
+    }
+
+    /**
+     * 送信していない音声が{@link BroadcastConfig#getAudioPrebufferMsec()}の長さだけMP3バッファにたまるまで待つ。<br />
+     * エンコードステージがMP3リンクに書き込むたびに起こされる。
+     * 再接続の場合は送信していない音声が既にたまっているので待たない。<br />
+     * 停止するか、配信設定の変更により接続し直す場合は待つのをやめる。
+     * 
+     * @param sentUs ヘッダと一緒に既に送った音声の長さ（マイクロ秒）。この分は待たない。
+     * @throws InterruptedException 待っている間に割り込みが入った
+     */
+    private void waitPrebuffer(long sentUs) throws InterruptedException {
+        final long prebufferUs = mBroadcastConfig.getAudioPrebufferMsec() * 1000L - sentUs;
+        final long waitStartTime = System.currentTimeMillis();
+        while (mBroadcastState.isConnectingOrBroadcasting() && !mIsReconnectRequested
+                && mReader.availableUs() < prebufferUs) {
+            try {
+                // 停止は通知されないので、期限を設けて待つ
+                mReader.await(100);
+            } catch (InterruptedException e) {
+                Log.w(C.TAG, "Interrupted wait to prebuffer.", e);
+                throw e;
+            }
+        }
+        if (C.LOCAL_LOG) {
+            Log.v(C.TAG, "Waited " + (System.currentTimeMillis() - waitStartTime)
+                    + " msec to prebuffer.");
+        }
+    }
+
+    /**
+     * ヘッダを生成する
+     * 
+     * @return 生成したヘッダ
+     */
+    private String createHeader() {
+        final StringBuilder result = new StringBuilder(512);
+        result.append("SOURCE ").append(mBroadcastConfig.getChannelMount())
+                .append(" ICE/1.0\r\n");
+        result.append("Content-Type: audio/mpeg\r\n");
+        result.append(VoiceSender.getUserAgent()).append("\r\n");
+        result.append("Authorization: Basic c291cmNlOmxhZGlv\r\n");
+        VoiceSender.appendChannelHeader(result, mBroadcastConfig);
+        result.append("x-ladio-info:charset=sjis;dj=")
+                .append(mBroadcastConfig.getChannelDjName()).append("\r\n");
+        result.append("\r\n"); // ヘッダの終了は空行
+
+        return result.toString();
+    }
+
+    /**
+     * 停止した後に、MP3バッファに残っているデータとエンコード中のデータを送り切る。<br />
+     * {@link VoiceSender#getDrainMsec()}の時間を過ぎた場合は、残りを送らずに終了する。
+     * 
+     * @param sender 送信先
+     * @param readBuffer MP3バッファからデータを読み込むためのバッファ
+     */
+    private void drainStream(SocketChannelSender sender, byte[] readBuffer) {
+        final StreamDrainer drainer = new StreamDrainer(mVoiceSender.getDrainMsec());
+        try {
+            // エンコードステージが終了してMP3リンクを閉じるまで読み込む
+            drainer.drain(mReader, sender, readBuffer);
+        } catch (IOException e) {
+            Log.w(C.TAG, "IOException occurred when drain stream.", e);
+        } catch (InterruptedException e) {
+            Log.w(C.TAG, "Interrupted wait to drain stream.", e);
+        }
+
+        mSentByteRateMeter.add(drainer.getDrainedBytes(), System.currentTimeMillis());
+        mSendStats.addSentBytes(drainer.getDrainedBytes());
+        Log.i(C.TAG, drainer.toString());
+        if (drainer.isCompleted()) {
+            mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_DRAIN_COMPLETED);
+        }
+    }
+
+    /**
+     * 配信サーバとの接続に成功した際の処理
+     * 
+     * @param server 接続した配信サーバ
+     */
+    private void onConnected(ServerEntry server) {
+        mServerSelector.recordSuccess(server);
+        mConnectingServer = null;
+        mLastGoodServer = server;
+        mIsLastGoodServerTried = false;
+        mReconnectBackoff.reset();
+        if (!mSendStats.isConnected()) {
+            mSendStats.onConnected();
+        }
+
+        if (mReconnectStartTime >= 0) {
+            final long reconnectTime = System.currentTimeMillis() - mReconnectStartTime;
+            mReconnectStartTime = -1;
+            mReconnectHistogram.record(reconnectTime);
+            Log.i(C.TAG, "Reconnected in " + reconnectTime + " msec. " + mReconnectHistogram);
+        }
+    }
+
+    /**
+     * 再接続を予約する。<br />
+     * 送信中のソケットを閉じてから、{@link #waitReconnect()}で待って接続し直す。
+     * 
+     * @param errorMessage 再接続を待っている間に割り込みが入った場合に通知するエラー
+     */
+    private void scheduleReconnect(int errorMessage) {
+        if (mConnectingServer != null) {
+            // 次にサーバを選ぶ際に、接続に失敗したサーバを選びにくくする
+            mServerSelector.recordFailure(mConnectingServer);
+            mConnectingServer = null;
+        }
+        mIsReconnectScheduled = true;
+        mReconnectErrorMessage = errorMessage;
+        if (mReconnectStartTime < 0) {
+            mReconnectStartTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 再接続までの時間を待つ。<br />
+     * 前回接続できたサーバがある場合、最初の再接続は待たずにそのサーバに接続する。<br />
+     * それ以降は失敗するたびに待ち時間を指数関数的に増やす。
+     * 
+     * @return 再接続する場合はtrue、待っている間に停止した場合はfalse
+     * @throws InterruptedException 待っている間に割り込みが入った
+     */
+    private boolean waitReconnect() throws InterruptedException {
+        // 停止していなければ接続中にする。停止した後に接続中に戻すことはしない。
+        if (mBroadcastState.isStoppedOrStopping()
+                || !mBroadcastState.set(VoiceSender.BROADCAST_STATE_CONNECTING)) {
+            // 停止は録音とエンコードのステージが終了してから行う
+            mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_STOP_WAIT_RECONNECT);
+            return false;
+        }
+
+        final long waitMsec;
+        if (mLastGoodServer != null && !mIsLastGoodServerTried) {
+            mIsLastGoodServerTried = true;
+            mUseLastGoodServer = true;
+            waitMsec = 0;
+        } else {
+            mUseLastGoodServer = false;
+            waitMsec = mReconnectBackoff.nextDelayMs();
+        }
+        final long waitTime = System.currentTimeMillis() + waitMsec;
+
+        Log.i(C.TAG, String.format("Wait %.2f sec before reconnect.", waitMsec / 1000f));
+        mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_RECONNECT_STARTED);
+        while (true) {
+            if (mBroadcastState.isStoppedOrStopping()) {
+                mVoiceSender.notifyRecStateChangedHandle(VoiceSender.MSG_STOP_WAIT_RECONNECT);
+                return false;
+            }
+
+            if (mIsNetworkChanged) {
+                // 新しいネットワークなら接続できる見込みがあるので、待たずに接続し直す
+                mIsNetworkChanged = false;
+                Log.i(C.TAG, "Network changed while waiting.");
+                break;
+            }
+
+            final long remain = waitTime - System.currentTimeMillis();
+            if (remain <= 0) {
+                break;
+            }
+            try {
+                Thread.sleep(Math.min(remain, 100));
+            } catch (InterruptedException e) {
+                Log.w(C.TAG, "Interrupted wait to recoonect.", e);
+                throw e;
+            }
+        }
+
+        Log.i(C.TAG, "Reconnect.");
+        return true;
+    }
+}
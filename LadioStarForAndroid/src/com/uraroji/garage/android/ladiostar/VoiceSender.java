@@ -22,33 +22,39 @@
 
 package com.uraroji.garage.android.ladiostar;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
 import android.os.Build;
-import android.os.Handler;
 import android.util.Log;
 
-import com.uraroji.garage.android.ladiostar.util.ByteRingBuffer;
-import com.uraroji.garage.android.ladiostar.util.ShortRingBuffer;
-import com.uraroji.garage.android.lame.Encoder;
-import com.uraroji.garage.android.lame.Lame;
+import com.uraroji.garage.android.ladiostar.util.BacklogDrainer;
+import com.uraroji.garage.android.ladiostar.util.ByteRateMeter;
+import com.uraroji.garage.android.ladiostar.util.ConnectivityWatcher;
+import com.uraroji.garage.android.ladiostar.util.DestinationStats;
+import com.uraroji.garage.android.ladiostar.util.EventBus;
+import com.uraroji.garage.android.ladiostar.util.LatencyHistogram;
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameParser;
+import com.uraroji.garage.android.ladiostar.util.Mp3Link;
+import com.uraroji.garage.android.ladiostar.util.PcmLink;
+import com.uraroji.garage.android.ladiostar.util.PcmOverflowHandler;
+import com.uraroji.garage.android.ladiostar.util.PipelineGraph;
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+import com.uraroji.garage.android.ladiostar.util.SendScheduler;
+import com.uraroji.garage.android.ladiostar.util.ServerDirectory;
+import com.uraroji.garage.android.ladiostar.util.ServerEntry;
+import com.uraroji.garage.android.ladiostar.util.ServerProber;
+import com.uraroji.garage.android.ladiostar.util.ServerSelector;
+import com.uraroji.garage.android.ladiostar.util.StateMachine;
+import com.uraroji.garage.android.ladiostar.util.StreamServer;
+import com.uraroji.garage.android.ladiostar.util.UpdateThrottle;
+import com.uraroji.garage.android.ladiostar.util.UplinkEstimator;
+import com.uraroji.garage.android.ladiostar.util.UplinkHistory;
 import com.uraroji.garage.android.netladiolib.Server;
 import com.uraroji.garage.android.netladiolib.ServersInfo;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
-import java.net.Socket;
-import java.net.UnknownHostException;
-import java.nio.BufferOverflowException;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * マイクから取得した音声をMP3変換し、サーバに送信する 別スレッドでマイクからの録音、MP3への変換、音声のサーバへの送信を行う
@@ -242,6 +248,35 @@ public class VoiceSender {
      */
     public static final int MSG_STOP_WAIT_RECONNECT = 24;
 
+    /**
+     * PCMバッファがオーバーフローしたが、配信設定のオーバーフロー時の動作に従って録音を継続した
+     * 
+     * {@link BroadcastConfig#getPcmOverflowPolicy()} が
+     * {@link PcmOverflowHandler#POLICY_ABORT} 以外の場合に発行される。<br />
+     * オーバーフローが続いている間は {@link C#PCM_OVERFLOW_NOTIFY_INTERVAL_MSEC} 毎に発行される。<br />
+     * 処理は終了しない。
+     * 
+     * @see VoiceSender#getPcmOverflowHandler()
+     */
+    public static final int MSG_PCM_BUFFER_OVERFLOW_DEGRADED = 25;
+
+    /**
+     * 配信中に配信設定を変更した
+     * 
+     * {@link VoiceSender#reconfigure(BroadcastConfig)} で変更した設定を反映した場合に発行される。<br />
+     * 録音とエンコーダを入れ替える場合は、新しいエンコーダでエンコードを始めた時点で発行される。<br />
+     * 処理は終了しない。
+     */
+    public static final int MSG_RECONFIGURED = 26;
+
+    /**
+     * 停止した後に、送信していないデータを送り切った
+     * 
+     * {@link VoiceSender#stop()} を呼んだ後、録音済みのデータを期限内にすべて送信できた場合に発行される。<br />
+     * この後に {@link VoiceSender#MSG_SEND_STREAM_ENDED} が発行される。
+     */
+    public static final int MSG_DRAIN_COMPLETED = 27;
+
     /**
      * 音の大きさの通知
      */
@@ -273,30 +308,178 @@ public class VoiceSender {
     private static String sUserAgent;
 
     /**
-     * PCMバッファ（エンコード待ちデータ）
+     * PCMバッファ（エンコード待ちデータ）<br />
+     * 録音スレッドからエンコードスレッドにPCMデータを渡す。あふれた場合は配信設定のオーバーフロー処理に従う。<br />
+     * 一度も録音を開始していない場合はnull。
+     */
+    private volatile PcmLink mPcmLink;
+
+    /**
+     * MP3リンク（送信待ちデータ）<br />
+     * エンコードステージから送信・中継ステージとLAN内のサーバに、MP3のフレーム単位でデータを渡す。<br />
+     * 一度も配信を開始していない場合はnull。
+     */
+    private volatile Mp3Link mMp3Link;
+
+    /**
+     * 送信したデータ量の計測<br />
+     * 再接続しても引き継ぐ。
+     */
+    private volatile ByteRateMeter mSentByteRateMeter;
+
+    /**
+     * 切断してから再接続するまでにかかった時間の分布<br />
+     * 再接続しても引き継ぐ。
+     */
+    private volatile LatencyHistogram mReconnectHistogram;
+
+    /**
+     * ねとらじへの送信の統計<br />
+     * 再接続しても引き継ぐ。
+     */
+    private volatile DestinationStats mSendStats;
+
+    /**
+     * ねとらじへの送信をまとめるタイミングの決定<br />
+     * 送信のまとめ方の設定が変わった場合は作り直す。
+     */
+    private volatile SendScheduler mSendScheduler;
+
+    /**
+     * 再接続するまでにたまったデータの送り方<br />
+     * 送り方の設定が変わった場合は作り直す。
+     */
+    private volatile BacklogDrainer mBacklogDrainer;
+
+    /**
+     * ねとらじの配信サーバ情報リストのキャッシュ
      */
-    private ShortRingBuffer mPcmBuffer;
+    private volatile ServerDirectory mServerDirectory = createServerDirectory(null);
 
     /**
-     * PCMバッファのロックオブジェクト
+     * ネットワークの種類ごとの、過去に配信した際の上りの回線の速さ
      */
-    private final Object mPcmBufferLock = new Object();
+    private volatile UplinkHistory mUplinkHistory = new UplinkHistory(null);
 
     /**
-     * MP3バッファ（送信待ちデータ）
+     * 接続しているネットワークの監視。<br />
+     * 回線の速さをネットワークの種類ごとに記録するのと、ネットワークが切り替わった際に接続し直すのに使う。
+     * 監視していない場合はnull。
      */
-    private ByteRingBuffer mMp3Buffer;
+    private volatile ConnectivityWatcher mConnectivityWatcher;
+
+    /**
+     * ネットワークが切り替わったことを送信ステージに伝える
+     */
+    private final ConnectivityWatcher.Listener mConnectivityListener = new ConnectivityWatcher.Listener() {
+
+        @Override
+        public void onDefaultNetworkChanged(String networkType) {
+            Log.i(C.TAG, "Default network changed to " + networkType + ".");
+            final SendStage sendStage = mSendStage;
+            if (sendStage != null) {
+                sendStage.onNetworkChanged();
+            }
+        }
+    };
 
     /**
-     * MP3バッファのロックオブジェクト
+     * 上りの回線の速さの推定。<br />
+     * ねとらじへの送信から推定する。
      */
-    private final Object mMp3BufferLock = new Object();
+    private volatile UplinkEstimator mUplinkEstimator;
+
+    /**
+     * 停止した後に、送信していないデータを送り切るまで待つ最大の時間（ミリ秒）。<br />
+     * 0の場合は送り切らずに停止する。{@link #stop()}で設定する。
+     */
+    private volatile int mDrainMsec = 0;
+
+    /**
+     * 配信サーバの選択。<br />
+     * 接続の成否を記録するので、再接続しても引き継ぐ。
+     */
+    private final ServerSelector mServerSelector = new ServerSelector(new ServerProber(
+            C.SERVER_PROBE_TIMEOUT_MSEC), C.SERVER_CONGESTION_WEIGHT_MSEC,
+            C.SERVER_FAILURE_PENALTY_MSEC);
     
     /**
      * 配信状態
      */
     public BroadcastState mBroadcastState = new BroadcastState();
 
+    /**
+     * 録音・エンコード・送信のステージの管理。<br />
+     * すべてのステージが録音やエンコーダを解放して終了した時点で、配信状態を停止にする。
+     */
+    private final PipelineGraph mGraph = new PipelineGraph();
+
+    /**
+     * 停止中に開始を指示された配信の配信設定。<br />
+     * 前回の配信のスレッドがすべて終了した時点で開始する。開始を指示されていない場合はnull。
+     */
+    private BroadcastConfig mPendingStartConfig;
+
+    /**
+     * mPendingStartConfigのロックオブジェクト
+     */
+    private final Object mPendingStartLock = new Object();
+
+    /**
+     * 停止してから次の配信を開始するまでの時間の分布
+     */
+    private final LatencyHistogram mRestartHistogram = new LatencyHistogram(
+            C.RECONNECT_HISTOGRAM_BOUNDS_MSEC);
+
+    /**
+     * 現在の配信設定<br />
+     * {@link #reconfigure(BroadcastConfig)} により配信中に変わることがある。
+     */
+    private volatile BroadcastConfig mCurrentBroadcastConfig;
+
+    /**
+     * 録音ステージ
+     */
+    private volatile RecordStage mRecordStage;
+
+    /**
+     * エンコードステージ
+     */
+    private volatile EncodeStage mEncodeStage;
+
+    /**
+     * 送信ステージ
+     */
+    private volatile SendStage mSendStage;
+
+    /**
+     * ねとらじ以外の配信先への中継ステージのリスト<br />
+     * 入れ替える場合はリストごと入れ替える。
+     */
+    private volatile List<RelayStage> mRelayStages = Collections.emptyList();
+
+    /**
+     * LAN内の聴取者に直接配信するサーバ<br />
+     * LAN内に配信しない場合はnull。
+     */
+    private volatile StreamServer mStreamServer;
+
+    /**
+     * PCMバッファに書き込まれている録音データのチャンネル数
+     */
+    private volatile int mPcmChannel;
+
+    /**
+     * {@link #reconfigure(BroadcastConfig)}のロックオブジェクト
+     */
+    private final Object mReconfigureLock = new Object();
+
+    /**
+     * 番組のタイトルと説明の変更をまとめて、接続し直す頻度を抑える
+     */
+    private final UpdateThrottle mChannelInfoThrottle = new UpdateThrottle(
+            C.CHANNEL_INFO_UPDATE_INTERVAL_MSEC);
+
     /**
      * 再接続するか
      */
@@ -337,1124 +520,749 @@ public class VoiceSender {
     /**
      * 録音を開始した時刻。<br />
      * {@link System#currentTimeMillis()}で取得した値を格納する。<br />
-     * 録音開始から配信開始までの待ち時間計測に使用。
+     * 配信設定の変更により録音をやり直したかの判定に使用。
      */
     private volatile long mRecStartTime = -1;
 
     /**
-     * 配信の状態変化を通知するハンドラのリスト
+     * {@link #start(BroadcastConfig)}を実行してから、ねとらじサーバに最初の音声データを送るまでの時間（ミリ秒）<br />
+     * まだ送っていない場合は-1。
+     */
+    private volatile long mTimeToFirstByte = -1;
+
+    /**
+     * 録音・エンコード・送信のスレッドから、イベントを受け取り側のスレッドに届ける。<br />
+     * イベントは使い回すので、通知のたびにメモリを確保しない。
      */
-    private ArrayList<Handler> mBroadcastStateChangedHandlerList = new ArrayList<Handler>();;
+    private final EventBus mEventBus = new EventBus();
 
     /**
-     * {@link VoiceSender#mBroadcastStateChangedHandlerList}のロックオブジェクト
+     * 動作の状態変化を通知するイベント。<br />
+     * エラーなどはひとつずつ知らせる必要があるので、まとめない。
      */
-    private final Object mBroadcastStateChangedHandlerListLock = new Object();
+    private final EventBus.Type<MessageEvent> mMessageEventType = mEventBus.defineType(
+            "Message", new EventBus.Factory<MessageEvent>() {
+
+                @Override
+                public MessageEvent create() {
+                    return new MessageEvent();
+                }
+            }, false, C.EVENT_POOL_SIZE);
 
     /**
-     * 音の大きさを通知するハンドラのリスト
+     * 配信状態の変化を通知するイベント。<br />
+     * 届ける前に次の変化があった場合は、最新の配信状態だけを届ける。
      */
-    private ArrayList<Handler> mLoudnessHandlerList = new ArrayList<Handler>();;
+    private final EventBus.Type<BroadcastStateEvent> mBroadcastStateEventType = mEventBus
+            .defineType("BroadcastState", new EventBus.Factory<BroadcastStateEvent>() {
+
+                @Override
+                public BroadcastStateEvent create() {
+                    return new BroadcastStateEvent();
+                }
+            }, true, C.EVENT_POOL_SIZE);
 
     /**
-     * {@link VoiceSender#mLoudnessHandlerList}のロックオブジェクト
+     * 音の大きさを通知するイベント。<br />
+     * 届ける前に次の値があった場合は、最新の値だけを届ける。
      */
-    private final Object mLoudnessHandlerListLock = new Object();
+    private final EventBus.Type<LoudnessEvent> mLoudnessEventType = mEventBus.defineType(
+            "Loudness", new EventBus.Factory<LoudnessEvent>() {
+
+                @Override
+                public LoudnessEvent create() {
+                    return new LoudnessEvent();
+                }
+            }, true, C.EVENT_POOL_SIZE);
 
     /**
      * コンストラクタ
      */
     public VoiceSender() {
+        mGraph.getLifecycle().setListener(new PipelineLifecycle.Listener() {
+
+            @Override
+            public void onTerminated() {
+                // 録音・エンコード・送信のすべてのステージが終了したので、次の配信を開始できる
+                final BroadcastConfig pendingStartConfig;
+                synchronized (mPendingStartLock) {
+                    mBroadcastState.compareAndSet(BROADCAST_STATE_STOPPING,
+                            BROADCAST_STATE_STOPPED);
+                    pendingStartConfig = mPendingStartConfig;
+                    mPendingStartConfig = null;
+                }
+                Log.i(C.TAG, "Pipeline terminated. " + mGraph);
+
+                // 停止中に開始を指示されていた場合は、ここで開始する
+                if (pendingStartConfig != null) {
+                    Log.i(C.TAG, "Start pending broadcast.");
+                    startPipeline(pendingStartConfig);
+                }
+            }
+        });
+        mBroadcastState.setTransitionListener(new StateMachine.TransitionListener() {
+
+            @Override
+            public void onTransition(int from, int to) {
+                if (mEventBus.hasSubscribers(mBroadcastStateEventType)) {
+                    final BroadcastStateEvent event = mEventBus.obtain(mBroadcastStateEventType);
+                    event.mBroadcastState = to;
+                    mEventBus.post(event);
+                }
+            }
+        });
     }
 
     /**
-     * 開始する
+     * 配信サーバ情報リストのキャッシュを保存するファイルを設定する。<br />
+     * 設定するとサービスを再起動しても、前回取得した配信サーバ情報リストをネットワークを待たずに使える。
+     * 
+     * @param cacheFile 配信サーバ情報リストのキャッシュを保存するファイル
+     */
+    public final void setServerDirectoryCacheFile(File cacheFile) {
+        mServerDirectory = createServerDirectory(cacheFile);
+    }
+
+    /**
+     * ネットワークの種類ごとの回線の速さを保存するファイルを設定する。<br />
+     * 設定するとサービスを再起動しても、過去に配信した際の回線の速さからビットレートを選べる。
+     * 
+     * @param historyFile 回線の速さを保存するファイル
+     */
+    public final void setUplinkHistoryFile(File historyFile) {
+        mUplinkHistory = new UplinkHistory(historyFile);
+    }
+
+    /**
+     * 接続しているネットワークの監視を設定する。<br />
+     * 設定すると、配信中にネットワークが切り替わった際に、古いネットワークの接続がタイムアウトするのを待たずに新しいネットワークで接続し直す。
+     * 
+     * @param connectivityWatcher ネットワークの監視。監視しない場合はnull。
+     */
+    public final void setConnectivityWatcher(ConnectivityWatcher connectivityWatcher) {
+        final ConnectivityWatcher oldWatcher = mConnectivityWatcher;
+        if (oldWatcher != null) {
+            oldWatcher.removeListener(mConnectivityListener);
+        }
+        mConnectivityWatcher = connectivityWatcher;
+        if (connectivityWatcher != null) {
+            connectivityWatcher.addListener(mConnectivityListener);
+        }
+    }
+
+    /**
+     * 接続しているネットワークの種類を取得する
+     * 
+     * @return ネットワークの種類。分からない場合はnull。
+     */
+    private String getNetworkType() {
+        final ConnectivityWatcher connectivityWatcher = mConnectivityWatcher;
+        return (connectivityWatcher != null) ? connectivityWatcher.getNetworkType() : null;
+    }
+
+    /**
+     * ビットレートの自動調整が有効な場合、過去に同じ種類のネットワークで配信した際の回線の速さで送れるビットレートに下げる
      * 
      * @param broadcastConfig 配信設定
-     * @throws IllegalArgumentException broadcastConfigにnullを指定した
+     * @return ビットレートを調整した配信設定。調整しない場合はbroadcastConfigをそのまま返す。
+     */
+    private BroadcastConfig applyUplinkHistory(BroadcastConfig broadcastConfig) {
+        final String networkType = getNetworkType();
+        if (!broadcastConfig.isAudioBrateAuto() || networkType == null) {
+            return broadcastConfig;
+        }
+        final long capacity = mUplinkHistory.get(networkType);
+        final int brate = UplinkHistory.chooseBitrate(capacity, C.AUDIO_BITRATES,
+                broadcastConfig.getAudioBrate(), C.UPLINK_BITRATE_HEADROOM);
+        if (brate == broadcastConfig.getAudioBrate()) {
+            return broadcastConfig;
+        }
+        Log.i(C.TAG, "Lower bitrate to " + brate + " kbps for " + networkType + " ("
+                + capacity + " bytes/sec).");
+        return new BroadcastConfig.Builder(broadcastConfig).audioBrate(brate).create();
+    }
+
+    /**
+     * ねとらじの配信サーバ情報リストのキャッシュを生成する
+     * 
+     * @param cacheFile キャッシュを保存するファイル。保存しない場合はnull。
+     * @return 配信サーバ情報リストのキャッシュ
+     */
+    private static ServerDirectory createServerDirectory(File cacheFile) {
+        return new ServerDirectory(new ServerDirectory.Fetcher() {
+
+            @Override
+            public List<ServerEntry> fetch() throws IOException {
+                final ServersInfo serversInfo = new ServersInfo();
+                serversInfo.fetchServerInfo();
+
+                final Server[] servers = serversInfo.getServers();
+                final ArrayList<ServerEntry> result = new ArrayList<ServerEntry>(servers.length);
+                for (Server server : servers) {
+                    if (server != null && server.getServerName() != null) {
+                        result.add(new ServerEntry(server.getServerName().getName(), server
+                                .getServerName().getPort(), server.getCongestionDegree()));
+                    }
+                }
+                return result;
+            }
+        }, C.SERVER_DIRECTORY_TTL_MSEC, C.SERVER_DIRECTORY_MAX_STALE_MSEC, cacheFile);
+    }
+
+    /**
+     * 開始する<br />
+     * <br />
+     * 停止中の場合は待たずに戻る。前回の配信のスレッドがすべて終了した時点で、
+     * 終了させたスレッド上で開始する。
+     * 
+     * @param requestedConfig 配信設定。<br />
+     *            ビットレートの自動調整が有効な場合は、ビットレートを下げて配信することがある。
+     * @throws IllegalArgumentException requestedConfigにnullを指定した
      */
-    public final void start(final BroadcastConfig broadcastConfig) {
-        if (broadcastConfig == null) {
+    public final void start(final BroadcastConfig requestedConfig) {
+        if (requestedConfig == null) {
             throw new IllegalArgumentException("broadcastConfig must be not null.");
         }
+        final BroadcastConfig broadcastConfig = applyUplinkHistory(requestedConfig);
+
+        // 停止中の場合は、前回の配信のスレッドが終了してから開始する
+        synchronized (mPendingStartLock) {
+            if (mBroadcastState.get() == BROADCAST_STATE_STOPPING) {
+                mPendingStartConfig = broadcastConfig;
+                final long stoppingMs = mGraph.getLifecycle().getStoppingMs();
+                if (stoppingMs > C.TEARDOWN_TIMEOUT_MSEC) {
+                    Log.w(C.TAG, "Previous broadcast has not finished in " + stoppingMs
+                            + " msec. " + mGraph);
+                } else {
+                    Log.i(C.TAG, "Start after previous broadcast finished.");
+                }
+                return;
+            }
+        }
+
+        startPipeline(broadcastConfig);
+    }
 
-        // 既に動作中の場合は何もしない
-        if (mBroadcastState.get() != BROADCAST_STATE_STOPPED) {
+    /**
+     * 録音・エンコード・送信のスレッドを開始する
+     * 
+     * @param broadcastConfig 配信設定
+     */
+    private void startPipeline(BroadcastConfig broadcastConfig) {
+        // 既に動作中の場合は何もしない。動作の開始フラグを立てる。
+        if (!mBroadcastState.compareAndSet(BROADCAST_STATE_STOPPED, BROADCAST_STATE_CONNECTING)) {
             return;
         }
+        mGraph.begin();
+        final long restartLatencyMs = mGraph.getLifecycle().getRestartLatencyMs();
+        if (restartLatencyMs >= 0) {
+            mRestartHistogram.record(restartLatencyMs);
+            Log.i(C.TAG, "Restarted in " + restartLatencyMs + " msec. "
+                    + mRestartHistogram);
+        }
 
         /*
          * PCMバッファ（エンコード待ちバッファ）を生成する PCMバッファサイズは指定の秒数分だけ確保する。
          * サンプリングレート * チャンネル数 * 秒数でバッファサイズを計算する。
          */
-        synchronized (mPcmBufferLock) {
-            mPcmBuffer = new ShortRingBuffer(broadcastConfig.getAudioSampleRate()
-                    * broadcastConfig.getAudioChannel() * C.PCM_BUFFER_SEC);
-        }
-        Log.d(C.TAG, "PCM buffersize is " + String.valueOf(mPcmBuffer.capacity() / 2)
+        mPcmLink = new PcmLink(getPcmBufferSize(broadcastConfig), createPcmOverflowHandler(
+                broadcastConfig));
+        Log.d(C.TAG, "PCM buffersize is " + String.valueOf(mPcmLink.capacity() / 2)
                 + " bytes.");
 
         /*
-         * MP3バッファ（送信待ちバッファ）を生成する MP3バッファサイズは指定の秒数分だけ確保する。
+         * MP3リンク（送信待ちバッファ）を生成する MP3バッファサイズは指定の秒数分だけ確保する。
          */
-        synchronized (mMp3BufferLock) {
-            mMp3Buffer = new ByteRingBuffer(
-                    ((broadcastConfig.getAudioBrate() / 8) * 1024) * C.MP3_BUFFER_SEC);
-        }
-        Log.d(C.TAG, "MP3 buffersize is " + String.valueOf(mMp3Buffer.capacity())
-                + " bytes.");
-
-        mBroadcastState.set(BROADCAST_STATE_CONNECTING); // 動作の開始フラグを立てる
+        final Mp3Link mp3Link = new Mp3Link(getMp3BufferSize(broadcastConfig),
+                Mp3FrameParser.MAX_FRAMES_PER_SEC * C.MP3_BUFFER_SEC);
+        mMp3Link = mp3Link;
+        Log.d(C.TAG, "MP3 buffersize is " + String.valueOf(mp3Link.capacity()) + " bytes.");
 
         mStartTime = System.currentTimeMillis(); // 開始時刻を設定
-        
-        (new RecThread(broadcastConfig)).start();
-        (new EncodeThread(broadcastConfig)).start();
-        (new SendDataThread(broadcastConfig)).start();
+        mRecStartTime = -1;
+        mTimeToFirstByte = -1;
+        mSentByteRateMeter = new ByteRateMeter(C.SENT_BYTE_RATE_WINDOW_SEC);
+        mReconnectHistogram = new LatencyHistogram(C.RECONNECT_HISTOGRAM_BOUNDS_MSEC);
+        mSendStats = new DestinationStats("netladio");
+        mSendScheduler = createSendScheduler(broadcastConfig);
+        mBacklogDrainer = createBacklogDrainer(broadcastConfig);
+        mUplinkEstimator = new UplinkEstimator(C.UPLINK_ESTIMATE_ALPHA,
+                C.UPLINK_ESTIMATE_INTERVAL_MSEC, C.UPLINK_ESTIMATE_GROWTH_TOLERANCE_BYTES);
+        mDrainMsec = 0;
+        mCurrentBroadcastConfig = broadcastConfig;
+
+        // 送信ステージはMP3リンクの読み込み位置を生成時に決めるので、エンコードより先に生成する
+        mSendStage = new SendStage(this, mGraph.getLifecycle(), broadcastConfig, mp3Link);
+        startRecordStage(broadcastConfig);
+        mEncodeStage = new EncodeStage(this, mGraph.getLifecycle(), broadcastConfig, mPcmLink,
+                mp3Link);
+        mGraph.start(mEncodeStage);
+        mGraph.start(mSendStage);
+        startRelayStages(broadcastConfig);
+        startStreamServer(broadcastConfig);
+        // すべてのステージを開始した。これ以降、すべてのステージが終了した時点で停止となる。
+        mGraph.ready();
     }
 
     /**
-     * 録音スレッド
+     * 配信中に配信設定を変更する<br />
+     * <br />
+     * 変更された設定に関係する処理だけを入れ替える。<br />
+     * サンプリングレートが変わった場合のみ録音をやり直す。
+     * ビットレート・チャンネル数・エンコード品質が変わった場合は、エンコーダをフラッシュして作り直す。
+     * ねとらじサーバに通知する情報が変わった場合は、録音開始からの待ち時間を待たずに接続し直す。
+     * それ以外の場合は接続を維持する。<br />
+     * 録音とエンコーダの入れ替えはエンコードステージが行うので、入れ替えを待たずに戻る。
+     * 反映した時点で{@link #MSG_RECONFIGURED}を通知する。<br />
+     * 配信中でない場合は何もしない。
+     * 
+     * @param requestedConfig 変更後の配信設定
+     * @throws IllegalArgumentException requestedConfigにnullを指定した
      */
-    private class RecThread extends Thread {
-
-        /**
-         * 配信設定
-         */
-        private BroadcastConfig mBroadcastConfig;
-
-        /**
-         * コンストラクタ
-         * 
-         * @param broadcastConfig 配信設定
-         */
-        public RecThread(BroadcastConfig broadcastConfig) {
-            mBroadcastConfig = broadcastConfig;
-            mLoudnessTotalLengthLimit = (mBroadcastConfig.getAudioSampleRate()
-                    * mBroadcastConfig.getAudioChannel()) / C.LOUDNESS_NOTIFY_TIMES_PER_SEC;
-
-            android.os.Process
-                    .setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+    public final void reconfigure(final BroadcastConfig requestedConfig) {
+        if (requestedConfig == null) {
+            throw new IllegalArgumentException("broadcastConfig must be not null.");
         }
+        // 開始時と同じようにビットレートを調整しないと、エンコードの設定が変わったとみなしてしまう
+        final BroadcastConfig broadcastConfig = applyUplinkHistory(requestedConfig);
 
-        @Override
-        public void run() {
-            Log.d(C.TAG, "Start Record thread.");
+        synchronized (mReconfigureLock) {
+            final BroadcastConfig oldConfig = mCurrentBroadcastConfig;
+            // 配信中でない場合は何もしない
+            if (oldConfig == null || !mBroadcastState.isConnectingOrBroadcasting()) {
+                return;
+            }
 
-            try {
-                final int recBufferSize = getRecBufferSize();
+            final boolean isRecChanged = oldConfig.getAudioSampleRate() != broadcastConfig
+                    .getAudioSampleRate();
+            final boolean isEncodeChanged = isRecChanged
+                    || oldConfig.getAudioBrate() != broadcastConfig.getAudioBrate()
+                    || oldConfig.getAudioChannel() != broadcastConfig.getAudioChannel()
+                    || oldConfig.getAudioMp3EncodeQuality() != broadcastConfig
+                            .getAudioMp3EncodeQuality()
+                    || oldConfig.getAudioEncodeProfile() != broadcastConfig
+                            .getAudioEncodeProfile();
+            final boolean isServerChanged = isServerParameterChanged(oldConfig, broadcastConfig);
+            final boolean isPcmOverflowPolicyChanged = oldConfig.getPcmOverflowPolicy() != broadcastConfig
+                    .getPcmOverflowPolicy();
+            // 予備の接続は送信ステージが配信設定を見て用意するので、配信設定を入れ替えるだけでよい
+            final boolean isHotStandbyChanged = oldConfig.isChannelHotStandby() != broadcastConfig
+                    .isChannelHotStandby();
+            final boolean isRelayChanged = !oldConfig.getRelayDestinations().equals(
+                    broadcastConfig.getRelayDestinations());
+            final boolean isLocalServerChanged = oldConfig.isLocalServer() != broadcastConfig
+                    .isLocalServer();
+            // 送信ステージは送信のたびに送信スケジューラを見るので、入れ替えるだけでよい
+            final boolean isSendScheduleChanged = isEncodeChanged
+                    || oldConfig.getSendBatchMsec() != broadcastConfig.getSendBatchMsec()
+                    || oldConfig.isSendPacing() != broadcastConfig.isSendPacing();
+            final boolean isBacklogPolicyChanged = isEncodeChanged
+                    || oldConfig.getAudioPrebufferMsec() != broadcastConfig
+                            .getAudioPrebufferMsec()
+                    || oldConfig.getSendBacklogPolicy() != broadcastConfig.getSendBacklogPolicy()
+                    || oldConfig.getSendCatchUpPercent() != broadcastConfig
+                            .getSendCatchUpPercent();
+            // 何も変わっていない場合は何もしない
+            if (!isEncodeChanged && !isServerChanged && !isPcmOverflowPolicyChanged
+                    && !isHotStandbyChanged && !isRelayChanged && !isLocalServerChanged
+                    && !isSendScheduleChanged && !isBacklogPolicyChanged) {
+                return;
+            }
 
-                // バッファサイズが取得できない。サンプリングレート等の設定を端末がサポートしていない可能性がある。
-                if (recBufferSize < 0) {
-                    mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                    notifyRecStateChangedHandle(MSG_ERROR_NOT_SUPPORTED_RECORDING_PARAMETERS); // エラー名を変える
-                    return;
-                }
+            Log.i(C.TAG, "Reconfigure broadcast.(rec=" + isRecChanged + ", encode="
+                    + isEncodeChanged + ", server=" + isServerChanged + ")");
 
-                Log.d(C.TAG, "Recording buffersize is " + String.valueOf(recBufferSize) + " bytes.");
-                AudioRecord audioRecord = new AudioRecord(
-                        MediaRecorder.AudioSource.MIC,
-                        mBroadcastConfig.getAudioSampleRate(),
-                        getAudioChannelConfig(mBroadcastConfig.getAudioChannel()),
-                        AudioFormat.ENCODING_PCM_16BIT, recBufferSize);
-
-                try {
-                    try {
-                        audioRecord.startRecording(); // 録音を開始する
-                    } catch (IllegalStateException e) {
-                        Log.w(C.TAG, "IllegalStateException occurred when audio record start.", e);
-                        mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                        // 録音の開始に失敗した
-                        notifyRecStateChangedHandle(MSG_ERROR_REC_START);
-                        return;
-                    }
+            mCurrentBroadcastConfig = broadcastConfig;
 
-                    mRecStartTime = System.currentTimeMillis(); // 録音を開始した時刻を記憶する
-
-                    // 録音が開始した
-                    notifyRecStateChangedHandle(MSG_REC_STARTED);
-
-                    try {
-                        int result = copyFormAudioRecordToRecBuffer(audioRecord);
-                        if (result < 0) {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                            // 録音ができない
-                            notifyRecStateChangedHandle(MSG_ERROR_AUDIO_RECORD);
-                            return;
-                        }
-                    } catch (BufferOverflowException e) {
-                        Log.w(C.TAG,
-                                "MP3 encoding is slow, it seems to have PCM buffer overflowed.");
-                        mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                        // 録音に対してエンコードが遅いなどの理由でバッファオーバーフローした
-                        notifyRecStateChangedHandle(MSG_ERROR_PCM_BUFFER_OVERFLOW);
-                        return;
-                    }
-                } finally {
-                    audioRecord.stop(); // 録音を停止する
-                    audioRecord.release();
-                    mRecStartTime = -1;
-                }
-            } finally {
-                Log.d(C.TAG, "Finish Record thread.");
+            if (getMp3BufferSize(oldConfig) != getMp3BufferSize(broadcastConfig)) {
+                resizeMp3Link(broadcastConfig);
             }
-        }
 
-        /**
-         * オーディオのチャンネル数からふさわしいChannelConfigを返す
-         * 
-         * @param channel オーディオのチャンネル数
-         * @return ChannelConfig
-         */
-        private int getAudioChannelConfig(int channel) {
-            switch (channel) {
-                case 1:
-                    return AudioFormat.CHANNEL_IN_MONO;
-                case 2:
-                    return AudioFormat.CHANNEL_IN_STEREO;
-                default:
-                    throw new IllegalArgumentException("Unknown channel num.");
+            if (isSendScheduleChanged) {
+                mSendScheduler = createSendScheduler(broadcastConfig);
             }
-        }
-
-        /**
-         * 録音バッファのサイズを取得する
-         * 
-         * @return 録音バッファのサイズ。0未満の場合はOSからバッファサイズが取得できない。
-         */
-        private int getRecBufferSize() {
-            // 録音に最低限必要なバッファサイズ
-            final int recBufferSizeMin = AudioRecord.getMinBufferSize(
-                    mBroadcastConfig.getAudioSampleRate(),
-                    getAudioChannelConfig(mBroadcastConfig.getAudioChannel()),
-                    AudioFormat.ENCODING_PCM_16BIT);
-            // バッファサイズが取得できない。サンプリングレート等の設定を端末がサポートしていない可能性がある。
-            if (recBufferSizeMin < 0) {
-                return recBufferSizeMin;
+            if (isBacklogPolicyChanged) {
+                mBacklogDrainer = createBacklogDrainer(broadcastConfig);
             }
 
-            // 録音バッファサイズ。指定の秒数分だけ確保する。
-            final int recBufferSize = (int) (mBroadcastConfig.getAudioSampleRate()
-                    * mBroadcastConfig.getAudioChannel() * 2 * C.REC_BUFFER_SEC);
-
-            return Math.max(recBufferSizeMin, recBufferSize);
-        }
-        
-        /**
-         * AudioRecordからデータを読み込みPCMバッファ{@link #mPcmBuffer}に書き込む
-         * 
-         * @param audioRecord AudioRecord
-         * @return 0:成功 -1:録音ができない
-         */
-        private int copyFormAudioRecordToRecBuffer(AudioRecord audioRecord) {
-            int readLength = 0;
-            int availableDataSize = 0;
-
-            final int readRecBufferSize = (int) (mBroadcastConfig.getAudioSampleRate()
-                    * mBroadcastConfig.getAudioChannel() * (C.READ_REC_BUFFER_MSEC / 1000f));
-            Log.d(C.TAG, "Read rec buffersize is " + String.valueOf(readRecBufferSize / 2)
-                    + " bytes.");
-            short[] readRecBuffer = new short[readRecBufferSize];
-
-            try {
-                while (mBroadcastState.isConnectingOrBroadcasting()) {
-                    readLength = audioRecord.read(readRecBuffer, 0, readRecBuffer.length);
-                    if (readLength < 0) {
-                        return -1;
-                    }
-                    // データが読み込めなかった場合は何もしない
-                    else if (readLength == 0) {
-                        ;
-                    }
-                    // データが入っている場合
-                    else {
-                        // 音声のボリュームを調整する
-                        changeVolume(readRecBuffer, readLength);
-
-                        notifyLoudness(readRecBuffer, readLength);
-
-                        synchronized (mPcmBufferLock) {
-                            // バッファに書き込む
-                            mPcmBuffer.put(readRecBuffer, 0, readLength);
-                            availableDataSize = mPcmBuffer.getAvailable();
-                            mPcmBufferLock.notifyAll();
-                            if (C.LOCAL_LOG) {
-                                Log.v(C.TAG, "Notify to write PCM buffer.");
-                            }
-                        }
-                        if (C.LOCAL_LOG) {
-                            Log.v(C.TAG,
-                                    "Wrote PCM buffer(" + String.valueOf(readLength / 2)
-                                            + " bytes). Available buffersize is "
-                                            + String.valueOf(availableDataSize) + " bytes.");
-                        }
-                    }
-                }
-            } finally {
-                synchronized (mPcmBufferLock) {
-                    mPcmBufferLock.notifyAll();
+            // 録音とエンコーダの入れ替えはエンコードステージに任せる。
+            // 録音をやり直す場合は、ここでは録音を止めるだけにする。
+            final EncodeStage encodeStage = mEncodeStage;
+            final boolean isEncoderReplaced = isEncodeChanged && encodeStage != null;
+            if (isEncoderReplaced) {
+                final RecordStage recordStage = isRecChanged ? mRecordStage : null;
+                if (recordStage != null) {
+                    recordStage.release();
                 }
+                encodeStage.requestReconfigure(broadcastConfig, recordStage);
             }
-            
-            return 0;
-        }
 
-        /**
-         * ボリュームを調整する
-         * 
-         * @param buf ボリュームを調整するPCMバッファ。ここで指定したPCMバッファを直接書き換える。
-         * @param size バッファの長さ
-         */
-        private void changeVolume(short[] buf, int size) {
-            if (isVolumeRateChanged() == true) {
-                int vi;
-                short vs;
-
-                for (int i = 0; i < size; ++i) {
-                    vi = (int) (buf[i] * mVolumeRateFloat);
-                    if (vi > Short.MAX_VALUE) {
-                        vs = Short.MAX_VALUE;
-                    } else if (vi < Short.MIN_VALUE) {
-                        vs = Short.MIN_VALUE;
-                    } else {
-                        vs = (short) vi;
+            if (!isRecChanged && isPcmOverflowPolicyChanged) {
+                mPcmLink.setOverflowHandler(createPcmOverflowHandler(broadcastConfig));
+            }
+
+            final SendStage sendStage = mSendStage;
+            if (isServerChanged && sendStage != null) {
+                sendStage.requestReconnect();
+            } else {
+                synchronized (mBroadcastingInfoLock) {
+                    if (mBroadcastingInfo != null) {
+                        mBroadcastingInfo = new BroadcastInfo(broadcastConfig,
+                                mBroadcastingInfo.getServerName(),
+                                mBroadcastingInfo.getServerPort(),
+                                mBroadcastingInfo.getStartTime());
                     }
-                    buf[i] = vs;
                 }
             }
-        }
-
-        /**
-         * 音の大きさを通知通知するまでに計測するバッファの長さ
-         */
-        private final int mLoudnessTotalLengthLimit;
-        
-        /**
-         * 録音した音の大きさの総和の2乗を格納しておくための領域
-         */
-        private double mLoudnessSquareTotal = 0;
-
-        /**
-         * {@link VoiceSender#mLoudnessSquareTotal}にため込んだ量
-         */
-        private int mLoudnessTotalLength = 0;
 
-        /**
-         * 音の大きさを通知する
-         * 
-         * @param buf PCMバッファ。
-         * @param size バッファの長さ
-         */
-        private void notifyLoudness(short[] buf, int size) {
-            final ArrayList<Handler> handerList = getLoudnessHandlerListClone();
-            if (handerList.isEmpty()) {
-                return;
+            // 中継先は、配信先が変わった場合と通知する情報が変わった場合に接続し直す
+            if (isRelayChanged || isServerChanged) {
+                stopRelayStages();
+                startRelayStages(broadcastConfig);
             }
 
-            for (int i = 0; i < size; ++i) {
-                mLoudnessSquareTotal += buf[i] * buf[i];
-                ++mLoudnessTotalLength;
-
-                // 一定量の録音バッファのRMSが計算し終わったら、音の大きさを送信する
-                if (mLoudnessTotalLength >= mLoudnessTotalLengthLimit) {
-                    final double rmsdB = 20.0 * Math.log10(Math.sqrt(mLoudnessSquareTotal / mLoudnessTotalLength));
-
-                    if (C.LOCAL_LOG) {
-                        Log.v(C.TAG, "Loudness " + rmsdB);
-                    }
-
-                    for (Handler h : handerList) {
-                        h.sendMessage(h.obtainMessage(MSG_LOUDNESS, (int)rmsdB, (int)rmsdB));
-                    }
-                    
-                    mLoudnessSquareTotal = 0;
-                    mLoudnessTotalLength = 0;
-                }
+            // LAN内の聴取者は接続したままにして、通知する情報だけを入れ替える
+            if (isLocalServerChanged) {
+                stopStreamServer();
+                startStreamServer(broadcastConfig);
+            } else if (isServerChanged) {
+                updateStreamServerInfo(broadcastConfig);
             }
-        }
 
-        /**
-         * 音の大きさを通知するハンドラーリストのクローンしたリストを取得する。 浅いクローンなので注意。
-         * 
-         * @return 音の大きさを通知するハンドラーリストのクローンしたリスト
-         */
-        @SuppressWarnings("unchecked")
-        private ArrayList<Handler> getLoudnessHandlerListClone() {
-            synchronized (mLoudnessHandlerListLock) {
-                return (ArrayList<Handler>) mLoudnessHandlerList.clone();
+            // エンコーダを入れ替える場合は、エンコードステージが入れ替えた時点で通知する
+            if (!isEncoderReplaced) {
+                notifyRecStateChangedHandle(MSG_RECONFIGURED);
             }
         }
     }
 
     /**
-     * エンコードスレッド
+     * 配信中に番組のタイトルと説明を変更する<br />
+     * <br />
+     * ねとらじサーバには番組のタイトルと説明をSOURCEのヘッダでしか通知できないので、接続し直して通知する。<br />
+     * 接続し直すのは{@link C#CHANNEL_INFO_UPDATE_INTERVAL_MSEC}に1回までとし、
+     * その間の変更はまとめて、間隔が過ぎた時点で最後の変更だけを反映する。<br />
+     * LAN内の聴取者は接続したままで、新しいタイトルを通知する。<br />
+     * 配信中でない場合は何もしない。
+     * 
+     * @param title 番組のタイトル
+     * @param description 番組の説明
      */
-    private class EncodeThread extends Thread {
-
-        /**
-         * 配信設定
-         */
-        private BroadcastConfig mBroadcastConfig;
-
-        /**
-         * コンストラクタ
-         * 
-         * @param broadcastConfig 配信設定
-         */
-        public EncodeThread(BroadcastConfig broadcastConfig) {
-            mBroadcastConfig = broadcastConfig;
-        }
-
-        @Override
-        public void run() {
-            Log.d(C.TAG, "Start Encode thread.");
-
-            Encoder encoder = null;
-            try {
-                Lame.log(C.LOCAL_LOG);
-                // Lame init
-                encoder = new Encoder.Builder(
-                        mBroadcastConfig.getAudioSampleRate(),
-                        mBroadcastConfig.getAudioChannel(),
-                        mBroadcastConfig.getAudioSampleRate(),
-                        mBroadcastConfig.getAudioBrate())
-                        .quality(mBroadcastConfig.getAudioMp3EncodeQuality())
-                        .id3tagTitle(mBroadcastConfig.getChannelTitle())
-                        .id3tagArtist(mBroadcastConfig.getChannelDjName())
-                        .id3tagYear(String.valueOf(Calendar.getInstance().get(Calendar.YEAR)))
-                        .id3tagComment(mBroadcastConfig.getChannelDescription()).create();
-                Log.d(C.TAG,
-                        "SimpleLame is initialized. (SampleRate="
-                                + String.valueOf(mBroadcastConfig.getAudioSampleRate())
-                                + ", Channel=" + String.valueOf(mBroadcastConfig.getAudioChannel())
-                                + ", BitRate=" + String.valueOf(mBroadcastConfig.getAudioBrate())
-                                + ", Quality="
-                                + String.valueOf(mBroadcastConfig.getAudioMp3EncodeQuality()) + ")");
-
-                // エンコードが開始した
-                notifyRecStateChangedHandle(MSG_ENCODE_STARTED);
-
-                int encResult = encode(encoder);
-                if (encResult < 0) {
-                    mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                    // エンコードに失敗した
-                    notifyRecStateChangedHandle(MSG_ERROR_AUDIO_ENCODE);
-                    return;
-                }
-
-                encResult = flush(encoder);
-                if (encResult < 0) {
-                    mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                    // エンコードに失敗した
-                    notifyRecStateChangedHandle(MSG_ERROR_AUDIO_ENCODE);
-                    return;
-                }
-            } catch (InterruptedException e) {
-                Log.w(C.TAG, "Interrupted wait to writing PCM bufffer.", e);
-                mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                // エンコードに失敗した
-                notifyRecStateChangedHandle(MSG_ERROR_AUDIO_ENCODE);
-            } catch (BufferOverflowException e) {
-                Log.w(C.TAG, "MP3 buffer overflowed.");
-                mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                // エンコードに対して送信が遅いなどの理由でバッファオーバーフローした
-                notifyRecStateChangedHandle(MSG_ERROR_MP3_BUFFER_OVERFLOW);
-                return;
-            } finally {
-                if (encoder != null) {
-                    encoder.close();
-                    Log.d(C.TAG, "SimpleLame is closed.");
-                }
-                synchronized (mMp3BufferLock) {
-                    mMp3BufferLock.notifyAll();
-                }
-                Log.d(C.TAG, "Finish Encode thread.");
-            }
+    public final void updateChannelInfo(final String title, final String description) {
+        // 配信中でない場合は何もしない
+        if (mCurrentBroadcastConfig == null) {
+            return;
         }
-
-        /**
-         * PCMバッファ{@link #mPcmBuffer}からデータを読み込み、エンコードしてMP3バッファ{@link #mMp3Buffer}に書き込む。<br />
-         * <br />
-         * 配信が終了するか、エラーが発生するまでループする。
-         * 
-         * @param encoder エンコーダ
-         * @return 0:成功 -1:エンコード失敗
-         * @throws InterruptedException
-         */
-        private int encode(Encoder encoder)
-                throws InterruptedException {
-            final int readBufferSize = getReadPcmBufferSize();
-            // 読み込みバッファ
-            short[] readBuffer = new short[readBufferSize];
-            Log.d(C.TAG, "Read buffersize is " + String.valueOf(readBufferSize / 2) + " bytes.");
-
-            // MP3バッファサイズ
-            final int mp3BufferSize = getMp3BufferSize(readBufferSize);
-            // MP3バッファ
-            byte[] mp3buffer = new byte[mp3BufferSize];
-            Log.d(C.TAG, "Temporary MP3 encode buffersize is " + String.valueOf(mp3BufferSize)
-                    + " bytes.");
-
-            // 読み込みサイズ
-            int readSize = 0;
-            // エンコード後のバイトサイズ
-            int encResult = 0;
-            while (mBroadcastState.isConnectingOrBroadcasting()) {
-                readSize = copyFromPcmBufferToBuffer(readBuffer);
-
-                encResult = 0;
-                if (readSize != 0) {
-                    switch (mBroadcastConfig.getAudioChannel()) {
-                        case 1: // モノラルの場合
-                            encResult = encoder.encode(readBuffer, readBuffer, readSize, mp3buffer);
-                            break;
-                        case 2: // ステレオの場合
-                            encResult = encoder.encodeBufferInterleaved(readBuffer, readSize / 2,
-                                    mp3buffer);
-                            break;
-                        default: // ここに到達することはあり得ないはずだが一応エラーとする。
-                            Log.w(C.TAG, "Failed LAME encode. PCM channels unknown.");
-                            return -1;
-                    }
-                    if (encResult < 0) {
-                        Log.w(C.TAG, "Failed LAME encode(error=" + encResult + ").");
-                        return -1;
-                    }
-                }
-                if (encResult != 0) {
-                    if (C.LOCAL_LOG) {
-                        Log.v(C.TAG, "Encoded " + String.valueOf(readSize) + " bytes PCM to "
-                                + String.valueOf(encResult) + " bytes MP3.");
-                    }
-
-                    int availableDataSize = 0;
-                    synchronized (mMp3BufferLock) {
-                        // バッファに書き込む
-                        mMp3Buffer.put(mp3buffer, 0, encResult, true);
-                        availableDataSize = mMp3Buffer.getAvailable();
-                        mMp3BufferLock.notifyAll();
-                        if (C.LOCAL_LOG) {
-                            Log.v(C.TAG, "Notify to write MP3 buffer.");
-                        }
-                    }
-                    if (C.LOCAL_LOG) {
-                        Log.v(C.TAG,
-                                "Wrote MP3 buffer(" + String.valueOf(encResult)
-                                        + " bytes). Available buffersize is "
-                                        + String.valueOf(availableDataSize) + " bytes.");
-                    }
-                }
+        mChannelInfoThrottle.submit(new Runnable() {
+            @Override
+            public void run() {
+                applyChannelInfo(title, description);
             }
-            
-            return 0;
-        }
-
-        /**
-         * PCMバッファからデータをコピーするためのバッファのサイズを取得する
-         * 
-         * @return PCMバッファからデータをコピーするためのバッファのサイズ
-         */
-        private int getReadPcmBufferSize() {
-            // 読み込みバッファサイズ。指定の秒数分だけ確保する。
-            return (mBroadcastConfig.getAudioSampleRate()
-                    * mBroadcastConfig.getAudioChannel() * 2 * C.ENCODE_PCM_BUFFER_SEC);
-        }
+        });
+    }
 
-        /**
-         * 適切なMP3バッファサイズを取得する
-         * 
-         * @param readPcmBufferSize PCMバッファからデータをコピーするためのバッファのサイズ
-         * @return MP3バッファサイズ
-         */
-        private int getMp3BufferSize(int readPcmBufferSize){
-            return (int) (7200 + (readPcmBufferSize * 1.25));
-        }
-        /**
-         * PCMバッファ{@link #mPcmBuffer}から指定のバッファにデータをコピーする
-         * 
-         * @param buffer コピー先のバッファ
-         * @return コピーしたデータの長さ
-         * @throws InterruptedException 
-         */
-        private int copyFromPcmBufferToBuffer(short[] buffer) throws InterruptedException {
-            int copyLength = 0;
-            while (mBroadcastState.isConnectingOrBroadcasting()) {
-                synchronized (mPcmBufferLock) {
-                    final int availableLength = mPcmBuffer.getAvailable();
-                    if (availableLength != 0) {
-                        copyLength = Math.min(availableLength, buffer.length);
-                        copyLength = mPcmBuffer.get(buffer, 0, copyLength);
-                    } else {
-                        if (C.LOCAL_LOG) {
-                            Log.v(C.TAG, "Wait to read PCM buffer.");
-                        }
-
-                        mPcmBufferLock.wait();
-                    }
-                }
-                if (copyLength != 0) {
-                    if (C.LOCAL_LOG) {
-                        Log.v(C.TAG, "Read PCM buffer(" + String.valueOf(copyLength / 2) + " bytes).");
-                    }
-                    break;
-                }
+    /**
+     * 番組のタイトルと説明の変更を配信設定に反映する
+     * 
+     * @param title 番組のタイトル
+     * @param description 番組の説明
+     */
+    private void applyChannelInfo(String title, String description) {
+        synchronized (mReconfigureLock) {
+            final BroadcastConfig oldConfig = mCurrentBroadcastConfig;
+            if (oldConfig == null) {
+                return;
             }
-
-            return copyLength;
+            reconfigure(new BroadcastConfig.Builder(oldConfig).channelTitle(title)
+                    .channelDescription(description).create());
         }
+    }
 
-        /**
-         * エンコーダに残っているデータをフラッシュして、MP3バッファ{@link #mMp3Buffer}に書き込む。
-         * 
-         * @param encoder エンコーダ
-         * @return 0:成功 -1:エンコード失敗
-         */
-        private int flush(Encoder encoder) {
-            // MP3バッファサイズ
-            final int mp3BufferSize = getMp3BufferSize(getReadPcmBufferSize());
-            // MP3バッファ
-            byte[] mp3buffer = new byte[mp3BufferSize];
-            Log.d(C.TAG, "Temporary MP3 encode buffersize is " + String.valueOf(mp3BufferSize)
-                    + " bytes.");
-
-            int flushResult = encoder.flush(mp3buffer);
-            if (flushResult < 0) {
-                Log.w(C.TAG, "Failed LAME flush(error=" + flushResult + ").");
-                return -1;
-            }
-            if (flushResult != 0) {
-                if (C.LOCAL_LOG) {
-                    Log.v(C.TAG, "Encoded remain PCM to " + String.valueOf(flushResult)
-                            + " bytes MP3.");
-                }
-                int availableDataSize = 0;
-                synchronized (mMp3BufferLock) {
-                    // バッファに書き込む
-                    mMp3Buffer.put(mp3buffer, 0, flushResult, true);
-                    availableDataSize = mMp3Buffer.getAvailable();
-                    mMp3BufferLock.notifyAll();
-                    if (C.LOCAL_LOG) {
-                        Log.v(C.TAG, "Notify to write MP3 buffer.");
-                    }
-                }
-                if (C.LOCAL_LOG) {
-                    Log.v(C.TAG,
-                            "Wrote MP3 buffer(" + String.valueOf(flushResult)
-                                    + " bytes). Available buffersize is "
-                                    + String.valueOf(availableDataSize) + " bytes.");
-                }
-            }
-            
-            return 0;
-        }
+    /**
+     * ねとらじサーバに通知する情報が変わったかを取得する
+     * 
+     * @param oldConfig 変更前の配信設定
+     * @param newConfig 変更後の配信設定
+     * @return ねとらじサーバに通知する情報が変わった場合はtrue、それ以外はfalse
+     */
+    private static boolean isServerParameterChanged(BroadcastConfig oldConfig,
+            BroadcastConfig newConfig) {
+        return oldConfig.getAudioBrate() != newConfig.getAudioBrate()
+                || oldConfig.getAudioChannel() != newConfig.getAudioChannel()
+                || oldConfig.getAudioEncodeSampleRate() != newConfig.getAudioEncodeSampleRate()
+                || !equalsString(oldConfig.getChannelMount(), newConfig.getChannelMount())
+                || !equalsString(oldConfig.getChannelTitle(), newConfig.getChannelTitle())
+                || !equalsString(oldConfig.getChannelDjName(), newConfig.getChannelDjName())
+                || !equalsString(oldConfig.getChannelDescription(),
+                        newConfig.getChannelDescription())
+                || !equalsString(oldConfig.getChannelUrl(), newConfig.getChannelUrl())
+                || !equalsString(oldConfig.getChannelGenre(), newConfig.getChannelGenre())
+                || !equalsString(oldConfig.getChannelServer(), newConfig.getChannelServer());
     }
 
     /**
-     * 送信スレッド
+     * 文字列が等しいかを取得する
+     * 
+     * @param a 文字列。nullでもよい。
+     * @param b 文字列。nullでもよい。
+     * @return 等しい場合はtrue、それ以外はfalse
      */
-    private class SendDataThread extends Thread {
-
-        /**
-         * 配信設定
-         */
-        private BroadcastConfig mBroadcastConfig;
-
-        /**
-         * コンストラクタ
-         * 
-         * @param broadcastConfig 配信設定
-         */
-        public SendDataThread(BroadcastConfig broadcastConfig) {
-            mBroadcastConfig = broadcastConfig;
-        }
-
-        @Override
-        public void run() {
-            Log.d(C.TAG, "Start Send data thread.");
-
-            try {
-                // ねとらじの接続先サーバ
-                Server broadcastServer = null;
-
-                // 接続先のサーバを決める
-                {
-                    // 配信サーバ情報リストを取得する
-                    ServersInfo serversInfo = new ServersInfo();
-                    try {
-                        serversInfo.fetchServerInfo();
-                    } catch (IOException e) {
-                        Log.w(C.TAG,
-                                "IOException occurred when fetch netladio server information.", e);
-                        if (mIsRecoonect) {
-                            try {
-                                reconnect(mBroadcastConfig);
-                            } catch (InterruptedException e2) {
-                                mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                                notifyRecStateChangedHandle(MSG_ERROR_FETCH_NET_LADIO_SERVER_LIST);
-                            }
-                        } else {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                            notifyRecStateChangedHandle(MSG_ERROR_FETCH_NET_LADIO_SERVER_LIST);
-                        }
-                        return;
-                    }
-
-                    // 配信サーバを設定していない場合はもっとも空いているサーバを取得する
-                    if (mBroadcastConfig.getChannelServer() == null
-                            || mBroadcastConfig.getChannelServer().length() == 0) {
-                        broadcastServer = serversInfo.getVacantServer();
-                    }
-                    // 配信サーバを設定している場合
-                    else {
-                        broadcastServer = serversInfo
-                                .getServer(mBroadcastConfig.getChannelServer());
-                    }
-
-                    // 何らかの理由で配信サーバが決まらなかった場合はエラーで終了
-                    if (broadcastServer == null) {
-                        Log.w(C.TAG, "Not found the broadcast server.");
-                        if (mIsRecoonect) {
-                            try {
-                                reconnect(mBroadcastConfig);
-                            } catch (InterruptedException e2) {
-                                mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                                notifyRecStateChangedHandle(MSG_ERROR_NOT_FOUND_NET_LADIO_BROADCAST_SERVER);
-                            }
-                        } else {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                            notifyRecStateChangedHandle(MSG_ERROR_NOT_FOUND_NET_LADIO_BROADCAST_SERVER);
-                        }
-                        return;
-                    }
-                }
-
-                Socket socket = null;
-                InputStream sockIn = null;
-                OutputStream sockOut = null;
-                try {
-                    socket = new Socket(broadcastServer.getServerName()
-                            .getName(), broadcastServer.getServerName()
-                            .getPort());
-                    sockIn = socket.getInputStream();
-                    sockOut = socket.getOutputStream();
-                } catch (UnknownHostException e) {
-                    Log.w(C.TAG, "UnknownHostException occurred when create socket.", e);
-                    if (mIsRecoonect) {
-                        try {
-                            reconnect(mBroadcastConfig);
-                        } catch (InterruptedException e2) {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                            notifyRecStateChangedHandle(MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
-                        }
-                    } else {
-                        mBroadcastState.set(BROADCAST_STATE_STOPPING); // 動作中フラグを下げる
-                        notifyRecStateChangedHandle(MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
-                    }
-                    return;
-                } catch (IOException e) {
-                    Log.w(C.TAG, "IOException occurred when create socket.", e);
-                    if (mIsRecoonect) {
-                        try {
-                            reconnect(mBroadcastConfig);
-                        } catch (InterruptedException e2) {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            notifyRecStateChangedHandle(MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
-                        }
-                    } else {
-                        mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                        notifyRecStateChangedHandle(MSG_ERROR_CREATE_SOCKET_TO_NET_LADIO_SERVER);
-                    }
-                    return;
-                }
-
-                // 録音を開始してから送信まで指定された秒数を待つ
-                try {
-                    waitFromRecStartToSendData();
-                } catch (InterruptedException e) {
-                    if (mIsRecoonect) {
-                        try {
-                            reconnect(mBroadcastConfig);
-                        } catch (InterruptedException e2) {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            notifyRecStateChangedHandle(MSG_ERROR_INTERRUPTED_WAIT_FROM_REC_START_TO_SEND_DATA);
-                        }
-                    } else {
-                        mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                        notifyRecStateChangedHandle(MSG_ERROR_INTERRUPTED_WAIT_FROM_REC_START_TO_SEND_DATA);
-                    }
-                    return;
-                }
+    static boolean equalsString(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
 
-                // ここに到達するまでにユーザーにより停止が指示されている場合は終了
-                if (mBroadcastState.get() == BROADCAST_STATE_STOPPING) {
-                    // ストリーム配信正常終了
-                    notifyRecStateChangedHandle(MSG_SEND_STREAM_ENDED);
-                    return;
-                }
+    /**
+     * MP3バッファのサイズを取得する。指定の秒数分だけ確保する。
+     * 
+     * @param broadcastConfig 配信設定
+     * @return MP3バッファのサイズ
+     */
+    private static int getMp3BufferSize(BroadcastConfig broadcastConfig) {
+        return ((broadcastConfig.getAudioBrate() / 8) * 1024) * C.MP3_BUFFER_SEC;
+    }
 
-                PrintWriter pr = null;
-                InputStreamReader in = null;
-                BufferedReader br = null;
-
-                try {
-                    // ヘッダ送信
-                    try {
-                        pr = new PrintWriter(new OutputStreamWriter(sockOut, "Shift_JIS"), true);
-                        String headerStr = createHeader();
-                        pr.println(headerStr);
-                        pr.flush();
-                    } catch (UnsupportedEncodingException e) {
-                        Log.w(C.TAG, "UnsupportedEncodingException occurred when send header.", e);
-                        if (mIsRecoonect) {
-                            try {
-                                reconnect(mBroadcastConfig);
-                            } catch (InterruptedException e2) {
-                                mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                                // ヘッダの送信に失敗した
-                                notifyRecStateChangedHandle(MSG_ERROR_SEND_HEADER_DATA);
-                            }
-                        } else {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // ヘッダの送信に失敗した
-                            notifyRecStateChangedHandle(MSG_ERROR_SEND_HEADER_DATA);
-                        }
-                        return;
-                    }
+    /**
+     * 配信設定に合わせて、ねとらじへの送信をまとめるタイミングの決定を生成する
+     * 
+     * @param broadcastConfig 配信設定
+     * @return 送信をまとめるタイミングの決定
+     */
+    private static SendScheduler createSendScheduler(BroadcastConfig broadcastConfig) {
+        final int bytesPerSec = (broadcastConfig.getAudioBrate() / 8) * 1024;
+        final int pacingRate = broadcastConfig.isSendPacing() ? (int) (bytesPerSec
+                * C.SEND_PACING_RATE_FACTOR) : 0;
+        return new SendScheduler(broadcastConfig.getSendBatchMsec(),
+                C.SEND_BATCH_TARGET_BYTES, pacingRate, pacingRate * C.SEND_PACING_BUCKET_SEC);
+    }
 
-                    try {
-                        in = new InputStreamReader(sockIn);
-                        br = new BufferedReader(in);
-                        String responseStr = br.readLine();
-                        // 接続に成功
-                        if (responseStr.equals("HTTP/1.0 200 OK")) {
-                            Log.i(C.TAG, "Connected to " + socket.getInetAddress().getHostAddress()
-                                    + ":" + socket.getPort() + ".");
-                        }
-                        // 認証失敗
-                        else if (responseStr.equals("HTTP/1.0 401 Authentication Required")) {
-                            Log.w(C.TAG, "Received error.(" + responseStr + ")");
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // 認証失敗
-                            notifyRecStateChangedHandle(MSG_ERROR_RECEIVED_RESPONSE_AUTHENTICATION_REQUIRED);
-                            return;
-                        }
-                        // 同名のマウントが使用中
-                        else if (responseStr.equals("HTTP/1.0 403 Mountpoint in use")) {
-                            Log.w(C.TAG, "Received error.(" + responseStr + ")");
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // 同名のマウントが使用中
-                            notifyRecStateChangedHandle(MSG_ERROR_RECEIVED_RESPONSE_MOUNTPOINT_IN_USE);
-                            return;
-                        }
-                        // マウント名前が長すぎるか短すぎる
-                        else if (responseStr.equals("HTTP/1.0 403 Mountpoint too long")) {
-                            Log.w(C.TAG, "Received error.(" + responseStr + ")");
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // ヘッダのレスポンス受信に失敗した
-                            notifyRecStateChangedHandle(MSG_ERROR_RECEIVED_RESPONSE_MOUNTPOINT_TOO_LONG);
-                            return;
-                        }
-                        // サポート外のストリーム
-                        else if (responseStr.equals("HTTP/1.0 403 Content-type not supported")) {
-                            Log.w(C.TAG, "Received error.(" + responseStr + ")");
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // ヘッダのレスポンス受信に失敗した
-                            notifyRecStateChangedHandle(MSG_ERROR_RECEIVED_RESPONSE_CONTENT_TYPE_NOT_SUPPORTED);
-                            return;
-                        }
-                        // 混んでいて接続できない
-                        else if (responseStr.equals("HTTP/1.0 403 too many sources connected")) {
-                            Log.w(C.TAG, "Received error.(" + responseStr + ")");
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // ヘッダのレスポンス受信に失敗した
-                            notifyRecStateChangedHandle(MSG_ERROR_RECEIVED_RESPONSE_TOO_MANY_SOURCES_CONNECTED);
-                            return;
-                        }
-                        // 未知のレスポンスを受信した
-                        else {
-                            Log.w(C.TAG, "Received unknown error.(" + responseStr + ")");
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // 未知のレスポンスを受信した
-                            notifyRecStateChangedHandle(MSG_ERROR_RECEIVED_RESPONSE_UNKNOWN_ERROR);
-                            return;
-                        }
-                    } catch (IOException e) {
-                        Log.w(C.TAG, "IOException occurred when header response receved.", e);
-                        if (mIsRecoonect) {
-                            try {
-                                reconnect(mBroadcastConfig);
-                            } catch (InterruptedException e2) {
-                                mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                                // ヘッダのレスポンス受信に失敗した
-                                notifyRecStateChangedHandle(MSG_ERROR_RECV_HEADER_RESPONSE);
-                            }
-                        } else {
-                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                            // ヘッダのレスポンス受信に失敗した
-                            notifyRecStateChangedHandle(MSG_ERROR_RECV_HEADER_RESPONSE);
-                        }
-                        return;
-                    }
+    /**
+     * 配信設定に合わせて、再接続するまでにたまったデータの送り方を生成する
+     * 
+     * @param broadcastConfig 配信設定
+     * @return たまったデータの送り方
+     */
+    private static BacklogDrainer createBacklogDrainer(BroadcastConfig broadcastConfig) {
+        // 送信前のバッファより短くすると、再接続のたびにためた音声を捨ててしまう
+        final long liveEdgeUs = Math.max(C.SEND_BACKLOG_LIVE_EDGE_MSEC,
+                broadcastConfig.getAudioPrebufferMsec()) * 1000L;
+        final int bytesPerSec = (broadcastConfig.getAudioBrate() / 8) * 1024;
+        return new BacklogDrainer(broadcastConfig.getSendBacklogPolicy(), liveEdgeUs,
+                (int) ((long) bytesPerSec * broadcastConfig.getSendCatchUpPercent() / 100),
+                C.SEND_BATCH_TARGET_BYTES);
+    }
 
-                    synchronized (mBroadcastingInfoLock) {
-                        mBroadcastingInfo = new BroadcastInfo(mBroadcastConfig, broadcastServer
-                                .getServerName().getName(), broadcastServer.getServerName()
-                                .getPort(), mStartTime);
-                    }
+    /**
+     * MP3リンクのバッファをビットレートに合わせた大きさに作り直す。<br />
+     * 送信待ちのフレームは新しいバッファに移す。フレームの番号は変わらないので、送信ステージは続きから読み込める。
+     * 
+     * @param broadcastConfig 配信設定
+     */
+    private void resizeMp3Link(BroadcastConfig broadcastConfig) {
+        final Mp3Link mp3Link = mMp3Link;
+        mp3Link.resize(getMp3BufferSize(broadcastConfig),
+                Mp3FrameParser.MAX_FRAMES_PER_SEC * C.MP3_BUFFER_SEC);
+        Log.d(C.TAG, "MP3 buffersize is " + String.valueOf(mp3Link.capacity()) + " bytes.");
+    }
 
-                    // ここに到達するまでにユーザーにより停止が指示されている場合は終了
-                    if (mBroadcastState.get() == BROADCAST_STATE_STOPPING) {
-                        // ストリーム配信正常終了
-                        notifyRecStateChangedHandle(MSG_SEND_STREAM_ENDED);
-                        return;
-                    }
+    /**
+     * PCMバッファのサイズを取得する。<br />
+     * 指定の秒数分だけ確保する。サンプリングレート * チャンネル数 * 秒数でバッファサイズを計算する。
+     * 
+     * @param broadcastConfig 配信設定
+     * @return PCMバッファのサイズ
+     */
+    static int getPcmBufferSize(BroadcastConfig broadcastConfig) {
+        return broadcastConfig.getAudioSampleRate() * broadcastConfig.getAudioChannel()
+                * C.PCM_BUFFER_SEC;
+    }
 
-                    mBroadcastState.set(BROADCAST_STATE_BROADCASTING);
-
-                    // ストリーム配信開始
-                    notifyRecStateChangedHandle(MSG_SEND_STREAM_STARTED);
-
-                    // 読み込みサイズ
-                    int readSize = 0;
-                    // 読み込みバッファ
-                    byte[] readBuffer = new byte[16 * 1024];
-
-                    while (mBroadcastState.get() == BROADCAST_STATE_BROADCASTING) {
-                        readSize = 0;
-                        synchronized (mMp3BufferLock) {
-                            final int availableSize = mMp3Buffer.getAvailable();
-                            if (availableSize != 0) {
-                                readSize = Math.min(availableSize,
-                                        readBuffer.length);
-                                readSize = mMp3Buffer.get(readBuffer, 0,
-                                        readSize);
-                            } else {
-                                try {
-                                    if (C.LOCAL_LOG) {
-                                        Log.v(C.TAG, "Wait to read MP3 buffer.");
-                                    }
-
-                                    mMp3BufferLock.wait();
-                                } catch (InterruptedException e) {
-                                    Log.w(C.TAG, "Interrupted wait to writing MP3 bufffer.", e);
-                                    if (mIsRecoonect) {
-                                        try {
-                                            reconnect(mBroadcastConfig);
-                                        } catch (InterruptedException e2) {
-                                            mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                                            // データの送信に失敗した
-                                            notifyRecStateChangedHandle(MSG_ERROR_SEND_STREAM_DATA);
-                                        }
-                                    } else {
-                                        mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                                        // データの送信に失敗した
-                                        notifyRecStateChangedHandle(MSG_ERROR_SEND_STREAM_DATA);
-                                    }
-                                    return;
-                                }
-                            }
-                        }
-                        try {
-                            if (readSize != 0) {
-                                sockOut.write(readBuffer, 0, readSize);
-                                if (C.LOCAL_LOG) {
-                                    Log.v(C.TAG, "Sent " + String.valueOf(readSize)
-                                            + " bytes data.");
-                                }
-                            }
-                        } catch (IOException e) {
-                            Log.w(C.TAG, "IOException occurred when send stream.", e);
-                            if (mIsRecoonect) {
-                                try {
-                                    reconnect(mBroadcastConfig);
-                                } catch (InterruptedException e2) {
-                                    mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                                    // データの送信に失敗した
-                                    notifyRecStateChangedHandle(MSG_ERROR_SEND_STREAM_DATA);
-                                }
-                            } else {
-                                mBroadcastState.set(BROADCAST_STATE_STOPPING);; // 動作中フラグを下げる
-                                // データの送信に失敗した
-                                notifyRecStateChangedHandle(MSG_ERROR_SEND_STREAM_DATA);
-                            }
-                            return;
-                        }
-                    }
+    /**
+     * PCMバッファのオーバーフロー処理を生成する
+     * 
+     * @param broadcastConfig 配信設定
+     * @return PCMバッファのオーバーフロー処理
+     */
+    static PcmOverflowHandler createPcmOverflowHandler(BroadcastConfig broadcastConfig) {
+        return new PcmOverflowHandler(broadcastConfig.getPcmOverflowPolicy(),
+                broadcastConfig.getAudioChannel(), C.PCM_OVERFLOW_SILENT_RMS);
+    }
 
-                    // ストリーム配信正常終了
-                    notifyRecStateChangedHandle(MSG_SEND_STREAM_ENDED);
-                } finally {
-                    synchronized (mBroadcastingInfoLock) {
-                        mBroadcastingInfo = null; // 配信情報を空にする
-                    }
+    /**
+     * SOURCEリクエストのヘッダのうち、チャンネルと音声の情報を追加する。<br />
+     * ねとらじサーバとリレー先のどちらに送るヘッダも、ここで同じように生成する。
+     * 
+     * @param result 追加先
+     * @param broadcastConfig 配信設定
+     * @return 追加先
+     */
+    static StringBuilder appendChannelHeader(StringBuilder result,
+            BroadcastConfig broadcastConfig) {
+        result.append("ice-name: ").append(broadcastConfig.getChannelTitle()).append("\r\n");
+        result.append("ice-genre: ").append(broadcastConfig.getChannelGenre()).append("\r\n");
+        result.append("ice-description: ").append(broadcastConfig.getChannelDescription())
+                .append("\r\n");
+        result.append("ice-url: ").append(broadcastConfig.getChannelUrl()).append("\r\n");
+        result.append("ice-bitrate: ").append(broadcastConfig.getAudioBrate()).append("\r\n");
+        result.append("ice-public: 0\r\n");
+        result.append("ice-audio-info:ice-samplerate=")
+                .append(broadcastConfig.getAudioEncodeSampleRate()).append(";ice-bitrate=")
+                .append(broadcastConfig.getAudioBrate()).append(";ice-channels=")
+                .append(broadcastConfig.getAudioChannel()).append("\r\n");
+        return result;
+    }
 
-                    if (br != null) {
-                        try {
-                            br.close();
-                        } catch (IOException e) {
-                            Log.w(C.TAG, "IOException occurred when BufferedReader close.", e);
-                        }
-                        br = null;
-                    }
-                    if (in != null) {
-                        try {
-                            in.close();
-                        } catch (IOException e) {
-                            Log.w(C.TAG, "IOException occurred when InputStreamReader close.", e);
-                        }
-                        in = null;
-                    }
-                    if (pr != null) {
-                        pr.close();
-                        pr = null;
-                    }
-                    if (sockOut != null) {
-                        try {
-                            sockOut.close();
-                        } catch (IOException e) {
-                            Log.w(C.TAG, "IOException occurred when close socket output stream.", e);
-                        }
-                        sockOut = null;
-                    }
-                    if (sockIn != null) {
-                        try {
-                            sockIn.close();
-                        } catch (IOException e) {
-                            Log.w(C.TAG, "IOException occurred when close socket input stream.", e);
-                        }
-                        sockIn = null;
-                    }
-                    if (socket != null) {
-                        try {
-                            socket.close();
-                            Log.i(C.TAG,
-                                    "Disconnected to " + socket.getInetAddress().getHostAddress()
-                                            + ":" + socket.getPort() + ".");
-                        } catch (IOException e) {
-                            Log.w(C.TAG, "IOException occurred when close socket.", e);
-                        }
-                        socket = null;
-                    }
-                }
-            } finally {
-                if (mBroadcastState.get() == BROADCAST_STATE_STOPPING) {
-                    mBroadcastState.set(BROADCAST_STATE_STOPPED);
-                }
+    /**
+     * 録音ステージを開始する。<br />
+     * 配信設定の変更により録音をやり直す場合は、エンコードステージから呼ばれる。
+     * 
+     * @param broadcastConfig 配信設定
+     * @return 開始した場合はtrue、配信が既に終了していた場合はfalse
+     */
+    boolean startRecordStage(BroadcastConfig broadcastConfig) {
+        mRecordStage = new RecordStage(this, mGraph.getLifecycle(), broadcastConfig, mPcmLink);
+        return mGraph.start(mRecordStage);
+    }
 
-                Log.d(C.TAG, "Finish Send data thread.");
-            }
+    /**
+     * ねとらじ以外の配信先への中継ステージを開始する
+     * 
+     * @param broadcastConfig 配信設定
+     */
+    private void startRelayStages(BroadcastConfig broadcastConfig) {
+        final ArrayList<RelayStage> relayStages = new ArrayList<RelayStage>();
+        for (BroadcastDestination destination : broadcastConfig.getRelayDestinations()) {
+            final RelayStage relayStage = new RelayStage(this, mGraph.getLifecycle(),
+                    destination, mMp3Link);
+            mGraph.start(relayStage);
+            relayStages.add(relayStage);
         }
+        mRelayStages = relayStages;
+    }
 
-        /**
-         * 録音を開始してから送信まで{@link C#WAIT_SEC_FROM_REC_START_TO_SEND_DATA}で指定された秒数を待つ
-         * 
-         * @throws InterruptedException 待っている間に割り込みが入った
-         */
-        private void waitFromRecStartToSendData() throws InterruptedException {
-            if (C.WAIT_SEC_FROM_REC_START_TO_SEND_DATA > 0) {
-                // 録音開始するまでポーリングで待つ
-                while ((mBroadcastState.isConnectingOrBroadcasting())
-                        && mRecStartTime < 0) {
-                    try {
-                        Thread.sleep(10);
-                    } catch (InterruptedException e) {
-                        Log.w(C.TAG, "Interrupted wait to rec margin.", e);
-                        throw e;
-                    }
-                }
-                // 録音開始してから指定の秒数だけ待つ
-                if ((mBroadcastState.isConnectingOrBroadcasting())
-                        && mRecStartTime >= 0) {
-                    // 待つ時間のうちすでに録音開始してからここに到達するまでの時間は、待ち時間から差し引く
-                    final long waitTime = (C.WAIT_SEC_FROM_REC_START_TO_SEND_DATA * 1000)
-                            - (System.currentTimeMillis() - mRecStartTime);
-                    if (waitTime > 10) {
-                        if (C.LOCAL_LOG) {
-                            Log.v(C.TAG, "Sleep " + String.valueOf(((float) waitTime) / 1000)
-                                    + " sec.");
-                        }
-                        try {
-                            Thread.sleep(waitTime);
-                        } catch (InterruptedException e) {
-                            Log.w(C.TAG, "Interrupted wait to rec margin.", e);
-                            throw e;
-                        }
-                    }
-                }
-            }
+    /**
+     * ねとらじ以外の配信先への中継ステージに終了を指示する。<br />
+     * 終了を待たずに戻る。
+     */
+    private void stopRelayStages() {
+        for (RelayStage relayStage : mRelayStages) {
+            relayStage.requestStop();
         }
+        mRelayStages = Collections.emptyList();
+    }
 
-        /**
-         * ヘッダを生成する
-         * 
-         * @return 生成したヘッダ
-         */
-        private String createHeader() {
-            String result = "SOURCE " + mBroadcastConfig.getChannelMount() + " ICE/1.0\r\n";
-            result += "Content-Type: audio/mpeg\r\n";
-            result += sUserAgent + "\r\n";
-            result += "Authorization: Basic c291cmNlOmxhZGlv\r\n";
-            result += "ice-name: " + mBroadcastConfig.getChannelTitle() + "\r\n";
-            result += "ice-genre: " + mBroadcastConfig.getChannelGenre() + "\r\n";
-            result += "ice-description: " + mBroadcastConfig.getChannelDescription() + "\r\n";
-            result += "ice-url: " + mBroadcastConfig.getChannelUrl() + "\r\n";
-            result += "ice-bitrate: "
-                    + String.valueOf(mBroadcastConfig.getAudioBrate()) + "\r\n";
-            result += "ice-public: 0\r\n";
-            result += "ice-audio-info:ice-samplerate="
-                    + String.valueOf(mBroadcastConfig.getAudioSampleRate()) + ";ice-bitrate="
-                    + String.valueOf(mBroadcastConfig.getAudioBrate()) + ";ice-channels="
-                    + String.valueOf(mBroadcastConfig.getAudioChannel()) + "\r\n";
-            result += "x-ladio-info:charset=sjis;dj=" + mBroadcastConfig.getChannelDjName()
-                    + "\r\n";
-            result += "\r\n"; // ヘッダの終了は空行
-
-            return result;
+    /**
+     * LAN内の聴取者に直接配信するサーバを開始する。<br />
+     * LAN内に配信しない設定の場合は何もしない。サーバを開始できなくても配信は続ける。
+     * 
+     * @param broadcastConfig 配信設定
+     */
+    private void startStreamServer(BroadcastConfig broadcastConfig) {
+        if (!broadcastConfig.isLocalServer()) {
+            return;
         }
 
-        /**
-         * 再接続する
-         * 
-         * @param broadcastConfig 接続設定
-         */
-        private void reconnect(final BroadcastConfig broadcastConfig) throws InterruptedException {
-            final long waitTime = System.currentTimeMillis() + C.WAIT_RECONNECT_MSEC;
-
-            if (mBroadcastState.isStoppedOrStopping()) {
-                mBroadcastState.set(BROADCAST_STATE_STOPPED);
-                notifyRecStateChangedHandle(MSG_STOP_WAIT_RECONNECT);
-                return;
+        // MP3リンクはねとらじへの送信ステージと共有し、サーバ用の読み込み位置から読み込む
+        final Mp3Link.Reader reader = mMp3Link.openReader();
+        final StreamServer.Source source = new StreamServer.Source() {
+            @Override
+            public int read(byte[] dst, int offset, int len) {
+                return reader.read(dst, offset, len);
             }
+        };
+        final int bytesPerSec = (broadcastConfig.getAudioBrate() / 8) * 1024;
+        final StreamServer streamServer = new StreamServer(source, bytesPerSec
+                * C.LOCAL_SERVER_BUFFER_SEC, bytesPerSec * C.LOCAL_SERVER_BURST_SEC,
+                C.LOCAL_SERVER_MAX_CLIENTS, C.LOCAL_SERVER_ICY_METAINT,
+                C.LOCAL_SERVER_POLL_MSEC, C.LOCAL_SERVER_REQUEST_TIMEOUT_MSEC,
+                C.LOCAL_SERVER_STALL_TIMEOUT_MSEC);
+        updateStreamServerInfo(streamServer, broadcastConfig);
+        try {
+            streamServer.start(C.LOCAL_SERVER_PORT);
+        } catch (IOException e) {
+            Log.w(C.TAG, "IOException occurred when start local stream server.", e);
+            return;
+        }
+        mStreamServer = streamServer;
+        Log.i(C.TAG, "Local stream server is listening on port " + streamServer.getPort() + ".");
+    }
 
-            mBroadcastState.set(BROADCAST_STATE_CONNECTING);
+    /**
+     * LAN内の聴取者に通知する番組の情報を更新する
+     * 
+     * @param broadcastConfig 配信設定
+     */
+    private void updateStreamServerInfo(BroadcastConfig broadcastConfig) {
+        final StreamServer streamServer = mStreamServer;
+        if (streamServer != null) {
+            updateStreamServerInfo(streamServer, broadcastConfig);
+        }
+    }
 
-            Log.i(C.TAG, String.format("Wait %.2f sec before reconnect.", (waitTime - System.currentTimeMillis()) / 1000f));
-            notifyRecStateChangedHandle(MSG_RECONNECT_STARTED);
-            while (waitTime > System.currentTimeMillis()) {
-                if (mBroadcastState.isStoppedOrStopping()) {
-                    mBroadcastState.set(BROADCAST_STATE_STOPPED);
-                    notifyRecStateChangedHandle(MSG_STOP_WAIT_RECONNECT);
-                    return;
-                }
+    /**
+     * LAN内の聴取者に通知する番組の情報を更新する
+     * 
+     * @param streamServer LAN内に配信するサーバ
+     * @param broadcastConfig 配信設定
+     */
+    private static void updateStreamServerInfo(StreamServer streamServer,
+            BroadcastConfig broadcastConfig) {
+        streamServer.setStreamName(broadcastConfig.getChannelTitle());
+        streamServer.setStreamTitle(broadcastConfig.getChannelTitle());
+    }
 
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    Log.w(C.TAG, "Interrupted wait to recoonect.", e);
-                    throw e;
-                }
-            }
+    /**
+     * LAN内の聴取者に直接配信するサーバを停止する。<br />
+     * 接続中の聴取者はすべて切断する。
+     */
+    void stopStreamServer() {
+        final StreamServer streamServer = mStreamServer;
+        mStreamServer = null;
+        if (streamServer != null) {
+            streamServer.close();
+            Log.i(C.TAG, "Local stream server stopped. (sent "
+                    + streamServer.getSentBytes() + " bytes to "
+                    + streamServer.getAcceptedCount() + " clients)");
+        }
+    }
 
-            Log.i(C.TAG, "Reconnect.");
-            (new SendDataThread(broadcastConfig)).start();
+    /**
+     * 停止する
+     */
+    public final void stop() {
+        // 動作していない場合は何もしない
+        if (mBroadcastState.get() == BROADCAST_STATE_STOPPED) {
+            return;
+        }
+        // 停止中に開始を指示されていた場合は、開始を取り消す
+        synchronized (mPendingStartLock) {
+            mPendingStartConfig = null;
         }
+        // 反映していない番組のタイトルと説明の変更は、次の配信には持ち越さない
+        mChannelInfoThrottle.reset();
+        final BroadcastConfig broadcastConfig = mCurrentBroadcastConfig;
+        if (broadcastConfig != null
+                && mBroadcastState.get() == BROADCAST_STATE_BROADCASTING) {
+            // 録音は止めるが、録音済みのデータはエンコードして送り切る
+            mDrainMsec = broadcastConfig.getSendDrainMsec();
+        }
+        mBroadcastState.set(BROADCAST_STATE_STOPPING);;
+
+        // 待っているエンコードと送信のステージを起こす
+        mGraph.stop();
     }
 
     /**
-     * 停止する
+     * 停止して、録音・エンコード・送信のすべてのステージが終了するまで待つ。<br />
+     * 戻った時点で録音とエンコーダは解放されており、すぐに次の配信を開始できる。<br />
+     * 送り切るまで待つので、メインスレッドからは呼ばないこと。
+     * 
+     * @param timeoutMsec 待つ最大の時間（ミリ秒）
+     * @return 終了した場合はtrue、時間内に終了しなかった場合はfalse
+     * @throws InterruptedException 待っている間に割り込みが入った
      */
-    public final void stop() {
-        mBroadcastState.set(BROADCAST_STATE_STOPPING);;
+    public final boolean stopAndAwait(long timeoutMsec) throws InterruptedException {
+        stop();
+        return mGraph.awaitTermination(timeoutMsec);
     }
 
     /**
@@ -1477,9 +1285,131 @@ public class VoiceSender {
      *         配信中でない場合はnull。
      */
     public final BroadcastInfo getBroadcastInfo() {
+        final BroadcastInfo info;
         synchronized (mBroadcastingInfoLock) {
-            return mBroadcastingInfo;
+            info = mBroadcastingInfo;
+        }
+        if (info == null) {
+            return null;
+        }
+        // 回線の速さの推定と書き込みの統計は送信のたびに変わるので、取得した時点の値を加える
+        final long uplinkBytesPerSec = mUplinkEstimator.getBytesPerSec();
+        final int recommendedBrate = (uplinkBytesPerSec < 0) ? 0 : UplinkHistory
+                .chooseBitrate(uplinkBytesPerSec, C.AUDIO_BITRATES, Integer.MAX_VALUE,
+                        C.UPLINK_BITRATE_HEADROOM);
+        final SendScheduler sendScheduler = mSendScheduler;
+        final long writesPerMinute = (sendScheduler == null) ? 0 : sendScheduler
+                .getWritesPerMinute(System.currentTimeMillis());
+        final long averageWriteBytes = (sendScheduler == null) ? 0 : sendScheduler
+                .getAverageWriteBytes();
+        return new BroadcastInfo(info, uplinkBytesPerSec, recommendedBrate, writesPerMinute,
+                averageWriteBytes);
+    }
+
+    /**
+     * 上りの回線の速さの推定を取得する
+     * 
+     * @return 上りの回線の速さの推定。<br />
+     *         一度も配信を開始していない場合はnull。
+     */
+    public final UplinkEstimator getUplinkEstimator() {
+        return mUplinkEstimator;
+    }
+
+    /**
+     * PCMバッファのオーバーフロー処理を取得する<br />
+     * オーバーフローの発生回数や捨てたデータ量を取得するために使用する。
+     * 
+     * @return PCMバッファのオーバーフロー処理。<br />
+     *         一度も録音を開始していない場合はnull。
+     */
+    public final PcmOverflowHandler getPcmOverflowHandler() {
+        final PcmLink pcmLink = mPcmLink;
+        return (pcmLink != null) ? pcmLink.getOverflowHandler() : null;
+    }
+
+    /**
+     * 送信したデータ量の計測を取得する<br />
+     * 実際に送信した1秒あたりのバイト数を取得するために使用する。
+     * 
+     * @return 送信したデータ量の計測。<br />
+     *         一度も配信を開始していない場合はnull。
+     */
+    public final ByteRateMeter getSentByteRateMeter() {
+        return mSentByteRateMeter;
+    }
+
+    /**
+     * 再接続にかかった時間の分布を取得する<br />
+     * 切断を検出してから配信サーバに再接続するまでの時間を記録している。
+     * 
+     * @return 再接続にかかった時間の分布。<br />
+     *         一度も配信を開始していない場合はnull。
+     */
+    public final LatencyHistogram getReconnectHistogram() {
+        return mReconnectHistogram;
+    }
+
+    /**
+     * 配信を開始してから、ねとらじサーバに最初の音声データを送るまでの時間を取得する
+     * 
+     * @return {@link #start(BroadcastConfig)}を実行してから最初の音声データを送るまでの時間（ミリ秒）。<br />
+     *         まだ送っていない場合は-1。
+     */
+    public final long getTimeToFirstByte() {
+        return mTimeToFirstByte;
+    }
+
+    /**
+     * ねとらじへの送信をまとめるタイミングの決定を取得する<br />
+     * 1分あたりの送信回数や1回あたりの送信サイズを取得するために使用する。
+     * 
+     * @return 送信をまとめるタイミングの決定。<br />
+     *         一度も配信を開始していない場合はnull。
+     */
+    public final SendScheduler getSendScheduler() {
+        return mSendScheduler;
+    }
+
+    /**
+     * 再接続するまでにたまったデータの送り方を取得する<br />
+     * 捨てたフレームの数や、追いつくように送った回数を取得するために使用する。
+     * 
+     * @return たまったデータの送り方。<br />
+     *         一度も配信を開始していない場合はnull。
+     */
+    public final BacklogDrainer getBacklogDrainer() {
+        return mBacklogDrainer;
+    }
+
+    /**
+     * LAN内の聴取者に直接配信するサーバを取得する<br />
+     * 接続中の聴取者の数や送信したデータ量を取得するために使用する。
+     * 
+     * @return LAN内に配信するサーバ。<br />
+     *         LAN内に配信していない場合はnull。
+     */
+    public final StreamServer getStreamServer() {
+        return mStreamServer;
+    }
+
+    /**
+     * 配信先ごとの送信の統計を取得する<br />
+     * 先頭はねとらじへの送信の統計で、その後にねとらじ以外の配信先が続く。
+     * 
+     * @return 配信先ごとの送信の統計。<br />
+     *         一度も配信を開始していない場合は空のリスト。
+     */
+    public final List<DestinationStats> getDestinationStats() {
+        final ArrayList<DestinationStats> result = new ArrayList<DestinationStats>();
+        final DestinationStats sendStats = mSendStats;
+        if (sendStats != null) {
+            result.add(sendStats);
         }
+        for (RelayStage relayStage : mRelayStages) {
+            result.add(relayStage.getStats());
+        }
+        return result;
     }
 
     /**
@@ -1509,14 +1439,197 @@ public class VoiceSender {
      * 
      * @return 音量を変化させる場合はtrue、それ以外はfalse
      */
-    private final boolean isVolumeRateChanged() {
+    final boolean isVolumeRateChanged() {
         return mVolumeRate != 100;
     }
 
     /**
-     * 動作の状態変化を通知するハンドラを追加する 動作状態が変わった際には、Handlerのwhatに変更後の状態が格納される。
+     * 音量を取得する
+     * 
+     * @return 音量。1倍を1とする。
+     */
+    final float getVolumeRateFloat() {
+        return mVolumeRateFloat;
+    }
+
+    /**
+     * 配信状態を取得する。ステージが配信状態を見て変えるのに使う。
+     * 
+     * @return 配信状態
+     */
+    final BroadcastState getState() {
+        return mBroadcastState;
+    }
+
+    /**
+     * 現在の配信設定を取得する
+     * 
+     * @return 現在の配信設定
+     */
+    final BroadcastConfig getCurrentBroadcastConfig() {
+        return mCurrentBroadcastConfig;
+    }
+
+    /**
+     * 接続が切れた場合に再接続するかを取得する
+     * 
+     * @return 再接続する場合はtrue、それ以外はfalse
+     */
+    final boolean isRecoonect() {
+        return mIsRecoonect;
+    }
+
+    /**
+     * 停止した後に、送信していないデータを送り切るまで待つ最大の時間を取得する
+     * 
+     * @return 待つ最大の時間（ミリ秒）。送り切らずに停止する場合は0。
+     */
+    final int getDrainMsec() {
+        return mDrainMsec;
+    }
+
+    /**
+     * PCMバッファに書き込まれている録音データのチャンネル数を取得する
+     * 
+     * @return チャンネル数
+     */
+    final int getPcmChannel() {
+        return mPcmChannel;
+    }
+
+    /**
+     * PCMバッファに書き込む録音データのチャンネル数を設定する。録音ステージが録音を開始した際に設定する。
+     * 
+     * @param pcmChannel チャンネル数
+     */
+    final void setPcmChannel(int pcmChannel) {
+        mPcmChannel = pcmChannel;
+    }
+
+    /**
+     * 録音を開始した時刻を取得する
+     * 
+     * @return 録音を開始した時刻。録音していない場合は-1。
+     */
+    final long getRecStartTime() {
+        return mRecStartTime;
+    }
+
+    /**
+     * 録音を開始した時刻を設定する
+     * 
+     * @param recStartTime 録音を開始した時刻。録音をやめた場合は-1。
+     */
+    final void setRecStartTime(long recStartTime) {
+        mRecStartTime = recStartTime;
+    }
+
+    /**
+     * 配信を開始した時刻を取得する
+     * 
+     * @return 配信を開始した時刻
+     */
+    final long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * 配信を開始してから、ねとらじサーバに最初の音声データを送るまでの時間を設定する
+     * 
+     * @param timeToFirstByte 最初の音声データを送るまでの時間（ミリ秒）
+     */
+    final void setTimeToFirstByte(long timeToFirstByte) {
+        mTimeToFirstByte = timeToFirstByte;
+    }
+
+    /**
+     * ねとらじへの送信の統計を取得する
+     * 
+     * @return ねとらじへの送信の統計
+     */
+    final DestinationStats getSendStats() {
+        return mSendStats;
+    }
+
+    /**
+     * 配信サーバの選択を取得する
+     * 
+     * @return 配信サーバの選択
+     */
+    final ServerSelector getServerSelector() {
+        return mServerSelector;
+    }
+
+    /**
+     * ねとらじの配信サーバ情報リストのキャッシュを取得する
+     * 
+     * @return 配信サーバ情報リストのキャッシュ
+     */
+    final ServerDirectory getServerDirectory() {
+        return mServerDirectory;
+    }
+
+    /**
+     * 配信情報を設定する。送信ステージが配信サーバに接続した際に設定する。
+     * 
+     * @param broadcastingInfo 配信中の番組の情報。配信していない場合はnull。
+     */
+    final void setBroadcastingInfo(BroadcastInfo broadcastingInfo) {
+        synchronized (mBroadcastingInfoLock) {
+            mBroadcastingInfo = broadcastingInfo;
+        }
+    }
+
+    /**
+     * 推定した回線の速さを、次の配信でビットレートを選ぶために記録する。<br />
+     * 短い配信の推定は当てにならないので記録しない。
+     */
+    final void saveUplinkEstimate() {
+        final UplinkEstimator estimator = mUplinkEstimator;
+        final String networkType = getNetworkType();
+        if (networkType == null
+                || estimator.getSampleCount() < C.UPLINK_ESTIMATE_MIN_SAMPLES) {
+            return;
+        }
+        mUplinkHistory.put(networkType, estimator.getBytesPerSec(), estimator.isBounded());
+        Log.i(C.TAG, "Uplink of " + networkType + ". " + estimator);
+    }
+
+    /**
+     * 音の大きさを受け取るSubscriberがいるかを取得する
+     * 
+     * @return いる場合はtrue、それ以外はfalse
+     */
+    final boolean hasLoudnessSubscribers() {
+        return mEventBus.hasSubscribers(mLoudnessEventType);
+    }
+
+    /**
+     * 音の大きさを通知する
+     * 
+     * @param loudness 音の大きさ
+     */
+    final void notifyLoudness(int loudness) {
+        final LoudnessEvent event = mEventBus.obtain(mLoudnessEventType);
+        event.mLoudness = loudness;
+        mEventBus.post(event);
+    }
+
+    /**
+     * イベントを届けるスレッドを設定する。<br />
+     * 設定しない場合は、録音・エンコード・送信のスレッドから直接通知する。
      * 
-     * @param handler 動作の状態変化を通知するハンドラ
+     * @param dispatcher イベントを届けるスレッドに処理を投げるDispatcher。nullの場合は直接通知する。
+     */
+    public final void setEventDispatcher(EventBus.Dispatcher dispatcher) {
+        mEventBus.setDispatcher(dispatcher);
+    }
+
+    /**
+     * 動作の状態変化を受け取るSubscriberを追加する。<br />
+     * 動作状態が変わった際には、{@link MessageEvent#getWhat()}に変更後の状態が格納される。
+     * 
+     * @param subscriber 動作の状態変化を受け取るSubscriber
      * @see VoiceSender#MSG_ERROR_NOT_SUPPORTED_RECORDING_PARAMETERS
      * @see VoiceSender#MSG_ERROR_REC_START
      * @see VoiceSender#MSG_REC_STARTED
@@ -1542,66 +1655,64 @@ public class VoiceSender {
      * @see VoiceSender#MSG_SEND_STREAM_ENDED
      * @see VoiceSender#MSG_RECONNECT_STARTED
      * @see VoiceSender#MSG_STOP_WAIT_RECONNECT
+     * @see VoiceSender#MSG_PCM_BUFFER_OVERFLOW_DEGRADED
+     * @see VoiceSender#MSG_RECONFIGURED
+     * @see VoiceSender#MSG_DRAIN_COMPLETED
      */
-    public final void addBroadcastStateChangedHandler(Handler handler) {
-        if (handler != null) {
-            synchronized (mBroadcastStateChangedHandlerListLock) {
-                mBroadcastStateChangedHandlerList.add(handler);
-            }
-        }
+    public final void addMessageSubscriber(EventBus.Subscriber<? super MessageEvent> subscriber) {
+        mEventBus.subscribe(mMessageEventType, subscriber);
     }
 
     /**
-     * 動作の状態変化を通知するハンドラを削除する
+     * 動作の状態変化を受け取るSubscriberを削除する
      * 
-     * @param handler 動作の状態変化を通知するハンドラ
+     * @param subscriber 動作の状態変化を受け取るSubscriber
      */
-    public final void removeBroadcastStateChangedHandler(Handler handler) {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            mBroadcastStateChangedHandlerList.remove(handler);
-        }
+    public final void removeMessageSubscriber(EventBus.Subscriber<? super MessageEvent> subscriber) {
+        mEventBus.unsubscribe(mMessageEventType, subscriber);
     }
 
     /**
-     * 動作の状態変化を通知するハンドラをクリアする
+     * 配信状態の変化を受け取るSubscriberを追加する
+     * 
+     * @param subscriber 配信状態の変化を受け取るSubscriber
+     * @see VoiceSender#BROADCAST_STATE_STOPPED
+     * @see VoiceSender#BROADCAST_STATE_CONNECTING
+     * @see VoiceSender#BROADCAST_STATE_BROADCASTING
+     * @see VoiceSender#BROADCAST_STATE_STOPPING
      */
-    public final void clearBroadcastStateChangedHandler() {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            mBroadcastStateChangedHandlerList.clear();
-        }
+    public final void addBroadcastStateSubscriber(
+            EventBus.Subscriber<? super BroadcastStateEvent> subscriber) {
+        mEventBus.subscribe(mBroadcastStateEventType, subscriber);
     }
 
     /**
-     * 音の大きさを通知するハンドラを追加する
+     * 配信状態の変化を受け取るSubscriberを削除する
      * 
-     * @param handler 音の大きさを通知するハンドラ
+     * @param subscriber 配信状態の変化を受け取るSubscriber
      */
-    public final void addLoudnessdHandler(Handler handler) {
-        if (handler != null) {
-            synchronized (mLoudnessHandlerListLock) {
-                mLoudnessHandlerList.add(handler);
-            }
-        }
+    public final void removeBroadcastStateSubscriber(
+            EventBus.Subscriber<? super BroadcastStateEvent> subscriber) {
+        mEventBus.unsubscribe(mBroadcastStateEventType, subscriber);
     }
 
     /**
-     * 音の大きさを通知するハンドラを削除する
+     * 音の大きさを受け取るSubscriberを追加する
      * 
-     * @param handler 音の大きさを通知するハンドラ
+     * @param subscriber 音の大きさを受け取るSubscriber
      */
-    public final void removeLoudnessHandler(Handler handler) {
-        synchronized (mLoudnessHandlerListLock) {
-            mLoudnessHandlerList.remove(handler);
-        }
+    public final void addLoudnessSubscriber(EventBus.Subscriber<? super LoudnessEvent> subscriber) {
+        mEventBus.subscribe(mLoudnessEventType, subscriber);
     }
 
     /**
-     * 音の大きさを通知するハンドラをクリアする
+     * 音の大きさを受け取るSubscriberを削除する
+     * 
+     * @param subscriber 音の大きさを受け取るSubscriber
      */
-    public final void clearLoudnessHandler() {
-        synchronized (mLoudnessHandlerListLock) {
-            mLoudnessHandlerList.clear();
-        }
+    public final void removeLoudnessSubscriber(
+            EventBus.Subscriber<? super LoudnessEvent> subscriber) {
+        mEventBus.unsubscribe(mLoudnessEventType, subscriber);
     }
 
     /**
@@ -1609,23 +1720,11 @@ public class VoiceSender {
      * 
      * @param what 通知する状態
      */
-    private void notifyRecStateChangedHandle(int what) {
-        for (Handler h : getBroadcastStateChangedHandlerListClone()) {
-            if (h != null) {
-                h.sendEmptyMessage(what);
-            }
-        }
-    }
-
-    /**
-     * 配信状態が変わった際のハンドラーリストのクローンしたリストを取得する。 浅いクローンなので注意。
-     * 
-     * @return 再生状態が変わった際のハンドラーリストのクローンしたリスト
-     */
-    @SuppressWarnings("unchecked")
-    private ArrayList<Handler> getBroadcastStateChangedHandlerListClone() {
-        synchronized (mBroadcastStateChangedHandlerListLock) {
-            return (ArrayList<Handler>) mBroadcastStateChangedHandlerList.clone();
+    void notifyRecStateChangedHandle(int what) {
+        if (mEventBus.hasSubscribers(mMessageEventType)) {
+            final MessageEvent event = mEventBus.obtain(mMessageEventType);
+            event.mWhat = what;
+            mEventBus.post(event);
         }
     }
 
@@ -1649,21 +1748,72 @@ public class VoiceSender {
                 + Build.MANUFACTURER + " " + Build.MODEL + ")";
     }
 
+    /**
+     * ねとらじサーバに通知するUserAgentを取得する
+     * 
+     * @return "User-Agent: "から始まるヘッダの行
+     */
+    static String getUserAgent() {
+        return sUserAgent;
+    }
+
 
     /**
      * 配信状態
      */
-    private class BroadcastState {
+    static class BroadcastState {
         /**
-         * 配信状態
+         * 許可する配信状態の遷移。<br />
+         * 停止中から接続中に戻るような、停止を取り消す遷移は許可しない。
          */
-        private int mBroadcastState = BROADCAST_STATE_STOPPED;
-        
+        private static final int[][] TRANSITIONS = {
+                { BROADCAST_STATE_STOPPED, BROADCAST_STATE_CONNECTING },
+                { BROADCAST_STATE_CONNECTING, BROADCAST_STATE_BROADCASTING },
+                { BROADCAST_STATE_CONNECTING, BROADCAST_STATE_STOPPING },
+                { BROADCAST_STATE_BROADCASTING, BROADCAST_STATE_CONNECTING },
+                { BROADCAST_STATE_BROADCASTING, BROADCAST_STATE_STOPPING },
+                { BROADCAST_STATE_STOPPING, BROADCAST_STATE_STOPPED },
+        };
+
         /**
-         * ロックオブジェクト
+         * 配信状態。<br />
+         * 録音、エンコード、送信のループで毎回参照するので、ロックせずに読み書きする。
          */
-        private final Object mLock = new Object();
-        
+        private final StateMachine mStateMachine = new StateMachine(BROADCAST_STATE_STOPPED,
+                TRANSITIONS);
+
+        /**
+         * 配信状態が変わった際に呼ばれるリスナー
+         */
+        private volatile StateMachine.TransitionListener mTransitionListener;
+
+        /**
+         * コンストラクタ
+         */
+        public BroadcastState() {
+            mStateMachine.setTransitionListener(new StateMachine.TransitionListener() {
+
+                @Override
+                public void onTransition(int from, int to) {
+                    Log.d(C.TAG, "Broadcast state change to " + BroadcastState.toString(to)
+                            + ".");
+                    final StateMachine.TransitionListener listener = mTransitionListener;
+                    if (listener != null) {
+                        listener.onTransition(from, to);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 配信状態が変わった際に呼ばれるリスナーを設定する
+         * 
+         * @param listener 配信状態が変わった際に呼ばれるリスナー。nullの場合は呼ばない。
+         */
+        public void setTransitionListener(StateMachine.TransitionListener listener) {
+            mTransitionListener = listener;
+        }
+
         /**
          * 配信状態を取得する
          * 
@@ -1673,9 +1823,7 @@ public class VoiceSender {
          * @see VoiceSender#BROADCAST_STATE_STOPPING
          */
         public int get() {
-            synchronized (mLock) {
-                return mBroadcastState;
-            }
+            return mStateMachine.get();
         }
         
         /**
@@ -1684,9 +1832,8 @@ public class VoiceSender {
          * @return 接続中ないしは配信中である場合はtrue、それ以外はfalse
          */
         public boolean isConnectingOrBroadcasting(){
-            synchronized (mLock) {
-                return mBroadcastState == BROADCAST_STATE_CONNECTING || mBroadcastState == BROADCAST_STATE_BROADCASTING;
-            }
+            final int broadcastState = mStateMachine.get();
+            return broadcastState == BROADCAST_STATE_CONNECTING || broadcastState == BROADCAST_STATE_BROADCASTING;
         }
         
         /**
@@ -1695,45 +1842,142 @@ public class VoiceSender {
          * @return 動作していないないしは停止中である場合はtrue、それ以外はfalse
          */
         public boolean isStoppedOrStopping(){
-            synchronized (mLock) {
-                return mBroadcastState == BROADCAST_STATE_STOPPED || mBroadcastState == BROADCAST_STATE_STOPPING;
-            }
+            final int broadcastState = mStateMachine.get();
+            return broadcastState == BROADCAST_STATE_STOPPED || broadcastState == BROADCAST_STATE_STOPPING;
         }
 
         /**
-         * 配信状態を設定する
+         * 配信状態を設定する。<br />
+         * 現在の配信状態から許可されていない遷移の場合は設定しない。
          * 
          * @param broadcastState 配信状態
+         * @return 設定した場合はtrue、許可されていない遷移の場合はfalse
          * 
          * @see VoiceSender#BROADCAST_STATE_STOPPED
          * @see VoiceSender#BROADCAST_STATE_CONNECTING
          * @see VoiceSender#BROADCAST_STATE_BROADCASTING
          * @see VoiceSender#BROADCAST_STATE_STOPPING
          */
-        public void set(int broadcastState) {
-            synchronized (mLock) {
-                switch (broadcastState) {
-                    case BROADCAST_STATE_STOPPED:
-                        Log.d(C.TAG, "Broadcast state change to BROADCAST_STATE_STOPPED.");
-                        mBroadcastState = broadcastState;
-                        break;
-                    case BROADCAST_STATE_CONNECTING:
-                        Log.d(C.TAG, "Broadcast state change to BROADCAST_STATE_CONNECTING.");
-                        mBroadcastState = broadcastState;
-                        break;
-                    case BROADCAST_STATE_BROADCASTING:
-                        Log.d(C.TAG, "Broadcast state change to BROADCAST_STATE_BROADCASTING.");
-                        mBroadcastState = broadcastState;
-                        break;
-                    case BROADCAST_STATE_STOPPING:
-                        Log.d(C.TAG, "Broadcast state change to BROADCAST_STATE_STOPPING.");
-                        mBroadcastState = broadcastState;
-                        break;
-                    default:
-                        Log.w(C.TAG, "Specified unknown broadcast state.");
-                        break;
-                }
+        public boolean set(int broadcastState) {
+            final int current = mStateMachine.get();
+            if (mStateMachine.transitionTo(broadcastState) < 0) {
+                Log.w(C.TAG, "Rejected broadcast state change from " + toString(current) + " to "
+                        + toString(broadcastState) + ".");
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * 配信状態が指定の状態の場合のみ設定する
+         * 
+         * @param expect 現在の配信状態
+         * @param broadcastState 設定する配信状態
+         * @return 設定した場合はtrue、現在の配信状態が異なるか許可されていない遷移の場合はfalse
+         */
+        public boolean compareAndSet(int expect, int broadcastState) {
+            return mStateMachine.compareAndSet(expect, broadcastState);
+        }
+
+        /**
+         * 配信状態をログに出力する文字列に変換する
+         * 
+         * @param broadcastState 配信状態
+         * @return 配信状態を表す文字列
+         */
+        private static String toString(int broadcastState) {
+            switch (broadcastState) {
+                case BROADCAST_STATE_STOPPED:
+                    return "BROADCAST_STATE_STOPPED";
+                case BROADCAST_STATE_CONNECTING:
+                    return "BROADCAST_STATE_CONNECTING";
+                case BROADCAST_STATE_BROADCASTING:
+                    return "BROADCAST_STATE_BROADCASTING";
+                case BROADCAST_STATE_STOPPING:
+                    return "BROADCAST_STATE_STOPPING";
+                default:
+                    return "unknown(" + broadcastState + ")";
             }
         }
     }
+
+    /**
+     * 動作の状態変化のイベント。<br />
+     * 届け終わると使い回されるので、受け取ったイベントを保持しないこと。
+     */
+    public static final class MessageEvent extends EventBus.Event {
+
+        /**
+         * 動作の状態
+         */
+        private int mWhat;
+
+        /**
+         * 動作の状態を取得する
+         * 
+         * @return 動作の状態
+         * @see VoiceSender#addMessageSubscriber(EventBus.Subscriber)
+         */
+        public int getWhat() {
+            return mWhat;
+        }
+
+        @Override
+        protected void reset() {
+            mWhat = 0;
+        }
+    }
+
+    /**
+     * 配信状態の変化のイベント。<br />
+     * 届け終わると使い回されるので、受け取ったイベントを保持しないこと。
+     */
+    public static final class BroadcastStateEvent extends EventBus.Event {
+
+        /**
+         * 変更後の配信状態
+         */
+        private int mBroadcastState;
+
+        /**
+         * 変更後の配信状態を取得する
+         * 
+         * @return 変更後の配信状態
+         * @see VoiceSender#addBroadcastStateSubscriber(EventBus.Subscriber)
+         */
+        public int getBroadcastState() {
+            return mBroadcastState;
+        }
+
+        @Override
+        protected void reset() {
+            mBroadcastState = BROADCAST_STATE_STOPPED;
+        }
+    }
+
+    /**
+     * 音の大きさのイベント。<br />
+     * 届け終わると使い回されるので、受け取ったイベントを保持しないこと。
+     */
+    public static final class LoudnessEvent extends EventBus.Event {
+
+        /**
+         * 音の大きさ（dB）
+         */
+        private int mLoudness;
+
+        /**
+         * 音の大きさを取得する
+         * 
+         * @return 音の大きさ（dB）
+         */
+        public int getLoudness() {
+            return mLoudness;
+        }
+
+        @Override
+        protected void reset() {
+            mLoudness = 0;
+        }
+    }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Decides how to send the MP3 frames that have piled up while the connection
+ * was lost.
+ *
+ * Sending the whole backlog as fast as the network allows makes some servers
+ * drop the source for sending too fast, and listeners receive a burst. The
+ * backlog can instead be skipped to the live edge, or drained at a multiple of
+ * the bitrate with its own {@link SendScheduler}.
+ *
+ * Only the sender thread may call
+ * {@link #onReconnected(Mp3FrameQueue, Mp3FrameQueue.Cursor)} and
+ * {@link #select(SendScheduler, long)}. Statistics can be read from any
+ * thread.
+ */
+public final class BacklogDrainer {
+
+    /**
+     * Send the backlog as fast as possible.
+     */
+    public static final int POLICY_FULL_SPEED = 0;
+
+    /**
+     * Skip the backlog except for the newest frames.
+     */
+    public static final int POLICY_LIVE_EDGE = 1;
+
+    /**
+     * Send the backlog at a multiple of the bitrate.
+     */
+    public static final int POLICY_CATCH_UP = 2;
+
+    private final int policy;
+
+    private final long liveEdgeUs;
+
+    private final int catchUpRateBytesPerSec;
+
+    private final int targetBytes;
+
+    private SendScheduler catchUpScheduler;
+
+    private volatile long skippedFrames = 0;
+
+    private volatile long skippedUs = 0;
+
+    private volatile long drainCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param policy Drain policy.
+     * @param liveEdgeUs Duration of backlog in microseconds regarded as live.
+     *            {@link #POLICY_LIVE_EDGE} keeps this much, and
+     *            {@link #POLICY_CATCH_UP} stops pacing when the backlog is
+     *            this short.
+     * @param catchUpRateBytesPerSec Rate of {@link #POLICY_CATCH_UP} in bytes
+     *            per second.
+     * @param targetBytes Size of a write while catching up.
+     * @throws IllegalArgumentException Unknown policy or a parameter is out of
+     *             range.
+     */
+    public BacklogDrainer(int policy, long liveEdgeUs, int catchUpRateBytesPerSec,
+            int targetBytes) {
+        if (!isValidPolicy(policy)) {
+            throw new IllegalArgumentException("Unknown drain policy " + policy + ".");
+        }
+        if (liveEdgeUs < 0 || catchUpRateBytesPerSec <= 0 || targetBytes <= 0) {
+            throw new IllegalArgumentException("Parameter is out of range.");
+        }
+        this.policy = policy;
+        this.liveEdgeUs = liveEdgeUs;
+        this.catchUpRateBytesPerSec = catchUpRateBytesPerSec;
+        this.targetBytes = targetBytes;
+    }
+
+    /**
+     * Return true if the policy is known.
+     *
+     * @param policy Drain policy.
+     * @return True if the policy is known.
+     */
+    public static boolean isValidPolicy(int policy) {
+        switch (policy) {
+            case POLICY_FULL_SPEED:
+            case POLICY_LIVE_EDGE:
+            case POLICY_CATCH_UP:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Apply the policy to the backlog. Call when the connection is
+     * established again, before sending.
+     *
+     * @param queue Queue of MP3 frames.
+     * @param cursor Cursor of the sender.
+     */
+    public void onReconnected(Mp3FrameQueue queue, Mp3FrameQueue.Cursor cursor) {
+        catchUpScheduler = null;
+        switch (policy) {
+            case POLICY_LIVE_EDGE: {
+                final long beforeUs = queue.availableUs(cursor);
+                final int frames = queue.skipToLatest(cursor, liveEdgeUs);
+                if (frames > 0) {
+                    skippedFrames += frames;
+                    skippedUs += beforeUs - queue.availableUs(cursor);
+                }
+                break;
+            }
+            case POLICY_CATCH_UP:
+                if (queue.availableUs(cursor) > liveEdgeUs) {
+                    // The bucket holds one write, so the backlog does not start with a burst.
+                    catchUpScheduler = new SendScheduler(0, targetBytes,
+                            catchUpRateBytesPerSec, targetBytes);
+                    ++drainCount;
+                }
+                break;
+            case POLICY_FULL_SPEED:
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Return the scheduler to use for the next write.
+     *
+     * @param scheduler Scheduler used when there is no backlog.
+     * @param backlogUs Duration of frames not sent yet in microseconds.
+     * @return The scheduler to pace the backlog while catching up, otherwise
+     *         scheduler.
+     */
+    public SendScheduler select(SendScheduler scheduler, long backlogUs) {
+        if (catchUpScheduler != null && backlogUs <= liveEdgeUs) {
+            catchUpScheduler = null;
+        }
+        return (catchUpScheduler != null) ? catchUpScheduler : scheduler;
+    }
+
+    /**
+     * Return true while the backlog is paced.
+     *
+     * @return True while the backlog is paced.
+     */
+    public boolean isCatchingUp() {
+        return catchUpScheduler != null;
+    }
+
+    /**
+     * Return the drain policy.
+     *
+     * @return Drain policy.
+     */
+    public int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Return the number of frames skipped by {@link #POLICY_LIVE_EDGE}.
+     *
+     * @return The number of skipped frames.
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * Return duration of frames skipped by {@link #POLICY_LIVE_EDGE}.
+     *
+     * @return Duration of skipped frames in microseconds.
+     */
+    public long getSkippedUs() {
+        return skippedUs;
+    }
+
+    /**
+     * Return the number of times the backlog was paced by
+     * {@link #POLICY_CATCH_UP}.
+     *
+     * @return The number of times the backlog was paced.
+     */
+    public long getDrainCount() {
+        return drainCount;
+    }
+
+    @Override
+    public String toString() {
+        return "BacklogDrainer [policy=" + policy + ", liveEdge=" + (liveEdgeUs / 1000)
+                + " msec, rate=" + catchUpRateBytesPerSec + " bytes/sec, skipped="
+                + skippedFrames + " frames, drained=" + drainCount + "]";
+    }
+}
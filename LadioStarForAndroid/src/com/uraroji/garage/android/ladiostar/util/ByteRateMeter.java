@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Measures the number of bytes per second.
+ *
+ * Bytes are counted in buckets of one second. The recent rate is computed
+ * from the buckets in the window, and the average rate from the first byte.
+ * All methods are thread safe.
+ */
+public final class ByteRateMeter {
+
+    private final long[] buckets;
+
+    private final long[] bucketSeconds;
+
+    private long totalBytes = 0;
+
+    private long startTimeMs = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param windowSec Length of window in seconds for the recent rate.
+     * @throws IllegalArgumentException windowSec is not positive.
+     */
+    public ByteRateMeter(int windowSec) {
+        if (windowSec <= 0) {
+            throw new IllegalArgumentException("windowSec must be greater than 0.");
+        }
+        buckets = new long[windowSec];
+        bucketSeconds = new long[windowSec];
+        reset();
+    }
+
+    /**
+     * Count bytes.
+     *
+     * @param bytes The number of bytes.
+     * @param nowMs Current time in milliseconds.
+     */
+    public synchronized void add(long bytes, long nowMs) {
+        if (startTimeMs < 0) {
+            startTimeMs = nowMs;
+        }
+        final long sec = nowMs / 1000;
+        final int index = (int) (sec % buckets.length);
+        if (bucketSeconds[index] != sec) {
+            bucketSeconds[index] = sec;
+            buckets[index] = 0;
+        }
+        buckets[index] += bytes;
+        totalBytes += bytes;
+    }
+
+    /**
+     * Return the rate in the window.
+     *
+     * @param nowMs Current time in milliseconds.
+     * @return Bytes per second. 0 if nothing has been counted.
+     */
+    public long getBytesPerSec(long nowMs) {
+        return getRate(nowMs, 1000);
+    }
+
+    /**
+     * Return the rate in the window per the given period.
+     *
+     * The count is scaled to the period before it is divided by the span of
+     * the window, so that a rate below one per second is not truncated to 0.
+     *
+     * @param nowMs Current time in milliseconds.
+     * @param periodMs Period of the rate in milliseconds. e.g. 60000 for
+     *            the rate per minute.
+     * @return Count per period. 0 if nothing has been counted.
+     */
+    public synchronized long getRate(long nowMs, long periodMs) {
+        if (startTimeMs < 0) {
+            return 0;
+        }
+        final long sec = nowMs / 1000;
+        long sum = 0;
+        for (int i = 0; i < buckets.length; ++i) {
+            if (bucketSeconds[i] > sec - buckets.length && bucketSeconds[i] <= sec) {
+                sum += buckets[i];
+            }
+        }
+        final long spanStartMs = Math.max(startTimeMs, (sec - buckets.length + 1) * 1000);
+        return sum * periodMs / Math.max(nowMs - spanStartMs, 1000);
+    }
+
+    /**
+     * Return the average rate from the first byte.
+     *
+     * @param nowMs Current time in milliseconds.
+     * @return Bytes per second. 0 if nothing has been counted.
+     */
+    public synchronized long getAverageBytesPerSec(long nowMs) {
+        if (startTimeMs < 0) {
+            return 0;
+        }
+        return totalBytes * 1000 / Math.max(nowMs - startTimeMs, 1000);
+    }
+
+    /**
+     * Return the total number of bytes.
+     *
+     * @return The total number of bytes.
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Clear all counts.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = 0;
+            bucketSeconds[i] = Long.MIN_VALUE;
+        }
+        totalBytes = 0;
+        startTimeMs = -1;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.util.ArrayList;
+
+/**
+ * Tracks the default network and tells listeners when it changes.
+ *
+ * The platform reports the state with {@link #update(String, String)}, for
+ * example from a broadcast receiver of connectivity changes. Tests can call it
+ * directly to simulate the network.
+ *
+ * Listeners are called when the type of the default network changes, and when
+ * a network becomes available again after it was lost, because the address of
+ * the device has changed and existing connections are dead. A change of the
+ * subtype alone, such as from HSPA to LTE, keeps the address and is not
+ * reported.
+ *
+ * All methods are thread safe. Listeners are called on the thread that calls
+ * {@link #update(String, String)}.
+ */
+public final class ConnectivityWatcher {
+
+    /**
+     * Receives changes of the default network.
+     */
+    public interface Listener {
+
+        /**
+         * Called when the default network has changed.
+         *
+         * @param networkType New network type. See
+         *            {@link ConnectivityWatcher#getNetworkType()}.
+         */
+        void onDefaultNetworkChanged(String networkType);
+    }
+
+    private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+    private String type;
+
+    private String subtype;
+
+    private long changeCount = 0;
+
+    /**
+     * Constructor.
+     */
+    public ConnectivityWatcher() {
+    }
+
+    /**
+     * Add a listener.
+     *
+     * @param listener Listener.
+     */
+    public synchronized void addListener(Listener listener) {
+        if (listener != null && !listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param listener Listener.
+     */
+    public synchronized void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Report the state of the default network.
+     *
+     * @param newType Type of the default network, such as "WIFI" or
+     *            "MOBILE". null if there is no network.
+     * @param newSubtype Subtype of the network, such as "LTE". null or empty
+     *            if there is no subtype.
+     */
+    public void update(String newType, String newSubtype) {
+        final Listener[] targets;
+        final String networkType;
+        synchronized (this) {
+            final boolean changed = (newType != null) && !newType.equals(type);
+            type = newType;
+            subtype = (newSubtype == null || newSubtype.length() == 0) ? null : newSubtype;
+            if (!changed) {
+                return;
+            }
+            ++changeCount;
+            targets = listeners.toArray(new Listener[listeners.size()]);
+            networkType = getNetworkType();
+        }
+        for (Listener listener : targets) {
+            listener.onDefaultNetworkChanged(networkType);
+        }
+    }
+
+    /**
+     * Return the type of the default network including the subtype, such as
+     * "MOBILE/LTE" or "WIFI".
+     *
+     * @return Network type. null if there is no network.
+     */
+    public synchronized String getNetworkType() {
+        if (type == null) {
+            return null;
+        }
+        return (subtype == null) ? type : type + "/" + subtype;
+    }
+
+    /**
+     * Return the number of changes of the default network.
+     *
+     * @return The number of changes.
+     */
+    public synchronized long getChangeCount() {
+        return changeCount;
+    }
+}
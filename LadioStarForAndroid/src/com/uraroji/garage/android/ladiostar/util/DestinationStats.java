@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Counters of one stream destination.
+ *
+ * Counters are written by the sender thread of the destination and can be
+ * read from any thread.
+ */
+public final class DestinationStats {
+
+    private final String name;
+
+    private volatile boolean connected = false;
+
+    private volatile long sentBytes = 0;
+
+    private volatile long droppedFrames = 0;
+
+    private volatile int connectCount = 0;
+
+    private volatile int failureCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param name Name of the destination, such as "host:port/mount".
+     */
+    public DestinationStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Return name of the destination.
+     *
+     * @return Name of the destination.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Record that the stream started.
+     */
+    public void onConnected() {
+        ++connectCount;
+        connected = true;
+    }
+
+    /**
+     * Record that the stream ended.
+     *
+     * @param failed True if the stream ended by an error.
+     */
+    public void onDisconnected(boolean failed) {
+        if (failed) {
+            ++failureCount;
+        }
+        connected = false;
+    }
+
+    /**
+     * Add sent bytes.
+     *
+     * @param bytes Sent bytes.
+     */
+    public void addSentBytes(long bytes) {
+        sentBytes += bytes;
+    }
+
+    /**
+     * Set the number of frames overwritten before they were sent.
+     *
+     * @param frames The number of dropped frames.
+     */
+    public void setDroppedFrames(long frames) {
+        droppedFrames = frames;
+    }
+
+    /**
+     * Return true if the stream is being sent.
+     *
+     * @return True if the stream is being sent.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Return the number of sent bytes.
+     *
+     * @return The number of sent bytes.
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Return the number of frames overwritten before they were sent.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Return the number of times the stream started.
+     *
+     * @return The number of times the stream started.
+     */
+    public int getConnectCount() {
+        return connectCount;
+    }
+
+    /**
+     * Return the number of failures.
+     *
+     * @return The number of failures.
+     */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    @Override
+    public String toString() {
+        return "DestinationStats [" + name + ", connected=" + connected + ", sent="
+                + sentBytes + " bytes, dropped=" + droppedFrames + " frames, connects="
+                + connectCount + ", failures=" + failureCount + "]";
+    }
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Typed event bus with pooled events.
+ *
+ * Each kind of event is declared as a {@link Type}, which holds its own pool
+ * of event objects and its own subscribers. The producer obtains an event
+ * from the pool, fills it and posts it. Posted events are queued and
+ * delivered in order by {@link #drain()}, which the {@link Dispatcher} runs on
+ * the thread that should receive them. Delivered events go back to the pool,
+ * so posting allocates nothing once the pool is warm.
+ *
+ * A coalesced type keeps at most one event in the queue. Posting it again
+ * before delivery replaces the queued event in place, so that subscribers
+ * only see the latest value.
+ *
+ * All methods are thread safe.
+ */
+public final class EventBus {
+
+    /**
+     * Schedules the delivery of queued events.
+     */
+    public interface Dispatcher {
+
+        /**
+         * Called when events are queued and no delivery is scheduled yet.
+         * The implementation should run the given task soon on the thread
+         * that receives the events.
+         *
+         * @param drain Task that delivers the queued events. The same
+         *            instance is passed every time.
+         */
+        void dispatch(Runnable drain);
+    }
+
+    /**
+     * Receives events of one type.
+     *
+     * @param <E> Type of the event.
+     */
+    public interface Subscriber<E extends Event> {
+
+        /**
+         * Called for each delivered event. The event is recycled after the
+         * call returns, so it must not be kept.
+         *
+         * @param event Delivered event.
+         */
+        void onEvent(E event);
+    }
+
+    /**
+     * Creates events of one type when the pool is empty.
+     *
+     * @param <E> Type of the event.
+     */
+    public interface Factory<E extends Event> {
+
+        /**
+         * @return New event.
+         */
+        E create();
+    }
+
+    /**
+     * Base class of the events.
+     */
+    public abstract static class Event {
+
+        private static final int STATE_FREE = 0;
+
+        private static final int STATE_OBTAINED = 1;
+
+        private static final int STATE_QUEUED = 2;
+
+        private Type<?> type;
+
+        private Event next;
+
+        private int state = STATE_FREE;
+
+        /**
+         * @return Type of this event.
+         */
+        public final Type<?> getType() {
+            return type;
+        }
+
+        /**
+         * Clears the values of this event before it goes back to the pool.
+         */
+        protected abstract void reset();
+    }
+
+    /**
+     * Kind of event, with its pool and subscribers.
+     *
+     * @param <E> Type of the event.
+     */
+    public static final class Type<E extends Event> {
+
+        private final EventBus bus;
+
+        private final String name;
+
+        private final Factory<E> factory;
+
+        private final boolean coalesced;
+
+        private final Event[] pool;
+
+        private int pooled;
+
+        private Event pending;
+
+        @SuppressWarnings("rawtypes")
+        private final ListenerRegistry<Subscriber> subscribers = new ListenerRegistry<Subscriber>(
+                Subscriber.class);
+
+        private Type(EventBus bus, String name, Factory<E> factory, boolean coalesced,
+                int poolCapacity) {
+            this.bus = bus;
+            this.name = name;
+            this.factory = factory;
+            this.coalesced = coalesced;
+            this.pool = new Event[poolCapacity];
+        }
+
+        /**
+         * @return Name of this type.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return True if only the latest queued event is delivered.
+         */
+        public boolean isCoalesced() {
+            return coalesced;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final Object lock = new Object();
+
+    private volatile Dispatcher dispatcher;
+
+    private Event head;
+
+    private Event tail;
+
+    private boolean scheduled;
+
+    private long postedCount;
+
+    private long coalescedCount;
+
+    private long deliveredCount;
+
+    private long createdCount;
+
+    private final Runnable drainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Sets the dispatcher. Without a dispatcher, events are delivered on the
+     * thread that posts them.
+     *
+     * @param dispatcher Dispatcher, or null.
+     */
+    public void setDispatcher(Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    /**
+     * Declares a kind of event.
+     *
+     * @param name Name of the type, for logs.
+     * @param factory Creates events when the pool is empty.
+     * @param coalesced True to deliver only the latest queued event.
+     * @param poolCapacity Number of recycled events kept in the pool.
+     * @return Declared type.
+     */
+    public <E extends Event> Type<E> defineType(String name, Factory<E> factory,
+            boolean coalesced, int poolCapacity) {
+        if (factory == null) {
+            throw new IllegalArgumentException("factory must not be null.");
+        }
+        if (poolCapacity < 0) {
+            throw new IllegalArgumentException("poolCapacity must not be negative.");
+        }
+        return new Type<E>(this, name, factory, coalesced, poolCapacity);
+    }
+
+    /**
+     * Adds a subscriber of a type.
+     *
+     * @param type Type of the event.
+     * @param subscriber Subscriber to add. Null is ignored.
+     */
+    public <E extends Event> void subscribe(Type<E> type, Subscriber<? super E> subscriber) {
+        checkType(type);
+        type.subscribers.add(subscriber);
+    }
+
+    /**
+     * Removes a subscriber of a type.
+     *
+     * @param type Type of the event.
+     * @param subscriber Subscriber to remove.
+     */
+    public <E extends Event> void unsubscribe(Type<E> type, Subscriber<? super E> subscriber) {
+        checkType(type);
+        type.subscribers.remove(subscriber);
+    }
+
+    /**
+     * Tells whether a type has subscribers. The producer can use this to
+     * skip building events nobody receives.
+     *
+     * @param type Type of the event.
+     * @return True if the type has subscribers.
+     */
+    public boolean hasSubscribers(Type<?> type) {
+        return !type.subscribers.isEmpty();
+    }
+
+    /**
+     * Takes an event from the pool of a type, or creates one if the pool is
+     * empty. The event must be passed to {@link #post(Event)}.
+     *
+     * @param type Type of the event.
+     * @return Event to fill and post.
+     */
+    @SuppressWarnings("unchecked")
+    public <E extends Event> E obtain(Type<E> type) {
+        checkType(type);
+        Event event = null;
+        synchronized (lock) {
+            if (type.pooled > 0) {
+                event = type.pool[--type.pooled];
+                type.pool[type.pooled] = null;
+            } else {
+                ++createdCount;
+            }
+        }
+        if (event == null) {
+            event = type.factory.create();
+            event.type = type;
+        }
+        event.state = Event.STATE_OBTAINED;
+        return (E) event;
+    }
+
+    /**
+     * Queues an event obtained by {@link #obtain(Type)}. If its type is
+     * coalesced and an event of the type is still queued, the queued event is
+     * replaced.
+     *
+     * @param event Event to post.
+     */
+    public void post(Event event) {
+        if (event == null || event.type == null || event.type.bus != this) {
+            throw new IllegalArgumentException("event was not obtained from this bus.");
+        }
+        final Type<?> type = event.type;
+        final boolean schedule;
+        synchronized (lock) {
+            if (event.state != Event.STATE_OBTAINED) {
+                throw new IllegalStateException("event is already posted.");
+            }
+            ++postedCount;
+            event.state = Event.STATE_QUEUED;
+            if (type.coalesced && type.pending != null) {
+                replace(type.pending, event);
+                ++coalescedCount;
+            } else {
+                if (tail == null) {
+                    head = event;
+                } else {
+                    tail.next = event;
+                }
+                tail = event;
+            }
+            if (type.coalesced) {
+                type.pending = event;
+            }
+            schedule = !scheduled;
+            scheduled = true;
+        }
+
+        if (schedule) {
+            final Dispatcher d = dispatcher;
+            if (d != null) {
+                d.dispatch(drainTask);
+            } else {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * Delivers all queued events to their subscribers and recycles them.
+     * Normally called by the {@link Dispatcher}.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void drain() {
+        Event event;
+        synchronized (lock) {
+            event = head;
+            head = null;
+            tail = null;
+            scheduled = false;
+            for (Event e = event; e != null; e = e.next) {
+                e.type.pending = null;
+            }
+        }
+
+        while (event != null) {
+            final Event next = event.next;
+            event.next = null;
+            for (Subscriber s : event.type.subscribers.snapshot()) {
+                s.onEvent(event);
+            }
+            recycle(event);
+            event = next;
+        }
+    }
+
+    /**
+     * @return Number of posted events.
+     */
+    public long getPostedCount() {
+        synchronized (lock) {
+            return postedCount;
+        }
+    }
+
+    /**
+     * @return Number of events replaced by a later event of the same type.
+     */
+    public long getCoalescedCount() {
+        synchronized (lock) {
+            return coalescedCount;
+        }
+    }
+
+    /**
+     * @return Number of delivered events.
+     */
+    public long getDeliveredCount() {
+        synchronized (lock) {
+            return deliveredCount;
+        }
+    }
+
+    /**
+     * @return Number of events created because the pool was empty.
+     */
+    public long getCreatedCount() {
+        synchronized (lock) {
+            return createdCount;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "EventBus[posted=" + postedCount + ", coalesced=" + coalescedCount
+                    + ", delivered=" + deliveredCount + ", created=" + createdCount + "]";
+        }
+    }
+
+    private void checkType(Type<?> type) {
+        if (type == null || type.bus != this) {
+            throw new IllegalArgumentException("type was not defined by this bus.");
+        }
+    }
+
+    /**
+     * Puts an event at the position of a queued event. Called with the lock
+     * held.
+     */
+    private void replace(Event queued, Event event) {
+        Event prev = null;
+        for (Event e = head; e != queued; e = e.next) {
+            prev = e;
+        }
+        event.next = queued.next;
+        if (prev == null) {
+            head = event;
+        } else {
+            prev.next = event;
+        }
+        if (tail == queued) {
+            tail = event;
+        }
+        queued.next = null;
+        release(queued);
+    }
+
+    private void recycle(Event event) {
+        synchronized (lock) {
+            ++deliveredCount;
+            release(event);
+        }
+    }
+
+    /**
+     * Returns an event to the pool of its type. Called with the lock held.
+     */
+    private void release(Event event) {
+        event.reset();
+        event.state = Event.STATE_FREE;
+        final Type<?> type = event.type;
+        if (type.pooled < type.pool.length) {
+            type.pool[type.pooled++] = event;
+        }
+    }
+}
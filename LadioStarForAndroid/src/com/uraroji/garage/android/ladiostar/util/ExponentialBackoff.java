@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.util.Random;
+
+/**
+ * Computes retry delays by capped exponential backoff with jitter.
+ *
+ * The delay doubles from the base delay on every attempt up to the maximum
+ * delay. A random part of the delay, given by the jitter ratio, is removed so
+ * that clients do not retry at the same time. This class is not thread safe.
+ */
+public final class ExponentialBackoff {
+
+    private final long baseDelayMs;
+
+    private final long maxDelayMs;
+
+    private final double jitter;
+
+    private final Random random;
+
+    private int attempt = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param baseDelayMs Delay of the first attempt.
+     * @param maxDelayMs Maximum delay.
+     * @param jitter Ratio of random part of delay. (0.0-1.0)
+     * @param random Random number generator.
+     * @throws IllegalArgumentException Arguments are out of range.
+     */
+    public ExponentialBackoff(long baseDelayMs, long maxDelayMs, double jitter, Random random) {
+        if (baseDelayMs <= 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException(
+                    "baseDelayMs must be greater than 0 and less than or equal to maxDelayMs.");
+        }
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be 0.0-1.0.");
+        }
+        if (random == null) {
+            throw new IllegalArgumentException("random must be not null.");
+        }
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.jitter = jitter;
+        this.random = random;
+    }
+
+    /**
+     * Return the delay of the next attempt and count the attempt.
+     *
+     * @return Delay in milliseconds.
+     */
+    public long nextDelayMs() {
+        long delay = maxDelayMs;
+        // Avoid overflow of shift.
+        if (attempt < 62 && (baseDelayMs << attempt) >> attempt == baseDelayMs) {
+            delay = Math.min(baseDelayMs << attempt, maxDelayMs);
+        }
+        ++attempt;
+        return delay - (long) (delay * jitter * random.nextDouble());
+    }
+
+    /**
+     * Return the number of attempts since the last reset.
+     *
+     * @return The number of attempts.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    /**
+     * Reset the number of attempts after success.
+     */
+    public void reset() {
+        attempt = 0;
+    }
+}
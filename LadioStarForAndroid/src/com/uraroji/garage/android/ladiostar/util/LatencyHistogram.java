@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Histogram of durations.
+ *
+ * Each bucket counts durations less than or equal to its upper bound. The last
+ * bucket counts durations larger than all upper bounds. All methods are
+ * thread safe.
+ */
+public final class LatencyHistogram {
+
+    private final long[] upperBoundsMs;
+
+    private final long[] counts;
+
+    private long totalCount = 0;
+
+    private long maxMs = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param upperBoundsMs Upper bounds of buckets in ascending order.
+     * @throws IllegalArgumentException upperBoundsMs is empty or not in
+     *             ascending order.
+     */
+    public LatencyHistogram(long[] upperBoundsMs) {
+        if (upperBoundsMs == null || upperBoundsMs.length == 0) {
+            throw new IllegalArgumentException("upperBoundsMs must be not empty.");
+        }
+        for (int i = 1; i < upperBoundsMs.length; ++i) {
+            if (upperBoundsMs[i] <= upperBoundsMs[i - 1]) {
+                throw new IllegalArgumentException("upperBoundsMs must be in ascending order.");
+            }
+        }
+        this.upperBoundsMs = upperBoundsMs.clone();
+        this.counts = new long[upperBoundsMs.length + 1];
+    }
+
+    /**
+     * Count a duration.
+     *
+     * @param durationMs Duration in milliseconds.
+     */
+    public synchronized void record(long durationMs) {
+        int i = 0;
+        while (i < upperBoundsMs.length && durationMs > upperBoundsMs[i]) {
+            ++i;
+        }
+        ++counts[i];
+        ++totalCount;
+        maxMs = Math.max(maxMs, durationMs);
+    }
+
+    /**
+     * Return the number of buckets. It is the number of upper bounds plus one.
+     *
+     * @return The number of buckets.
+     */
+    public int getBucketCount() {
+        return counts.length;
+    }
+
+    /**
+     * Return the upper bound of bucket.
+     *
+     * @param bucket Index of bucket.
+     * @return Upper bound in milliseconds. Long.MAX_VALUE for the last bucket.
+     */
+    public long getUpperBoundMs(int bucket) {
+        return (bucket < upperBoundsMs.length) ? upperBoundsMs[bucket] : Long.MAX_VALUE;
+    }
+
+    /**
+     * Return the count of bucket.
+     *
+     * @param bucket Index of bucket.
+     * @return Count of bucket.
+     */
+    public synchronized long getCount(int bucket) {
+        return counts[bucket];
+    }
+
+    /**
+     * Return the total count.
+     *
+     * @return The total count.
+     */
+    public synchronized long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Return the maximum duration.
+     *
+     * @return The maximum duration in milliseconds. 0 if nothing has been
+     *         counted.
+     */
+    public synchronized long getMaxMs() {
+        return maxMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder sb = new StringBuilder("LatencyHistogram [");
+        for (int i = 0; i < counts.length; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append((i < upperBoundsMs.length) ? "<=" + upperBoundsMs[i] : ">"
+                    + upperBoundsMs[upperBoundsMs.length - 1]);
+            sb.append("ms=").append(counts[i]);
+        }
+        sb.append(", max=").append(maxMs).append("ms]");
+        return sb.toString();
+    }
+}
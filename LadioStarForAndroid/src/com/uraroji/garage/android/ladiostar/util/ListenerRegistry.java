@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.lang.reflect.Array;
+
+/**
+ * Copy-on-write registry of listeners.
+ *
+ * The listeners are held in an immutable array. Adding or removing a
+ * listener builds a new array and swaps it in, so that notifying the
+ * listeners needs neither a lock nor a copy. This fits listeners that are
+ * changed rarely and notified often.
+ *
+ * All methods are thread safe.
+ *
+ * @param <T> Type of the listener.
+ */
+public final class ListenerRegistry<T> {
+
+    private final Object lock = new Object();
+
+    private final T[] empty;
+
+    private volatile T[] listeners;
+
+    /**
+     * Constructor
+     *
+     * @param type Class of the listener.
+     */
+    @SuppressWarnings("unchecked")
+    public ListenerRegistry(Class<T> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("type must not be null.");
+        }
+        empty = (T[]) Array.newInstance(type, 0);
+        listeners = empty;
+    }
+
+    /**
+     * Adds a listener. The same listener can be added more than once.
+     *
+     * @param listener Listener to add. Null is ignored.
+     */
+    public void add(T listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (lock) {
+            final T[] current = listeners;
+            final T[] next = newArray(current.length + 1);
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = listener;
+            listeners = next;
+        }
+    }
+
+    /**
+     * Removes the first occurrence of a listener.
+     *
+     * @param listener Listener to remove.
+     * @return True if the listener was registered.
+     */
+    public boolean remove(T listener) {
+        synchronized (lock) {
+            final T[] current = listeners;
+            for (int i = 0; i < current.length; ++i) {
+                if (current[i] == listener
+                        || (listener != null && listener.equals(current[i]))) {
+                    final T[] next = newArray(current.length - 1);
+                    System.arraycopy(current, 0, next, 0, i);
+                    System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                    listeners = next;
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Removes all listeners.
+     */
+    public void clear() {
+        synchronized (lock) {
+            listeners = empty;
+        }
+    }
+
+    /**
+     * Gets the registered listeners at this moment. The array is shared and
+     * must not be modified. Later changes of the registry do not affect it.
+     *
+     * @return Registered listeners. Never null.
+     */
+    public T[] snapshot() {
+        return listeners;
+    }
+
+    /**
+     * @return Number of the registered listeners.
+     */
+    public int size() {
+        return listeners.length;
+    }
+
+    /**
+     * @return True if no listener is registered.
+     */
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T[] newArray(int length) {
+        if (length == 0) {
+            return empty;
+        }
+        return (T[]) Array.newInstance(empty.getClass().getComponentType(), length);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Splits MPEG-1/2/2.5 Layer III stream into frames and writes them to
+ * {@link Mp3FrameQueue} with timestamp.
+ *
+ * The stream may be split at any position. ID3v2 tags, ID3v1 tags and data
+ * that is not a frame are skipped. When the parser is not in sync, a frame is
+ * accepted only if it is followed by another frame or a tag.
+ *
+ * The timestamp of a frame is computed from the number of samples before the
+ * frame, so it does not drift. It stays continuous when the sample rate of the
+ * stream changes.
+ *
+ * No memory is allocated after construction. This class is not thread safe.
+ */
+public final class Mp3FrameParser {
+
+    /**
+     * Length of the largest Layer III frame in bytes.
+     */
+    public static final int MAX_FRAME_LENGTH = 1441;
+
+    /**
+     * Maximum number of Layer III frames per second.
+     */
+    public static final int MAX_FRAMES_PER_SEC = 42;
+
+    private static final int HEADER_LENGTH = 4;
+
+    private static final int ID3V2_HEADER_LENGTH = 10;
+
+    private static final int ID3V1_LENGTH = 128;
+
+    private static final int VERSION_MPEG25 = 0;
+
+    private static final int VERSION_MPEG2 = 2;
+
+    private static final int VERSION_MPEG1 = 3;
+
+    private static final int[] BITRATES_MPEG1 = {
+            0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320
+    };
+
+    private static final int[] BITRATES_MPEG2 = {
+            0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160
+    };
+
+    private static final int[] SAMPLE_RATES_MPEG1 = {
+            44100, 48000, 32000
+    };
+
+    private final byte[] buffer = new byte[MAX_FRAME_LENGTH * 2];
+
+    private int start = 0;
+
+    private int end = 0;
+
+    private int skipRemaining = 0;
+
+    private boolean synced = false;
+
+    private int sampleRate = 0;
+
+    private long samplePosition = 0;
+
+    private long timeBaseUs = 0;
+
+    private long frameCount = 0;
+
+    private long skippedBytes = 0;
+
+    /**
+     * Constructor.
+     */
+    public Mp3FrameParser() {
+    }
+
+    /**
+     * Parse stream data and write complete frames to queue.
+     *
+     * Data of an incomplete frame is kept until the next call.
+     *
+     * @param data Stream data.
+     * @param offset
+     * @param len
+     * @param queue Queue to write frames.
+     * @return The number of frames written.
+     */
+    public int parse(byte[] data, int offset, int len, Mp3FrameQueue queue) {
+        int frames = 0;
+        while (len > 0) {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            final int l = Math.min(len, buffer.length - end);
+            System.arraycopy(data, offset, buffer, end, l);
+            end += l;
+            offset += l;
+            len -= l;
+
+            frames += process(queue);
+        }
+        return frames;
+    }
+
+    private int process(Mp3FrameQueue queue) {
+        int frames = 0;
+        while (true) {
+            if (skipRemaining > 0) {
+                final int l = Math.min(skipRemaining, end - start);
+                start += l;
+                skipRemaining -= l;
+                skippedBytes += l;
+                if (skipRemaining > 0) {
+                    return frames;
+                }
+            }
+
+            final int available = end - start;
+            if (available < HEADER_LENGTH) {
+                return frames;
+            }
+
+            if (isId3v2(buffer, start)) {
+                if (available < ID3V2_HEADER_LENGTH) {
+                    return frames;
+                }
+                final int tagLength = getId3v2Length(buffer, start);
+                if (tagLength > 0) {
+                    skipRemaining = tagLength;
+                    continue;
+                }
+            } else if (isId3v1(buffer, start)) {
+                skipRemaining = ID3V1_LENGTH;
+                continue;
+            }
+
+            final int frameLength = getFrameLength(buffer, start);
+            if (frameLength < 0) {
+                ++start;
+                ++skippedBytes;
+                synced = false;
+                continue;
+            }
+
+            if (synced) {
+                if (available < frameLength) {
+                    return frames;
+                }
+            } else {
+                // Confirm the frame by the next header.
+                if (available < frameLength + HEADER_LENGTH) {
+                    return frames;
+                }
+                if (!isBoundary(buffer, start + frameLength)) {
+                    ++start;
+                    ++skippedBytes;
+                    continue;
+                }
+                synced = true;
+            }
+
+            writeFrame(frameLength, queue);
+            start += frameLength;
+            ++frames;
+        }
+    }
+
+    private void writeFrame(int frameLength, Mp3FrameQueue queue) {
+        final int rate = getSampleRate(buffer, start);
+        if (rate != sampleRate) {
+            if (sampleRate != 0) {
+                timeBaseUs += samplePosition * 1000000L / sampleRate;
+            }
+            sampleRate = rate;
+            samplePosition = 0;
+        }
+        queue.put(buffer, start, frameLength, getTimestampUs(), rate, getBitrate(buffer, start));
+        samplePosition += getSamplesPerFrame(buffer, start);
+        ++frameCount;
+    }
+
+    private static boolean isBoundary(byte[] data, int offset) {
+        return getFrameLength(data, offset) > 0 || isId3v2(data, offset)
+                || isId3v1(data, offset);
+    }
+
+    private static boolean isId3v2(byte[] data, int offset) {
+        return data[offset] == 'I' && data[offset + 1] == 'D' && data[offset + 2] == '3';
+    }
+
+    private static boolean isId3v1(byte[] data, int offset) {
+        return data[offset] == 'T' && data[offset + 1] == 'A' && data[offset + 2] == 'G';
+    }
+
+    /**
+     * Return total length of ID3v2 tag.
+     *
+     * @return Total length of tag. -1 if the header is not valid.
+     */
+    private static int getId3v2Length(byte[] data, int offset) {
+        if ((data[offset + 3] & 0xFF) == 0xFF || (data[offset + 4] & 0xFF) == 0xFF) {
+            return -1;
+        }
+        int size = 0;
+        for (int i = 6; i < ID3V2_HEADER_LENGTH; ++i) {
+            final int b = data[offset + i] & 0xFF;
+            if (b >= 0x80) {
+                return -1;
+            }
+            size = (size << 7) | b;
+        }
+        final boolean hasFooter = (data[offset + 5] & 0x10) != 0;
+        return ID3V2_HEADER_LENGTH + size + (hasFooter ? ID3V2_HEADER_LENGTH : 0);
+    }
+
+    /**
+     * Return length of frame from the frame header.
+     *
+     * @param data Data at least 4 bytes from offset.
+     * @param offset Position of frame header.
+     * @return Length of frame in bytes. -1 if it is not a valid Layer III
+     *         header.
+     */
+    public static int getFrameLength(byte[] data, int offset) {
+        final int b1 = data[offset + 1] & 0xFF;
+        final int b2 = data[offset + 2] & 0xFF;
+        final int b3 = data[offset + 3] & 0xFF;
+        if ((data[offset] & 0xFF) != 0xFF || (b1 & 0xE0) != 0xE0) {
+            return -1;
+        }
+        final int version = (b1 >> 3) & 0x03;
+        final int layer = (b1 >> 1) & 0x03;
+        final int bitrateIndex = (b2 >> 4) & 0x0F;
+        final int sampleRateIndex = (b2 >> 2) & 0x03;
+        if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15
+                || sampleRateIndex == 3 || (b3 & 0x03) == 2) {
+            return -1;
+        }
+        final int padding = (b2 >> 1) & 0x01;
+        final int coefficient = (version == VERSION_MPEG1) ? 144 : 72;
+        return coefficient * getBitrate(data, offset) * 1000 / getSampleRate(data, offset)
+                + padding;
+    }
+
+    /**
+     * Return bitrate from the frame header.
+     *
+     * @param data Data at least 4 bytes from offset.
+     * @param offset Position of valid frame header.
+     * @return Bitrate in kbps.
+     */
+    public static int getBitrate(byte[] data, int offset) {
+        final int version = (data[offset + 1] >> 3) & 0x03;
+        final int bitrateIndex = (data[offset + 2] >> 4) & 0x0F;
+        return (version == VERSION_MPEG1) ? BITRATES_MPEG1[bitrateIndex]
+                : BITRATES_MPEG2[bitrateIndex];
+    }
+
+    /**
+     * Return sample rate from the frame header.
+     *
+     * @param data Data at least 4 bytes from offset.
+     * @param offset Position of valid frame header.
+     * @return Sample rate.
+     */
+    public static int getSampleRate(byte[] data, int offset) {
+        final int version = (data[offset + 1] >> 3) & 0x03;
+        final int rate = SAMPLE_RATES_MPEG1[(data[offset + 2] >> 2) & 0x03];
+        switch (version) {
+            case VERSION_MPEG2:
+                return rate / 2;
+            case VERSION_MPEG25:
+                return rate / 4;
+            case VERSION_MPEG1:
+            default:
+                return rate;
+        }
+    }
+
+    /**
+     * Return the number of samples per channel in a frame from the frame
+     * header.
+     *
+     * @param data Data at least 4 bytes from offset.
+     * @param offset Position of valid frame header.
+     * @return The number of samples per channel in a frame.
+     */
+    public static int getSamplesPerFrame(byte[] data, int offset) {
+        final int version = (data[offset + 1] >> 3) & 0x03;
+        return (version == VERSION_MPEG1) ? 1152 : 576;
+    }
+
+    /**
+     * Return timestamp of the next frame.
+     *
+     * @return Timestamp of the next frame in microseconds.
+     */
+    public long getTimestampUs() {
+        if (sampleRate == 0) {
+            return timeBaseUs;
+        }
+        return timeBaseUs + samplePosition * 1000000L / sampleRate;
+    }
+
+    /**
+     * Return the number of frames written.
+     *
+     * @return The number of frames written.
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Return the number of skipped bytes. Tags are included.
+     *
+     * @return The number of skipped bytes.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * Discard incomplete frame and lose sync. Timestamp is not reset.
+     */
+    public void reset() {
+        start = 0;
+        end = 0;
+        skipRemaining = 0;
+        synced = false;
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.nio.BufferOverflowException;
+
+/**
+ * Ring buffer of MP3 frames.
+ *
+ * Each frame is given a sequence number that increases by one for every frame
+ * written. When the queue is full, the oldest frames are overwritten. Readers
+ * keep their own position in {@link Cursor}, so several readers can read the
+ * same frames, and a reader that has been overtaken by the writer can tell how
+ * many frames it lost.
+ *
+ * All memory is allocated in the constructor. This class is not thread safe.
+ */
+public final class Mp3FrameQueue {
+
+    private final byte[] data;
+
+    private final long[] offsets;
+
+    private final int[] lengths;
+
+    private final long[] timestamps;
+
+    private final int[] sampleRates;
+
+    private final int[] bitrates;
+
+    private long oldest = 0;
+
+    private long next = 0;
+
+    private long writePosition = 0;
+
+    private long overwrittenFrames = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Capacity of frame data in bytes. It must be greater than
+     *            or equal to the length of the largest frame.
+     * @param frameCapacity Maximum number of frames.
+     * @throws IllegalArgumentException capacity or frameCapacity is not
+     *             positive.
+     */
+    public Mp3FrameQueue(int capacity, int frameCapacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0.");
+        }
+        if (frameCapacity <= 0) {
+            throw new IllegalArgumentException("frameCapacity must be greater than 0.");
+        }
+        data = new byte[capacity];
+        offsets = new long[frameCapacity];
+        lengths = new int[frameCapacity];
+        timestamps = new long[frameCapacity];
+        sampleRates = new int[frameCapacity];
+        bitrates = new int[frameCapacity];
+    }
+
+    /**
+     * Constructor. Copy frames from other queue.
+     *
+     * Sequence numbers of the copied frames are kept, so cursors of the source
+     * queue can be used with the new queue. If the new queue is smaller than
+     * the source queue, only the newest frames are copied.
+     *
+     * @param capacity Capacity of frame data in bytes.
+     * @param frameCapacity Maximum number of frames.
+     * @param src Source queue.
+     */
+    public Mp3FrameQueue(int capacity, int frameCapacity, Mp3FrameQueue src) {
+        this(capacity, frameCapacity);
+        oldest = src.oldest;
+        next = src.oldest;
+        for (long seq = src.oldest; seq < src.next; ++seq) {
+            final int slot = src.slot(seq);
+            if (src.lengths[slot] > data.length) {
+                oldest = seq + 1;
+                next = seq + 1;
+                continue;
+            }
+            putFrom(src, slot);
+        }
+    }
+
+    /**
+     * Return capacity of frame data in bytes.
+     *
+     * @return Capacity of frame data in bytes.
+     */
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Return maximum number of frames.
+     *
+     * @return Maximum number of frames.
+     */
+    public int frameCapacity() {
+        return lengths.length;
+    }
+
+    /**
+     * Write a frame. If the queue is full, the oldest frames are overwritten.
+     *
+     * @param frame Frame data.
+     * @param offset
+     * @param length Length of frame.
+     * @param timestampUs Timestamp of frame in microseconds.
+     * @param sampleRate Sample rate of frame.
+     * @param bitrate Bitrate of frame in kbps.
+     * @throws BufferOverflowException The frame is larger than the capacity.
+     */
+    public void put(byte[] frame, int offset, int length, long timestampUs, int sampleRate,
+            int bitrate) {
+        if (length <= 0) {
+            return;
+        }
+        final int slot = reserve(length);
+        copyIn(frame, offset, length);
+        setFrameInfo(slot, length, timestampUs, sampleRate, bitrate);
+    }
+
+    private void putFrom(Mp3FrameQueue src, int srcSlot) {
+        final int length = src.lengths[srcSlot];
+        final int slot = reserve(length);
+        final int srcPos = (int) (src.offsets[srcSlot] % src.data.length);
+        final int l = Math.min(length, src.data.length - srcPos);
+        copyIn(src.data, srcPos, l);
+        if (length > l) {
+            copyIn(src.data, 0, length - l);
+        }
+        setFrameInfo(slot, length, src.timestamps[srcSlot], src.sampleRates[srcSlot],
+                src.bitrates[srcSlot]);
+    }
+
+    /**
+     * Remove the oldest frames until the frame fits.
+     *
+     * @return Slot of the new frame.
+     */
+    private int reserve(int length) {
+        if (length > data.length) {
+            throw new BufferOverflowException();
+        }
+        while (next - oldest >= lengths.length
+                || (next > oldest && writePosition + length - offsets[slot(oldest)] > data.length)) {
+            ++oldest;
+            ++overwrittenFrames;
+        }
+        final int slot = slot(next);
+        offsets[slot] = writePosition;
+        return slot;
+    }
+
+    private void copyIn(byte[] src, int offset, int length) {
+        final int pos = (int) (writePosition % data.length);
+        final int l = Math.min(length, data.length - pos);
+        System.arraycopy(src, offset, data, pos, l);
+        if (length > l) {
+            System.arraycopy(src, offset + l, data, 0, length - l);
+        }
+        writePosition += length;
+    }
+
+    private void setFrameInfo(int slot, int length, long timestampUs, int sampleRate,
+            int bitrate) {
+        lengths[slot] = length;
+        timestamps[slot] = timestampUs;
+        sampleRates[slot] = sampleRate;
+        bitrates[slot] = bitrate;
+        ++next;
+    }
+
+    /**
+     * Read as many whole frames as fit in the buffer from the position of the
+     * cursor, and advance the cursor.
+     *
+     * If the frames at the position of the cursor have already been
+     * overwritten, the cursor is moved to the oldest frame and the number of
+     * lost frames is added to {@link Cursor#getDroppedFrames()}.
+     *
+     * @param cursor Cursor.
+     * @param dst Put data here.
+     * @param offset
+     * @param len Size of buffer. If it is smaller than the next frame, nothing
+     *            is read.
+     * @return Read size. 0 if there is no frame to read.
+     */
+    public int read(Cursor cursor, byte[] dst, int offset, int len) {
+        skipOverwritten(cursor);
+
+        int total = 0;
+        while (cursor.position < next) {
+            final int slot = slot(cursor.position);
+            final int length = lengths[slot];
+            if (total + length > len) {
+                break;
+            }
+            copyOut(slot, dst, offset + total);
+            total += length;
+            ++cursor.position;
+        }
+        return total;
+    }
+
+    /**
+     * Return the number of frames that can be read from the cursor.
+     *
+     * @param cursor Cursor.
+     * @return The number of frames that can be read from the cursor.
+     */
+    public int available(Cursor cursor) {
+        final long from = Math.max(cursor.position, oldest);
+        return (int) Math.max(0, next - from);
+    }
+
+    /**
+     * Return the size of frames that can be read from the cursor.
+     *
+     * @param cursor Cursor.
+     * @return The size of frames that can be read from the cursor in bytes.
+     */
+    public int availableBytes(Cursor cursor) {
+        final long from = Math.max(cursor.position, oldest);
+        if (from >= next) {
+            return 0;
+        }
+        return (int) (writePosition - offsets[slot(from)]);
+    }
+
+    /**
+     * Return duration of frames that can be read from the cursor.
+     *
+     * @param cursor Cursor.
+     * @return Duration of frames that can be read from the cursor in
+     *         microseconds.
+     */
+    public long availableUs(Cursor cursor) {
+        final long from = Math.max(cursor.position, oldest);
+        if (from >= next) {
+            return 0;
+        }
+        final int last = slot(next - 1);
+        final int sampleRate = sampleRates[last];
+        // Layer III frame has 1152 samples in MPEG-1 and 576 samples in MPEG-2/2.5.
+        final long lastDurationUs = (sampleRate <= 0) ? 0
+                : ((sampleRate >= 32000) ? 1152 : 576) * 1000000L / sampleRate;
+        return timestamps[last] - timestamps[slot(from)] + lastDurationUs;
+    }
+
+    /**
+     * Move the cursor forward so that at most the given duration of frames
+     * can be read. The cursor stays on a frame boundary. Skipped frames are
+     * not counted in {@link Cursor#getDroppedFrames()}.
+     *
+     * @param cursor Cursor.
+     * @param maxUs Maximum duration of frames to keep in microseconds.
+     * @return The number of skipped frames.
+     */
+    public int skipToLatest(Cursor cursor, long maxUs) {
+        skipOverwritten(cursor);
+        final long from = cursor.position;
+        while (cursor.position < next && availableUs(cursor) > maxUs) {
+            ++cursor.position;
+        }
+        return (int) (cursor.position - from);
+    }
+
+    private void skipOverwritten(Cursor cursor) {
+        if (cursor.position < oldest) {
+            cursor.droppedFrames += oldest - cursor.position;
+            cursor.position = oldest;
+        }
+    }
+
+    /**
+     * Copy a frame.
+     *
+     * @param sequence Sequence number of frame.
+     * @param dst Put data here.
+     * @param offset
+     * @return Length of frame. -1 if the frame is not in the queue.
+     */
+    public int get(long sequence, byte[] dst, int offset) {
+        if (!contains(sequence)) {
+            return -1;
+        }
+        final int slot = slot(sequence);
+        copyOut(slot, dst, offset);
+        return lengths[slot];
+    }
+
+    private void copyOut(int slot, byte[] dst, int offset) {
+        final int length = lengths[slot];
+        final int pos = (int) (offsets[slot] % data.length);
+        final int l = Math.min(length, data.length - pos);
+        System.arraycopy(data, pos, dst, offset, l);
+        if (length > l) {
+            System.arraycopy(data, 0, dst, offset + l, length - l);
+        }
+    }
+
+    /**
+     * Return true if the frame is in the queue.
+     *
+     * @param sequence Sequence number of frame.
+     * @return True if the frame is in the queue.
+     */
+    public boolean contains(long sequence) {
+        return sequence >= oldest && sequence < next;
+    }
+
+    /**
+     * Return length of frame.
+     *
+     * @param sequence Sequence number of frame.
+     * @return Length of frame. -1 if the frame is not in the queue.
+     */
+    public int getLength(long sequence) {
+        return contains(sequence) ? lengths[slot(sequence)] : -1;
+    }
+
+    /**
+     * Return timestamp of frame.
+     *
+     * @param sequence Sequence number of frame.
+     * @return Timestamp of frame in microseconds. -1 if the frame is not in
+     *         the queue.
+     */
+    public long getTimestampUs(long sequence) {
+        return contains(sequence) ? timestamps[slot(sequence)] : -1;
+    }
+
+    /**
+     * Return sample rate of frame.
+     *
+     * @param sequence Sequence number of frame.
+     * @return Sample rate of frame. -1 if the frame is not in the queue.
+     */
+    public int getSampleRate(long sequence) {
+        return contains(sequence) ? sampleRates[slot(sequence)] : -1;
+    }
+
+    /**
+     * Return bitrate of frame.
+     *
+     * @param sequence Sequence number of frame.
+     * @return Bitrate of frame in kbps. -1 if the frame is not in the queue.
+     */
+    public int getBitrate(long sequence) {
+        return contains(sequence) ? bitrates[slot(sequence)] : -1;
+    }
+
+    /**
+     * Return sequence number of the oldest frame in the queue.
+     *
+     * @return Sequence number of the oldest frame.
+     */
+    public long getOldestSequence() {
+        return oldest;
+    }
+
+    /**
+     * Return sequence number of the frame that will be written next.
+     *
+     * @return Sequence number of the next frame.
+     */
+    public long getNextSequence() {
+        return next;
+    }
+
+    /**
+     * Return the number of frames in the queue.
+     *
+     * @return The number of frames in the queue.
+     */
+    public int getFrameCount() {
+        return (int) (next - oldest);
+    }
+
+    /**
+     * Return the size of frames in the queue in bytes.
+     *
+     * @return The size of frames in the queue in bytes.
+     */
+    public int getByteCount() {
+        if (next == oldest) {
+            return 0;
+        }
+        return (int) (writePosition - offsets[slot(oldest)]);
+    }
+
+    /**
+     * Return the number of frames overwritten because the queue was full.
+     *
+     * @return The number of overwritten frames.
+     */
+    public long getOverwrittenFrames() {
+        return overwrittenFrames;
+    }
+
+    /**
+     * Remove all frames. Sequence numbers are not reset.
+     */
+    public void clear() {
+        oldest = next;
+    }
+
+    private int slot(long sequence) {
+        return (int) (sequence % lengths.length);
+    }
+
+    /**
+     * Read position of {@link Mp3FrameQueue}.
+     */
+    public static final class Cursor {
+
+        private long position;
+
+        private long droppedFrames = 0;
+
+        /**
+         * Constructor.
+         *
+         * @param position Sequence number of the frame to read first.
+         */
+        public Cursor(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Return sequence number of the frame to read next.
+         *
+         * @return Sequence number of the frame to read next.
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * Set sequence number of the frame to read next.
+         *
+         * @param position Sequence number of the frame to read next.
+         */
+        public void setPosition(long position) {
+            this.position = position;
+        }
+
+        /**
+         * Return the number of frames overwritten before they were read.
+         *
+         * @return The number of dropped frames.
+         */
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.nio.BufferOverflowException;
+
+/**
+ * Link that carries MP3 frames from one producer stage to any number of
+ * consumer stages.
+ *
+ * The producer writes the encoded stream, which is split into frames by a
+ * {@link Mp3FrameParser} and held in a {@link Mp3FrameQueue}. Each consumer
+ * reads through its own {@link Reader}, so a slow consumer never blocks the
+ * producer or the other consumers. Frames that are overwritten before a
+ * reader reads them are counted as dropped by that reader.
+ *
+ * All methods are thread safe.
+ */
+public final class Mp3Link {
+
+    private final Object lock = new Object();
+
+    private final Mp3FrameParser parser = new Mp3FrameParser();
+
+    private Mp3FrameQueue queue;
+
+    private boolean finished = false;
+
+    /**
+     * Incremented each time the readers are woken, so that a reader does not
+     * miss a wake up between its last read and its wait.
+     */
+    private long signal = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Capacity in bytes.
+     * @param frameCapacity Capacity in frames.
+     * @throws IllegalArgumentException capacity or frameCapacity is not
+     *             positive.
+     */
+    public Mp3Link(int capacity, int frameCapacity) {
+        queue = new Mp3FrameQueue(capacity, frameCapacity);
+    }
+
+    /**
+     * Replace the queue with one of another size. Frames in the old queue
+     * are kept as far as they fit, and the readers continue from their
+     * positions.
+     *
+     * @param capacity Capacity in bytes.
+     * @param frameCapacity Capacity in frames.
+     */
+    public void resize(int capacity, int frameCapacity) {
+        synchronized (lock) {
+            queue = new Mp3FrameQueue(capacity, frameCapacity, queue);
+        }
+    }
+
+    /**
+     * Return the capacity of the queue.
+     *
+     * @return Capacity in bytes.
+     */
+    public int capacity() {
+        synchronized (lock) {
+            return queue.capacity();
+        }
+    }
+
+    /**
+     * Return the size of the frames in the queue.
+     *
+     * @return Size in bytes.
+     */
+    public int getByteCount() {
+        synchronized (lock) {
+            return queue.getByteCount();
+        }
+    }
+
+    /**
+     * Write encoded data and wake the readers. Data of an incomplete frame is
+     * kept until the next write. Only the producer stage may call this.
+     *
+     * @param data Encoded data.
+     * @param offset Offset in data.
+     * @param len Length of the data.
+     * @return The number of frames written.
+     * @throws BufferOverflowException A frame is larger than the capacity.
+     */
+    public int write(byte[] data, int offset, int len) {
+        synchronized (lock) {
+            final int frames = parser.parse(data, offset, len, queue);
+            signal();
+            return frames;
+        }
+    }
+
+    /**
+     * Tell that the producer will write no more frames, and wake the readers.
+     */
+    public void finish() {
+        synchronized (lock) {
+            finished = true;
+            signal();
+        }
+    }
+
+    /**
+     * Return true if the producer will write no more frames.
+     *
+     * @return True if finished.
+     */
+    public boolean isFinished() {
+        synchronized (lock) {
+            return finished;
+        }
+    }
+
+    /**
+     * Wake the readers, so that they check their conditions to stop waiting.
+     */
+    public void wakeUp() {
+        synchronized (lock) {
+            signal();
+        }
+    }
+
+    private void signal() {
+        ++signal;
+        lock.notifyAll();
+    }
+
+    /**
+     * Open a reader that reads the frames written after this call.
+     *
+     * @return Reader.
+     */
+    public Reader openReader() {
+        synchronized (lock) {
+            return new Reader(queue.getNextSequence());
+        }
+    }
+
+    /**
+     * Position of one consumer in the link. A reader is used by one thread.
+     */
+    public final class Reader implements StreamDrainer.Source {
+
+        private final Mp3FrameQueue.Cursor cursor;
+
+        private long seenSignal;
+
+        private Reader(long position) {
+            cursor = new Mp3FrameQueue.Cursor(position);
+            seenSignal = signal;
+        }
+
+        /**
+         * Read as many whole frames as fit in the buffer. Does not wait.
+         *
+         * @param dst Buffer to store the frames.
+         * @param offset Offset in dst.
+         * @param len Size of the buffer.
+         * @return Read size. 0 if there is no frame to read.
+         */
+        public int read(byte[] dst, int offset, int len) {
+            synchronized (lock) {
+                seenSignal = signal;
+                return queue.read(cursor, dst, offset, len);
+            }
+        }
+
+        /**
+         * Read as many whole frames as fit in the buffer. Waits while there
+         * is no frame to read and the producer has not finished.
+         */
+        @Override
+        public int read(byte[] dst, int offset, int len, long timeoutMs)
+                throws InterruptedException {
+            synchronized (lock) {
+                if (queue.availableBytes(cursor) == 0) {
+                    if (finished) {
+                        return -1;
+                    }
+                    lock.wait(timeoutMs);
+                }
+                seenSignal = signal;
+                return queue.read(cursor, dst, offset, len);
+            }
+        }
+
+        /**
+         * Wait until frames are written, the producer finishes, or the link
+         * is woken, after the last read or query of this reader. Returns at
+         * once if that already happened.
+         *
+         * @param timeoutMs Maximum time to wait. 0 to wait without timeout.
+         * @throws InterruptedException Interrupted while waiting.
+         */
+        public void await(long timeoutMs) throws InterruptedException {
+            synchronized (lock) {
+                if (seenSignal == signal) {
+                    lock.wait(timeoutMs);
+                }
+                seenSignal = signal;
+            }
+        }
+
+        /**
+         * Return the size of the frames that can be read.
+         *
+         * @return Size in bytes.
+         */
+        public int availableBytes() {
+            synchronized (lock) {
+                seenSignal = signal;
+                return queue.availableBytes(cursor);
+            }
+        }
+
+        /**
+         * Return the duration of the frames that can be read.
+         *
+         * @return Duration in microseconds.
+         */
+        public long availableUs() {
+            synchronized (lock) {
+                seenSignal = signal;
+                return queue.availableUs(cursor);
+            }
+        }
+
+        /**
+         * Return the sequence number of the next frame to read.
+         *
+         * @return Sequence number.
+         */
+        public long getPosition() {
+            synchronized (lock) {
+                return Math.max(cursor.getPosition(), queue.getOldestSequence());
+            }
+        }
+
+        /**
+         * Move to a frame, to read it again.
+         *
+         * @param position Sequence number returned by {@link #getPosition()}.
+         */
+        public void setPosition(long position) {
+            synchronized (lock) {
+                cursor.setPosition(position);
+            }
+        }
+
+        /**
+         * Skip the frames that can be read, so that the next read returns
+         * the frames written after this call.
+         */
+        public void skipToNext() {
+            synchronized (lock) {
+                cursor.setPosition(queue.getNextSequence());
+            }
+        }
+
+        /**
+         * Apply the backlog policy to the frames that can be read. Call when
+         * the connection of the consumer is established again.
+         *
+         * @param drainer Backlog policy.
+         */
+        public void onReconnected(BacklogDrainer drainer) {
+            synchronized (lock) {
+                drainer.onReconnected(queue, cursor);
+            }
+        }
+
+        /**
+         * Return the number of frames overwritten before this reader read
+         * them.
+         *
+         * @return The number of frames.
+         */
+        public long getDroppedFrames() {
+            synchronized (lock) {
+                return cursor.getDroppedFrames();
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.nio.BufferOverflowException;
+
+/**
+ * Bounded link that carries PCM blocks from one producer stage to one
+ * consumer stage.
+ *
+ * The samples are held in a {@link ShortRingBuffer} of fixed capacity. When
+ * the buffer is full, the producer is never blocked. The
+ * {@link PcmOverflowHandler} decides what to drop instead. The consumer waits
+ * until samples arrive, or until its {@link ReadCondition} tells it to stop
+ * waiting.
+ *
+ * All methods are thread safe.
+ */
+public final class PcmLink {
+
+    /**
+     * Tells the consumer to return without waiting for samples.
+     */
+    public interface ReadCondition {
+
+        /**
+         * Called with the lock of the link held, before waiting. Changes of
+         * the condition must be followed by {@link PcmLink#wakeUp()}.
+         *
+         * @return True to return without waiting.
+         */
+        boolean isCancelled();
+    }
+
+    private final Object lock = new Object();
+
+    private ShortRingBuffer buffer;
+
+    private volatile PcmOverflowHandler overflowHandler;
+
+    private long writtenSamples = 0;
+
+    private long readSamples = 0;
+
+    private int highWaterMark = 0;
+
+    private long waitCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity Capacity in samples.
+     * @param overflowHandler Handler to use when the buffer is full.
+     * @throws IllegalArgumentException overflowHandler is null.
+     */
+    public PcmLink(int capacity, PcmOverflowHandler overflowHandler) {
+        setOverflowHandler(overflowHandler);
+        buffer = new ShortRingBuffer(capacity);
+    }
+
+    /**
+     * Replace the handler to use when the buffer is full.
+     *
+     * @param overflowHandler Handler.
+     * @throws IllegalArgumentException overflowHandler is null.
+     */
+    public void setOverflowHandler(PcmOverflowHandler overflowHandler) {
+        if (overflowHandler == null) {
+            throw new IllegalArgumentException("overflowHandler must be not null.");
+        }
+        this.overflowHandler = overflowHandler;
+    }
+
+    /**
+     * Return the handler to use when the buffer is full.
+     *
+     * @return Handler.
+     */
+    public PcmOverflowHandler getOverflowHandler() {
+        return overflowHandler;
+    }
+
+    /**
+     * Replace the buffer with an empty one. Samples in the old buffer are
+     * discarded.
+     *
+     * @param capacity Capacity in samples.
+     */
+    public void resize(int capacity) {
+        synchronized (lock) {
+            buffer = new ShortRingBuffer(capacity);
+            highWaterMark = 0;
+        }
+    }
+
+    /**
+     * Write a block and wake the consumer. Only the producer stage may call
+     * this.
+     *
+     * @param data Block to write.
+     * @param offset Offset in data.
+     * @param len Length of the block.
+     * @return Result of {@link PcmOverflowHandler#write}.
+     * @throws BufferOverflowException The buffer overflowed with
+     *             {@link PcmOverflowHandler#POLICY_ABORT}.
+     */
+    public int write(short[] data, int offset, int len) {
+        final PcmOverflowHandler handler = overflowHandler;
+        synchronized (lock) {
+            final int result = handler.write(buffer, data, offset, len);
+            if (result != PcmOverflowHandler.RESULT_SKIPPED_SILENT) {
+                writtenSamples += len;
+            }
+            highWaterMark = Math.max(highWaterMark, buffer.getAvailable());
+            lock.notifyAll();
+            return result;
+        }
+    }
+
+    /**
+     * Read samples. Waits while the buffer is empty and the condition is not
+     * cancelled.
+     *
+     * @param data Buffer to store the samples.
+     * @param offset Offset in data.
+     * @param len Maximum length to read.
+     * @param condition Condition to stop waiting.
+     * @return Length of the samples read. 0 if cancelled while the buffer is
+     *         empty.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public int read(short[] data, int offset, int len, ReadCondition condition)
+            throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                final int available = buffer.getAvailable();
+                if (available != 0) {
+                    final int readSize = buffer.get(data, offset, Math.min(available, len));
+                    readSamples += readSize;
+                    return readSize;
+                }
+                if (condition.isCancelled()) {
+                    return 0;
+                }
+                ++waitCount;
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * Wake the consumer, so that it checks its {@link ReadCondition}.
+     */
+    public void wakeUp() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Return the number of samples in the buffer.
+     *
+     * @return The number of samples.
+     */
+    public int getAvailable() {
+        synchronized (lock) {
+            return buffer.getAvailable();
+        }
+    }
+
+    /**
+     * Return the capacity of the buffer.
+     *
+     * @return Capacity in samples.
+     */
+    public int capacity() {
+        synchronized (lock) {
+            return buffer.capacity();
+        }
+    }
+
+    /**
+     * Return the largest number of samples held in the current buffer.
+     *
+     * @return The number of samples.
+     */
+    public int getHighWaterMark() {
+        synchronized (lock) {
+            return highWaterMark;
+        }
+    }
+
+    /**
+     * Return the number of times the consumer waited for samples.
+     *
+     * @return The number of waits.
+     */
+    public long getWaitCount() {
+        synchronized (lock) {
+            return waitCount;
+        }
+    }
+
+    /**
+     * Return the number of samples passed to {@link #write}, except skipped
+     * silent blocks.
+     *
+     * @return The number of samples.
+     */
+    public long getWrittenSamples() {
+        synchronized (lock) {
+            return writtenSamples;
+        }
+    }
+
+    /**
+     * Return the number of samples read.
+     *
+     * @return The number of samples.
+     */
+    public long getReadSamples() {
+        synchronized (lock) {
+            return readSamples;
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "PcmLink(" + buffer.getAvailable() + "/" + buffer.capacity()
+                    + " samples, high water " + highWaterMark + ", written " + writtenSamples
+                    + ", read " + readSamples + ", waits " + waitCount + ")";
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.nio.BufferOverflowException;
+
+/**
+ * Writes PCM blocks to {@link ShortRingBuffer} and degrades gracefully when
+ * the buffer is full.
+ *
+ * Only one thread may call {@link #write(ShortRingBuffer, short[], int, int)}.
+ * Counters can be read from any thread.
+ */
+public final class PcmOverflowHandler {
+
+    /**
+     * Throw {@link BufferOverflowException} when the buffer is full.
+     */
+    public static final int POLICY_ABORT = 0;
+
+    /**
+     * Drop the oldest blocks in the buffer to make room for the new block.
+     */
+    public static final int POLICY_DROP_OLDEST = 1;
+
+    /**
+     * Decimate the new block so that it fits in the buffer.
+     */
+    public static final int POLICY_DECIMATE = 2;
+
+    /**
+     * Skip the new block if it is silent, otherwise drop the oldest blocks.
+     */
+    public static final int POLICY_SKIP_SILENT = 3;
+
+    /**
+     * The block was written without overflow.
+     */
+    public static final int RESULT_WRITTEN = 0;
+
+    /**
+     * The oldest blocks were dropped and the block was written.
+     */
+    public static final int RESULT_DROPPED_OLDEST = 1;
+
+    /**
+     * The block was decimated and written.
+     */
+    public static final int RESULT_DECIMATED = 2;
+
+    /**
+     * The block was silent and skipped.
+     */
+    public static final int RESULT_SKIPPED_SILENT = 3;
+
+    private final int policy;
+
+    private final int channels;
+
+    private final double silentRmsSquare;
+
+    private volatile long overflowCount = 0;
+
+    private volatile long droppedOldestSamples = 0;
+
+    private volatile long decimatedSamples = 0;
+
+    private volatile long skippedSilentBlocks = 0;
+
+    private volatile long skippedSilentSamples = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param policy Overflow policy.
+     * @param channels Number of interleaved channels. (1 or 2)
+     * @param silentRms RMS level under which a block is regarded as silent.
+     *            Used by {@link #POLICY_SKIP_SILENT}.
+     * @throws IllegalArgumentException Unknown policy or channels is not
+     *             positive.
+     */
+    public PcmOverflowHandler(int policy, int channels, double silentRms) {
+        if (!isValidPolicy(policy)) {
+            throw new IllegalArgumentException("Unknown overflow policy " + policy + ".");
+        }
+        if (channels <= 0) {
+            throw new IllegalArgumentException("channels must be greater than 0.");
+        }
+        this.policy = policy;
+        this.channels = channels;
+        this.silentRmsSquare = silentRms * silentRms;
+    }
+
+    /**
+     * Return true if the policy is known.
+     *
+     * @param policy Overflow policy.
+     * @return True if the policy is known.
+     */
+    public static boolean isValidPolicy(int policy) {
+        switch (policy) {
+            case POLICY_ABORT:
+            case POLICY_DROP_OLDEST:
+            case POLICY_DECIMATE:
+            case POLICY_SKIP_SILENT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Write a block to ring buffer.
+     *
+     * With {@link #POLICY_DECIMATE} the content of data may be modified.
+     *
+     * @param buffer Ring buffer.
+     * @param data Write data
+     * @param offset
+     * @param len Length of block. It must be a multiple of channels.
+     * @return Result of writing.
+     * @throws BufferOverflowException Buffer overflowed with
+     *             {@link #POLICY_ABORT}, or the block is larger than the
+     *             capacity of buffer.
+     */
+    public int write(ShortRingBuffer buffer, short[] data, int offset, int len) {
+        if (buffer.putAvailable() >= len) {
+            buffer.put(data, offset, len);
+            return RESULT_WRITTEN;
+        }
+
+        ++overflowCount;
+
+        switch (policy) {
+            case POLICY_DROP_OLDEST:
+                dropOldest(buffer, len);
+                buffer.put(data, offset, len);
+                return RESULT_DROPPED_OLDEST;
+            case POLICY_DECIMATE: {
+                final int decimatedLen = decimate(data, offset, len);
+                decimatedSamples += len - decimatedLen;
+                if (buffer.putAvailable() < decimatedLen) {
+                    dropOldest(buffer, decimatedLen);
+                }
+                buffer.put(data, offset, decimatedLen);
+                return RESULT_DECIMATED;
+            }
+            case POLICY_SKIP_SILENT:
+                if (isSilent(data, offset, len)) {
+                    ++skippedSilentBlocks;
+                    skippedSilentSamples += len;
+                    return RESULT_SKIPPED_SILENT;
+                }
+                dropOldest(buffer, len);
+                buffer.put(data, offset, len);
+                return RESULT_DROPPED_OLDEST;
+            case POLICY_ABORT:
+            default:
+                throw new BufferOverflowException();
+        }
+    }
+
+    /**
+     * Drop the oldest data in units of the block length so that the buffer
+     * has some headroom for the next block.
+     */
+    private void dropOldest(ShortRingBuffer buffer, int len) {
+        if (buffer.capacity() < len) {
+            throw new BufferOverflowException();
+        }
+        final int needed = len - buffer.putAvailable();
+        final int blocks = (needed + len - 1) / len;
+        final int dropLen = Math.min(blocks * len, buffer.getAvailable());
+        buffer.remove(dropLen);
+        droppedOldestSamples += dropLen;
+    }
+
+    /**
+     * Keep every other sample frame. The result is packed to the head of the
+     * block.
+     *
+     * @return Length of decimated block.
+     */
+    private int decimate(short[] data, int offset, int len) {
+        final int frames = len / channels;
+        int dst = offset;
+        for (int f = 0; f < frames; f += 2) {
+            final int src = offset + f * channels;
+            for (int c = 0; c < channels; ++c) {
+                data[dst++] = data[src + c];
+            }
+        }
+        return dst - offset;
+    }
+
+    private boolean isSilent(short[] data, int offset, int len) {
+        if (len <= 0) {
+            return true;
+        }
+        double squareTotal = 0;
+        for (int i = offset; i < offset + len; ++i) {
+            squareTotal += data[i] * data[i];
+        }
+        return (squareTotal / len) < silentRmsSquare;
+    }
+
+    /**
+     * Return overflow policy.
+     *
+     * @return Overflow policy.
+     */
+    public int getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Return the number of overflows.
+     *
+     * @return The number of overflows.
+     */
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    /**
+     * Return the number of samples dropped from the head of buffer.
+     *
+     * @return The number of samples dropped from the head of buffer.
+     */
+    public long getDroppedOldestSamples() {
+        return droppedOldestSamples;
+    }
+
+    /**
+     * Return the number of samples removed by decimation.
+     *
+     * @return The number of samples removed by decimation.
+     */
+    public long getDecimatedSamples() {
+        return decimatedSamples;
+    }
+
+    /**
+     * Return the number of skipped silent blocks.
+     *
+     * @return The number of skipped silent blocks.
+     */
+    public long getSkippedSilentBlocks() {
+        return skippedSilentBlocks;
+    }
+
+    /**
+     * Return the number of samples in skipped silent blocks.
+     *
+     * @return The number of samples in skipped silent blocks.
+     */
+    public long getSkippedSilentSamples() {
+        return skippedSilentSamples;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Owns the stages of a pipeline, and starts and stops them together.
+ *
+ * A session starts with {@link #begin()}. The stages are started with
+ * {@link #start(PipelineStage)}, and {@link #ready()} is called after the
+ * last one. A stage may be started later in the session to replace a
+ * finished one. {@link #stop()} asks every running stage to stop, and the
+ * session terminates when all of them have finished, as tracked by the
+ * {@link PipelineLifecycle} of the graph.
+ *
+ * All methods are thread safe.
+ */
+public final class PipelineGraph {
+
+    private final PipelineLifecycle lifecycle = new PipelineLifecycle();
+
+    private final ArrayList<PipelineStage> stages = new ArrayList<PipelineStage>();
+
+    /**
+     * Return the lifecycle that tracks the stages. Stages of this graph must
+     * be created with it.
+     *
+     * @return Lifecycle.
+     */
+    public PipelineLifecycle getLifecycle() {
+        return lifecycle;
+    }
+
+    /**
+     * Start a new session.
+     *
+     * @throws IllegalStateException The previous session has not terminated.
+     */
+    public void begin() {
+        lifecycle.begin();
+        synchronized (stages) {
+            stages.clear();
+        }
+    }
+
+    /**
+     * Start a stage.
+     *
+     * @param stage Stage created with {@link #getLifecycle()}.
+     * @return True if started. False if no session is running.
+     */
+    public boolean start(PipelineStage stage) {
+        synchronized (stages) {
+            removeFinished();
+            stages.add(stage);
+        }
+        if (lifecycle.start(stage)) {
+            return true;
+        }
+        synchronized (stages) {
+            stages.remove(stage);
+        }
+        return false;
+    }
+
+    /**
+     * Tell that all stages of the session have been started.
+     */
+    public void ready() {
+        lifecycle.ready();
+    }
+
+    /**
+     * Ask every running stage to stop. Returns without waiting. Use
+     * {@link #awaitTermination(long)} to wait.
+     */
+    public void stop() {
+        lifecycle.onStopRequested();
+        for (Stage stage : getStages()) {
+            stage.requestStop();
+        }
+    }
+
+    /**
+     * Wait until all stages of the session have finished.
+     *
+     * @param timeoutMs Maximum time to wait.
+     * @return True if the session has terminated. False if the timeout passed.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        return lifecycle.awaitTermination(timeoutMs);
+    }
+
+    /**
+     * Return the stages of the session that have not finished.
+     *
+     * @return Stages in the order they were started.
+     */
+    public List<Stage> getStages() {
+        synchronized (stages) {
+            removeFinished();
+            return new ArrayList<Stage>(stages);
+        }
+    }
+
+    private void removeFinished() {
+        for (Iterator<PipelineStage> it = stages.iterator(); it.hasNext();) {
+            if (it.next().getState() == Thread.State.TERMINATED) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PipelineGraph(" + getStages() + ", " + lifecycle + ")";
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.util.HashSet;
+
+/**
+ * Tracks the threads of a pipeline, so that it can be stopped and restarted
+ * deterministically.
+ *
+ * A session starts with {@link #begin()}. Each stage thread is started with
+ * {@link #start(Thread)} and must call {@link #finished(Thread)} when it has
+ * released its resources, typically at the end of its finally block. After
+ * all threads are started, {@link #ready()} is called. The session terminates
+ * when every thread has finished and {@link #ready()} has been called, so a
+ * stage that fails early cannot terminate the session while the others are
+ * still being started.
+ *
+ * The time from {@link #onStopRequested()} to the termination is the teardown
+ * time, and the time from {@link #onStopRequested()} to the next
+ * {@link #begin()} is the restart latency.
+ *
+ * All methods are thread safe. The listener is called on the thread that
+ * terminates the session, without holding the lock.
+ */
+public final class PipelineLifecycle {
+
+    /**
+     * Receives the termination of a session.
+     */
+    public interface Listener {
+
+        /**
+         * Called when all threads of the session have finished.
+         */
+        void onTerminated();
+    }
+
+    private final HashSet<Thread> threads = new HashSet<Thread>();
+
+    private volatile Listener listener;
+
+    private boolean starting = false;
+
+    private boolean terminated = true;
+
+    private long stopRequestedTime = -1;
+
+    private long teardownMs = -1;
+
+    private long restartLatencyMs = -1;
+
+    private long sessionCount = 0;
+
+    /**
+     * Set the listener of the termination.
+     *
+     * @param listener Listener. Null to remove.
+     */
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Start a new session.
+     *
+     * @throws IllegalStateException The previous session has not terminated.
+     */
+    public synchronized void begin() {
+        if (!terminated) {
+            throw new IllegalStateException("The previous session has not terminated.");
+        }
+        final long now = System.currentTimeMillis();
+        restartLatencyMs = (stopRequestedTime >= 0) ? now - stopRequestedTime : -1;
+        stopRequestedTime = -1;
+        teardownMs = -1;
+        starting = true;
+        terminated = false;
+        ++sessionCount;
+    }
+
+    /**
+     * Track and start a stage thread.
+     *
+     * @param thread Thread to start.
+     * @return True if started. False if no session is running, for example
+     *         the session terminated while a stage was being replaced.
+     */
+    public boolean start(Thread thread) {
+        synchronized (this) {
+            if (terminated) {
+                return false;
+            }
+            threads.add(thread);
+        }
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Tell that all threads of the session have been started.
+     */
+    public void ready() {
+        synchronized (this) {
+            starting = false;
+        }
+        checkTerminated();
+    }
+
+    /**
+     * Tell that a stage thread has finished. Called by the thread itself after
+     * it has released its resources.
+     *
+     * @param thread Finished thread.
+     */
+    public void finished(Thread thread) {
+        synchronized (this) {
+            threads.remove(thread);
+        }
+        checkTerminated();
+    }
+
+    private void checkTerminated() {
+        synchronized (this) {
+            if (terminated || starting || !threads.isEmpty()) {
+                return;
+            }
+            terminated = true;
+            if (stopRequestedTime >= 0) {
+                teardownMs = System.currentTimeMillis() - stopRequestedTime;
+            }
+            notifyAll();
+        }
+        final Listener l = listener;
+        if (l != null) {
+            l.onTerminated();
+        }
+    }
+
+    /**
+     * Record the time when the stop was requested. Only the first request in
+     * a session is recorded.
+     */
+    public synchronized void onStopRequested() {
+        if (!terminated && stopRequestedTime < 0) {
+            stopRequestedTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Wait until the session terminates.
+     *
+     * @param timeoutMs Maximum time to wait.
+     * @return True if the session has terminated. False if the timeout passed.
+     * @throws InterruptedException Interrupted while waiting.
+     */
+    public synchronized boolean awaitTermination(long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!terminated) {
+            final long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Return true if no session is running.
+     *
+     * @return True if the session has terminated.
+     */
+    public synchronized boolean isTerminated() {
+        return terminated;
+    }
+
+    /**
+     * Return the number of threads that have not finished.
+     *
+     * @return The number of running threads.
+     */
+    public synchronized int getActiveCount() {
+        return threads.size();
+    }
+
+    /**
+     * Return the time since the stop of the running session was requested.
+     *
+     * @return Time in milliseconds. -1 if the stop has not been requested, or
+     *         the session has terminated.
+     */
+    public synchronized long getStoppingMs() {
+        if (terminated || stopRequestedTime < 0) {
+            return -1;
+        }
+        return System.currentTimeMillis() - stopRequestedTime;
+    }
+
+    /**
+     * Return the time from the stop request to the termination of the last
+     * session.
+     *
+     * @return Time in milliseconds. -1 if not stopped by a request, or not
+     *         terminated yet.
+     */
+    public synchronized long getTeardownMs() {
+        return teardownMs;
+    }
+
+    /**
+     * Return the time from the stop request of the previous session to the
+     * start of the current session.
+     *
+     * @return Time in milliseconds. -1 if the previous session was not stopped
+     *         by a request.
+     */
+    public synchronized long getRestartLatencyMs() {
+        return restartLatencyMs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PipelineLifecycle(session " + sessionCount + ", "
+                + (terminated ? "terminated" : threads.size() + " threads") + ", teardown "
+                + teardownMs + " ms, restart " + restartLatencyMs + " ms)";
+    }
+}
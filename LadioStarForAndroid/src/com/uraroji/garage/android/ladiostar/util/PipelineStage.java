@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Thread that runs one stage of a pipeline.
+ *
+ * Stages are connected by links, such as {@link PcmLink} for PCM blocks and
+ * {@link Mp3Link} for MP3 frames. A stage is started with
+ * {@link PipelineGraph#start(PipelineStage)}, and tells the lifecycle that it
+ * has finished after {@link #runStage()} returns, so that a subclass only has
+ * to release its resources in runStage.
+ *
+ * Each stage has its own {@link StageMetrics}, so that a slow stage can be
+ * found, and a stage can be measured alone.
+ */
+public abstract class PipelineStage extends Thread implements Stage {
+
+    private final PipelineLifecycle lifecycle;
+
+    private final StageMetrics metrics = new StageMetrics();
+
+    private volatile long startNanos = -1;
+
+    private volatile long finishNanos = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param name Name of the stage. Also used as the name of the thread.
+     * @param lifecycle Lifecycle of the pipeline.
+     */
+    protected PipelineStage(String name, PipelineLifecycle lifecycle) {
+        super(name);
+        this.lifecycle = lifecycle;
+    }
+
+    @Override
+    public final void run() {
+        startNanos = System.nanoTime();
+        try {
+            runStage();
+        } finally {
+            finishNanos = System.nanoTime();
+            lifecycle.finished(this);
+        }
+    }
+
+    /**
+     * Run the stage until the pipeline stops. Resources of the stage must be
+     * released before returning.
+     */
+    protected abstract void runStage();
+
+    /**
+     * Ask the stage to stop. The default does nothing, for a stage that
+     * does not wait on a link. A stage that waits overrides this to wake
+     * itself.
+     */
+    @Override
+    public void requestStop() {
+    }
+
+    @Override
+    public final StageMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Return the running time of the stage.
+     *
+     * @return Time in nanoseconds. 0 if not started.
+     */
+    public final long getElapsedNanos() {
+        final long start = startNanos;
+        if (start < 0) {
+            return 0;
+        }
+        final long finish = finishNanos;
+        return ((finish < 0) ? System.nanoTime() : finish) - start;
+    }
+
+    @Override
+    public String toString() {
+        return getName() + "(" + metrics + ", busy " + metrics.getBusyPercent(getElapsedNanos())
+                + "%)";
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Converts sample rate of mono 16bit PCM.
+ *
+ * The input is filtered by a windowed-sinc lowpass filter, and output samples
+ * are interpolated linearly between filtered input samples. The filter is
+ * computed only at the positions needed for output, so the cost is
+ * proportional to the output sample rate.
+ *
+ * State is kept between calls, so a stream may be split at any position. No
+ * memory is allocated after construction. This class is not thread safe.
+ */
+public final class Resampler {
+
+    /**
+     * Number of filter taps.
+     */
+    private static final int TAPS = 63;
+
+    private final int inSampleRate;
+
+    private final int outSampleRate;
+
+    private final double step;
+
+    private final float[] taps;
+
+    private final float[] work;
+
+    private final int maxInputLength;
+
+    private double position;
+
+    /**
+     * Constructor.
+     *
+     * @param inSampleRate Input sample rate.
+     * @param outSampleRate Output sample rate.
+     * @param lowpassFrequency Cutoff frequency of lowpass filter in Hz. If it
+     *            is 0 or larger than 45% of the lower sample rate, 45% of the
+     *            lower sample rate is used.
+     * @param maxInputLength Maximum length of input per call.
+     * @throws IllegalArgumentException sample rates or maxInputLength is not
+     *             positive.
+     */
+    public Resampler(int inSampleRate, int outSampleRate, int lowpassFrequency,
+            int maxInputLength) {
+        if (inSampleRate <= 0 || outSampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be greater than 0.");
+        }
+        if (maxInputLength <= 0) {
+            throw new IllegalArgumentException("maxInputLength must be greater than 0.");
+        }
+        this.inSampleRate = inSampleRate;
+        this.outSampleRate = outSampleRate;
+        this.step = (double) inSampleRate / outSampleRate;
+        this.maxInputLength = maxInputLength;
+
+        final double maxCutoff = Math.min(inSampleRate, outSampleRate) * 0.45;
+        final double cutoff = (lowpassFrequency <= 0 || lowpassFrequency > maxCutoff) ? maxCutoff
+                : lowpassFrequency;
+        this.taps = createLowpassTaps(cutoff / inSampleRate);
+        this.work = new float[TAPS + maxInputLength];
+        this.position = TAPS - 1;
+    }
+
+    /**
+     * Create taps of windowed-sinc lowpass filter with Hamming window.
+     *
+     * @param cutoff Cutoff frequency normalized by sample rate.
+     */
+    private static float[] createLowpassTaps(double cutoff) {
+        final float[] result = new float[TAPS];
+        final int center = TAPS / 2;
+        double sum = 0;
+        for (int i = 0; i < TAPS; ++i) {
+            final int n = i - center;
+            final double sinc = (n == 0) ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * n)
+                    / (Math.PI * n);
+            final double window = 0.54 - 0.46 * Math.cos(2 * Math.PI * i / (TAPS - 1));
+            result[i] = (float) (sinc * window);
+            sum += result[i];
+        }
+        for (int i = 0; i < TAPS; ++i) {
+            result[i] /= sum;
+        }
+        return result;
+    }
+
+    /**
+     * Return the maximum output length for the input length.
+     *
+     * @param inputLength Input length.
+     * @return Maximum output length.
+     */
+    public int getMaxOutputLength(int inputLength) {
+        return (int) Math.ceil(inputLength / step) + 1;
+    }
+
+    /**
+     * Convert sample rate.
+     *
+     * @param in Input PCM.
+     * @param offset
+     * @param len Input length. It must not be larger than maxInputLength.
+     * @param out Output PCM. It must have at least
+     *            {@link #getMaxOutputLength(int)} from outOffset.
+     * @param outOffset
+     * @return Output length.
+     * @throws IllegalArgumentException len is larger than maxInputLength.
+     */
+    public int process(short[] in, int offset, int len, short[] out, int outOffset) {
+        if (len > maxInputLength) {
+            throw new IllegalArgumentException("len must be less than or equal to "
+                    + maxInputLength + ".");
+        }
+        for (int i = 0; i < len; ++i) {
+            work[TAPS + i] = in[offset + i];
+        }
+        final int total = TAPS + len;
+
+        int outLength = 0;
+        while (true) {
+            final int i = (int) position;
+            if (i + 1 >= total) {
+                break;
+            }
+            final double frac = position - i;
+            final float y0 = filter(i);
+            final double y = (frac == 0) ? y0 : y0 + frac * (filter(i + 1) - y0);
+            out[outOffset + outLength] = clip(y);
+            ++outLength;
+            position += step;
+        }
+
+        // Keep the last TAPS samples for the next call.
+        System.arraycopy(work, total - TAPS, work, 0, TAPS);
+        position -= total - TAPS;
+
+        return outLength;
+    }
+
+    private float filter(int index) {
+        float result = 0;
+        for (int k = 0; k < TAPS; ++k) {
+            result += taps[k] * work[index - k];
+        }
+        return result;
+    }
+
+    private static short clip(double value) {
+        if (value > Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (value < Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) Math.round(value);
+    }
+
+    /**
+     * Return input sample rate.
+     *
+     * @return Input sample rate.
+     */
+    public int getInSampleRate() {
+        return inSampleRate;
+    }
+
+    /**
+     * Return output sample rate.
+     *
+     * @return Output sample rate.
+     */
+    public int getOutSampleRate() {
+        return outSampleRate;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Decides when to write stream data so that small writes are coalesced.
+ *
+ * Every write wakes the radio of the device, so writing a few hundred bytes
+ * each time the encoder outputs a frame keeps a cellular modem in its high
+ * power state. Data is held until the target size is pending, but no longer
+ * than the window from when it became pending, so the added latency is
+ * bounded by the window.
+ *
+ * Optionally writes are paced with a token bucket. Tokens are added at the
+ * pacing rate up to the bucket size, and a write may not exceed the tokens.
+ *
+ * Only the sender thread may call {@link #delayMs(int, long, long)},
+ * {@link #writableBytes(int, long)} and {@link #onWrite(int, long)}.
+ * Statistics can be read from any thread.
+ */
+public final class SendScheduler {
+
+    private final long windowMs;
+
+    private final int targetBytes;
+
+    private final int rateBytesPerSec;
+
+    private final int bucketBytes;
+
+    private double tokens;
+
+    private long lastRefillMs = -1;
+
+    private final ByteRateMeter writeCountMeter = new ByteRateMeter(60);
+
+    private volatile long writeCount = 0;
+
+    private volatile long writtenBytes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param windowMs Maximum time to hold pending data. 0 to write at once.
+     * @param targetBytes Pending size to write without waiting for the
+     *            window.
+     * @param rateBytesPerSec Pacing rate in bytes per second. 0 not to pace.
+     * @param bucketBytes Size of token bucket. Used only when pacing.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public SendScheduler(long windowMs, int targetBytes, int rateBytesPerSec, int bucketBytes) {
+        if (windowMs < 0 || targetBytes <= 0 || rateBytesPerSec < 0) {
+            throw new IllegalArgumentException("Parameter is out of range.");
+        }
+        if (rateBytesPerSec > 0 && bucketBytes <= 0) {
+            throw new IllegalArgumentException("bucketBytes must be greater than 0.");
+        }
+        this.windowMs = windowMs;
+        this.targetBytes = targetBytes;
+        this.rateBytesPerSec = rateBytesPerSec;
+        this.bucketBytes = bucketBytes;
+        this.tokens = bucketBytes;
+    }
+
+    /**
+     * Return the time to wait before writing.
+     *
+     * @param pendingBytes Size of data not written yet.
+     * @param pendingSinceMs Time when the oldest pending data became
+     *            pending.
+     * @param nowMs Current time in milliseconds.
+     * @return Time to wait in milliseconds. 0 to write now. -1 if there is no
+     *         pending data.
+     */
+    public long delayMs(int pendingBytes, long pendingSinceMs, long nowMs) {
+        if (pendingBytes <= 0) {
+            return -1;
+        }
+        final long deadline = pendingSinceMs + windowMs;
+        if (pendingBytes < targetBytes && nowMs < deadline) {
+            return deadline - nowMs;
+        }
+        if (rateBytesPerSec > 0) {
+            refill(nowMs);
+            // Wait until a full write is allowed, not to split it into small ones.
+            final int needed = Math.min(Math.min(pendingBytes, targetBytes), bucketBytes);
+            if (tokens < needed) {
+                return Math.max(1, (long) Math.ceil((needed - tokens) * 1000 / rateBytesPerSec));
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the maximum size to write now.
+     *
+     * @param pendingBytes Size of data not written yet.
+     * @param nowMs Current time in milliseconds.
+     * @return Maximum size to write.
+     */
+    public int writableBytes(int pendingBytes, long nowMs) {
+        if (rateBytesPerSec <= 0) {
+            return pendingBytes;
+        }
+        refill(nowMs);
+        return (int) Math.min(pendingBytes, (long) tokens);
+    }
+
+    /**
+     * Record a write.
+     *
+     * @param bytes Written size.
+     * @param nowMs Current time in milliseconds.
+     */
+    public void onWrite(int bytes, long nowMs) {
+        if (rateBytesPerSec > 0) {
+            refill(nowMs);
+            tokens = Math.max(0, tokens - bytes);
+        }
+        writeCountMeter.add(1, nowMs);
+        ++writeCount;
+        writtenBytes += bytes;
+    }
+
+    private void refill(long nowMs) {
+        if (lastRefillMs >= 0 && nowMs > lastRefillMs) {
+            tokens = Math.min(bucketBytes, tokens + (nowMs - lastRefillMs)
+                    * (double) rateBytesPerSec / 1000);
+        }
+        if (lastRefillMs < 0 || nowMs > lastRefillMs) {
+            lastRefillMs = nowMs;
+        }
+    }
+
+    /**
+     * Return the number of writes per minute in the last minute.
+     *
+     * @param nowMs Current time in milliseconds.
+     * @return The number of writes per minute.
+     */
+    public long getWritesPerMinute(long nowMs) {
+        return writeCountMeter.getRate(nowMs, 60000);
+    }
+
+    /**
+     * Return the average size of a write.
+     *
+     * @return Average size of a write in bytes. 0 if nothing has been
+     *         written.
+     */
+    public long getAverageWriteBytes() {
+        final long count = writeCount;
+        return (count > 0) ? writtenBytes / count : 0;
+    }
+
+    /**
+     * Return the number of writes.
+     *
+     * @return The number of writes.
+     */
+    public long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * Return the total written size.
+     *
+     * @return The total written size in bytes.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "SendScheduler [window=" + windowMs + " msec, target=" + targetBytes
+                + " bytes, rate=" + rateBytesPerSec + " bytes/sec, writes=" + writeCount
+                + ", " + getWritesPerMinute(System.currentTimeMillis())
+                + " writes/min, average=" + getAverageWriteBytes() + " bytes]";
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Cache of the broadcast server list.
+ *
+ * {@link #get(long)} does not block on the network. Entries younger than the
+ * TTL are returned as is. Entries older than the TTL are still returned while
+ * a refresh runs in background (stale-while-revalidate), until they get older
+ * than the max staleness. Only when there is no usable entry the caller has
+ * to {@link #fetch()}.
+ *
+ * If a cache file is given, fetched entries are written to it and read back
+ * by the next instance, so the list survives a restart of the process.
+ *
+ * All methods are thread safe.
+ */
+public final class ServerDirectory {
+
+    /**
+     * Fetches the server list from the network.
+     */
+    public interface Fetcher {
+
+        /**
+         * Fetch the server list. It may block.
+         *
+         * @return Server list.
+         * @throws IOException Failed to fetch.
+         */
+        List<ServerEntry> fetch() throws IOException;
+    }
+
+    private static final String CACHE_FILE_HEADER = "ServerDirectory 1";
+
+    private static final String CACHE_FILE_ENCODING = "UTF-8";
+
+    private final Fetcher fetcher;
+
+    private final long ttlMs;
+
+    private final long maxStaleMs;
+
+    private final File cacheFile;
+
+    /**
+     * Serializes fetches and writes of the cache file.
+     */
+    private final Object fetchLock = new Object();
+
+    private List<ServerEntry> servers = null;
+
+    private long fetchedTimeMs = 0;
+
+    private boolean invalidated = false;
+
+    private boolean refreshing = false;
+
+    private long fetchCount = 0;
+
+    private IOException lastFetchError = null;
+
+    /**
+     * Constructor. If the cache file exists, entries are read from it.
+     *
+     * @param fetcher Fetcher of the server list.
+     * @param ttlMs Time in milliseconds during which fetched entries are
+     *            fresh.
+     * @param maxStaleMs Time in milliseconds after which fetched entries are
+     *            not used any more. It must be greater than or equal to
+     *            ttlMs.
+     * @param cacheFile File to keep entries across restarts. null not to
+     *            keep.
+     * @throws IllegalArgumentException fetcher is null, ttlMs is negative or
+     *             maxStaleMs is less than ttlMs.
+     */
+    public ServerDirectory(Fetcher fetcher, long ttlMs, long maxStaleMs, File cacheFile) {
+        if (fetcher == null) {
+            throw new IllegalArgumentException("fetcher must be not null.");
+        }
+        if (ttlMs < 0) {
+            throw new IllegalArgumentException("ttlMs must be 0 or greater.");
+        }
+        if (maxStaleMs < ttlMs) {
+            throw new IllegalArgumentException("maxStaleMs must be ttlMs or greater.");
+        }
+        this.fetcher = fetcher;
+        this.ttlMs = ttlMs;
+        this.maxStaleMs = maxStaleMs;
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    /**
+     * Return cached entries without blocking.
+     *
+     * If the entries are older than the TTL, a refresh is started in
+     * background and the stale entries are returned.
+     *
+     * @param nowMs Current time in milliseconds.
+     * @return Server list. null if there is no usable entry.
+     */
+    public List<ServerEntry> get(long nowMs) {
+        synchronized (this) {
+            if (servers == null || invalidated || nowMs - fetchedTimeMs > maxStaleMs) {
+                return null;
+            }
+            if (nowMs - fetchedTimeMs <= ttlMs) {
+                return servers;
+            }
+        }
+        refreshAsync();
+        synchronized (this) {
+            return invalidated ? null : servers;
+        }
+    }
+
+    /**
+     * Fetch the server list from the network and cache it.
+     *
+     * If another thread is fetching, wait for it and return its result
+     * instead of fetching again.
+     *
+     * @return Server list.
+     * @throws IOException Failed to fetch.
+     */
+    public List<ServerEntry> fetch() throws IOException {
+        final long requestFetchCount;
+        synchronized (this) {
+            requestFetchCount = fetchCount;
+        }
+
+        synchronized (fetchLock) {
+            synchronized (this) {
+                if (fetchCount != requestFetchCount && servers != null && !invalidated) {
+                    return servers;
+                }
+            }
+
+            final List<ServerEntry> fetched;
+            try {
+                fetched = fetcher.fetch();
+                if (fetched == null) {
+                    throw new IOException("Fetcher returned null.");
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    lastFetchError = e;
+                }
+                throw e;
+            }
+
+            final List<ServerEntry> result = Collections
+                    .unmodifiableList(new ArrayList<ServerEntry>(fetched));
+            final long now = System.currentTimeMillis();
+            synchronized (this) {
+                servers = result;
+                fetchedTimeMs = now;
+                invalidated = false;
+                ++fetchCount;
+                lastFetchError = null;
+            }
+            save(result, now);
+            return result;
+        }
+    }
+
+    /**
+     * Start a refresh in background. Nothing is done if a refresh is already
+     * running.
+     */
+    public void refreshAsync() {
+        synchronized (this) {
+            if (refreshing) {
+                return;
+            }
+            refreshing = true;
+        }
+
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetch();
+                } catch (IOException e) {
+                    // Kept in lastFetchError. Stale entries are used until the
+                    // next refresh.
+                } finally {
+                    synchronized (ServerDirectory.this) {
+                        refreshing = false;
+                    }
+                }
+            }
+        }, "ServerDirectoryRefresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop using cached entries until the next successful fetch. Used when the
+     * entries turned out to be wrong.
+     */
+    public synchronized void invalidate() {
+        invalidated = true;
+    }
+
+    /**
+     * Return true if a refresh is running in background.
+     *
+     * @return True if a refresh is running in background.
+     */
+    public synchronized boolean isRefreshing() {
+        return refreshing;
+    }
+
+    /**
+     * Return the time when the cached entries were fetched.
+     *
+     * @return Time in milliseconds. 0 if nothing has been fetched.
+     */
+    public synchronized long getFetchedTimeMs() {
+        return fetchedTimeMs;
+    }
+
+    /**
+     * Return the number of successful fetches by this instance.
+     *
+     * @return The number of successful fetches.
+     */
+    public synchronized long getFetchCount() {
+        return fetchCount;
+    }
+
+    /**
+     * Return the error of the last fetch.
+     *
+     * @return Error of the last fetch. null if the last fetch succeeded.
+     */
+    public synchronized IOException getLastFetchError() {
+        return lastFetchError;
+    }
+
+    /**
+     * Return the most vacant connectable server. When several servers have
+     * the same congestion degree, the first one is returned.
+     *
+     * @param servers Server list.
+     * @return The most vacant server. null if no server is connectable.
+     */
+    public static ServerEntry findVacant(List<ServerEntry> servers) {
+        ServerEntry result = null;
+        for (ServerEntry server : servers) {
+            if (server.isConnectable()
+                    && (result == null || result.getCongestionDegree() > server
+                            .getCongestionDegree())) {
+                result = server;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the connectable server of the address.
+     *
+     * @param servers Server list.
+     * @param address Address in "host:port" form.
+     * @return Server of the address. null if the server is not found or not
+     *         connectable.
+     */
+    public static ServerEntry find(List<ServerEntry> servers, String address) {
+        if (address == null || address.length() == 0) {
+            return null;
+        }
+        for (ServerEntry server : servers) {
+            if (server.isConnectable() && server.getAddress().equals(address)) {
+                return server;
+            }
+        }
+        return null;
+    }
+
+    private void load() {
+        if (cacheFile == null || !cacheFile.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile),
+                    CACHE_FILE_ENCODING));
+            if (!CACHE_FILE_HEADER.equals(reader.readLine())) {
+                return;
+            }
+            final String time = reader.readLine();
+            if (time == null) {
+                return;
+            }
+            final long loadedTimeMs = Long.parseLong(time);
+            final ArrayList<ServerEntry> loaded = new ArrayList<ServerEntry>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 3) {
+                    return;
+                }
+                loaded.add(new ServerEntry(fields[0], Integer.parseInt(fields[1]), Integer
+                        .parseInt(fields[2])));
+            }
+            synchronized (this) {
+                servers = Collections.unmodifiableList(loaded);
+                fetchedTimeMs = loadedTimeMs;
+            }
+        } catch (IOException e) {
+            // A broken cache is the same as no cache.
+        } catch (NumberFormatException e) {
+            // A broken cache is the same as no cache.
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private void save(List<ServerEntry> entries, long timeMs) {
+        if (cacheFile == null) {
+            return;
+        }
+
+        // Write to a temporary file and rename it, so that a crash while
+        // writing does not leave a broken cache.
+        final File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    CACHE_FILE_ENCODING));
+            writer.write(CACHE_FILE_HEADER);
+            writer.write('\n');
+            writer.write(String.valueOf(timeMs));
+            writer.write('\n');
+            for (ServerEntry server : entries) {
+                writer.write(server.getHost() + "\t" + server.getPort() + "\t"
+                        + server.getCongestionDegree());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(cacheFile)) {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            // The cache file is only an optimization.
+            tmpFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+                tmpFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Broadcast server in the server directory.
+ *
+ * This class is immutable.
+ */
+public final class ServerEntry {
+
+    /**
+     * Congestion degree of a server that does not accept a broadcast.
+     */
+    public static final int CONGESTION_FULL = 0;
+
+    private final String host;
+
+    private final int port;
+
+    private final int congestionDegree;
+
+    /**
+     * Constructor.
+     *
+     * @param host Host name.
+     * @param port Port number.
+     * @param congestionDegree Congestion degree. The smaller the number, the
+     *            more vacant the server is, except {@link #CONGESTION_FULL}.
+     * @throws IllegalArgumentException host is null.
+     */
+    public ServerEntry(String host, int port, int congestionDegree) {
+        if (host == null) {
+            throw new IllegalArgumentException("host must be not null.");
+        }
+        this.host = host;
+        this.port = port;
+        this.congestionDegree = congestionDegree;
+    }
+
+    /**
+     * Return host name.
+     *
+     * @return Host name.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Return port number.
+     *
+     * @return Port number.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Return congestion degree.
+     *
+     * @return Congestion degree.
+     */
+    public int getCongestionDegree() {
+        return congestionDegree;
+    }
+
+    /**
+     * Return true if the server accepts a broadcast.
+     *
+     * @return True if the server accepts a broadcast.
+     */
+    public boolean isConnectable() {
+        return congestionDegree != CONGESTION_FULL;
+    }
+
+    /**
+     * Return address in "host:port" form.
+     *
+     * @return Address of the server.
+     */
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ServerEntry)) {
+            return false;
+        }
+        final ServerEntry other = (ServerEntry) o;
+        return host.equals(other.host) && port == other.port
+                && congestionDegree == other.congestionDegree;
+    }
+
+    @Override
+    public int hashCode() {
+        return (host.hashCode() * 31 + port) * 31 + congestionDegree;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerEntry [" + getAddress() + ", congestion=" + congestionDegree + "]";
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Measures TCP connect round trip time to servers.
+ *
+ * All servers are connected at once on one {@link Selector}, so probing takes
+ * at most the timeout regardless of the number of servers. A connection is
+ * closed as soon as it is established and no data is sent.
+ *
+ * Host names are resolved before connecting. Each host name is resolved only
+ * once per probe, so the usual list of many ports on one host costs one
+ * lookup.
+ */
+public final class ServerProber implements ServerSelector.Prober {
+
+    private final long timeoutMs;
+
+    /**
+     * Constructor.
+     *
+     * @param timeoutMs Maximum time to wait for connections.
+     * @throws IllegalArgumentException timeoutMs is not positive.
+     */
+    public ServerProber(long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("timeoutMs must be greater than 0.");
+        }
+        this.timeoutMs = timeoutMs;
+    }
+
+    @Override
+    public long[] probe(List<ServerEntry> servers) {
+        final int count = servers.size();
+        final long[] result = new long[count];
+        final SocketChannel[] channels = new SocketChannel[count];
+        final long[] startNanos = new long[count];
+        for (int i = 0; i < count; ++i) {
+            result[i] = -1;
+        }
+
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            final HashMap<String, InetAddress> resolved = new HashMap<String, InetAddress>();
+            int pending = 0;
+            for (int i = 0; i < count; ++i) {
+                final ServerEntry server = servers.get(i);
+                final InetAddress address = resolve(server.getHost(), resolved);
+                if (address == null) {
+                    continue;
+                }
+                try {
+                    channels[i] = SocketChannel.open();
+                    channels[i].configureBlocking(false);
+                    startNanos[i] = System.nanoTime();
+                    if (channels[i].connect(new InetSocketAddress(address, server.getPort()))) {
+                        result[i] = elapsedMs(startNanos[i]);
+                        closeQuietly(channels[i]);
+                        continue;
+                    }
+                    channels[i].register(selector, SelectionKey.OP_CONNECT, Integer.valueOf(i));
+                    ++pending;
+                } catch (IOException e) {
+                    closeQuietly(channels[i]);
+                }
+            }
+
+            final long deadline = System.currentTimeMillis() + timeoutMs;
+            while (pending > 0) {
+                final long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    break;
+                }
+                selector.select(remain);
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    final int i = ((Integer) key.attachment()).intValue();
+                    try {
+                        if (channels[i].finishConnect()) {
+                            result[i] = elapsedMs(startNanos[i]);
+                        } else {
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        // Refused or unreachable.
+                    }
+                    key.cancel();
+                    closeQuietly(channels[i]);
+                    --pending;
+                }
+            }
+        } catch (IOException e) {
+            // Failed to open the selector. Servers not measured yet stay -1.
+        } finally {
+            for (SocketChannel channel : channels) {
+                closeQuietly(channel);
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+        return result;
+    }
+
+    private static InetAddress resolve(String host, HashMap<String, InetAddress> resolved) {
+        if (resolved.containsKey(host)) {
+            return resolved.get(host);
+        }
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            address = null;
+        }
+        resolved.put(host, address);
+        return address;
+    }
+
+    private static long elapsedMs(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Chooses a broadcast server by connect round trip time, vacancy and past
+ * success rate.
+ *
+ * The score of a server is
+ * <pre>
+ * rtt + congestionDegree * congestionWeightMs + (1 - successRate) * failurePenaltyMs
+ * </pre>
+ * and the server with the lowest score is chosen. Servers that do not answer
+ * the probe are not chosen. The success rate starts at 0.5 and follows
+ * {@link #recordSuccess(ServerEntry)} and {@link #recordFailure(ServerEntry)}.
+ *
+ * All methods are thread safe.
+ */
+public final class ServerSelector {
+
+    /**
+     * Measures round trip time to servers.
+     */
+    public interface Prober {
+
+        /**
+         * Measure round trip time to servers. It may block.
+         *
+         * @param servers Servers to measure.
+         * @return Round trip time in milliseconds for each server. -1 if the
+         *         server did not answer.
+         */
+        long[] probe(List<ServerEntry> servers);
+    }
+
+    private final Prober prober;
+
+    private final long congestionWeightMs;
+
+    private final long failurePenaltyMs;
+
+    /**
+     * Successes and failures for each address. [0] is successes, [1] is
+     * failures.
+     */
+    private final HashMap<String, int[]> history = new HashMap<String, int[]>();
+
+    /**
+     * Constructor.
+     *
+     * @param prober Prober of servers.
+     * @param congestionWeightMs Milliseconds added to the score per congestion
+     *            degree.
+     * @param failurePenaltyMs Milliseconds added to the score of a server that
+     *            always failed.
+     * @throws IllegalArgumentException prober is null.
+     */
+    public ServerSelector(Prober prober, long congestionWeightMs, long failurePenaltyMs) {
+        if (prober == null) {
+            throw new IllegalArgumentException("prober must be not null.");
+        }
+        this.prober = prober;
+        this.congestionWeightMs = congestionWeightMs;
+        this.failurePenaltyMs = failurePenaltyMs;
+    }
+
+    /**
+     * Probe connectable servers and return the best one.
+     *
+     * @param servers Candidate servers.
+     * @return The best server. null if no server is connectable or answered.
+     */
+    public ServerEntry select(List<ServerEntry> servers) {
+        final List<ServerEntry> ranked = rank(servers);
+        return ranked.isEmpty() ? null : ranked.get(0);
+    }
+
+    /**
+     * Probe connectable servers and return them in order of score.
+     *
+     * @param servers Candidate servers.
+     * @return Servers that answered the probe, the best first.
+     */
+    public List<ServerEntry> rank(List<ServerEntry> servers) {
+        final ArrayList<ServerEntry> candidates = new ArrayList<ServerEntry>();
+        for (ServerEntry server : servers) {
+            if (server.isConnectable()) {
+                candidates.add(server);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return candidates;
+        }
+
+        final long[] rtts = prober.probe(candidates);
+        final HashMap<ServerEntry, Double> scores = new HashMap<ServerEntry, Double>();
+        final ArrayList<ServerEntry> result = new ArrayList<ServerEntry>();
+        for (int i = 0; i < candidates.size(); ++i) {
+            if (rtts[i] < 0) {
+                continue;
+            }
+            final ServerEntry server = candidates.get(i);
+            scores.put(server, Double.valueOf(getScore(server, rtts[i])));
+            result.add(server);
+        }
+        // The sort is stable, so the listing order breaks ties.
+        Collections.sort(result, new Comparator<ServerEntry>() {
+            @Override
+            public int compare(ServerEntry a, ServerEntry b) {
+                return scores.get(a).compareTo(scores.get(b));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return score of a server. Lower is better.
+     *
+     * @param server Server.
+     * @param rttMs Round trip time to the server in milliseconds.
+     * @return Score of the server.
+     */
+    public double getScore(ServerEntry server, long rttMs) {
+        return rttMs + (double) server.getCongestionDegree() * congestionWeightMs
+                + (1.0 - getSuccessRate(server)) * failurePenaltyMs;
+    }
+
+    /**
+     * Record that a broadcast to the server started.
+     *
+     * @param server Server.
+     */
+    public synchronized void recordSuccess(ServerEntry server) {
+        ++getHistory(server)[0];
+    }
+
+    /**
+     * Record that connecting to the server failed.
+     *
+     * @param server Server.
+     */
+    public synchronized void recordFailure(ServerEntry server) {
+        ++getHistory(server)[1];
+    }
+
+    /**
+     * Return success rate of the server. It is 0.5 for an unknown server and
+     * approaches the real rate as results are recorded.
+     *
+     * @param server Server.
+     * @return Success rate in 0..1.
+     */
+    public synchronized double getSuccessRate(ServerEntry server) {
+        final int[] h = history.get(server.getAddress());
+        if (h == null) {
+            return 0.5;
+        }
+        return (h[0] + 1.0) / (h[0] + h[1] + 2.0);
+    }
+
+    private int[] getHistory(ServerEntry server) {
+        int[] h = history.get(server.getAddress());
+        if (h == null) {
+            h = new int[2];
+            history.put(server.getAddress(), h);
+        }
+        return h;
+    }
+}
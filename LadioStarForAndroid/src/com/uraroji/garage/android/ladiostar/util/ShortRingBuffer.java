@@ -201,11 +201,11 @@ public final class ShortRingBuffer {
     }
 
     /**
-     * Remove data from ring buffer.
+     * Remove data from the head of ring buffer.
      * 
      * @param len
      */
-    private void remove(int len) {
+    public void remove(int len) {
         if (len <= 0) {
             return;
         }
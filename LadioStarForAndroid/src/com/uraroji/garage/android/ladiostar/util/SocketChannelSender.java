@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends data through non-blocking {@link SocketChannel} with deadlines.
+ *
+ * Connect, read and write wait on a {@link Selector} with timeout, so a peer
+ * that stops reading is detected instead of blocking forever. A write fails
+ * with {@link SocketTimeoutException} when the data is not written within the
+ * write timeout, or when the socket accepts no bytes for the stall timeout.
+ * The send buffer of the socket can be made small so that a stall is not
+ * hidden by a large kernel buffer.
+ *
+ * An instance is used by one thread. {@link #close()} may be called from any
+ * thread, and wakes up a waiting thread.
+ */
+public final class SocketChannelSender implements Closeable {
+
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private final long writeTimeoutMs;
+
+    private final long stallTimeoutMs;
+
+    private final int sendBufferSize;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(1024);
+
+    private SocketChannel channel;
+
+    private Selector selector;
+
+    private SelectionKey key;
+
+    private volatile long lastProgressTimeMs = -1;
+
+    private long sentBytes = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param writeTimeoutMs Maximum time to write data given to
+     *            {@link #write(byte[], int, int)}.
+     * @param stallTimeoutMs Maximum time while the socket accepts no bytes.
+     * @param sendBufferSize Send buffer size of the socket. If it is 0 or
+     *            less, the default size is used.
+     * @throws IllegalArgumentException Timeout is not positive.
+     */
+    public SocketChannelSender(long writeTimeoutMs, long stallTimeoutMs, int sendBufferSize) {
+        if (writeTimeoutMs <= 0 || stallTimeoutMs <= 0) {
+            throw new IllegalArgumentException("Timeout must be greater than 0.");
+        }
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.sendBufferSize = sendBufferSize;
+        readBuffer.flip();
+    }
+
+    /**
+     * Connect to the server.
+     *
+     * @param host Host name of the server.
+     * @param port Port of the server.
+     * @param timeoutMs Maximum time to connect.
+     * @throws UnknownHostException The host name can not be resolved.
+     * @throws SocketTimeoutException Not connected within the timeout.
+     * @throws IOException Failed to connect.
+     * @throws IllegalStateException Already connected.
+     */
+    public void connect(String host, int port, long timeoutMs) throws IOException {
+        if (channel != null) {
+            throw new IllegalStateException("Already connected.");
+        }
+        final InetSocketAddress address = new InetSocketAddress(host, port);
+        if (address.isUnresolved()) {
+            throw new UnknownHostException(host);
+        }
+
+        selector = Selector.open();
+        channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            if (sendBufferSize > 0) {
+                channel.socket().setSendBufferSize(sendBufferSize);
+            }
+            key = channel.register(selector, 0);
+            if (!channel.connect(address)) {
+                final long deadline = System.currentTimeMillis() + timeoutMs;
+                key.interestOps(SelectionKey.OP_CONNECT);
+                while (!channel.finishConnect()) {
+                    await(deadline, "Connect timed out.");
+                }
+            }
+            lastProgressTimeMs = System.currentTimeMillis();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Write all data.
+     *
+     * @param data Write data.
+     * @param offset
+     * @param len
+     * @throws SocketTimeoutException The write timed out or stalled.
+     * @throws IOException Failed to write.
+     */
+    public void write(byte[] data, int offset, int len) throws IOException {
+        write(data, offset, len, Long.MAX_VALUE);
+    }
+
+    /**
+     * Write all data by the deadline. The write fails at the earlier of the
+     * deadline and the write timeout.
+     *
+     * @param data Write data.
+     * @param offset
+     * @param len
+     * @param deadline Time in milliseconds by which the data must be written.
+     * @throws SocketTimeoutException The write timed out or stalled, or the
+     *             deadline passed.
+     * @throws IOException Failed to write.
+     */
+    public void write(byte[] data, int offset, int len, long deadline) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, offset, len);
+        deadline = Math.min(deadline, System.currentTimeMillis() + writeTimeoutMs);
+        long lastProgress = System.currentTimeMillis();
+        while (buffer.hasRemaining()) {
+            final int written = channel.write(buffer);
+            final long now = System.currentTimeMillis();
+            if (written > 0) {
+                lastProgress = now;
+                lastProgressTimeMs = now;
+                sentBytes += written;
+                continue;
+            }
+            awaitWritable(lastProgress, deadline, now);
+        }
+    }
+
+    /**
+     * Write all data of the buffers in order. The buffers are given to the
+     * socket at once, so small buffers go out in the same packet.
+     *
+     * @param buffers Write data. The positions are advanced.
+     * @throws SocketTimeoutException The write timed out or stalled.
+     * @throws IOException Failed to write.
+     */
+    public void write(ByteBuffer[] buffers) throws IOException {
+        final long deadline = System.currentTimeMillis() + writeTimeoutMs;
+        long lastProgress = System.currentTimeMillis();
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            final long written = channel.write(buffers);
+            final long now = System.currentTimeMillis();
+            if (written > 0) {
+                lastProgress = now;
+                lastProgressTimeMs = now;
+                sentBytes += written;
+                continue;
+            }
+            awaitWritable(lastProgress, deadline, now);
+        }
+    }
+
+    /**
+     * Wait until the socket accepts more bytes.
+     *
+     * @param lastProgress Time when bytes were accepted last in this write.
+     * @param deadline Deadline of this write.
+     * @param now Current time in milliseconds.
+     * @throws SocketTimeoutException The write timed out or stalled.
+     */
+    private void awaitWritable(long lastProgress, long deadline, long now) throws IOException {
+        if (now - lastProgress >= stallTimeoutMs) {
+            throw new SocketTimeoutException("Write stalled for " + (now - lastProgress)
+                    + " ms.");
+        }
+        if (now >= deadline) {
+            throw new SocketTimeoutException("Write timed out.");
+        }
+        key.interestOps(SelectionKey.OP_WRITE);
+        await(Math.min(deadline, lastProgress + stallTimeoutMs), null);
+    }
+
+    /**
+     * Read a line terminated by LF. CR before LF is removed.
+     *
+     * @param timeoutMs Maximum time to read a line.
+     * @param charsetName Charset of the line.
+     * @return Line without terminator.
+     * @throws SocketTimeoutException Not read a line within the timeout.
+     * @throws EOFException The connection was closed by peer.
+     * @throws IOException Failed to read.
+     */
+    public String readLine(long timeoutMs, String charsetName) throws IOException {
+        final byte[] line = new byte[MAX_LINE_LENGTH];
+        final int length = readLine(line, timeoutMs);
+        return new String(line, 0, length, charsetName);
+    }
+
+    /**
+     * Read a line terminated by LF into the buffer without decoding it. CR
+     * before LF is removed.
+     *
+     * @param line Buffer to store the line without terminator.
+     * @param timeoutMs Maximum time to read a line.
+     * @return Length of the line.
+     * @throws SocketTimeoutException Not read a line within the timeout.
+     * @throws EOFException The connection was closed by peer.
+     * @throws IOException Failed to read, or the line is longer than the
+     *             buffer.
+     */
+    public int readLine(byte[] line, long timeoutMs) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        int length = 0;
+        while (true) {
+            while (readBuffer.hasRemaining()) {
+                final byte b = readBuffer.get();
+                if (b == '\n') {
+                    return (length > 0 && line[length - 1] == '\r') ? length - 1 : length;
+                }
+                if (length >= line.length) {
+                    throw new IOException("Line is too long.");
+                }
+                line[length++] = b;
+            }
+
+            readBuffer.clear();
+            final int readSize = channel.read(readBuffer);
+            readBuffer.flip();
+            if (readSize < 0) {
+                throw new EOFException("Connection was closed by peer.");
+            }
+            if (readSize == 0) {
+                key.interestOps(SelectionKey.OP_READ);
+                await(deadline, "Read timed out.");
+            }
+        }
+    }
+
+    /**
+     * Wait for the interest operation of the key until the deadline.
+     *
+     * @param message Message of exception if the deadline passed. If null,
+     *            returns without exception.
+     */
+    private void await(long deadline, String message) throws IOException {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            if (message == null) {
+                return;
+            }
+            throw new SocketTimeoutException(message);
+        }
+        try {
+            selector.select(remaining);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new IOException("Socket is closed.");
+        }
+        if (!channel.isOpen()) {
+            throw new IOException("Socket is closed.");
+        }
+    }
+
+    /**
+     * Return true if the peer has closed the connection. It does not block.
+     *
+     * Data sent by the peer is kept for {@link #readLine(long, String)}.
+     *
+     * @return True if the connection is closed or broken.
+     */
+    public boolean isPeerClosed() {
+        if (channel == null || !channel.isOpen()) {
+            return true;
+        }
+        if (readBuffer.hasRemaining()) {
+            return false;
+        }
+        try {
+            readBuffer.clear();
+            final int readSize = channel.read(readBuffer);
+            readBuffer.flip();
+            return readSize < 0;
+        } catch (IOException e) {
+            readBuffer.clear();
+            readBuffer.flip();
+            return true;
+        }
+    }
+
+    /**
+     * Return the socket.
+     *
+     * @return Socket. null if not connected.
+     */
+    public Socket socket() {
+        return (channel != null) ? channel.socket() : null;
+    }
+
+    /**
+     * Return the time when bytes were accepted by the socket last.
+     *
+     * @return Time in milliseconds. -1 if not connected.
+     */
+    public long getLastProgressTimeMs() {
+        return lastProgressTimeMs;
+    }
+
+    /**
+     * Return the number of bytes written.
+     *
+     * @return The number of bytes written.
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Close the connection.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException exception = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (selector != null) {
+            selector.wakeup();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
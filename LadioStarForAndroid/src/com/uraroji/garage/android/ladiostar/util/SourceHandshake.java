@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+/**
+ * Performs the SOURCE handshake to a streaming server.
+ *
+ * The request is encoded once when this is created, so a reconnect sends the
+ * cached bytes. The first stream data can be sent in the same write as the
+ * request, so that it goes out before the response arrives. The status line
+ * of the response is parsed from raw bytes, and decoded into a string only
+ * when asked.
+ *
+ * An instance is used by one thread.
+ */
+public final class SourceHandshake {
+
+    /**
+     * Status code of success.
+     */
+    public static final int STATUS_OK = 200;
+
+    private static final int MAX_STATUS_LINE_LENGTH = 1024;
+
+    private final byte[] request;
+
+    private final String charsetName;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+
+    private final byte[] statusLine = new byte[MAX_STATUS_LINE_LENGTH];
+
+    private int statusLineLength = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param request Handshake request including the terminating blank line.
+     * @param charsetName Charset of the request and the response.
+     * @throws UnsupportedEncodingException The charset is not supported.
+     */
+    public SourceHandshake(String request, String charsetName)
+            throws UnsupportedEncodingException {
+        this.request = request.getBytes(charsetName);
+        this.charsetName = charsetName;
+        buffers[0] = ByteBuffer.wrap(this.request);
+    }
+
+    /**
+     * Return the encoded request.
+     *
+     * @return Encoded request. Do not modify.
+     */
+    public byte[] getRequest() {
+        return request;
+    }
+
+    /**
+     * Send the request followed by the first stream data in one write.
+     *
+     * @param sender Connected sender.
+     * @param data First stream data.
+     * @param offset
+     * @param len Length of the data. 0 to send only the request.
+     * @throws SocketTimeoutException The write timed out or stalled.
+     * @throws IOException Failed to write.
+     */
+    public void send(SocketChannelSender sender, byte[] data, int offset, int len)
+            throws IOException {
+        buffers[0].clear();
+        if (len == 0) {
+            sender.write(request, 0, request.length);
+            return;
+        }
+        buffers[1] = ByteBuffer.wrap(data, offset, len);
+        try {
+            sender.write(buffers);
+        } finally {
+            buffers[1] = null;
+        }
+    }
+
+    /**
+     * Read the status line of the response and return the status code.
+     *
+     * @param sender Sender that sent the request.
+     * @param timeoutMs Maximum time to wait for the status line.
+     * @return Status code. -1 if the status line is malformed.
+     * @throws SocketTimeoutException Not received within the timeout.
+     * @throws IOException Failed to read.
+     */
+    public int readStatus(SocketChannelSender sender, long timeoutMs) throws IOException {
+        // Keep the status line empty if the read fails.
+        statusLineLength = 0;
+        statusLineLength = sender.readLine(statusLine, timeoutMs);
+        return parseStatusCode(statusLine, statusLineLength);
+    }
+
+    /**
+     * Return the status line read last.
+     *
+     * @return Status line. Empty if nothing has been read.
+     */
+    public String getStatusLine() {
+        try {
+            return new String(statusLine, 0, statusLineLength, charsetName);
+        } catch (UnsupportedEncodingException e) {
+            // The charset was checked in the constructor.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Parse the status code from a status line such as "HTTP/1.0 200 OK" or
+     * "ICY 200 OK".
+     *
+     * @param line Status line.
+     * @param length Length of the status line.
+     * @return Status code. -1 if the status line is malformed.
+     */
+    public static int parseStatusCode(byte[] line, int length) {
+        int i = 0;
+        while (i < length && line[i] != ' ') {
+            ++i;
+        }
+        if (i == 0) {
+            return -1;
+        }
+        // Skip the space after the version.
+        ++i;
+        if (i + 3 > length || (i + 3 < length && line[i + 3] != ' ')) {
+            return -1;
+        }
+        int code = 0;
+        for (int j = i; j < i + 3; ++j) {
+            final int digit = line[j] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            code = code * 10 + digit;
+        }
+        return code;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Encode parameters for speech.
+ *
+ * Speech has little energy above a few kHz, so low bitrates are spent better
+ * on a lower sample rate than on high frequencies. A lower sample rate also
+ * reduces the work of the MP3 encoder.
+ */
+public final class SpeechProfile {
+
+    /**
+     * Upper bitrate (kbps), sample rate (Hz) and lowpass frequency (Hz).
+     */
+    private static final int[][] TABLE = {
+            { 16, 11025, 4500 },
+            { 32, 16000, 7000 },
+            { 64, 22050, 9500 },
+            { Integer.MAX_VALUE, 32000, 13000 },
+    };
+
+    private SpeechProfile() {
+    }
+
+    private static int[] find(int bitrate) {
+        for (int[] row : TABLE) {
+            if (bitrate <= row[0]) {
+                return row;
+            }
+        }
+        return TABLE[TABLE.length - 1];
+    }
+
+    /**
+     * Return output sample rate for the bitrate. It is never higher than the
+     * input sample rate.
+     *
+     * @param bitrate Bitrate in kbps.
+     * @param inSampleRate Input sample rate.
+     * @return Output sample rate.
+     */
+    public static int getSampleRate(int bitrate, int inSampleRate) {
+        return Math.min(find(bitrate)[1], inSampleRate);
+    }
+
+    /**
+     * Return lowpass frequency for the bitrate.
+     *
+     * @param bitrate Bitrate in kbps.
+     * @param inSampleRate Input sample rate.
+     * @return Lowpass frequency in Hz.
+     */
+    public static int getLowpassFrequency(int bitrate, int inSampleRate) {
+        return Math.min(find(bitrate)[2], getSampleRate(bitrate, inSampleRate) * 45 / 100);
+    }
+}
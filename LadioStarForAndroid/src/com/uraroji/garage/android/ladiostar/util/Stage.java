@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * One stage of a pipeline, as seen by the {@link PipelineGraph} that runs it.
+ *
+ * A stage takes its input from a link, such as {@link PcmLink} or
+ * {@link Mp3Link}, and writes its output to another link. It does not know
+ * the other stages.
+ */
+public interface Stage {
+
+    /**
+     * Return the name of the stage.
+     *
+     * @return Name.
+     */
+    String getName();
+
+    /**
+     * Ask the stage to stop, and wake it if it waits on a link. Returns
+     * without waiting for the stage to finish.
+     */
+    void requestStop();
+
+    /**
+     * Return the metrics of the stage.
+     *
+     * @return Metrics.
+     */
+    StageMetrics getMetrics();
+}
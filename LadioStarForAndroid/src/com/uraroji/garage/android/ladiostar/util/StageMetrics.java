@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Counts the work done by a pipeline stage.
+ *
+ * A stage records the number of items it has processed, such as samples or
+ * bytes, and the time it was busy processing them. The time spent waiting for
+ * input is not recorded, so the busy time against the running time shows how
+ * close the stage is to falling behind.
+ *
+ * All methods are thread safe.
+ */
+public final class StageMetrics {
+
+    private long count = 0;
+
+    private long items = 0;
+
+    private long busyNanos = 0;
+
+    private long maxBusyNanos = 0;
+
+    /**
+     * Record a unit of work.
+     *
+     * @param items The number of items processed.
+     * @param busyNanos Time spent processing them in nanoseconds.
+     */
+    public synchronized void record(long items, long busyNanos) {
+        ++count;
+        this.items += items;
+        this.busyNanos += busyNanos;
+        maxBusyNanos = Math.max(maxBusyNanos, busyNanos);
+    }
+
+    /**
+     * Return the number of records.
+     *
+     * @return The number of records.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Return the number of items processed.
+     *
+     * @return The number of items.
+     */
+    public synchronized long getItems() {
+        return items;
+    }
+
+    /**
+     * Return the total busy time.
+     *
+     * @return Time in nanoseconds.
+     */
+    public synchronized long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Return the longest busy time of one record.
+     *
+     * @return Time in nanoseconds.
+     */
+    public synchronized long getMaxBusyNanos() {
+        return maxBusyNanos;
+    }
+
+    /**
+     * Return the busy time against the running time.
+     *
+     * @param elapsedNanos Running time of the stage in nanoseconds.
+     * @return Percentage from 0. 0 if elapsedNanos is not positive.
+     */
+    public synchronized int getBusyPercent(long elapsedNanos) {
+        if (elapsedNanos <= 0) {
+            return 0;
+        }
+        return (int) (busyNanos * 100 / elapsedNanos);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StageMetrics(" + items + " items in " + count + " records, busy "
+                + (busyNanos / 1000000) + " ms, max " + (maxBusyNanos / 1000) + " us)";
+    }
+}
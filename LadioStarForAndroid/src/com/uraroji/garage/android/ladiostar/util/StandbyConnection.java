@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Keeps a connection to a standby server ready for failover.
+ *
+ * A background thread connects to the target server and keeps the
+ * connection fresh. It reconnects when the peer closes the connection or
+ * when the connection gets older than the max idle time, so that the server
+ * does not drop it for not sending a request. No data is sent until
+ * {@link #take(SourceHandshake, long)} is called.
+ *
+ * {@link #take(SourceHandshake, long)} completes the handshake on the
+ * ready connection and hands it over to the caller. The caller then sets a
+ * new target.
+ *
+ * All methods are thread safe.
+ */
+public final class StandbyConnection implements Closeable {
+
+    private final long connectTimeoutMs;
+
+    private final long maxIdleMs;
+
+    private final long checkIntervalMs;
+
+    private final long writeTimeoutMs;
+
+    private final long stallTimeoutMs;
+
+    private final int sendBufferSize;
+
+    private ServerEntry target;
+
+    private SocketChannelSender sender;
+
+    private ServerEntry senderTarget;
+
+    private long connectedTimeMs;
+
+    private boolean closed = false;
+
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param connectTimeoutMs Maximum time to connect.
+     * @param maxIdleMs Maximum time to keep a connection without sending
+     *            data.
+     * @param writeTimeoutMs Write timeout of {@link SocketChannelSender}.
+     * @param stallTimeoutMs Stall timeout of {@link SocketChannelSender}.
+     * @param sendBufferSize Send buffer size of {@link SocketChannelSender}.
+     * @throws IllegalArgumentException Timeout is not positive.
+     */
+    public StandbyConnection(long connectTimeoutMs, long maxIdleMs, long writeTimeoutMs,
+            long stallTimeoutMs, int sendBufferSize) {
+        if (connectTimeoutMs <= 0 || maxIdleMs <= 0) {
+            throw new IllegalArgumentException("Timeout must be greater than 0.");
+        }
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.maxIdleMs = maxIdleMs;
+        this.checkIntervalMs = Math.max(1, Math.min(maxIdleMs / 2, 1000));
+        this.writeTimeoutMs = writeTimeoutMs;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    /**
+     * Set the server to keep a connection to. The background thread is
+     * started on the first call.
+     *
+     * @param server Standby server. null to keep no connection.
+     */
+    public synchronized void setTarget(ServerEntry server) {
+        if (closed) {
+            return;
+        }
+        target = server;
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    maintain();
+                }
+            }, "StandbyConnection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Return the standby server.
+     *
+     * @return Standby server. null if not set.
+     */
+    public synchronized ServerEntry getTarget() {
+        return target;
+    }
+
+    /**
+     * Return true if a connection to the target is ready.
+     *
+     * @return True if a connection is ready.
+     */
+    public synchronized boolean isReady() {
+        return sender != null && senderTarget != null && senderTarget.equals(target);
+    }
+
+    /**
+     * Complete the handshake on the ready connection and hand it over.
+     *
+     * The target is cleared, so set a new target after this.
+     *
+     * The response is checked with
+     * {@link SourceHandshake#readStatus(SocketChannelSender, long)}, so the
+     * same status lines are accepted as on a primary connection.
+     *
+     * @param handshake Handshake to send the request and read the response.
+     * @param timeoutMs Maximum time to wait for the response.
+     * @return Connection after the handshake. null if no connection is ready
+     *         or the server did not accept the request.
+     */
+    public SocketChannelSender take(SourceHandshake handshake, long timeoutMs) {
+        final SocketChannelSender s;
+        synchronized (this) {
+            if (!isReady() || sender.isPeerClosed()) {
+                return null;
+            }
+            s = sender;
+            sender = null;
+            senderTarget = null;
+            target = null;
+            notifyAll();
+        }
+
+        try {
+            handshake.send(s, null, 0, 0);
+            if (handshake.readStatus(s, timeoutMs) == SourceHandshake.STATUS_OK) {
+                return s;
+            }
+        } catch (IOException e) {
+            // Handshake failed.
+        }
+        closeQuietly(s);
+        return null;
+    }
+
+    /**
+     * Close the connection and stop the background thread.
+     */
+    @Override
+    public void close() {
+        final SocketChannelSender s;
+        synchronized (this) {
+            closed = true;
+            target = null;
+            s = sender;
+            sender = null;
+            senderTarget = null;
+            notifyAll();
+        }
+        closeQuietly(s);
+    }
+
+    private void maintain() {
+        while (true) {
+            final ServerEntry t;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (sender != null
+                        && (target == null || !target.equals(senderTarget)
+                                || System.currentTimeMillis() - connectedTimeMs >= maxIdleMs
+                                || sender.isPeerClosed())) {
+                    closeQuietly(sender);
+                    sender = null;
+                    senderTarget = null;
+                }
+                t = (sender == null) ? target : null;
+            }
+
+            if (t != null) {
+                // Connect outside the lock so that take() is not blocked.
+                final SocketChannelSender s = new SocketChannelSender(writeTimeoutMs,
+                        stallTimeoutMs, sendBufferSize);
+                boolean connected = false;
+                try {
+                    s.connect(t.getHost(), t.getPort(), connectTimeoutMs);
+                    connected = true;
+                } catch (IOException e) {
+                    // Retry after the interval.
+                }
+                synchronized (this) {
+                    if (connected && !closed && t.equals(target) && sender == null) {
+                        sender = s;
+                        senderTarget = t;
+                        connectedTimeMs = System.currentTimeMillis();
+                    } else {
+                        closeQuietly(s);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                // Reconnect right away if the target changed while connecting.
+                if (sender != null || target == null || target.equals(t)) {
+                    try {
+                        wait(checkIntervalMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannelSender s) {
+        if (s == null) {
+            return;
+        }
+        try {
+            s.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State machine with a fixed table of allowed transitions.
+ *
+ * The state is held in an AtomicInteger, so reading it never blocks and a
+ * transition is made with compare-and-set. A transition that is not in the
+ * table is rejected and counted, so that a thread cannot overwrite a state it
+ * did not expect. Changing to the current state is always allowed and does
+ * nothing.
+ *
+ * States are integers from 0 to 31. All methods are thread safe.
+ */
+public final class StateMachine {
+
+    /**
+     * Receives transitions.
+     */
+    public interface TransitionListener {
+
+        /**
+         * Called after the state has changed, on the thread that changed it.
+         *
+         * @param from Previous state.
+         * @param to New state.
+         */
+        void onTransition(int from, int to);
+    }
+
+    private static final int MAX_STATES = 32;
+
+    /** Bit mask of the allowed next states for each state. */
+    private final int[] allowed = new int[MAX_STATES];
+
+    private final AtomicInteger state;
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private volatile TransitionListener listener;
+
+    /**
+     * Constructor.
+     *
+     * @param initialState Initial state.
+     * @param transitions Allowed transitions. Each element is a pair of the
+     *            previous state and the next state.
+     * @throws IllegalArgumentException A state is out of range, or a
+     *             transition is not a pair.
+     */
+    public StateMachine(int initialState, int[][] transitions) {
+        checkState(initialState);
+        for (int[] transition : transitions) {
+            if (transition.length != 2) {
+                throw new IllegalArgumentException("transition must be a pair of states.");
+            }
+            checkState(transition[0]);
+            checkState(transition[1]);
+            allowed[transition[0]] |= 1 << transition[1];
+        }
+        state = new AtomicInteger(initialState);
+    }
+
+    private static void checkState(int state) {
+        if (state < 0 || state >= MAX_STATES) {
+            throw new IllegalArgumentException("state must be from 0 to "
+                    + (MAX_STATES - 1) + ".");
+        }
+    }
+
+    /**
+     * Set the listener of transitions.
+     *
+     * @param listener Listener. Null to remove.
+     */
+    public void setTransitionListener(TransitionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Return the current state.
+     *
+     * @return The current state.
+     */
+    public int get() {
+        return state.get();
+    }
+
+    /**
+     * Return true if the transition is in the table.
+     *
+     * @param from Previous state.
+     * @param to Next state.
+     * @return True if the transition is allowed.
+     */
+    public boolean isAllowed(int from, int to) {
+        if (from == to) {
+            return true;
+        }
+        if (from < 0 || from >= MAX_STATES || to < 0 || to >= MAX_STATES) {
+            return false;
+        }
+        return (allowed[from] & (1 << to)) != 0;
+    }
+
+    /**
+     * Change the state only if it is the expected one.
+     *
+     * @param expect Expected current state.
+     * @param update Next state.
+     * @return True if the state has changed. False if the current state was
+     *         not the expected one, or the transition is not allowed.
+     */
+    public boolean compareAndSet(int expect, int update) {
+        if (!isAllowed(expect, update)) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        if (!state.compareAndSet(expect, update)) {
+            return false;
+        }
+        onTransition(expect, update);
+        return true;
+    }
+
+    /**
+     * Change the state from whatever the current state is, if the transition
+     * is allowed.
+     *
+     * @param update Next state.
+     * @return The previous state. -1 if the transition from the current state
+     *         is not allowed.
+     */
+    public int transitionTo(int update) {
+        while (true) {
+            final int current = state.get();
+            if (current == update) {
+                return current;
+            }
+            if (!isAllowed(current, update)) {
+                rejectedCount.incrementAndGet();
+                return -1;
+            }
+            if (state.compareAndSet(current, update)) {
+                onTransition(current, update);
+                return current;
+            }
+        }
+    }
+
+    private void onTransition(int from, int to) {
+        if (from == to) {
+            return;
+        }
+        final TransitionListener l = listener;
+        if (l != null) {
+            l.onTransition(from, to);
+        }
+    }
+
+    /**
+     * Return the number of rejected transitions.
+     *
+     * @return The number of transitions that were not in the table.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "StateMachine(state " + state.get() + ", rejected " + rejectedCount.get() + ")";
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+/**
+ * Sends the rest of a stream after the producer was asked to stop.
+ *
+ * The data left in the buffer, and the data the producer still writes while
+ * it finishes, are sent as fast as possible until the producer reports the
+ * end of the stream or the deadline passes. Writes are bounded by the same
+ * deadline, so a peer that stops reading can not hold the drain past it.
+ *
+ * An instance is used by one thread.
+ */
+public final class StreamDrainer {
+
+    /**
+     * Source of the data to drain, such as {@link Mp3Link.Reader}.
+     */
+    public interface Source {
+
+        /**
+         * Read data that is ready to send.
+         *
+         * @param buffer Buffer to store the data.
+         * @param offset Offset in the buffer.
+         * @param length Maximum length to read.
+         * @param timeoutMs Maximum time to wait for data.
+         * @return Length of the data. 0 if no data arrived within the
+         *         timeout. -1 if the producer has finished and all data has
+         *         been read.
+         * @throws InterruptedException Interrupted while waiting.
+         */
+        int read(byte[] buffer, int offset, int length, long timeoutMs)
+                throws InterruptedException;
+    }
+
+    private final long timeoutMs;
+
+    private long drainedBytes = 0;
+
+    private long elapsedMs = -1;
+
+    private boolean completed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param timeoutMs Maximum time to drain.
+     * @throws IllegalArgumentException timeoutMs is not positive.
+     */
+    public StreamDrainer(long timeoutMs) {
+        if (timeoutMs <= 0) {
+            throw new IllegalArgumentException("timeoutMs must be greater than 0.");
+        }
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Send the rest of the stream.
+     *
+     * @param source Source of the data.
+     * @param sender Connected sender.
+     * @param buffer Buffer to read the data into.
+     * @return True if all data was sent. False if the deadline passed, also
+     *         in the middle of a write.
+     * @throws IOException Failed to write before the deadline.
+     * @throws InterruptedException Interrupted while waiting for data.
+     */
+    public boolean drain(Source source, SocketChannelSender sender, byte[] buffer)
+            throws IOException, InterruptedException {
+        final long startTime = System.currentTimeMillis();
+        final long deadline = startTime + timeoutMs;
+        try {
+            while (true) {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                final int readSize = source.read(buffer, 0, buffer.length, remaining);
+                if (readSize < 0) {
+                    completed = true;
+                    return true;
+                }
+                if (readSize > 0) {
+                    final long sentBytes = sender.getSentBytes();
+                    try {
+                        sender.write(buffer, 0, readSize, deadline);
+                    } catch (SocketTimeoutException e) {
+                        if (System.currentTimeMillis() < deadline) {
+                            throw e;
+                        }
+                        drainedBytes += sender.getSentBytes() - sentBytes;
+                        return false;
+                    }
+                    drainedBytes += readSize;
+                }
+            }
+        } finally {
+            elapsedMs = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    /**
+     * Return the number of bytes sent by {@link #drain}.
+     *
+     * @return The number of bytes sent.
+     */
+    public long getDrainedBytes() {
+        return drainedBytes;
+    }
+
+    /**
+     * Return the time taken by {@link #drain}.
+     *
+     * @return Time in milliseconds. -1 if not drained yet.
+     */
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    /**
+     * Return true if all data was sent.
+     *
+     * @return True if all data was sent.
+     */
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamDrainer(" + (completed ? "completed" : "incomplete") + ", drained "
+                + drainedBytes + " bytes in " + elapsedMs + " ms)";
+    }
+}
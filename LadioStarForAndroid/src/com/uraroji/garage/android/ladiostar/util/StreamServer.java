@@ -0,0 +1,820 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * HTTP server that streams live MP3 data to many clients on the local
+ * network.
+ *
+ * One thread serves all clients with a {@link Selector}. Data pulled from
+ * {@link Source} is copied once into a direct ring buffer, and every client
+ * is sent slices of the same buffer with gathering writes, so the stream
+ * data is never copied per client.
+ *
+ * A new client first receives the recent data of the burst size, so that
+ * the player can start without waiting for its buffer to fill. A client that
+ * falls behind the ring buffer skips to the oldest data and the skipped
+ * bytes are counted. A client that sends "Icy-MetaData: 1" receives ICY
+ * metadata every {@link #getMetaInt()} bytes.
+ *
+ * Setters and getters are thread safe.
+ */
+public final class StreamServer implements Closeable {
+
+    /**
+     * Source of stream data.
+     */
+    public interface Source {
+
+        /**
+         * Read stream data. Called from the server thread.
+         *
+         * @param dst Put data here.
+         * @param offset
+         * @param len Size of buffer.
+         * @return Read size. It should end at a frame boundary. 0 if there is
+         *         no data to read.
+         */
+        int read(byte[] dst, int offset, int len);
+    }
+
+    private static final int MAX_REQUEST_LENGTH = 4096;
+
+    private static final int MAX_GATHER = 16;
+
+    private static final int KIND_HEADER = 0;
+
+    private static final int KIND_META = 1;
+
+    private static final int KIND_AUDIO = 2;
+
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private static final ByteBuffer EMPTY_META = ByteBuffer.wrap(new byte[] {
+            0
+    }).asReadOnlyBuffer();
+
+    private final Source source;
+
+    private final int burstBytes;
+
+    private final int maxClients;
+
+    private final int metaInt;
+
+    private final long pollIntervalMs;
+
+    private final long requestTimeoutMs;
+
+    private final long stallTimeoutMs;
+
+    private final ByteBuffer data;
+
+    private final byte[] readBuffer;
+
+    private final long[] chunkPositions;
+
+    private final int[] chunkLengths;
+
+    private final long[] chunkStreamOffsets;
+
+    private long oldestChunk = 0;
+
+    private long nextChunk = 0;
+
+    private long writePosition = 0;
+
+    private long streamOffset = 0;
+
+    private final ArrayList<Client> clients = new ArrayList<Client>();
+
+    private Selector selector;
+
+    private ServerSocketChannel serverChannel;
+
+    private Thread thread;
+
+    private volatile boolean closed = false;
+
+    private volatile String streamName = "";
+
+    private volatile ByteBuffer metaBlock = EMPTY_META;
+
+    private volatile int clientCount = 0;
+
+    private volatile long acceptedCount = 0;
+
+    private volatile long rejectedCount = 0;
+
+    private volatile long sentBytes = 0;
+
+    private volatile long skippedBytes = 0;
+
+    private volatile IOException lastError;
+
+    /**
+     * Constructor.
+     *
+     * @param source Source of stream data.
+     * @param capacity Capacity of the ring buffer in bytes. Data older than
+     *            this is not sent.
+     * @param burstBytes Size of recent data sent to a new client at once.
+     * @param maxClients Maximum number of clients.
+     * @param metaInt Interval of ICY metadata in bytes.
+     * @param pollIntervalMs Interval to read data from source.
+     * @param requestTimeoutMs Maximum time to receive a request.
+     * @param stallTimeoutMs A client that accepts no data for this time is
+     *            closed.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public StreamServer(Source source, int capacity, int burstBytes, int maxClients,
+            int metaInt, long pollIntervalMs, long requestTimeoutMs, long stallTimeoutMs) {
+        if (source == null) {
+            throw new IllegalArgumentException("source must be not null.");
+        }
+        if (capacity <= 0 || burstBytes < 0 || burstBytes > capacity) {
+            throw new IllegalArgumentException("burstBytes must be between 0 and capacity.");
+        }
+        if (maxClients <= 0 || metaInt <= 0 || pollIntervalMs <= 0) {
+            throw new IllegalArgumentException("Parameter must be greater than 0.");
+        }
+        this.source = source;
+        this.burstBytes = burstBytes;
+        this.maxClients = maxClients;
+        this.metaInt = metaInt;
+        this.pollIntervalMs = pollIntervalMs;
+        this.requestTimeoutMs = requestTimeoutMs;
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.data = ByteBuffer.allocateDirect(capacity);
+        this.readBuffer = new byte[Math.min(capacity, 16 * 1024)];
+        // Chunks are read every poll, so this is enough for the whole capacity.
+        final int chunks = Math.max(16, capacity / 128);
+        this.chunkPositions = new long[chunks];
+        this.chunkLengths = new int[chunks];
+        this.chunkStreamOffsets = new long[chunks];
+    }
+
+    /**
+     * Start listening and serving.
+     *
+     * @param port Port to listen. 0 to choose a free port.
+     * @throws IOException Failed to listen.
+     * @throws IllegalStateException Already started or closed.
+     */
+    public synchronized void start(int port) throws IOException {
+        if (thread != null || closed) {
+            throw new IllegalStateException("Server is already started.");
+        }
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            selector.close();
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            throw e;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "StreamServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Return the port the server is listening.
+     *
+     * @return Port. -1 if not started.
+     */
+    public synchronized int getPort() {
+        return (serverChannel != null) ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Stop the server and close all clients. Wait for the server thread to
+     * finish.
+     */
+    @Override
+    public void close() {
+        final Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Set stream name sent in the icy-name header to new clients.
+     *
+     * @param name Stream name. null for empty.
+     */
+    public void setStreamName(String name) {
+        streamName = (name != null) ? name : "";
+    }
+
+    /**
+     * Set stream title sent in ICY metadata. Clients receive it with the next
+     * metadata.
+     *
+     * @param title Stream title. null for empty.
+     */
+    public void setStreamTitle(String title) {
+        metaBlock = createMetaBlock(title);
+    }
+
+    /**
+     * Create an ICY metadata block.
+     *
+     * @param title Stream title.
+     * @return Metadata block.
+     */
+    static ByteBuffer createMetaBlock(String title) {
+        if (title == null || title.length() == 0) {
+            return EMPTY_META;
+        }
+        byte[] text;
+        try {
+            text = ("StreamTitle='" + title.replace("'", "’") + "';").getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+        // The length byte counts units of 16 bytes, so the text is at most 255 * 16 bytes.
+        final int blocks = Math.min(255, (text.length + 15) / 16);
+        final byte[] block = new byte[1 + blocks * 16];
+        block[0] = (byte) blocks;
+        System.arraycopy(text, 0, block, 1, Math.min(text.length, blocks * 16));
+        return ByteBuffer.wrap(block).asReadOnlyBuffer();
+    }
+
+    /**
+     * Return interval of ICY metadata in bytes.
+     *
+     * @return Interval of ICY metadata in bytes.
+     */
+    public int getMetaInt() {
+        return metaInt;
+    }
+
+    /**
+     * Return the number of connected clients that receive the stream.
+     *
+     * @return The number of clients.
+     */
+    public int getClientCount() {
+        return clientCount;
+    }
+
+    /**
+     * Return the number of accepted clients.
+     *
+     * @return The number of accepted clients.
+     */
+    public long getAcceptedCount() {
+        return acceptedCount;
+    }
+
+    /**
+     * Return the number of clients rejected because the server was full.
+     *
+     * @return The number of rejected clients.
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Return the total bytes of stream data sent to all clients.
+     *
+     * @return Sent bytes.
+     */
+    public long getSentBytes() {
+        return sentBytes;
+    }
+
+    /**
+     * Return the total bytes skipped by clients that fell behind.
+     *
+     * @return Skipped bytes.
+     */
+    public long getSkippedBytes() {
+        return skippedBytes;
+    }
+
+    /**
+     * Return the last error of the server thread.
+     *
+     * @return The last error. null if no error.
+     */
+    public IOException getLastError() {
+        return lastError;
+    }
+
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select(pollIntervalMs);
+                if (closed) {
+                    break;
+                }
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Client client = (Client) key.attachment();
+                    if (key.isReadable()) {
+                        read(client);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write(client);
+                    }
+                }
+
+                final boolean pulled = pull();
+                final long now = System.currentTimeMillis();
+                for (int i = clients.size() - 1; i >= 0; --i) {
+                    final Client client = clients.get(i);
+                    if (pulled && client.streaming) {
+                        write(client);
+                    }
+                    if (!client.isClosed()) {
+                        checkTimeout(client, now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            lastError = e;
+        } catch (ClosedSelectorException e) {
+            // closed
+        } finally {
+            for (int i = clients.size() - 1; i >= 0; --i) {
+                close(clients.get(i));
+            }
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                lastError = e;
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            final Client client = new Client(channel, data);
+            client.key = channel.register(selector, SelectionKey.OP_READ, client);
+            client.lastProgressTimeMs = System.currentTimeMillis();
+            clients.add(client);
+            ++acceptedCount;
+        }
+    }
+
+    private void read(Client client) {
+        try {
+            if (client.streaming) {
+                // Requests are not expected any more. Discard data and detect close.
+                client.request.clear();
+                if (client.channel.read(client.request) < 0) {
+                    close(client);
+                }
+                return;
+            }
+            if (client.channel.read(client.request) < 0) {
+                close(client);
+                return;
+            }
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+
+        final int end = findRequestEnd(client.request);
+        if (end < 0) {
+            if (!client.request.hasRemaining()) {
+                close(client);
+            }
+            return;
+        }
+        handleRequest(client, new String(client.request.array(), 0, end, ISO_8859_1));
+    }
+
+    private static int findRequestEnd(ByteBuffer request) {
+        final byte[] b = request.array();
+        for (int i = 3; i < request.position(); ++i) {
+            if (b[i - 3] == '\r' && b[i - 2] == '\n' && b[i - 1] == '\r' && b[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private void handleRequest(Client client, String request) {
+        final String[] lines = request.split("\r\n");
+        final String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2 || !requestLine[0].equals("GET")) {
+            reject(client, "405 Method Not Allowed");
+            return;
+        }
+        if (clientCount >= maxClients) {
+            ++rejectedCount;
+            reject(client, "503 Service Unavailable");
+            return;
+        }
+
+        boolean icyMetadata = false;
+        for (int i = 1; i < lines.length; ++i) {
+            final int colon = lines[i].indexOf(':');
+            if (colon > 0 && lines[i].substring(0, colon).trim().equalsIgnoreCase("Icy-MetaData")
+                    && lines[i].substring(colon + 1).trim().equals("1")) {
+                icyMetadata = true;
+            }
+        }
+
+        String header = "HTTP/1.0 200 OK\r\n";
+        header += "Content-Type: audio/mpeg\r\n";
+        header += "Cache-Control: no-cache\r\n";
+        header += "icy-name: " + streamName + "\r\n";
+        if (icyMetadata) {
+            header += "icy-metaint: " + metaInt + "\r\n";
+        }
+        header += "\r\n";
+        try {
+            client.header = ByteBuffer.wrap(header.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        client.streaming = true;
+        client.metaInt = icyMetadata ? metaInt : 0;
+        client.bytesUntilMeta = client.metaInt;
+        startBurst(client);
+        ++clientCount;
+        write(client);
+    }
+
+    private void reject(Client client, String status) {
+        try {
+            final byte[] response = ("HTTP/1.0 " + status + "\r\n\r\n").getBytes("UTF-8");
+            client.channel.write(ByteBuffer.wrap(response));
+        } catch (IOException e) {
+            // The client is closed anyway.
+        }
+        close(client);
+    }
+
+    /**
+     * Set the position of the client so that it receives about burst size of
+     * the most recent data first.
+     */
+    private void startBurst(Client client) {
+        long chunk = nextChunk;
+        int bytes = 0;
+        while (chunk > oldestChunk && bytes < burstBytes) {
+            --chunk;
+            bytes += chunkLengths[slot(chunk)];
+        }
+        client.chunk = chunk;
+        client.chunkOffset = 0;
+        client.streamOffset = (chunk < nextChunk) ? chunkStreamOffsets[slot(chunk)]
+                : streamOffset;
+    }
+
+    /**
+     * Read all available data from source into the ring buffer.
+     *
+     * @return True if data was read.
+     */
+    private boolean pull() {
+        boolean pulled = false;
+        int len;
+        while ((len = source.read(readBuffer, 0, readBuffer.length)) > 0) {
+            putChunk(readBuffer, len);
+            pulled = true;
+        }
+        return pulled;
+    }
+
+    private void putChunk(byte[] src, int len) {
+        // A chunk never wraps around, so that it can be sent as one slice.
+        final int capacity = data.capacity();
+        long position = writePosition;
+        if ((position % capacity) + len > capacity) {
+            position += capacity - (position % capacity);
+        }
+        while (nextChunk > oldestChunk
+                && (nextChunk - oldestChunk >= chunkLengths.length
+                || position + len - chunkPositions[slot(oldestChunk)] > capacity)) {
+            ++oldestChunk;
+        }
+        final int slot = slot(nextChunk);
+        chunkPositions[slot] = position;
+        chunkLengths[slot] = len;
+        chunkStreamOffsets[slot] = streamOffset;
+        final ByteBuffer dst = data.duplicate();
+        dst.clear();
+        dst.position((int) (position % capacity));
+        dst.put(src, 0, len);
+        writePosition = position + len;
+        streamOffset += len;
+        ++nextChunk;
+    }
+
+    private int slot(long chunk) {
+        return (int) (chunk % chunkLengths.length);
+    }
+
+    /**
+     * Write as much pending data as the socket accepts without blocking.
+     */
+    private void write(Client client) {
+        if (client.isClosed()) {
+            return;
+        }
+        if (client.chunk < oldestChunk) {
+            // Fell behind the ring buffer. Skip to the oldest data.
+            final long oldestStreamOffset = chunkStreamOffsets[slot(oldestChunk)];
+            skippedBytes += oldestStreamOffset - client.streamOffset;
+            client.chunk = oldestChunk;
+            client.chunkOffset = 0;
+            client.streamOffset = oldestStreamOffset;
+        }
+
+        try {
+            while (true) {
+                final int count = plan(client);
+                if (count == 0) {
+                    break;
+                }
+                final long written = client.channel.write(client.gather, 0, count);
+                if (written > 0) {
+                    client.lastProgressTimeMs = System.currentTimeMillis();
+                }
+                if (!consume(client, count)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            close(client);
+            return;
+        }
+
+        final boolean pending = client.header != null || client.chunk < nextChunk;
+        final int ops = SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0);
+        if (client.key.interestOps() != ops) {
+            client.key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Fill the gather array of the client with the data to send next.
+     *
+     * @return The number of buffers.
+     */
+    private int plan(Client client) {
+        int count = 0;
+        if (client.header != null) {
+            client.set(count++, client.header, KIND_HEADER);
+        }
+        if (client.metaInt > 0 && client.bytesUntilMeta == 0 && client.meta == null) {
+            client.meta = nextMetaBlock(client);
+        }
+        if (client.meta != null) {
+            client.set(count++, client.meta, KIND_META);
+        }
+
+        long chunk = client.chunk;
+        int offset = client.chunkOffset;
+        int untilMeta = (client.meta != null) ? client.metaInt : client.bytesUntilMeta;
+        while (count < MAX_GATHER && chunk < nextChunk) {
+            final int slot = slot(chunk);
+            int length = chunkLengths[slot] - offset;
+            if (client.metaInt > 0) {
+                length = Math.min(length, untilMeta);
+            }
+            final ByteBuffer view = client.views[count];
+            final int start = (int) (chunkPositions[slot] % data.capacity()) + offset;
+            view.clear();
+            view.position(start);
+            view.limit(start + length);
+            client.set(count++, view, KIND_AUDIO);
+
+            offset += length;
+            if (offset == chunkLengths[slot]) {
+                ++chunk;
+                offset = 0;
+            }
+            if (client.metaInt > 0) {
+                untilMeta -= length;
+                if (untilMeta == 0) {
+                    // The metadata is decided when it is sent, so stop here.
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Advance the position of the client by the written data.
+     *
+     * @return True if all buffers were written.
+     */
+    private boolean consume(Client client, int count) {
+        for (int i = 0; i < count; ++i) {
+            final ByteBuffer b = client.gather[i];
+            switch (client.kinds[i]) {
+                case KIND_HEADER:
+                    if (b.hasRemaining()) {
+                        return false;
+                    }
+                    client.header = null;
+                    break;
+                case KIND_META:
+                    if (b.hasRemaining()) {
+                        return false;
+                    }
+                    client.meta = null;
+                    client.bytesUntilMeta = client.metaInt;
+                    break;
+                case KIND_AUDIO:
+                default: {
+                    final int slot = slot(client.chunk);
+                    final int start = (int) (chunkPositions[slot] % data.capacity())
+                            + client.chunkOffset;
+                    final int written = b.position() - start;
+                    client.chunkOffset += written;
+                    client.streamOffset += written;
+                    sentBytes += written;
+                    if (client.metaInt > 0) {
+                        client.bytesUntilMeta -= written;
+                    }
+                    if (client.chunkOffset == chunkLengths[slot]) {
+                        ++client.chunk;
+                        client.chunkOffset = 0;
+                    }
+                    if (b.hasRemaining()) {
+                        return false;
+                    }
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the metadata block to send to the client. The title is sent only
+     * when it has changed since the last metadata sent to the client.
+     */
+    private ByteBuffer nextMetaBlock(Client client) {
+        final ByteBuffer block = metaBlock;
+        if (block == client.lastMeta) {
+            return EMPTY_META.duplicate();
+        }
+        client.lastMeta = block;
+        return block.duplicate();
+    }
+
+    private void checkTimeout(Client client, long now) {
+        final long timeout = client.streaming ? stallTimeoutMs : requestTimeoutMs;
+        final boolean waiting = !client.streaming || client.header != null
+                || client.chunk < nextChunk;
+        if (timeout > 0 && waiting && now - client.lastProgressTimeMs > timeout) {
+            close(client);
+        } else if (!waiting) {
+            client.lastProgressTimeMs = now;
+        }
+    }
+
+    private void close(Client client) {
+        if (client.isClosed()) {
+            return;
+        }
+        client.key.cancel();
+        try {
+            client.channel.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+        clients.remove(client);
+        if (client.streaming) {
+            --clientCount;
+        }
+    }
+
+    private static final class Client {
+
+        final SocketChannel channel;
+
+        final ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_LENGTH);
+
+        final ByteBuffer[] views = new ByteBuffer[MAX_GATHER];
+
+        final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+        final int[] kinds = new int[MAX_GATHER];
+
+        SelectionKey key;
+
+        boolean streaming = false;
+
+        ByteBuffer header;
+
+        ByteBuffer meta;
+
+        ByteBuffer lastMeta;
+
+        int metaInt = 0;
+
+        int bytesUntilMeta = 0;
+
+        long chunk;
+
+        int chunkOffset;
+
+        long streamOffset;
+
+        long lastProgressTimeMs;
+
+        Client(SocketChannel channel, ByteBuffer data) {
+            this.channel = channel;
+            for (int i = 0; i < MAX_GATHER; ++i) {
+                views[i] = data.duplicate();
+            }
+        }
+
+        void set(int index, ByteBuffer buffer, int kind) {
+            gather[index] = buffer;
+            kinds[index] = kind;
+        }
+
+        boolean isClosed() {
+            return !channel.isOpen();
+        }
+    }
+}
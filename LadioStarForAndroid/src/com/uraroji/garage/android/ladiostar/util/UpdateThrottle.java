@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Coalesces updates and applies them at most once per interval.
+ *
+ * An update submitted when the interval has passed since the last apply is
+ * applied at once on the calling thread. An update submitted within the
+ * interval is held, and a later one replaces it, so only the latest update
+ * is applied on a background thread when the interval expires.
+ *
+ * All methods are thread safe.
+ */
+public final class UpdateThrottle {
+
+    private final long minIntervalMs;
+
+    private Runnable pending;
+
+    private long lastApplyMs = -1;
+
+    private Thread thread;
+
+    /**
+     * Constructor.
+     *
+     * @param minIntervalMs Minimum interval between applies.
+     * @throws IllegalArgumentException minIntervalMs is not positive.
+     */
+    public UpdateThrottle(long minIntervalMs) {
+        if (minIntervalMs <= 0) {
+            throw new IllegalArgumentException("minIntervalMs must be greater than 0.");
+        }
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Apply an update now, or hold it until the interval expires.
+     *
+     * @param update Update to apply. Replaces the held update if any.
+     * @throws IllegalArgumentException update is null.
+     */
+    public void submit(Runnable update) {
+        if (update == null) {
+            throw new IllegalArgumentException("update must be not null.");
+        }
+        synchronized (this) {
+            final long now = System.currentTimeMillis();
+            if (pending != null || (lastApplyMs >= 0 && now - lastApplyMs < minIntervalMs)) {
+                pending = update;
+                if (thread == null) {
+                    thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            applyPending();
+                        }
+                    }, "UpdateThrottle");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                notifyAll();
+                return;
+            }
+            lastApplyMs = now;
+        }
+        update.run();
+    }
+
+    /**
+     * Return true if an update is held.
+     *
+     * @return True if an update is held.
+     */
+    public synchronized boolean hasPending() {
+        return pending != null;
+    }
+
+    /**
+     * Drop the held update and forget the last apply, so that the next
+     * update is applied at once.
+     */
+    public synchronized void reset() {
+        pending = null;
+        lastApplyMs = -1;
+        notifyAll();
+    }
+
+    private void applyPending() {
+        while (true) {
+            final Runnable update;
+            synchronized (this) {
+                while (true) {
+                    if (pending == null) {
+                        thread = null;
+                        return;
+                    }
+                    final long now = System.currentTimeMillis();
+                    final long waitMs = lastApplyMs + minIntervalMs - now;
+                    if (lastApplyMs < 0 || waitMs <= 0) {
+                        lastApplyMs = now;
+                        break;
+                    }
+                    try {
+                        wait(waitMs);
+                    } catch (InterruptedException e) {
+                        thread = null;
+                        return;
+                    }
+                }
+                update = pending;
+                pending = null;
+            }
+            update.run();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+/**
+ * Estimates the uplink throughput from the writes of the sender.
+ *
+ * Written bytes are counted per interval and smoothed with an exponentially
+ * weighted moving average. The rate of an interval is a measurement of the
+ * uplink only when the link is saturated, that is, when the backlog grew or
+ * frames were dropped in the interval. Otherwise the sender wrote everything
+ * it had, and the rate is only a lower bound, so it can raise the estimate
+ * but never lower it.
+ *
+ * All methods are thread safe.
+ */
+public final class UplinkEstimator {
+
+    private final double alpha;
+
+    private final long intervalMs;
+
+    private final int growthToleranceBytes;
+
+    private long intervalStartMs = -1;
+
+    private long intervalBytes = 0;
+
+    private int intervalStartBacklog = 0;
+
+    private boolean intervalOverflowed = false;
+
+    private long bytesPerSec = -1;
+
+    private boolean bounded = false;
+
+    private boolean saturated = false;
+
+    private int sampleCount = 0;
+
+    private int saturatedCount = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param alpha Weight of a new sample. (0 &lt; alpha &lt;= 1)
+     * @param intervalMs Length of an interval in milliseconds.
+     * @param growthToleranceBytes Growth of the backlog in an interval that
+     *            is not regarded as saturation. Absorbs the jitter of the
+     *            encoder.
+     * @throws IllegalArgumentException A parameter is out of range.
+     */
+    public UplinkEstimator(double alpha, long intervalMs, int growthToleranceBytes) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1].");
+        }
+        if (intervalMs <= 0 || growthToleranceBytes < 0) {
+            throw new IllegalArgumentException("Parameter is out of range.");
+        }
+        this.alpha = alpha;
+        this.intervalMs = intervalMs;
+        this.growthToleranceBytes = growthToleranceBytes;
+    }
+
+    /**
+     * Record a write.
+     *
+     * @param bytes Written size.
+     * @param backlogBytes Size of data waiting to be written after the write.
+     * @param nowMs Current time in milliseconds.
+     */
+    public synchronized void onWrite(int bytes, int backlogBytes, long nowMs) {
+        if (intervalStartMs < 0) {
+            // The first write only marks the start, as it was sent before it.
+            intervalStartMs = nowMs;
+            intervalStartBacklog = backlogBytes;
+            return;
+        }
+        intervalBytes += bytes;
+
+        final long elapsedMs = nowMs - intervalStartMs;
+        if (elapsedMs < intervalMs) {
+            return;
+        }
+        final long rate = intervalBytes * 1000 / elapsedMs;
+        saturated = intervalOverflowed
+                || backlogBytes > intervalStartBacklog + growthToleranceBytes;
+        if (saturated) {
+            ++saturatedCount;
+            bounded = true;
+        }
+        // A rate without saturation is a lower bound and does not lower the estimate.
+        final long sample = (saturated || bytesPerSec < 0) ? rate : Math.max(rate, bytesPerSec);
+        bytesPerSec = (bytesPerSec < 0) ? sample
+                : Math.round(bytesPerSec + alpha * (sample - bytesPerSec));
+        ++sampleCount;
+
+        intervalStartMs = nowMs;
+        intervalBytes = 0;
+        intervalStartBacklog = backlogBytes;
+        intervalOverflowed = false;
+    }
+
+    /**
+     * Record that frames were dropped because the backlog overflowed.
+     */
+    public synchronized void onOverflow() {
+        intervalOverflowed = true;
+    }
+
+    /**
+     * Discard the current interval. Call when the connection is lost, so
+     * that the time without connection is not counted.
+     */
+    public synchronized void resetInterval() {
+        intervalStartMs = -1;
+        intervalBytes = 0;
+        intervalOverflowed = false;
+    }
+
+    /**
+     * Return the estimated throughput.
+     *
+     * @return Bytes per second. -1 if no interval has completed.
+     */
+    public synchronized long getBytesPerSec() {
+        return bytesPerSec;
+    }
+
+    /**
+     * Return true if the link has been saturated at least once, so the
+     * estimate is the capacity of the link rather than a lower bound.
+     *
+     * @return True if the estimate is the capacity of the link.
+     */
+    public synchronized boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Return true if the link was saturated in the last interval.
+     *
+     * @return True if the link was saturated in the last interval.
+     */
+    public synchronized boolean isSaturated() {
+        return saturated;
+    }
+
+    /**
+     * Return the number of completed intervals.
+     *
+     * @return The number of completed intervals.
+     */
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Return the number of saturated intervals.
+     *
+     * @return The number of saturated intervals.
+     */
+    public synchronized int getSaturatedCount() {
+        return saturatedCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "UplinkEstimator [" + bytesPerSec + " bytes/sec, bounded=" + bounded
+                + ", samples=" + sampleCount + ", saturated=" + saturatedCount + "]";
+    }
+}
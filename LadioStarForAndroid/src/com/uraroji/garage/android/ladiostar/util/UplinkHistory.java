@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2011-2014 Yuichi Hirano
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Uplink throughput measured in past broadcasts, keyed by network type.
+ *
+ * Only capacities are kept, that is, estimates of a link that was saturated.
+ * A lower bound that exceeds the kept capacity shows that the capacity is out
+ * of date, so the entry is removed.
+ *
+ * If a file is given, entries are written to it on every change and read
+ * back by the next instance.
+ *
+ * All methods are thread safe.
+ */
+public final class UplinkHistory {
+
+    private static final String FILE_HEADER = "UplinkHistory 1";
+
+    private static final String FILE_ENCODING = "UTF-8";
+
+    private final File file;
+
+    private final HashMap<String, Long> capacities = new HashMap<String, Long>();
+
+    /**
+     * Constructor.
+     *
+     * @param file File to keep entries across restarts. null not to keep.
+     */
+    public UplinkHistory(File file) {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Return the capacity of the network.
+     *
+     * @param networkType Network type.
+     * @return Capacity in bytes per second. -1 if it is not known.
+     */
+    public synchronized long get(String networkType) {
+        final Long capacity = capacities.get(networkType);
+        return (capacity != null) ? capacity.longValue() : -1;
+    }
+
+    /**
+     * Record an estimate of a broadcast.
+     *
+     * @param networkType Network type.
+     * @param bytesPerSec Estimated throughput in bytes per second.
+     * @param bounded True if the estimate is the capacity of the link, false
+     *            if it is a lower bound.
+     */
+    public void put(String networkType, long bytesPerSec, boolean bounded) {
+        if (networkType == null || bytesPerSec < 0) {
+            return;
+        }
+        final HashMap<String, Long> snapshot;
+        synchronized (this) {
+            final Long capacity = capacities.get(networkType);
+            if (bounded) {
+                capacities.put(networkType, Long.valueOf(bytesPerSec));
+            } else if (capacity != null && bytesPerSec > capacity.longValue()) {
+                capacities.remove(networkType);
+            } else {
+                return;
+            }
+            snapshot = new HashMap<String, Long>(capacities);
+        }
+        save(snapshot);
+    }
+
+    /**
+     * Choose the highest bitrate that the throughput can carry.
+     *
+     * @param bytesPerSec Throughput in bytes per second. -1 if it is not
+     *            known.
+     * @param bitrates Candidate bitrates in kbps in ascending order.
+     * @param maxBitrate Bitrate not to exceed in kbps.
+     * @param headroom Ratio of the throughput to the bitrate to keep.
+     * @return The highest candidate not greater than maxBitrate that fits. The
+     *         lowest candidate if nothing fits. maxBitrate if the throughput is
+     *         not known.
+     */
+    public static int chooseBitrate(long bytesPerSec, int[] bitrates, int maxBitrate,
+            double headroom) {
+        if (bytesPerSec < 0 || bitrates.length == 0) {
+            return maxBitrate;
+        }
+        int result = Math.min(bitrates[0], maxBitrate);
+        for (int bitrate : bitrates) {
+            if (bitrate > maxBitrate) {
+                break;
+            }
+            if ((bitrate / 8) * 1024 * headroom <= bytesPerSec) {
+                result = bitrate;
+            }
+        }
+        return result;
+    }
+
+    private void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                    FILE_ENCODING));
+            if (!FILE_HEADER.equals(reader.readLine())) {
+                return;
+            }
+            final HashMap<String, Long> loaded = new HashMap<String, Long>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split("\t");
+                if (fields.length != 2) {
+                    return;
+                }
+                loaded.put(fields[0], Long.valueOf(fields[1]));
+            }
+            synchronized (this) {
+                capacities.putAll(loaded);
+            }
+        } catch (IOException e) {
+            // A broken file is the same as no history.
+        } catch (NumberFormatException e) {
+            // A broken file is the same as no history.
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private void save(Map<String, Long> entries) {
+        if (file == null) {
+            return;
+        }
+
+        // Write to a temporary file and rename it, so that a crash while
+        // writing does not leave a broken file.
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile),
+                    FILE_ENCODING));
+            writer.write(FILE_HEADER);
+            writer.write('\n');
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                writer.write(entry.getKey() + "\t" + entry.getValue());
+                writer.write('\n');
+            }
+            writer.close();
+            writer = null;
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            // The history is only a hint.
+            tmpFile.delete();
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+                tmpFile.delete();
+            }
+        }
+    }
+}
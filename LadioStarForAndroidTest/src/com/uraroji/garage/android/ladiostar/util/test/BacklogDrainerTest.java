@@ -0,0 +1,119 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.BacklogDrainer;
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameQueue;
+import com.uraroji.garage.android.ladiostar.util.SendScheduler;
+
+import junit.framework.TestCase;
+
+public class BacklogDrainerTest extends TestCase {
+
+    /**
+     * 44.1kHzの1フレームの長さ
+     */
+    private static final long FRAME_US = 1152 * 1000000L / 44100;
+
+    /**
+     * 100フレーム（約2.6秒）たまったMP3バッファを作る
+     */
+    private static Mp3FrameQueue createBacklog() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(100 * 100, 100);
+        byte[] frame = new byte[100];
+        for (int i = 0; i < 100; ++i) {
+            queue.put(frame, 0, frame.length, i * FRAME_US, 44100, 32);
+        }
+        return queue;
+    }
+
+    public void testFullSpeed() {
+        Mp3FrameQueue queue = createBacklog();
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        SendScheduler scheduler = new SendScheduler(0, 1000, 0, 0);
+        BacklogDrainer drainer = new BacklogDrainer(BacklogDrainer.POLICY_FULL_SPEED,
+                1000000, 8000, 1000);
+        drainer.onReconnected(queue, cursor);
+        assertEquals(cursor.getPosition(), 0);
+        assertSame(drainer.select(scheduler, queue.availableUs(cursor)), scheduler);
+    }
+
+    public void testLiveEdge() {
+        Mp3FrameQueue queue = createBacklog();
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        BacklogDrainer drainer = new BacklogDrainer(BacklogDrainer.POLICY_LIVE_EDGE,
+                1000000, 8000, 1000);
+        drainer.onReconnected(queue, cursor);
+        // 1秒以内に収まる最新の38フレームだけを残す
+        assertEquals(queue.available(cursor), 38);
+        assertTrue(queue.availableUs(cursor) <= 1000000);
+        assertEquals(drainer.getSkippedFrames(), 62);
+        assertEquals(drainer.getSkippedUs(), 62 * FRAME_US);
+        assertEquals(cursor.getDroppedFrames(), 0);
+        assertFalse(drainer.isCatchingUp());
+    }
+
+    public void testCatchUp() {
+        Mp3FrameQueue queue = createBacklog();
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        SendScheduler scheduler = new SendScheduler(0, 1000, 0, 0);
+        BacklogDrainer drainer = new BacklogDrainer(BacklogDrainer.POLICY_CATCH_UP,
+                1000000, 8000, 1000);
+        drainer.onReconnected(queue, cursor);
+        assertEquals(cursor.getPosition(), 0);
+        assertTrue(drainer.isCatchingUp());
+        assertEquals(drainer.getDrainCount(), 1);
+
+        // たまっている間は決められた速さで送る
+        SendScheduler catchUp = drainer.select(scheduler, queue.availableUs(cursor));
+        assertNotSame(catchUp, scheduler);
+        assertEquals(catchUp.delayMs(10000, 0, 0), 0);
+        assertEquals(catchUp.writableBytes(10000, 0), 1000);
+        catchUp.onWrite(1000, 0);
+        assertEquals(catchUp.delayMs(10000, 0, 0), 125);
+
+        // 追いついたら通常の送信に戻る
+        assertSame(drainer.select(scheduler, 1000000), scheduler);
+        assertFalse(drainer.isCatchingUp());
+        assertSame(drainer.select(scheduler, 2000000), scheduler);
+    }
+
+    public void testCatchUpWithoutBacklog() {
+        Mp3FrameQueue queue = createBacklog();
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(90);
+        BacklogDrainer drainer = new BacklogDrainer(BacklogDrainer.POLICY_CATCH_UP,
+                1000000, 8000, 1000);
+        drainer.onReconnected(queue, cursor);
+        assertFalse(drainer.isCatchingUp());
+        assertEquals(drainer.getDrainCount(), 0);
+    }
+
+    public void testInvalidPolicy() {
+        assertFalse(BacklogDrainer.isValidPolicy(3));
+        try {
+            new BacklogDrainer(3, 1000000, 8000, 1000);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ByteRateMeter;
+
+import junit.framework.TestCase;
+
+public class ByteRateMeterTest extends TestCase {
+
+    public void testEmpty() {
+        ByteRateMeter meter = new ByteRateMeter(5);
+        assertEquals(meter.getBytesPerSec(10000), 0);
+        assertEquals(meter.getAverageBytesPerSec(10000), 0);
+        assertEquals(meter.getTotalBytes(), 0);
+    }
+
+    public void testRate() {
+        ByteRateMeter meter = new ByteRateMeter(5);
+        // 10秒間、毎秒4000バイト
+        for (long t = 0; t < 10000; t += 100) {
+            meter.add(400, 100000 + t);
+        }
+        assertEquals(meter.getTotalBytes(), 40000);
+        assertEquals(meter.getAverageBytesPerSec(110000), 4000);
+        assertEquals(meter.getBytesPerSec(109999), 4000);
+
+        // 次の5秒間、毎秒1000バイト
+        for (long t = 10000; t < 15000; t += 100) {
+            meter.add(100, 100000 + t);
+        }
+        // 窓の中は新しいデータだけになる
+        assertEquals(meter.getBytesPerSec(114999), 1000);
+        assertEquals(meter.getAverageBytesPerSec(115000), 3000);
+    }
+
+    public void testIdle() {
+        ByteRateMeter meter = new ByteRateMeter(5);
+        meter.add(5000, 1000);
+        // 送信が止まると窓の外に出たデータは数えない
+        assertEquals(meter.getBytesPerSec(10000), 0);
+        assertEquals(meter.getTotalBytes(), 5000);
+
+        meter.reset();
+        assertEquals(meter.getTotalBytes(), 0);
+        assertEquals(meter.getAverageBytesPerSec(10000), 0);
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new ByteRateMeter(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ConnectivityWatcher;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class ConnectivityWatcherTest extends TestCase {
+
+    private static class RecordingListener implements ConnectivityWatcher.Listener {
+        final ArrayList<String> changes = new ArrayList<String>();
+
+        @Override
+        public void onDefaultNetworkChanged(String networkType) {
+            changes.add(networkType);
+        }
+    }
+
+    public void testTypeChange() {
+        ConnectivityWatcher watcher = new ConnectivityWatcher();
+        RecordingListener listener = new RecordingListener();
+        watcher.addListener(listener);
+        assertNull(watcher.getNetworkType());
+
+        watcher.update("WIFI", "");
+        assertEquals(watcher.getNetworkType(), "WIFI");
+        watcher.update("MOBILE", "LTE");
+        assertEquals(watcher.getNetworkType(), "MOBILE/LTE");
+        assertEquals(listener.changes.size(), 2);
+        assertEquals(listener.changes.get(1), "MOBILE/LTE");
+        assertEquals(watcher.getChangeCount(), 2);
+    }
+
+    public void testSameTypeIsIgnored() {
+        ConnectivityWatcher watcher = new ConnectivityWatcher();
+        RecordingListener listener = new RecordingListener();
+        watcher.addListener(listener);
+        watcher.update("MOBILE", "HSPA");
+        // サブタイプだけの変化は通知しない
+        watcher.update("MOBILE", "LTE");
+        watcher.update("MOBILE", "LTE");
+        assertEquals(listener.changes.size(), 1);
+        assertEquals(watcher.getNetworkType(), "MOBILE/LTE");
+    }
+
+    public void testReconnectAfterLoss() {
+        ConnectivityWatcher watcher = new ConnectivityWatcher();
+        RecordingListener listener = new RecordingListener();
+        watcher.addListener(listener);
+        watcher.update("WIFI", null);
+        // 切断は通知しない
+        watcher.update(null, null);
+        assertNull(watcher.getNetworkType());
+        assertEquals(listener.changes.size(), 1);
+        // 同じ種類でも再接続したらアドレスが変わるので通知する
+        watcher.update("WIFI", null);
+        assertEquals(listener.changes.size(), 2);
+    }
+
+    public void testRemoveListener() {
+        ConnectivityWatcher watcher = new ConnectivityWatcher();
+        RecordingListener listener = new RecordingListener();
+        watcher.addListener(listener);
+        watcher.addListener(listener);
+        watcher.update("WIFI", null);
+        assertEquals(listener.changes.size(), 1);
+        watcher.removeListener(listener);
+        watcher.update("MOBILE", null);
+        assertEquals(listener.changes.size(), 1);
+        assertEquals(watcher.getChangeCount(), 2);
+    }
+}
@@ -0,0 +1,76 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.DestinationStats;
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameQueue;
+
+import junit.framework.TestCase;
+
+public class DestinationStatsTest extends TestCase {
+
+    public void testCounters() {
+        DestinationStats stats = new DestinationStats("host:8000/mount");
+        assertEquals(stats.getName(), "host:8000/mount");
+        assertFalse(stats.isConnected());
+
+        stats.onConnected();
+        stats.addSentBytes(100);
+        stats.addSentBytes(50);
+        assertTrue(stats.isConnected());
+        assertEquals(stats.getSentBytes(), 150);
+
+        stats.onDisconnected(true);
+        assertFalse(stats.isConnected());
+        stats.onConnected();
+        stats.onDisconnected(false);
+        assertEquals(stats.getConnectCount(), 2);
+        assertEquals(stats.getFailureCount(), 1);
+    }
+
+    public void testSlowDestinationDoesNotStallOthers() {
+        // 配信先ごとに読み込み位置を持ち、1つのMP3バッファを共有する
+        Mp3FrameQueue queue = new Mp3FrameQueue(1000, 10);
+        Mp3FrameQueue.Cursor fast = new Mp3FrameQueue.Cursor(queue.getNextSequence());
+        Mp3FrameQueue.Cursor slow = new Mp3FrameQueue.Cursor(queue.getNextSequence());
+        DestinationStats fastStats = new DestinationStats("fast");
+        DestinationStats slowStats = new DestinationStats("slow");
+
+        byte[] frame = new byte[10];
+        byte[] buf = new byte[1000];
+        for (int i = 0; i < 25; ++i) {
+            // 書き込みは読み込みを待たない
+            queue.put(frame, 0, frame.length, i * 1000L, 44100, 128);
+            fastStats.addSentBytes(queue.read(fast, buf, 0, buf.length));
+            fastStats.setDroppedFrames(fast.getDroppedFrames());
+        }
+        // 遅い配信先は、上書きされたフレームを捨てて最も古いフレームから読む
+        slowStats.addSentBytes(queue.read(slow, buf, 0, buf.length));
+        slowStats.setDroppedFrames(slow.getDroppedFrames());
+
+        assertEquals(fastStats.getSentBytes(), 250);
+        assertEquals(fastStats.getDroppedFrames(), 0);
+        assertEquals(slowStats.getSentBytes(), 100);
+        assertEquals(slowStats.getDroppedFrames(), 15);
+    }
+}
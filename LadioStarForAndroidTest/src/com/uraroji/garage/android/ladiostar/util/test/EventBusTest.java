@@ -0,0 +1,207 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.EventBus;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+public class EventBusTest extends TestCase {
+
+    private static class ValueEvent extends EventBus.Event {
+        int value;
+
+        @Override
+        protected void reset() {
+            value = 0;
+        }
+    }
+
+    private static final EventBus.Factory<ValueEvent> FACTORY = new EventBus.Factory<ValueEvent>() {
+        @Override
+        public ValueEvent create() {
+            return new ValueEvent();
+        }
+    };
+
+    /**
+     * 届いた値を記録する
+     */
+    private static class Recorder implements EventBus.Subscriber<ValueEvent> {
+        final ArrayList<Integer> values = new ArrayList<Integer>();
+
+        @Override
+        public void onEvent(ValueEvent event) {
+            values.add(event.value);
+        }
+    }
+
+    /**
+     * drainを呼ぶまで届けないDispatcher
+     */
+    private static class ManualDispatcher implements EventBus.Dispatcher {
+        int count;
+
+        @Override
+        public void dispatch(Runnable drain) {
+            ++count;
+        }
+    }
+
+    private static void post(EventBus bus, EventBus.Type<ValueEvent> type, int value) {
+        ValueEvent event = bus.obtain(type);
+        event.value = value;
+        bus.post(event);
+    }
+
+    public void testPostWithoutDispatcher() {
+        EventBus bus = new EventBus();
+        EventBus.Type<ValueEvent> type = bus.defineType("value", FACTORY, false, 4);
+        Recorder recorder = new Recorder();
+        bus.subscribe(type, recorder);
+        assertTrue(bus.hasSubscribers(type));
+
+        // Dispatcherがない場合はその場で届く
+        post(bus, type, 1);
+        post(bus, type, 2);
+        assertEquals(recorder.values.size(), 2);
+        assertEquals(recorder.values.get(1).intValue(), 2);
+
+        bus.unsubscribe(type, recorder);
+        assertFalse(bus.hasSubscribers(type));
+        post(bus, type, 3);
+        assertEquals(recorder.values.size(), 2);
+    }
+
+    public void testSubscribePerType() {
+        EventBus bus = new EventBus();
+        EventBus.Type<ValueEvent> a = bus.defineType("a", FACTORY, false, 4);
+        EventBus.Type<ValueEvent> b = bus.defineType("b", FACTORY, false, 4);
+        Recorder recorderA = new Recorder();
+        Recorder recorderB = new Recorder();
+        bus.subscribe(a, recorderA);
+        bus.subscribe(b, recorderB);
+
+        // 種類ごとに登録したSubscriberにだけ届く
+        post(bus, a, 1);
+        post(bus, b, 2);
+        post(bus, a, 3);
+        assertEquals(recorderA.values.size(), 2);
+        assertEquals(recorderA.values.get(1).intValue(), 3);
+        assertEquals(recorderB.values.size(), 1);
+        assertEquals(recorderB.values.get(0).intValue(), 2);
+    }
+
+    public void testCoalesce() {
+        EventBus bus = new EventBus();
+        ManualDispatcher dispatcher = new ManualDispatcher();
+        bus.setDispatcher(dispatcher);
+        EventBus.Type<ValueEvent> state = bus.defineType("state", FACTORY, true, 4);
+        EventBus.Type<ValueEvent> message = bus.defineType("message", FACTORY, false, 4);
+        final ArrayList<String> order = new ArrayList<String>();
+        bus.subscribe(state, new EventBus.Subscriber<ValueEvent>() {
+            @Override
+            public void onEvent(ValueEvent event) {
+                order.add("state" + event.value);
+            }
+        });
+        bus.subscribe(message, new EventBus.Subscriber<ValueEvent>() {
+            @Override
+            public void onEvent(ValueEvent event) {
+                order.add("message" + event.value);
+            }
+        });
+
+        post(bus, state, 1);
+        post(bus, message, 1);
+        post(bus, state, 2);
+        post(bus, message, 2);
+        post(bus, state, 3);
+        // 届けるまでDispatcherは一度しか呼ばれない
+        assertEquals(dispatcher.count, 1);
+        assertTrue(order.isEmpty());
+
+        // まとめられた状態は最初の位置に最新の値で届く
+        bus.drain();
+        assertEquals(order.size(), 3);
+        assertEquals(order.get(0), "state3");
+        assertEquals(order.get(1), "message1");
+        assertEquals(order.get(2), "message2");
+        assertEquals(bus.getPostedCount(), 5);
+        assertEquals(bus.getCoalescedCount(), 2);
+        assertEquals(bus.getDeliveredCount(), 3);
+
+        // 届けた後は、また新しく積まれる
+        post(bus, state, 4);
+        assertEquals(dispatcher.count, 2);
+        bus.drain();
+        assertEquals(order.get(3), "state4");
+    }
+
+    public void testPool() {
+        EventBus bus = new EventBus();
+        EventBus.Type<ValueEvent> type = bus.defineType("value", FACTORY, false, 2);
+        Recorder recorder = new Recorder();
+        bus.subscribe(type, recorder);
+
+        ValueEvent first = bus.obtain(type);
+        first.value = 5;
+        bus.post(first);
+        assertEquals(bus.getCreatedCount(), 1);
+
+        // 届け終わったイベントは値を消して使い回す
+        ValueEvent second = bus.obtain(type);
+        assertSame(second, first);
+        assertEquals(second.value, 0);
+        bus.post(second);
+
+        for (int i = 0; i < 100; ++i) {
+            post(bus, type, i);
+        }
+        assertEquals(bus.getCreatedCount(), 1);
+        assertEquals(recorder.values.size(), 102);
+    }
+
+    public void testPostTwice() {
+        EventBus bus = new EventBus();
+        bus.setDispatcher(new ManualDispatcher());
+        EventBus.Type<ValueEvent> type = bus.defineType("value", FACTORY, false, 2);
+        ValueEvent event = bus.obtain(type);
+        bus.post(event);
+        try {
+            bus.post(event);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        // 別のバスで定義した種類は使えない
+        EventBus other = new EventBus();
+        try {
+            other.obtain(type);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ExponentialBackoff;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class ExponentialBackoffTest extends TestCase {
+
+    public void testWithoutJitter() {
+        ExponentialBackoff backoff = new ExponentialBackoff(250, 4000, 0, new Random(0));
+        assertEquals(backoff.nextDelayMs(), 250);
+        assertEquals(backoff.nextDelayMs(), 500);
+        assertEquals(backoff.nextDelayMs(), 1000);
+        assertEquals(backoff.nextDelayMs(), 2000);
+        assertEquals(backoff.nextDelayMs(), 4000);
+        // 最大値で頭打ちになる
+        assertEquals(backoff.nextDelayMs(), 4000);
+        for (int i = 0; i < 100; ++i) {
+            backoff.nextDelayMs();
+        }
+        assertEquals(backoff.nextDelayMs(), 4000);
+        assertEquals(backoff.getAttempt(), 107);
+
+        backoff.reset();
+        assertEquals(backoff.getAttempt(), 0);
+        assertEquals(backoff.nextDelayMs(), 250);
+    }
+
+    public void testJitter() {
+        ExponentialBackoff backoff = new ExponentialBackoff(1000, 1000, 0.5, new Random(0));
+        boolean isVaried = false;
+        long last = -1;
+        for (int i = 0; i < 100; ++i) {
+            final long delay = backoff.nextDelayMs();
+            assertTrue(delay > 500 && delay <= 1000);
+            if (last >= 0 && last != delay) {
+                isVaried = true;
+            }
+            last = delay;
+        }
+        assertTrue(isVaried);
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new ExponentialBackoff(0, 1000, 0, new Random());
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new ExponentialBackoff(1000, 999, 0, new Random());
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new ExponentialBackoff(1000, 1000, 1.5, new Random());
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.LatencyHistogram;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testRecord() {
+        LatencyHistogram histogram = new LatencyHistogram(new long[] {
+                100, 500, 1000
+        });
+        assertEquals(histogram.getBucketCount(), 4);
+        histogram.record(0);
+        histogram.record(100);
+        histogram.record(101);
+        histogram.record(1000);
+        histogram.record(5000);
+        assertEquals(histogram.getCount(0), 2);
+        assertEquals(histogram.getCount(1), 1);
+        assertEquals(histogram.getCount(2), 1);
+        assertEquals(histogram.getCount(3), 1);
+        assertEquals(histogram.getTotalCount(), 5);
+        assertEquals(histogram.getMaxMs(), 5000);
+        assertEquals(histogram.getUpperBoundMs(2), 1000);
+        assertEquals(histogram.getUpperBoundMs(3), Long.MAX_VALUE);
+        assertEquals(histogram.toString(),
+                "LatencyHistogram [<=100ms=2, <=500ms=1, <=1000ms=1, >1000ms=1, max=5000ms]");
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new LatencyHistogram(new long[0]);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new LatencyHistogram(new long[] {
+                    100, 100
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ListenerRegistry;
+
+import junit.framework.TestCase;
+
+public class ListenerRegistryTest extends TestCase {
+
+    public void testAddAndRemove() {
+        ListenerRegistry<String> registry = new ListenerRegistry<String>(String.class);
+        assertTrue(registry.isEmpty());
+        assertEquals(registry.snapshot().length, 0);
+
+        registry.add("a");
+        registry.add("b");
+        registry.add("a");
+        // nullは無視する
+        registry.add(null);
+        assertEquals(registry.size(), 3);
+
+        // 最初に見つかったものだけを削除する
+        assertTrue(registry.remove("a"));
+        String[] listeners = registry.snapshot();
+        assertEquals(listeners.length, 2);
+        assertEquals(listeners[0], "b");
+        assertEquals(listeners[1], "a");
+
+        assertFalse(registry.remove("c"));
+        assertEquals(registry.size(), 2);
+
+        registry.clear();
+        assertTrue(registry.isEmpty());
+    }
+
+    public void testSnapshotIsNotChanged() {
+        ListenerRegistry<String> registry = new ListenerRegistry<String>(String.class);
+        registry.add("a");
+        String[] before = registry.snapshot();
+
+        // 登録を変更しても、取得済みの配列は変わらない
+        registry.add("b");
+        registry.remove("a");
+        assertEquals(before.length, 1);
+        assertEquals(before[0], "a");
+        assertEquals(registry.snapshot()[0], "b");
+    }
+
+    public void testSnapshotIsShared() {
+        ListenerRegistry<String> registry = new ListenerRegistry<String>(String.class);
+        registry.add("a");
+
+        // 変更がなければ、通知のたびに配列を作らない
+        assertSame(registry.snapshot(), registry.snapshot());
+    }
+
+    public void testConcurrentAdd() throws Exception {
+        final ListenerRegistry<Integer> registry = new ListenerRegistry<Integer>(Integer.class);
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            final int base = i * 100;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100; ++j) {
+                        registry.add(base + j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join(5000);
+        }
+        assertEquals(registry.size(), 400);
+    }
+}
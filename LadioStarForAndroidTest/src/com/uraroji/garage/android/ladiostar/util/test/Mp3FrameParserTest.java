@@ -0,0 +1,183 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameParser;
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameQueue;
+
+import junit.framework.TestCase;
+
+public class Mp3FrameParserTest extends TestCase {
+
+    /**
+     * MPEG-1 Layer III 128kbps 44100Hz
+     */
+    private static final byte[] HEADER_MPEG1_128K_44100 = new byte[] {
+            (byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x00
+    };
+
+    /**
+     * MPEG-1 Layer III 128kbps 44100Hz with padding
+     */
+    private static final byte[] HEADER_MPEG1_128K_44100_PADDING = new byte[] {
+            (byte) 0xFF, (byte) 0xFB, (byte) 0x92, (byte) 0x00
+    };
+
+    /**
+     * MPEG-2 Layer III 32kbps 22050Hz
+     */
+    private static final byte[] HEADER_MPEG2_32K_22050 = new byte[] {
+            (byte) 0xFF, (byte) 0xF3, (byte) 0x40, (byte) 0x00
+    };
+
+    private static byte[] createFrame(byte[] header, int fill) {
+        byte[] frame = new byte[Mp3FrameParser.getFrameLength(header, 0)];
+        System.arraycopy(header, 0, frame, 0, header.length);
+        for (int i = header.length; i < frame.length; ++i) {
+            frame[i] = (byte) fill;
+        }
+        return frame;
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] a : arrays) {
+            length += a.length;
+        }
+        byte[] result = new byte[length];
+        int pos = 0;
+        for (byte[] a : arrays) {
+            System.arraycopy(a, 0, result, pos, a.length);
+            pos += a.length;
+        }
+        return result;
+    }
+
+    public void testFrameLength() {
+        assertEquals(Mp3FrameParser.getFrameLength(HEADER_MPEG1_128K_44100, 0), 417);
+        assertEquals(Mp3FrameParser.getFrameLength(HEADER_MPEG1_128K_44100_PADDING, 0), 418);
+        assertEquals(Mp3FrameParser.getFrameLength(HEADER_MPEG2_32K_22050, 0), 104);
+        assertEquals(Mp3FrameParser.getBitrate(HEADER_MPEG2_32K_22050, 0), 32);
+        assertEquals(Mp3FrameParser.getSampleRate(HEADER_MPEG2_32K_22050, 0), 22050);
+        assertEquals(Mp3FrameParser.getSamplesPerFrame(HEADER_MPEG2_32K_22050, 0), 576);
+
+        // Layer II
+        assertEquals(Mp3FrameParser.getFrameLength(new byte[] {
+                (byte) 0xFF, (byte) 0xFD, (byte) 0x90, (byte) 0x00
+        }, 0), -1);
+        // free format
+        assertEquals(Mp3FrameParser.getFrameLength(new byte[] {
+                (byte) 0xFF, (byte) 0xFB, (byte) 0x00, (byte) 0x00
+        }, 0), -1);
+        // reserved sample rate
+        assertEquals(Mp3FrameParser.getFrameLength(new byte[] {
+                (byte) 0xFF, (byte) 0xFB, (byte) 0x9C, (byte) 0x00
+        }, 0), -1);
+    }
+
+    public void testParsePartialFrames() {
+        byte[] stream = concat(createFrame(HEADER_MPEG1_128K_44100, 1),
+                createFrame(HEADER_MPEG1_128K_44100_PADDING, 2),
+                createFrame(HEADER_MPEG1_128K_44100, 3));
+        Mp3FrameParser parser = new Mp3FrameParser();
+        Mp3FrameQueue queue = new Mp3FrameQueue(4096, 16);
+
+        // 1バイトずつ渡してもフレームに分割できる
+        for (int i = 0; i < stream.length; ++i) {
+            parser.parse(stream, i, 1, queue);
+        }
+        // 最初のフレームは次のフレームのヘッダで確認してから、以降はフレームが揃った時点で書き込まれる
+        assertEquals(queue.getFrameCount(), 3);
+        assertEquals(queue.getLength(0), 417);
+        assertEquals(queue.getLength(1), 418);
+        assertEquals(queue.getLength(2), 417);
+        assertEquals(queue.getBitrate(1), 128);
+        assertEquals(queue.getSampleRate(1), 44100);
+
+        byte[] frame = new byte[Mp3FrameParser.MAX_FRAME_LENGTH];
+        assertEquals(queue.get(1, frame, 0), 418);
+        assertEquals(frame[4], 2);
+        assertEquals(frame[417], 2);
+        assertEquals(parser.getSkippedBytes(), 0);
+    }
+
+    public void testSkipGarbageAndTags() {
+        byte[] garbage = new byte[] {
+                0x12, (byte) 0xFF, (byte) 0xFB, 0x00, 0x34
+        };
+        // ID3v2 tag with 20 bytes body
+        byte[] id3v2 = new byte[30];
+        id3v2[0] = 'I';
+        id3v2[1] = 'D';
+        id3v2[2] = '3';
+        id3v2[3] = 4;
+        id3v2[9] = 20;
+        // ID3v1 tag
+        byte[] id3v1 = new byte[128];
+        id3v1[0] = 'T';
+        id3v1[1] = 'A';
+        id3v1[2] = 'G';
+        id3v1[3] = (byte) 0xFF;
+        id3v1[4] = (byte) 0xFB;
+
+        byte[] stream = concat(garbage, id3v2, createFrame(HEADER_MPEG1_128K_44100, 1),
+                createFrame(HEADER_MPEG1_128K_44100, 2), id3v1,
+                createFrame(HEADER_MPEG2_32K_22050, 3), createFrame(HEADER_MPEG2_32K_22050, 4));
+        Mp3FrameParser parser = new Mp3FrameParser();
+        Mp3FrameQueue queue = new Mp3FrameQueue(4096, 16);
+
+        assertEquals(parser.parse(stream, 0, stream.length, queue), 4);
+        assertEquals(queue.getFrameCount(), 4);
+        assertEquals(queue.getLength(0), 417);
+        assertEquals(queue.getLength(1), 417);
+        assertEquals(queue.getLength(2), 104);
+        assertEquals(queue.getLength(3), 104);
+        assertEquals(parser.getSkippedBytes(), garbage.length + id3v2.length + id3v1.length);
+    }
+
+    public void testTimestamp() {
+        Mp3FrameParser parser = new Mp3FrameParser();
+        Mp3FrameQueue queue = new Mp3FrameQueue(64 * 1024, 128);
+
+        byte[] frame = createFrame(HEADER_MPEG1_128K_44100, 0);
+        for (int i = 0; i < 100; ++i) {
+            parser.parse(frame, 0, frame.length, queue);
+        }
+        // 同期した後はフレームが揃った時点で書き込まれる
+        assertEquals(queue.getFrameCount(), 100);
+        assertEquals(queue.getTimestampUs(0), 0);
+        assertEquals(queue.getTimestampUs(1), 1152L * 1000000 / 44100);
+        // 誤差が積み重ならない
+        assertEquals(queue.getTimestampUs(99), 99L * 1152 * 1000000 / 44100);
+
+        // サンプリングレートが変わってもタイムスタンプは続く
+        final long changedAt = parser.getTimestampUs();
+        assertEquals(changedAt, 100L * 1152 * 1000000 / 44100);
+        byte[] frame2 = createFrame(HEADER_MPEG2_32K_22050, 0);
+        parser.parse(frame2, 0, frame2.length, queue);
+        parser.parse(frame2, 0, frame2.length, queue);
+        assertEquals(queue.getTimestampUs(100), changedAt);
+        assertEquals(queue.getTimestampUs(101), changedAt + 576L * 1000000 / 22050);
+        assertEquals(parser.getFrameCount(), 102);
+    }
+}
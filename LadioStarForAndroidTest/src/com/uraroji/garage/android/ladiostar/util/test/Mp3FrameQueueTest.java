@@ -0,0 +1,179 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameQueue;
+
+import junit.framework.TestCase;
+
+import java.nio.BufferOverflowException;
+
+public class Mp3FrameQueueTest extends TestCase {
+
+    private static void putFrame(Mp3FrameQueue queue, int length, int fill) {
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            frame[i] = (byte) fill;
+        }
+        queue.put(frame, 0, length, fill * 1000L, 44100, 128);
+    }
+
+    public void testPutAndRead() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(100, 10);
+        putFrame(queue, 10, 1);
+        putFrame(queue, 20, 2);
+        putFrame(queue, 30, 3);
+        assertEquals(queue.getFrameCount(), 3);
+        assertEquals(queue.getByteCount(), 60);
+
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        byte[] buf = new byte[35];
+        // 入りきるフレームだけを読み込む
+        assertEquals(queue.read(cursor, buf, 0, buf.length), 30);
+        assertEquals(buf[9], 1);
+        assertEquals(buf[10], 2);
+        assertEquals(cursor.getPosition(), 2);
+        assertEquals(queue.available(cursor), 1);
+        assertEquals(queue.availableBytes(cursor), 30);
+        assertEquals(queue.read(cursor, buf, 0, buf.length), 30);
+        assertEquals(buf[29], 3);
+        assertEquals(queue.read(cursor, buf, 0, buf.length), 0);
+        assertEquals(queue.availableBytes(cursor), 0);
+        assertEquals(queue.getTimestampUs(2), 3000);
+        assertEquals(queue.getTimestampUs(3), -1);
+    }
+
+    public void testAvailableUs() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(100, 10);
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        assertEquals(queue.availableUs(cursor), 0);
+
+        putFrame(queue, 10, 1);
+        // 1フレームの長さは44.1kHzで1152サンプル分
+        assertEquals(queue.availableUs(cursor), 1152 * 1000000L / 44100);
+        putFrame(queue, 10, 2);
+        putFrame(queue, 10, 3);
+        assertEquals(queue.availableUs(cursor), 2000 + 1152 * 1000000L / 44100);
+
+        byte[] buf = new byte[10];
+        queue.read(cursor, buf, 0, buf.length);
+        assertEquals(queue.availableUs(cursor), 1000 + 1152 * 1000000L / 44100);
+        queue.read(cursor, buf, 0, buf.length);
+        queue.read(cursor, buf, 0, buf.length);
+        assertEquals(queue.availableUs(cursor), 0);
+    }
+
+    public void testSkipToLatest() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(200, 20);
+        for (int i = 0; i < 10; ++i) {
+            putFrame(queue, 10, i);
+        }
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        final long frameUs = 1152 * 1000000L / 44100;
+        // 最後の4フレームだけが残る
+        assertEquals(queue.skipToLatest(cursor, 3000 + frameUs), 6);
+        assertEquals(cursor.getPosition(), 6);
+        assertEquals(queue.available(cursor), 4);
+        assertEquals(cursor.getDroppedFrames(), 0);
+        // 既に短い場合は何もしない
+        assertEquals(queue.skipToLatest(cursor, 3000 + frameUs), 0);
+        assertEquals(queue.skipToLatest(cursor, 0), 4);
+        assertEquals(queue.available(cursor), 0);
+    }
+
+    public void testOverwriteByBytes() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(50, 10);
+        putFrame(queue, 20, 1);
+        putFrame(queue, 20, 2);
+        putFrame(queue, 20, 3);
+        assertEquals(queue.getOldestSequence(), 1);
+        assertEquals(queue.getNextSequence(), 3);
+        assertEquals(queue.getOverwrittenFrames(), 1);
+
+        // バッファの終端をまたいだフレームも読み込める
+        byte[] buf = new byte[20];
+        assertEquals(queue.get(2, buf, 0), 20);
+        for (int i = 0; i < buf.length; ++i) {
+            assertEquals(buf[i], 3);
+        }
+
+        try {
+            putFrame(queue, 51, 4);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e instanceof BufferOverflowException);
+        }
+    }
+
+    public void testOverwriteByFrames() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(100, 2);
+        putFrame(queue, 5, 1);
+        putFrame(queue, 5, 2);
+        putFrame(queue, 5, 3);
+        assertEquals(queue.getFrameCount(), 2);
+        assertEquals(queue.getOldestSequence(), 1);
+    }
+
+    public void testCursors() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(100, 4);
+        Mp3FrameQueue.Cursor fast = new Mp3FrameQueue.Cursor(queue.getNextSequence());
+        Mp3FrameQueue.Cursor slow = new Mp3FrameQueue.Cursor(queue.getNextSequence());
+        byte[] buf = new byte[100];
+
+        for (int i = 1; i <= 6; ++i) {
+            putFrame(queue, 10, i);
+            assertEquals(queue.read(fast, buf, 0, buf.length), 10);
+            assertEquals(buf[0], i);
+        }
+        assertEquals(fast.getDroppedFrames(), 0);
+
+        // 上書きされたフレームの数がわかる
+        assertEquals(queue.read(slow, buf, 0, buf.length), 40);
+        assertEquals(buf[0], 3);
+        assertEquals(slow.getDroppedFrames(), 2);
+        assertEquals(slow.getPosition(), 6);
+    }
+
+    public void testCopyKeepsSequence() {
+        Mp3FrameQueue queue = new Mp3FrameQueue(100, 10);
+        for (int i = 1; i <= 5; ++i) {
+            putFrame(queue, 20, i);
+        }
+        Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(1);
+
+        // 小さいバッファに作り直すと新しいフレームだけが残る
+        Mp3FrameQueue smaller = new Mp3FrameQueue(60, 10, queue);
+        assertEquals(smaller.getOldestSequence(), 2);
+        assertEquals(smaller.getNextSequence(), 5);
+
+        byte[] buf = new byte[100];
+        assertEquals(smaller.read(cursor, buf, 0, buf.length), 60);
+        assertEquals(buf[0], 3);
+        assertEquals(cursor.getDroppedFrames(), 1);
+
+        putFrame(smaller, 20, 6);
+        assertEquals(smaller.getNextSequence(), 6);
+        assertEquals(smaller.read(cursor, buf, 0, buf.length), 20);
+        assertEquals(buf[0], 6);
+    }
+}
@@ -0,0 +1,198 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameParser;
+import com.uraroji.garage.android.ladiostar.util.Mp3Link;
+
+import junit.framework.TestCase;
+
+public class Mp3LinkTest extends TestCase {
+
+    /**
+     * MPEG-1 Layer III 128kbps 44100Hz
+     */
+    private static final byte[] HEADER_MPEG1_128K_44100 = new byte[] {
+            (byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x00
+    };
+
+    private static final int FRAME_LENGTH = Mp3FrameParser.getFrameLength(
+            HEADER_MPEG1_128K_44100, 0);
+
+    private static byte[] createFrame(int fill) {
+        final byte[] frame = new byte[FRAME_LENGTH];
+        System.arraycopy(HEADER_MPEG1_128K_44100, 0, frame, 0, HEADER_MPEG1_128K_44100.length);
+        for (int i = HEADER_MPEG1_128K_44100.length; i < frame.length; ++i) {
+            frame[i] = (byte) fill;
+        }
+        return frame;
+    }
+
+    private static void writeFrame(Mp3Link link, int fill) {
+        final byte[] frame = createFrame(fill);
+        link.write(frame, 0, frame.length);
+    }
+
+    public void testReaders() {
+        Mp3Link link = new Mp3Link(FRAME_LENGTH * 10, 10);
+        Mp3Link.Reader first = link.openReader();
+        // 最初のフレームは次のヘッダが届くまで確定しない
+        writeFrame(link, 1);
+        assertEquals(first.availableBytes(), 0);
+        writeFrame(link, 2);
+        assertEquals(first.availableBytes(), FRAME_LENGTH * 2);
+        assertEquals(link.getByteCount(), FRAME_LENGTH * 2);
+
+        // 後から開いた読み込み位置は、それ以降に書き込まれたフレームだけを読む
+        Mp3Link.Reader second = link.openReader();
+        assertEquals(second.availableBytes(), 0);
+        writeFrame(link, 3);
+        assertEquals(second.availableBytes(), FRAME_LENGTH);
+
+        byte[] buffer = new byte[FRAME_LENGTH * 10];
+        assertEquals(first.read(buffer, 0, buffer.length), FRAME_LENGTH * 3);
+        assertEquals(buffer[4], (byte) 1);
+        assertEquals(buffer[FRAME_LENGTH * 2 + 4], (byte) 3);
+        // 読み込み位置は別々なので、他の読み込みに影響しない
+        assertEquals(second.availableBytes(), FRAME_LENGTH);
+        assertEquals(second.read(buffer, 0, buffer.length), FRAME_LENGTH);
+        assertEquals(buffer[4], (byte) 3);
+        assertEquals(second.read(buffer, 0, buffer.length), 0);
+    }
+
+    public void testPositionAndSkip() {
+        Mp3Link link = new Mp3Link(FRAME_LENGTH * 10, 10);
+        Mp3Link.Reader reader = link.openReader();
+        for (int i = 0; i < 4; ++i) {
+            writeFrame(link, i);
+        }
+        long position = reader.getPosition();
+        byte[] buffer = new byte[FRAME_LENGTH * 10];
+        assertEquals(reader.read(buffer, 0, FRAME_LENGTH * 2), FRAME_LENGTH * 2);
+        // 送れなかった分を読み直す
+        reader.setPosition(position);
+        assertEquals(reader.read(buffer, 0, FRAME_LENGTH), FRAME_LENGTH);
+        assertEquals(buffer[4], (byte) 0);
+
+        reader.skipToNext();
+        assertEquals(reader.availableBytes(), 0);
+        writeFrame(link, 9);
+        assertEquals(reader.read(buffer, 0, buffer.length), FRAME_LENGTH);
+        assertEquals(buffer[4], (byte) 9);
+    }
+
+    public void testDroppedFrames() {
+        Mp3Link link = new Mp3Link(FRAME_LENGTH * 4, 4);
+        Mp3Link.Reader reader = link.openReader();
+        // 読み込まないうちに上書きされたフレームは捨てたと数える
+        for (int i = 0; i < 7; ++i) {
+            writeFrame(link, i);
+        }
+        byte[] buffer = new byte[FRAME_LENGTH * 10];
+        assertEquals(reader.read(buffer, 0, buffer.length), FRAME_LENGTH * 4);
+        assertEquals(reader.getDroppedFrames(), 3);
+        assertEquals(buffer[4], (byte) 3);
+    }
+
+    public void testResize() {
+        Mp3Link link = new Mp3Link(FRAME_LENGTH * 4, 4);
+        Mp3Link.Reader reader = link.openReader();
+        for (int i = 0; i < 3; ++i) {
+            writeFrame(link, i);
+        }
+        // 作り直しても、読み込み位置は続きから読める
+        link.resize(FRAME_LENGTH * 8, 8);
+        assertEquals(link.capacity(), FRAME_LENGTH * 8);
+        writeFrame(link, 3);
+        byte[] buffer = new byte[FRAME_LENGTH * 10];
+        assertEquals(reader.read(buffer, 0, buffer.length), FRAME_LENGTH * 4);
+        assertEquals(buffer[4], (byte) 0);
+        assertEquals(buffer[FRAME_LENGTH * 3 + 4], (byte) 3);
+        assertEquals(reader.getDroppedFrames(), 0);
+    }
+
+    public void testAwait() throws Exception {
+        final Mp3Link link = new Mp3Link(FRAME_LENGTH * 10, 10);
+        Mp3Link.Reader reader = link.openReader();
+        writeFrame(link, 0);
+        // 最後に確かめた後に書き込まれていれば、待たずに戻る
+        long start = System.currentTimeMillis();
+        reader.await(5000);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // 書き込まれなければ期限まで待つ
+        start = System.currentTimeMillis();
+        reader.await(50);
+        assertTrue(System.currentTimeMillis() - start >= 40);
+
+        // 起こされると待つのをやめる
+        Thread waker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                link.wakeUp();
+            }
+        };
+        start = System.currentTimeMillis();
+        waker.start();
+        reader.await(0);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        waker.join(5000);
+    }
+
+    public void testFinish() throws Exception {
+        final Mp3Link link = new Mp3Link(FRAME_LENGTH * 10, 10);
+        Mp3Link.Reader reader = link.openReader();
+        writeFrame(link, 0);
+        writeFrame(link, 1);
+        assertFalse(link.isFinished());
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                link.finish();
+            }
+        };
+        producer.start();
+
+        byte[] buffer = new byte[FRAME_LENGTH * 10];
+        assertEquals(reader.read(buffer, 0, buffer.length, 5000), FRAME_LENGTH * 2);
+        // 書き込みが終わるまで待ち、残りがなければ-1を返す
+        long start = System.currentTimeMillis();
+        int readSize = reader.read(buffer, 0, buffer.length, 5000);
+        if (readSize == 0) {
+            readSize = reader.read(buffer, 0, buffer.length, 5000);
+        }
+        assertEquals(readSize, -1);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertTrue(link.isFinished());
+        producer.join(5000);
+    }
+}
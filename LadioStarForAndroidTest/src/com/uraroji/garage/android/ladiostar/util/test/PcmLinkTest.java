@@ -0,0 +1,155 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.PcmLink;
+import com.uraroji.garage.android.ladiostar.util.PcmOverflowHandler;
+
+import junit.framework.TestCase;
+
+import java.nio.BufferOverflowException;
+
+public class PcmLinkTest extends TestCase {
+
+    private static final PcmLink.ReadCondition NEVER_CANCELLED = new PcmLink.ReadCondition() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    private static final PcmLink.ReadCondition CANCELLED = new PcmLink.ReadCondition() {
+        @Override
+        public boolean isCancelled() {
+            return true;
+        }
+    };
+
+    private static PcmLink create(int capacity, int policy) {
+        return new PcmLink(capacity, new PcmOverflowHandler(policy, 1, 100));
+    }
+
+    public void testWriteAndRead() throws Exception {
+        PcmLink link = create(8, PcmOverflowHandler.POLICY_ABORT);
+        assertEquals(link.write(new short[] { 1, 2, 3, 4, 5 }, 0, 5),
+                PcmOverflowHandler.RESULT_WRITTEN);
+        assertEquals(link.getAvailable(), 5);
+
+        short[] buf = new short[3];
+        assertEquals(link.read(buf, 0, buf.length, NEVER_CANCELLED), 3);
+        assertEquals(buf[2], 3);
+        assertEquals(link.read(buf, 0, buf.length, NEVER_CANCELLED), 2);
+        assertEquals(buf[1], 5);
+        // 空で待たない場合は0を返す
+        assertEquals(link.read(buf, 0, buf.length, CANCELLED), 0);
+
+        assertEquals(link.getWrittenSamples(), 5);
+        assertEquals(link.getReadSamples(), 5);
+        assertEquals(link.getHighWaterMark(), 5);
+        assertEquals(link.getWaitCount(), 0);
+    }
+
+    public void testOverflowPolicy() {
+        PcmLink link = create(6, PcmOverflowHandler.POLICY_ABORT);
+        link.write(new short[] { 1, 2, 3, 4 }, 0, 4);
+        try {
+            link.write(new short[] { 5, 6, 7, 8 }, 0, 4);
+            fail();
+        } catch (BufferOverflowException e) {
+        }
+
+        // あふれた場合の処理を入れ替えると、書き込みは止まらない
+        link.setOverflowHandler(new PcmOverflowHandler(PcmOverflowHandler.POLICY_DROP_OLDEST, 1,
+                100));
+        assertEquals(link.write(new short[] { 5, 6, 7, 8 }, 0, 4),
+                PcmOverflowHandler.RESULT_DROPPED_OLDEST);
+        assertEquals(link.getAvailable(), 4);
+        assertEquals(link.getOverflowHandler().getOverflowCount(), 1);
+
+        try {
+            link.setOverflowHandler(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testReadWaitsForWrite() throws Exception {
+        final PcmLink link = create(100, PcmOverflowHandler.POLICY_ABORT);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                link.write(new short[] { 7, 8 }, 0, 2);
+            }
+        };
+        producer.start();
+
+        short[] buf = new short[10];
+        assertEquals(link.read(buf, 0, buf.length, NEVER_CANCELLED), 2);
+        assertEquals(buf[0], 7);
+        assertTrue(link.getWaitCount() >= 1);
+        producer.join(5000);
+    }
+
+    public void testWakeUp() throws Exception {
+        final PcmLink link = create(100, PcmOverflowHandler.POLICY_ABORT);
+        final boolean[] isStopped = new boolean[1];
+        final PcmLink.ReadCondition condition = new PcmLink.ReadCondition() {
+            @Override
+            public boolean isCancelled() {
+                return isStopped[0];
+            }
+        };
+        Thread stopper = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                }
+                isStopped[0] = true;
+                link.wakeUp();
+            }
+        };
+        stopper.start();
+
+        // 停止して起こされると、データがなくても戻る
+        short[] buf = new short[10];
+        assertEquals(link.read(buf, 0, buf.length, condition), 0);
+        stopper.join(5000);
+    }
+
+    public void testResize() throws Exception {
+        PcmLink link = create(4, PcmOverflowHandler.POLICY_ABORT);
+        link.write(new short[] { 1, 2, 3 }, 0, 3);
+        link.resize(10);
+        assertEquals(link.capacity(), 10);
+        assertEquals(link.getAvailable(), 0);
+        assertEquals(link.getHighWaterMark(), 0);
+        assertEquals(link.write(new short[] { 1, 2, 3, 4, 5, 6, 7, 8 }, 0, 8),
+                PcmOverflowHandler.RESULT_WRITTEN);
+    }
+}
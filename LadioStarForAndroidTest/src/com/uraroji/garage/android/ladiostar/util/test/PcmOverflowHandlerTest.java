@@ -0,0 +1,135 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.PcmOverflowHandler;
+import com.uraroji.garage.android.ladiostar.util.ShortRingBuffer;
+
+import junit.framework.TestCase;
+
+import java.nio.BufferOverflowException;
+
+public class PcmOverflowHandlerTest extends TestCase {
+
+    public void testWriteWithoutOverflow() {
+        ShortRingBuffer buf = new ShortRingBuffer(8);
+        PcmOverflowHandler handler = new PcmOverflowHandler(PcmOverflowHandler.POLICY_ABORT, 1,
+                100);
+
+        assertEquals(handler.write(buf, new short[] { 1, 2, 3, 4 }, 0, 4),
+                PcmOverflowHandler.RESULT_WRITTEN);
+        assertEquals(buf.getAvailable(), 4);
+        assertEquals(handler.getOverflowCount(), 0);
+    }
+
+    public void testAbort() {
+        ShortRingBuffer buf = new ShortRingBuffer(6);
+        PcmOverflowHandler handler = new PcmOverflowHandler(PcmOverflowHandler.POLICY_ABORT, 1,
+                100);
+
+        handler.write(buf, new short[] { 1, 2, 3, 4 }, 0, 4);
+        try {
+            handler.write(buf, new short[] { 5, 6, 7, 8 }, 0, 4);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e instanceof BufferOverflowException);
+        }
+        assertEquals(handler.getOverflowCount(), 1);
+    }
+
+    public void testDropOldest() {
+        ShortRingBuffer buf = new ShortRingBuffer(8);
+        PcmOverflowHandler handler = new PcmOverflowHandler(
+                PcmOverflowHandler.POLICY_DROP_OLDEST, 2, 100);
+
+        handler.write(buf, new short[] { 1, 1, 2, 2 }, 0, 4);
+        handler.write(buf, new short[] { 3, 3, 4, 4 }, 0, 4);
+        assertEquals(handler.write(buf, new short[] { 5, 5, 6, 6 }, 0, 4),
+                PcmOverflowHandler.RESULT_DROPPED_OLDEST);
+
+        // 最も古いブロックが捨てられている
+        short[] rbuf = new short[8];
+        assertEquals(buf.get(rbuf, 0, rbuf.length), 8);
+        short[] correct = new short[] { 3, 3, 4, 4, 5, 5, 6, 6 };
+        for (int i = 0; i < correct.length; ++i) {
+            assertEquals(rbuf[i], correct[i]);
+        }
+        assertEquals(handler.getOverflowCount(), 1);
+        assertEquals(handler.getDroppedOldestSamples(), 4);
+    }
+
+    public void testDecimate() {
+        ShortRingBuffer buf = new ShortRingBuffer(6);
+        PcmOverflowHandler handler = new PcmOverflowHandler(PcmOverflowHandler.POLICY_DECIMATE,
+                2, 100);
+
+        handler.write(buf, new short[] { 1, 1, 2, 2 }, 0, 4);
+        assertEquals(handler.write(buf, new short[] { 3, 3, 4, 4 }, 0, 4),
+                PcmOverflowHandler.RESULT_DECIMATED);
+
+        // 1フレームおきに間引かれ、チャンネルの並びは崩れない
+        short[] rbuf = new short[6];
+        assertEquals(buf.get(rbuf, 0, rbuf.length), 6);
+        short[] correct = new short[] { 1, 1, 2, 2, 3, 3 };
+        for (int i = 0; i < correct.length; ++i) {
+            assertEquals(rbuf[i], correct[i]);
+        }
+        assertEquals(handler.getDecimatedSamples(), 2);
+        assertEquals(handler.getDroppedOldestSamples(), 0);
+    }
+
+    public void testSkipSilent() {
+        ShortRingBuffer buf = new ShortRingBuffer(4);
+        PcmOverflowHandler handler = new PcmOverflowHandler(
+                PcmOverflowHandler.POLICY_SKIP_SILENT, 1, 100);
+
+        handler.write(buf, new short[] { 1000, 1000, 1000 }, 0, 3);
+
+        // 無音のブロックは捨てる
+        assertEquals(handler.write(buf, new short[] { 1, -1, 2 }, 0, 3),
+                PcmOverflowHandler.RESULT_SKIPPED_SILENT);
+        assertEquals(buf.getAvailable(), 3);
+        assertEquals(handler.getSkippedSilentBlocks(), 1);
+        assertEquals(handler.getSkippedSilentSamples(), 3);
+
+        // 無音でないブロックは古いデータを捨てて書き込む
+        assertEquals(handler.write(buf, new short[] { 2000, 2000, 2000 }, 0, 3),
+                PcmOverflowHandler.RESULT_DROPPED_OLDEST);
+        short[] rbuf = new short[4];
+        assertEquals(buf.get(rbuf, 0, rbuf.length), 3);
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(rbuf[i], 2000);
+        }
+        assertEquals(handler.getOverflowCount(), 2);
+    }
+
+    public void testInvalidPolicy() {
+        assertFalse(PcmOverflowHandler.isValidPolicy(-1));
+        try {
+            new PcmOverflowHandler(100, 1, 100);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e instanceof IllegalArgumentException);
+        }
+    }
+}
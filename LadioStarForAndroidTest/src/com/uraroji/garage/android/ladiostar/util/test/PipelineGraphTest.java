@@ -0,0 +1,137 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.PipelineGraph;
+import com.uraroji.garage.android.ladiostar.util.PipelineStage;
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+
+import junit.framework.TestCase;
+
+public class PipelineGraphTest extends TestCase {
+
+    /**
+     * 停止を指示されるまで待ち続けるステージ
+     */
+    private static class WaitingStage extends PipelineStage {
+
+        private final Object mLock = new Object();
+
+        private boolean mIsStopRequested = false;
+
+        public WaitingStage(String name, PipelineLifecycle lifecycle) {
+            super(name, lifecycle);
+        }
+
+        @Override
+        public void requestStop() {
+            synchronized (mLock) {
+                mIsStopRequested = true;
+                mLock.notifyAll();
+            }
+        }
+
+        @Override
+        protected void runStage() {
+            synchronized (mLock) {
+                while (!mIsStopRequested) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    public void testStopRequestsAllStages() throws Exception {
+        PipelineGraph graph = new PipelineGraph();
+        graph.begin();
+        WaitingStage first = new WaitingStage("First", graph.getLifecycle());
+        WaitingStage second = new WaitingStage("Second", graph.getLifecycle());
+        assertTrue(graph.start(first));
+        assertTrue(graph.start(second));
+        graph.ready();
+        assertEquals(graph.getStages().size(), 2);
+        assertSame(graph.getStages().get(0), first);
+        assertFalse(graph.awaitTermination(50));
+
+        // 停止を指示すると、すべてのステージが終了する
+        graph.stop();
+        assertTrue(graph.awaitTermination(5000));
+        assertTrue(graph.getLifecycle().isTerminated());
+        first.join(5000);
+        second.join(5000);
+        assertEquals(graph.getStages().size(), 0);
+    }
+
+    public void testReplaceStage() throws Exception {
+        PipelineGraph graph = new PipelineGraph();
+        graph.begin();
+        WaitingStage running = new WaitingStage("Running", graph.getLifecycle());
+        WaitingStage replaced = new WaitingStage("Replaced", graph.getLifecycle());
+        graph.start(running);
+        graph.start(replaced);
+        graph.ready();
+
+        // 入れ替えるステージだけを止めて、新しいステージを開始する
+        replaced.requestStop();
+        replaced.join(5000);
+        WaitingStage replacement = new WaitingStage("Replacement", graph.getLifecycle());
+        assertTrue(graph.start(replacement));
+        // 終了したステージは含まない
+        assertEquals(graph.getStages().size(), 2);
+        assertSame(graph.getStages().get(1), replacement);
+        assertFalse(graph.getLifecycle().isTerminated());
+
+        graph.stop();
+        assertTrue(graph.awaitTermination(5000));
+    }
+
+    public void testStartAfterTermination() throws Exception {
+        PipelineGraph graph = new PipelineGraph();
+        graph.begin();
+        WaitingStage stage = new WaitingStage("Stage", graph.getLifecycle());
+        graph.start(stage);
+        graph.ready();
+        graph.stop();
+        assertTrue(graph.awaitTermination(5000));
+        stage.join(5000);
+
+        // 終了した後は開始しない
+        WaitingStage late = new WaitingStage("Late", graph.getLifecycle());
+        assertFalse(graph.start(late));
+        assertEquals(late.getState(), Thread.State.NEW);
+        assertEquals(graph.getStages().size(), 0);
+
+        // 次のセッションを開始できる
+        graph.begin();
+        WaitingStage next = new WaitingStage("Next", graph.getLifecycle());
+        assertTrue(graph.start(next));
+        graph.ready();
+        graph.stop();
+        assertTrue(graph.awaitTermination(5000));
+    }
+}
@@ -0,0 +1,189 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PipelineLifecycleTest extends TestCase {
+
+    /**
+     * 停止が指示されるまで資源を持ち続けるスレッド
+     */
+    private static class Stage extends Thread {
+
+        private final PipelineLifecycle mLifecycle;
+
+        private final AtomicInteger mOpenResources;
+
+        private final Object mLock;
+
+        private final boolean[] mIsStopped;
+
+        public Stage(PipelineLifecycle lifecycle, AtomicInteger openResources, Object lock,
+                boolean[] isStopped) {
+            mLifecycle = lifecycle;
+            mOpenResources = openResources;
+            mLock = lock;
+            mIsStopped = isStopped;
+        }
+
+        @Override
+        public void run() {
+            mOpenResources.incrementAndGet();
+            try {
+                synchronized (mLock) {
+                    while (!mIsStopped[0]) {
+                        mLock.wait();
+                    }
+                }
+                // 解放に時間がかかる資源
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+            } finally {
+                mOpenResources.decrementAndGet();
+                mLifecycle.finished(this);
+            }
+        }
+    }
+
+    private static void stop(Object lock, boolean[] isStopped) {
+        synchronized (lock) {
+            isStopped[0] = true;
+            lock.notifyAll();
+        }
+    }
+
+    public void testTerminatesAfterAllThreads() throws Exception {
+        final PipelineLifecycle lifecycle = new PipelineLifecycle();
+        final AtomicInteger terminatedCount = new AtomicInteger();
+        lifecycle.setListener(new PipelineLifecycle.Listener() {
+            @Override
+            public void onTerminated() {
+                terminatedCount.incrementAndGet();
+            }
+        });
+        final AtomicInteger openResources = new AtomicInteger();
+        final Object lock = new Object();
+        final boolean[] isStopped = new boolean[1];
+
+        lifecycle.begin();
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(lifecycle.start(new Stage(lifecycle, openResources, lock, isStopped)));
+        }
+        lifecycle.ready();
+        assertFalse(lifecycle.isTerminated());
+        assertFalse(lifecycle.awaitTermination(50));
+        assertEquals(lifecycle.getActiveCount(), 3);
+        assertEquals(lifecycle.getStoppingMs(), -1);
+
+        lifecycle.onStopRequested();
+        // 停止を指示してから終了するまでは、停止中の時間がわかる
+        assertTrue(lifecycle.getStoppingMs() >= 0);
+        stop(lock, isStopped);
+        assertTrue(lifecycle.awaitTermination(5000));
+        assertEquals(lifecycle.getStoppingMs(), -1);
+        // 終了した時点ですべての資源が解放されている
+        assertEquals(openResources.get(), 0);
+        assertEquals(lifecycle.getActiveCount(), 0);
+        assertEquals(terminatedCount.get(), 1);
+        assertTrue(lifecycle.getTeardownMs() >= 20);
+    }
+
+    public void testEarlyFailureWaitsForReady() throws Exception {
+        final PipelineLifecycle lifecycle = new PipelineLifecycle();
+        final AtomicInteger terminatedCount = new AtomicInteger();
+        lifecycle.setListener(new PipelineLifecycle.Listener() {
+            @Override
+            public void onTerminated() {
+                terminatedCount.incrementAndGet();
+            }
+        });
+        lifecycle.begin();
+        // すぐに失敗するスレッド
+        Thread failed = new Thread() {
+            @Override
+            public void run() {
+                lifecycle.finished(this);
+            }
+        };
+        lifecycle.start(failed);
+        failed.join(5000);
+        // すべてのスレッドを開始するまでは終了しない
+        assertFalse(lifecycle.isTerminated());
+        assertEquals(terminatedCount.get(), 0);
+
+        lifecycle.ready();
+        assertTrue(lifecycle.isTerminated());
+        assertEquals(terminatedCount.get(), 1);
+        // 停止を指示していないので、停止にかかった時間はわからない
+        assertEquals(lifecycle.getTeardownMs(), -1);
+    }
+
+    public void testRestart() throws Exception {
+        final PipelineLifecycle lifecycle = new PipelineLifecycle();
+        final AtomicInteger openResources = new AtomicInteger();
+        assertEquals(lifecycle.getRestartLatencyMs(), -1);
+
+        // 停止を待ってすぐに開始することを繰り返す
+        for (int i = 0; i < 10; ++i) {
+            final Object lock = new Object();
+            final boolean[] isStopped = new boolean[1];
+            lifecycle.begin();
+            if (i > 0) {
+                assertTrue(lifecycle.getRestartLatencyMs() >= 20);
+                assertTrue(lifecycle.getRestartLatencyMs() < 2000);
+            }
+            assertEquals(openResources.get(), 0);
+            lifecycle.start(new Stage(lifecycle, openResources, lock, isStopped));
+            lifecycle.start(new Stage(lifecycle, openResources, lock, isStopped));
+            lifecycle.ready();
+
+            lifecycle.onStopRequested();
+            stop(lock, isStopped);
+            assertTrue(lifecycle.awaitTermination(5000));
+            assertEquals(openResources.get(), 0);
+        }
+    }
+
+    public void testIllegalState() throws Exception {
+        PipelineLifecycle lifecycle = new PipelineLifecycle();
+        // 開始していない場合はスレッドを開始しない
+        Thread thread = new Thread();
+        assertFalse(lifecycle.start(thread));
+        assertEquals(thread.getState(), Thread.State.NEW);
+        assertTrue(lifecycle.awaitTermination(0));
+
+        lifecycle.begin();
+        try {
+            lifecycle.begin();
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        lifecycle.ready();
+        assertTrue(lifecycle.isTerminated());
+    }
+}
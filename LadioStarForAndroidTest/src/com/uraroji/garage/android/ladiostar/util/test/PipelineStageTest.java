@@ -0,0 +1,92 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.PipelineLifecycle;
+import com.uraroji.garage.android.ladiostar.util.PipelineStage;
+import com.uraroji.garage.android.ladiostar.util.StageMetrics;
+
+import junit.framework.TestCase;
+
+public class PipelineStageTest extends TestCase {
+
+    public void testMetrics() {
+        StageMetrics metrics = new StageMetrics();
+        assertEquals(metrics.getBusyPercent(1000), 0);
+        metrics.record(100, 300);
+        metrics.record(50, 100);
+        assertEquals(metrics.getCount(), 2);
+        assertEquals(metrics.getItems(), 150);
+        assertEquals(metrics.getBusyNanos(), 400);
+        assertEquals(metrics.getMaxBusyNanos(), 300);
+        assertEquals(metrics.getBusyPercent(1000), 40);
+        assertEquals(metrics.getBusyPercent(0), 0);
+    }
+
+    public void testStageFinishesLifecycle() throws Exception {
+        PipelineLifecycle lifecycle = new PipelineLifecycle();
+        PipelineStage stage = new PipelineStage("Test", lifecycle) {
+            @Override
+            protected void runStage() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                }
+                getMetrics().record(10, 1000);
+            }
+        };
+        assertEquals(stage.getName(), "Test");
+        assertEquals(stage.getElapsedNanos(), 0);
+
+        lifecycle.begin();
+        lifecycle.start(stage);
+        lifecycle.ready();
+        // ステージの処理を終えると、呼び出さなくても終了が伝わる
+        assertTrue(lifecycle.awaitTermination(5000));
+        assertEquals(stage.getMetrics().getItems(), 10);
+        final long elapsed = stage.getElapsedNanos();
+        assertTrue(elapsed >= 50 * 1000000L);
+        // 終了した後は走っていた時間は変わらない
+        assertEquals(stage.getElapsedNanos(), elapsed);
+    }
+
+    public void testStageFinishesOnException() throws Exception {
+        PipelineLifecycle lifecycle = new PipelineLifecycle();
+        PipelineStage stage = new PipelineStage("Failed", lifecycle) {
+            @Override
+            protected void runStage() {
+                throw new IllegalStateException("test");
+            }
+        };
+        // スレッドの例外を標準エラー出力に出さない
+        stage.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+            }
+        });
+        lifecycle.begin();
+        lifecycle.start(stage);
+        lifecycle.ready();
+        assertTrue(lifecycle.awaitTermination(5000));
+    }
+}
@@ -0,0 +1,120 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.Resampler;
+
+import junit.framework.TestCase;
+
+public class ResamplerTest extends TestCase {
+
+    private static short[] createSine(int sampleRate, double frequency, int length,
+            double amplitude) {
+        short[] result = new short[length];
+        for (int i = 0; i < length; ++i) {
+            result[i] = (short) (amplitude * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return result;
+    }
+
+    private static short[] resample(Resampler resampler, short[] in, int blockLength) {
+        short[] out = new short[resampler.getMaxOutputLength(in.length) + in.length];
+        int outLength = 0;
+        for (int offset = 0; offset < in.length; offset += blockLength) {
+            final int len = Math.min(blockLength, in.length - offset);
+            outLength += resampler.process(in, offset, len, out, outLength);
+        }
+        short[] result = new short[outLength];
+        System.arraycopy(out, 0, result, 0, outLength);
+        return result;
+    }
+
+    private static double rms(short[] data, int offset, int len) {
+        double squareTotal = 0;
+        for (int i = offset; i < offset + len; ++i) {
+            squareTotal += data[i] * data[i];
+        }
+        return Math.sqrt(squareTotal / len);
+    }
+
+    public void testOutputLength() {
+        Resampler resampler = new Resampler(44100, 16000, 0, 441);
+        short[] out = resample(resampler, new short[44100], 441);
+        // 1秒分の入力から1秒分の出力が得られる
+        assertTrue(Math.abs(out.length - 16000) <= 1);
+
+        resampler = new Resampler(44100, 11025, 0, 1000);
+        out = resample(resampler, new short[44100], 1000);
+        assertTrue(Math.abs(out.length - 11025) <= 1);
+    }
+
+    public void testPassband() {
+        Resampler resampler = new Resampler(44100, 16000, 7000, 441);
+        short[] in = createSine(44100, 1000, 44100, 10000);
+        short[] out = resample(resampler, in, 441);
+        // フィルタの遅延分を除いて比較する
+        final double inRms = rms(in, 0, in.length);
+        final double outRms = rms(out, 1000, out.length - 1000);
+        assertTrue(Math.abs(outRms - inRms) < inRms * 0.05);
+    }
+
+    public void testStopband() {
+        Resampler resampler = new Resampler(44100, 16000, 7000, 441);
+        // 変換後のナイキスト周波数を超える音は取り除かれる
+        short[] in = createSine(44100, 10000, 44100, 10000);
+        short[] out = resample(resampler, in, 441);
+        final double inRms = rms(in, 0, in.length);
+        final double outRms = rms(out, 1000, out.length - 1000);
+        assertTrue(outRms < inRms * 0.05);
+    }
+
+    public void testBlockLength() {
+        short[] in = createSine(44100, 440, 10000, 10000);
+        short[] whole = resample(new Resampler(44100, 22050, 0, in.length), in, in.length);
+        short[] split = resample(new Resampler(44100, 22050, 0, in.length), in, 37);
+        // 入力の区切り方によらず同じ結果になる
+        assertEquals(split.length, whole.length);
+        for (int i = 0; i < whole.length; ++i) {
+            assertEquals(split[i], whole[i]);
+        }
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new Resampler(0, 16000, 0, 100);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new Resampler(44100, 16000, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        Resampler resampler = new Resampler(44100, 16000, 0, 100);
+        try {
+            resampler.process(new short[101], 0, 101, new short[100], 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
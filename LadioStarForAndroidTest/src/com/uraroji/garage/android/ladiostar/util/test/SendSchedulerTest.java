@@ -0,0 +1,94 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.SendScheduler;
+
+import junit.framework.TestCase;
+
+public class SendSchedulerTest extends TestCase {
+
+    public void testBatch() {
+        SendScheduler scheduler = new SendScheduler(500, 4000, 0, 0);
+        assertEquals(scheduler.delayMs(0, 1000, 1000), -1);
+        // 目標のサイズに満たない場合は、たまり始めてから期間が過ぎるまで待つ
+        assertEquals(scheduler.delayMs(400, 1000, 1000), 500);
+        assertEquals(scheduler.delayMs(2000, 1000, 1300), 200);
+        assertEquals(scheduler.delayMs(3000, 1000, 1500), 0);
+        // 目標のサイズに達した場合はすぐに送る
+        assertEquals(scheduler.delayMs(4000, 1000, 1100), 0);
+        assertEquals(scheduler.writableBytes(4000, 1100), 4000);
+    }
+
+    public void testNoBatch() {
+        SendScheduler scheduler = new SendScheduler(0, 4000, 0, 0);
+        assertEquals(scheduler.delayMs(1, 1000, 1000), 0);
+    }
+
+    public void testPacing() {
+        // 1000バイト/秒、バケットは2000バイト
+        SendScheduler scheduler = new SendScheduler(0, 1000, 1000, 2000);
+        assertEquals(scheduler.delayMs(5000, 0, 0), 0);
+        assertEquals(scheduler.writableBytes(5000, 0), 2000);
+        scheduler.onWrite(2000, 0);
+
+        // トークンがたまるまで待つ
+        assertEquals(scheduler.delayMs(3000, 0, 0), 1000);
+        assertEquals(scheduler.delayMs(3000, 0, 500), 500);
+        assertEquals(scheduler.writableBytes(3000, 500), 500);
+        assertEquals(scheduler.delayMs(3000, 0, 1000), 0);
+        assertEquals(scheduler.writableBytes(3000, 1000), 1000);
+        scheduler.onWrite(1000, 1000);
+
+        // バケットの大きさ以上にはたまらない
+        assertEquals(scheduler.writableBytes(10000, 100000), 2000);
+    }
+
+    public void testStatistics() {
+        SendScheduler scheduler = new SendScheduler(500, 4000, 0, 0);
+        assertEquals(scheduler.getAverageWriteBytes(), 0);
+        for (int i = 0; i < 30; ++i) {
+            scheduler.onWrite(i % 2 == 0 ? 3000 : 5000, 60000 + i * 1000);
+        }
+        assertEquals(scheduler.getWriteCount(), 30);
+        assertEquals(scheduler.getWrittenBytes(), 120000);
+        assertEquals(scheduler.getAverageWriteBytes(), 4000);
+        // 30秒間に30回書き込んだので、1分あたり60回
+        assertEquals(scheduler.getWritesPerMinute(89999), 60);
+    }
+
+    public void testWritesPerMinuteBelowOnePerSecond() {
+        SendScheduler scheduler = new SendScheduler(500, 4000, 0, 0);
+        assertEquals(scheduler.getWritesPerMinute(60000), 0);
+        // 1秒あたり1回未満でも0に丸めない
+        scheduler.onWrite(4000, 60000);
+        assertEquals(scheduler.getWritesPerMinute(61999), 30);
+        for (int i = 1; i < 30; ++i) {
+            scheduler.onWrite(4000, 60000 + i * 2000);
+        }
+        // 2秒に1回書き込んだので、1分あたり30回
+        assertEquals(scheduler.getWritesPerMinute(119000), 30);
+        // 直近の59秒間に19回書き込んだので、1分あたり19回
+        assertEquals(scheduler.getWritesPerMinute(140000), 19);
+    }
+}
@@ -0,0 +1,222 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ServerDirectory;
+import com.uraroji.garage.android.ladiostar.util.ServerEntry;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ServerDirectoryTest extends TestCase {
+
+    private static final long TTL = 60 * 1000;
+
+    private static final long MAX_STALE = 60 * 60 * 1000;
+
+    /**
+     * 取得回数を数え、指定したサーバ情報リストを返すFetcher
+     */
+    private static class CountingFetcher implements ServerDirectory.Fetcher {
+
+        volatile List<ServerEntry> servers;
+
+        volatile boolean fail = false;
+
+        volatile CountDownLatch gate = null;
+
+        volatile int count = 0;
+
+        CountingFetcher(List<ServerEntry> servers) {
+            this.servers = servers;
+        }
+
+        @Override
+        public List<ServerEntry> fetch() throws IOException {
+            ++count;
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted.");
+                }
+            }
+            if (fail) {
+                throw new IOException("Failed.");
+            }
+            return servers;
+        }
+    }
+
+    private File mCacheFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheFile = File.createTempFile("ServerDirectoryTest", ".txt");
+        mCacheFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCacheFile.delete();
+        super.tearDown();
+    }
+
+    private static List<ServerEntry> list(ServerEntry... entries) {
+        final ArrayList<ServerEntry> result = new ArrayList<ServerEntry>();
+        for (ServerEntry e : entries) {
+            result.add(e);
+        }
+        return result;
+    }
+
+    private static void waitRefresh(ServerDirectory directory) throws InterruptedException {
+        final long limit = System.currentTimeMillis() + 5000;
+        while (directory.isRefreshing() && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        assertFalse(directory.isRefreshing());
+    }
+
+    public void testFresh() throws IOException {
+        final CountingFetcher fetcher = new CountingFetcher(list(new ServerEntry("a", 8000, 3)));
+        final ServerDirectory directory = new ServerDirectory(fetcher, TTL, MAX_STALE, null);
+
+        // キャッシュがない場合は取得しない
+        assertNull(directory.get(System.currentTimeMillis()));
+        assertEquals(fetcher.count, 0);
+
+        assertEquals(directory.fetch(), fetcher.servers);
+        assertEquals(fetcher.count, 1);
+
+        // TTLの間はキャッシュを返し、取得し直さない
+        final long fetched = directory.getFetchedTimeMs();
+        assertEquals(directory.get(fetched + TTL), fetcher.servers);
+        assertFalse(directory.isRefreshing());
+        assertEquals(fetcher.count, 1);
+    }
+
+    public void testStaleWhileRevalidate() throws Exception {
+        final List<ServerEntry> oldServers = list(new ServerEntry("a", 8000, 3));
+        final List<ServerEntry> newServers = list(new ServerEntry("b", 8010, 1));
+        final CountingFetcher fetcher = new CountingFetcher(oldServers);
+        final ServerDirectory directory = new ServerDirectory(fetcher, TTL, MAX_STALE, null);
+        directory.fetch();
+        final long fetched = directory.getFetchedTimeMs();
+
+        // TTLを過ぎると、取得の完了を待たずに古いキャッシュを返す
+        fetcher.servers = newServers;
+        fetcher.gate = new CountDownLatch(1);
+        final long start = System.currentTimeMillis();
+        assertEquals(directory.get(fetched + TTL + 1), oldServers);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertTrue(directory.isRefreshing());
+
+        // 取得中に再度呼んでも二重に取得しない
+        assertEquals(directory.get(fetched + TTL + 2), oldServers);
+
+        fetcher.gate.countDown();
+        waitRefresh(directory);
+        assertEquals(fetcher.count, 2);
+        assertEquals(directory.get(directory.getFetchedTimeMs()), newServers);
+
+        // 取得に失敗しても古いキャッシュを使い続ける
+        fetcher.gate = null;
+        fetcher.fail = true;
+        assertEquals(directory.get(directory.getFetchedTimeMs() + TTL + 1), newServers);
+        waitRefresh(directory);
+        assertNotNull(directory.getLastFetchError());
+        assertEquals(directory.get(directory.getFetchedTimeMs() + TTL + 1), newServers);
+
+        // 古すぎるキャッシュは使わない
+        assertNull(directory.get(directory.getFetchedTimeMs() + MAX_STALE + 1));
+    }
+
+    public void testInvalidate() throws IOException {
+        final CountingFetcher fetcher = new CountingFetcher(list(new ServerEntry("a", 8000, 3)));
+        final ServerDirectory directory = new ServerDirectory(fetcher, TTL, MAX_STALE, null);
+        directory.fetch();
+        directory.invalidate();
+        assertNull(directory.get(directory.getFetchedTimeMs()));
+
+        directory.fetch();
+        assertEquals(directory.get(directory.getFetchedTimeMs()), fetcher.servers);
+    }
+
+    public void testPersistence() throws IOException {
+        final List<ServerEntry> servers = list(new ServerEntry("std1.ladio.net", 8000, 3),
+                new ServerEntry("std1.ladio.net", 8010, ServerEntry.CONGESTION_FULL));
+        final CountingFetcher fetcher = new CountingFetcher(servers);
+        new ServerDirectory(fetcher, TTL, MAX_STALE, mCacheFile).fetch();
+        assertTrue(mCacheFile.exists());
+
+        // 再起動後はネットワークを使わずにファイルから読み込む
+        final CountingFetcher failFetcher = new CountingFetcher(null);
+        failFetcher.fail = true;
+        final ServerDirectory directory = new ServerDirectory(failFetcher, TTL, MAX_STALE,
+                mCacheFile);
+        final long fetched = directory.getFetchedTimeMs();
+        assertTrue(fetched > 0);
+        assertEquals(directory.get(fetched), servers);
+        assertEquals(failFetcher.count, 0);
+    }
+
+    public void testBrokenCacheFile() throws IOException {
+        final FileOutputStream out = new FileOutputStream(mCacheFile);
+        out.write("ServerDirectory 1\n123\nbroken\n".getBytes("UTF-8"));
+        out.close();
+
+        final CountingFetcher fetcher = new CountingFetcher(list(new ServerEntry("a", 8000, 3)));
+        final ServerDirectory directory = new ServerDirectory(fetcher, TTL, MAX_STALE,
+                mCacheFile);
+        assertNull(directory.get(123));
+        assertEquals(directory.fetch(), fetcher.servers);
+    }
+
+    public void testFind() {
+        final ServerEntry full = new ServerEntry("std1.ladio.net", 8000,
+                ServerEntry.CONGESTION_FULL);
+        final ServerEntry busy = new ServerEntry("std1.ladio.net", 8010, 5);
+        final ServerEntry vacant1 = new ServerEntry("std1.ladio.net", 8020, 2);
+        final ServerEntry vacant2 = new ServerEntry("std1.ladio.net", 8030, 2);
+        final List<ServerEntry> servers = list(full, busy, vacant1, vacant2);
+
+        // 混雑度がもっとも低いサーバのうち、最初のサーバ
+        assertEquals(ServerDirectory.findVacant(servers), vacant1);
+        assertNull(ServerDirectory.findVacant(list(full)));
+
+        assertEquals(ServerDirectory.find(servers, "std1.ladio.net:8010"), busy);
+        // 満員のサーバは選ばない
+        assertNull(ServerDirectory.find(servers, "std1.ladio.net:8000"));
+        assertNull(ServerDirectory.find(servers, "std1.ladio.net:9999"));
+        assertNull(ServerDirectory.find(servers, ""));
+    }
+}
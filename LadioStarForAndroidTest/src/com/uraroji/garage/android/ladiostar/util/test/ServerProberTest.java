@@ -0,0 +1,98 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ServerEntry;
+import com.uraroji.garage.android.ladiostar.util.ServerProber;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ServerProberTest extends TestCase {
+
+    private final ArrayList<ServerSocket> mServerSockets = new ArrayList<ServerSocket>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ServerSocket s : mServerSockets) {
+            s.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * 接続を受け付けるだけの代理サーバを開き、そのポートを返す
+     */
+    private int openStandInServer() throws IOException {
+        final ServerSocket s = new ServerSocket();
+        s.bind(new InetSocketAddress("127.0.0.1", 0));
+        mServerSockets.add(s);
+        return s.getLocalPort();
+    }
+
+    /**
+     * 接続を受け付けないポートを返す
+     */
+    private static int getClosedPort() throws IOException {
+        final ServerSocket s = new ServerSocket();
+        s.bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = s.getLocalPort();
+        s.close();
+        return port;
+    }
+
+    public void testProbe() throws IOException {
+        final List<ServerEntry> servers = new ArrayList<ServerEntry>();
+        for (int i = 0; i < 5; ++i) {
+            servers.add(new ServerEntry("127.0.0.1", openStandInServer(), 1));
+        }
+        servers.add(2, new ServerEntry("127.0.0.1", getClosedPort(), 1));
+
+        final long timeout = 3000;
+        final long start = System.currentTimeMillis();
+        final long[] rtts = new ServerProber(timeout).probe(servers);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        assertEquals(rtts.length, servers.size());
+        for (int i = 0; i < rtts.length; ++i) {
+            if (i == 2) {
+                // 接続を拒否されたサーバ
+                assertEquals(rtts[i], -1);
+            } else {
+                assertTrue(rtts[i] >= 0);
+                assertTrue(rtts[i] < timeout);
+            }
+        }
+        // 拒否されたサーバがあってもタイムアウトまで待たない
+        assertTrue(elapsed < timeout);
+    }
+
+    public void testEmpty() {
+        assertEquals(new ServerProber(1000).probe(new ArrayList<ServerEntry>()).length, 0);
+    }
+}
@@ -0,0 +1,161 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.ServerEntry;
+import com.uraroji.garage.android.ladiostar.util.ServerProber;
+import com.uraroji.garage.android.ladiostar.util.ServerSelector;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+public class ServerSelectorTest extends TestCase {
+
+    private static final long PROBE_TIMEOUT = 2000;
+
+    private final ArrayList<ServerSocket> mServerSockets = new ArrayList<ServerSocket>();
+
+    /**
+     * ポートごとの遅延（ミリ秒）
+     */
+    private final HashMap<Integer, Long> mLatencies = new HashMap<Integer, Long>();
+
+    /**
+     * 代理サーバへの実際の接続時間に、ポートごとの遅延を加えるProber。<br />
+     * ループバックの接続時間は外から遅らせられないので、ここで遅延を与える。
+     */
+    private final ServerSelector.Prober mLatencyProber = new ServerSelector.Prober() {
+
+        private final ServerProber mProber = new ServerProber(PROBE_TIMEOUT);
+
+        @Override
+        public long[] probe(List<ServerEntry> servers) {
+            final long[] rtts = mProber.probe(servers);
+            for (int i = 0; i < rtts.length; ++i) {
+                final Long latency = mLatencies.get(Integer.valueOf(servers.get(i).getPort()));
+                if (rtts[i] >= 0 && latency != null) {
+                    rtts[i] += latency.longValue();
+                }
+            }
+            return rtts;
+        }
+    };
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (ServerSocket s : mServerSockets) {
+            s.close();
+        }
+        super.tearDown();
+    }
+
+    /**
+     * 遅延を与えた代理サーバを開く
+     */
+    private ServerEntry openStandInServer(long latency, int congestion) throws IOException {
+        final ServerSocket s = new ServerSocket();
+        s.bind(new InetSocketAddress("127.0.0.1", 0));
+        mServerSockets.add(s);
+        mLatencies.put(Integer.valueOf(s.getLocalPort()), Long.valueOf(latency));
+        return new ServerEntry("127.0.0.1", s.getLocalPort(), congestion);
+    }
+
+    private static ServerEntry closedServer() throws IOException {
+        final ServerSocket s = new ServerSocket();
+        s.bind(new InetSocketAddress("127.0.0.1", 0));
+        final int port = s.getLocalPort();
+        s.close();
+        return new ServerEntry("127.0.0.1", port, 1);
+    }
+
+    public void testSelectFastest() throws IOException {
+        final ServerSelector selector = new ServerSelector(mLatencyProber, 50, 1000);
+        final List<ServerEntry> servers = new ArrayList<ServerEntry>();
+        servers.add(openStandInServer(300, 1));
+        final ServerEntry fastest = openStandInServer(20, 1);
+        servers.add(fastest);
+        servers.add(openStandInServer(150, 1));
+
+        assertEquals(selector.select(servers), fastest);
+
+        final List<ServerEntry> ranked = selector.rank(servers);
+        assertEquals(ranked.size(), 3);
+        assertEquals(ranked.get(0), fastest);
+        assertEquals(ranked.get(1), servers.get(2));
+        assertEquals(ranked.get(2), servers.get(0));
+    }
+
+    public void testCongestion() throws IOException {
+        final ServerSelector selector = new ServerSelector(mLatencyProber, 50, 1000);
+        final List<ServerEntry> servers = new ArrayList<ServerEntry>();
+        // 混雑度の差3 * 50ミリ秒が、応答時間の差100ミリ秒を上回る
+        servers.add(openStandInServer(100, 5));
+        final ServerEntry vacant = openStandInServer(200, 2);
+        servers.add(vacant);
+
+        assertEquals(selector.select(servers), vacant);
+    }
+
+    public void testSuccessRate() throws IOException {
+        final ServerSelector selector = new ServerSelector(mLatencyProber, 50, 1000);
+        final List<ServerEntry> servers = new ArrayList<ServerEntry>();
+        final ServerEntry fast = openStandInServer(20, 1);
+        servers.add(fast);
+        final ServerEntry slow = openStandInServer(300, 1);
+        servers.add(slow);
+
+        assertEquals(selector.getSuccessRate(fast), 0.5, 1e-9);
+        assertEquals(selector.select(servers), fast);
+
+        // 接続に失敗し続けたサーバは選ばれにくくなる
+        for (int i = 0; i < 3; ++i) {
+            selector.recordFailure(fast);
+        }
+        selector.recordSuccess(slow);
+        assertTrue(selector.getSuccessRate(fast) < 0.5);
+        assertTrue(selector.getSuccessRate(slow) > 0.5);
+        assertEquals(selector.select(servers), slow);
+    }
+
+    public void testUnreachable() throws IOException {
+        final ServerSelector selector = new ServerSelector(mLatencyProber, 50, 1000);
+        final List<ServerEntry> servers = new ArrayList<ServerEntry>();
+        // 応答しないサーバと満員のサーバは選ばない
+        servers.add(closedServer());
+        final ServerEntry full = openStandInServer(0, ServerEntry.CONGESTION_FULL);
+        servers.add(full);
+        final ServerEntry slow = openStandInServer(500, 3);
+        servers.add(slow);
+
+        assertEquals(selector.select(servers), slow);
+
+        servers.remove(slow);
+        assertNull(selector.select(servers));
+    }
+}
@@ -154,6 +154,25 @@ public class ShortRingBufferTest extends TestCase {
         }
     }
 
+    public void testRemove() {
+        ShortRingBuffer buf = new ShortRingBuffer(5);
+        short[] rbuf = new short[5];
+
+        buf.put(new short[] { 0, 1, 2, 3 }, 0, 4);
+        buf.remove(2);
+        assertEquals(buf.putAvailable(), 3);
+        assertEquals(buf.getAvailable(), 2);
+        buf.get(rbuf, 0, 2);
+        assertEquals(rbuf[0], 2);
+        assertEquals(rbuf[1], 3);
+
+        // 格納されているデータよりも多く削除した場合は空になる
+        buf.put(new short[] { 4, 5, 6 }, 0, 3);
+        buf.remove(10);
+        assertEquals(buf.putAvailable(), 5);
+        assertEquals(buf.getAvailable(), 0);
+    }
+
     public void testClear() {
         ShortRingBuffer buf = new ShortRingBuffer(5);
 
@@ -0,0 +1,260 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import android.util.Log;
+
+import com.uraroji.garage.android.ladiostar.util.SocketChannelSender;
+
+import junit.framework.TestCase;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+public class SocketChannelSenderTest extends TestCase {
+
+    private static final String TAG = "LadioStarTest";
+
+    /**
+     * ローカルで配信サーバの代わりをするサーバ
+     */
+    private static class StandInServer extends Thread {
+
+        /**
+         * ヘッダを受信した後にレスポンスを返すか
+         */
+        private final boolean mRespond;
+
+        /**
+         * レスポンスを返した後にデータを読み込むか
+         */
+        private final boolean mRead;
+
+        private final ServerSocket mServerSocket;
+
+        private volatile long mReceivedBytes = 0;
+
+        private volatile Socket mSocket;
+
+        public StandInServer(boolean respond, boolean read) throws IOException {
+            mRespond = respond;
+            mRead = read;
+            mServerSocket = new ServerSocket();
+            // 読み込みを止めた場合にすぐにあふれるように、受信バッファを小さくする
+            mServerSocket.setReceiveBufferSize(4096);
+            mServerSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        public int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        public long getReceivedBytes() {
+            return mReceivedBytes;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mSocket = mServerSocket.accept();
+                if (!mRespond) {
+                    return;
+                }
+                InputStream in = mSocket.getInputStream();
+                OutputStream out = mSocket.getOutputStream();
+                // ヘッダの終わりの空行まで読む
+                int lf = 0;
+                while (lf < 2) {
+                    final int b = in.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    if (b == '\n') {
+                        ++lf;
+                    } else if (b != '\r') {
+                        lf = 0;
+                    }
+                }
+                out.write("HTTP/1.0 200 OK\r\n".getBytes("US-ASCII"));
+                out.flush();
+                if (!mRead) {
+                    return;
+                }
+                byte[] buf = new byte[4096];
+                int readSize;
+                while ((readSize = in.read(buf)) >= 0) {
+                    mReceivedBytes += readSize;
+                }
+            } catch (IOException e) {
+            }
+        }
+
+        public void shutdown() throws IOException {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+            mServerSocket.close();
+        }
+    }
+
+    private static void handshake(SocketChannelSender sender) throws IOException {
+        byte[] header = "SOURCE /test ICE/1.0\r\n\r\n".getBytes("US-ASCII");
+        sender.write(header, 0, header.length);
+        assertEquals(sender.readLine(5000, "US-ASCII"), "HTTP/1.0 200 OK");
+    }
+
+    public void testSend() throws Exception {
+        StandInServer server = new StandInServer(true, true);
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            handshake(sender);
+            byte[] data = new byte[16 * 1024];
+            for (int i = 0; i < 64; ++i) {
+                sender.write(data, 0, data.length);
+            }
+        } finally {
+            sender.close();
+        }
+        server.join(5000);
+        assertEquals(server.getReceivedBytes(), 64 * 16 * 1024);
+        server.shutdown();
+    }
+
+    public void testStallDetection() throws Exception {
+        // ヘッダには応答するが、その後データを読まないサーバ
+        StandInServer server = new StandInServer(true, false);
+        server.start();
+        final long stallTimeout = 500;
+        SocketChannelSender sender = new SocketChannelSender(10000, stallTimeout, 4096);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            handshake(sender);
+            byte[] data = new byte[1024];
+            final long start = System.currentTimeMillis();
+            try {
+                while (System.currentTimeMillis() - start < 30000) {
+                    sender.write(data, 0, data.length);
+                }
+                fail();
+            } catch (SocketTimeoutException e) {
+                // 最後にデータを送れてから検出するまでの時間
+                final long timeToDetect = System.currentTimeMillis()
+                        - sender.getLastProgressTimeMs();
+                Log.i(TAG, "Detected stalled peer in " + timeToDetect + " ms after "
+                        + sender.getSentBytes() + " bytes. (stall timeout " + stallTimeout
+                        + " ms)");
+                assertTrue(timeToDetect >= stallTimeout - 50);
+                assertTrue(timeToDetect < stallTimeout + 1000);
+            }
+        } finally {
+            sender.close();
+            server.shutdown();
+        }
+    }
+
+    public void testWriteDeadline() throws Exception {
+        // ヘッダには応答するが、その後データを読まないサーバ
+        StandInServer server = new StandInServer(true, false);
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(10000, 10000, 4096);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            handshake(sender);
+            byte[] data = new byte[1024 * 1024];
+            final long start = System.currentTimeMillis();
+            try {
+                // 書き込みのタイムアウトより前の期限で打ち切る
+                sender.write(data, 0, data.length, start + 300);
+                fail();
+            } catch (SocketTimeoutException e) {
+                final long elapsed = System.currentTimeMillis() - start;
+                assertTrue(elapsed >= 250);
+                assertTrue(elapsed < 1000);
+            }
+        } finally {
+            sender.close();
+            server.shutdown();
+        }
+    }
+
+    public void testHandshakeTimeout() throws Exception {
+        // 接続を受け付けるが何も応答しないサーバ
+        StandInServer server = new StandInServer(false, false);
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            final long start = System.currentTimeMillis();
+            try {
+                sender.readLine(300, "US-ASCII");
+                fail();
+            } catch (SocketTimeoutException e) {
+                final long elapsed = System.currentTimeMillis() - start;
+                assertTrue(elapsed >= 250);
+                assertTrue(elapsed < 2000);
+            }
+        } finally {
+            sender.close();
+            server.shutdown();
+        }
+    }
+
+    public void testClosedPeer() throws Exception {
+        StandInServer server = new StandInServer(false, false);
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            server.join(5000);
+            server.shutdown();
+            try {
+                sender.readLine(5000, "US-ASCII");
+                fail();
+            } catch (EOFException e) {
+            }
+        } finally {
+            sender.close();
+        }
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new SocketChannelSender(0, 1000, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new SocketChannelSender(1000, 0, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.SocketChannelSender;
+import com.uraroji.garage.android.ladiostar.util.SourceHandshake;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+public class SourceHandshakeTest extends TestCase {
+
+    private static final String REQUEST = "SOURCE /test ICE/1.0\r\n\r\n";
+
+    /**
+     * 決まったバイト数を受信してからレスポンスを返すサーバ
+     */
+    private static class StandInServer extends Thread {
+
+        private final int mExpectedBytes;
+
+        private final String mResponse;
+
+        private final ServerSocket mServerSocket;
+
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+        private volatile Socket mSocket;
+
+        public StandInServer(int expectedBytes, String response) throws IOException {
+            mExpectedBytes = expectedBytes;
+            mResponse = response;
+            mServerSocket = new ServerSocket();
+            mServerSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        public int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        public synchronized byte[] getReceived() {
+            return mReceived.toByteArray();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mSocket = mServerSocket.accept();
+                InputStream in = mSocket.getInputStream();
+                while (getReceived().length < mExpectedBytes) {
+                    final int b = in.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    synchronized (this) {
+                        mReceived.write(b);
+                    }
+                }
+                if (mResponse != null) {
+                    mSocket.getOutputStream().write(mResponse.getBytes("US-ASCII"));
+                    mSocket.getOutputStream().flush();
+                }
+            } catch (IOException e) {
+            }
+        }
+
+        public void shutdown() throws IOException {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+            mServerSocket.close();
+        }
+    }
+
+    private static int parse(String line) throws Exception {
+        byte[] bytes = line.getBytes("US-ASCII");
+        return SourceHandshake.parseStatusCode(bytes, bytes.length);
+    }
+
+    public void testParseStatusCode() throws Exception {
+        assertEquals(parse("HTTP/1.0 200 OK"), 200);
+        assertEquals(parse("HTTP/1.0 403 Mountpoint in use"), 403);
+        assertEquals(parse("ICY 200 OK"), 200);
+        assertEquals(parse("HTTP/1.1 401"), 401);
+        assertEquals(parse(""), -1);
+        assertEquals(parse("HTTP/1.0"), -1);
+        assertEquals(parse("HTTP/1.0 20"), -1);
+        assertEquals(parse("HTTP/1.0 2000 OK"), -1);
+        assertEquals(parse("HTTP/1.0 2x0 OK"), -1);
+        assertEquals(parse(" 200 OK"), -1);
+    }
+
+    public void testRequestIsCached() throws Exception {
+        SourceHandshake handshake = new SourceHandshake(REQUEST, "Shift_JIS");
+        assertSame(handshake.getRequest(), handshake.getRequest());
+        assertEquals(new String(handshake.getRequest(), "Shift_JIS"), REQUEST);
+    }
+
+    public void testSendWithFirstData() throws Exception {
+        SourceHandshake handshake = new SourceHandshake(REQUEST, "Shift_JIS");
+        byte[] data = new byte[4000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        final int requestLength = handshake.getRequest().length;
+        // ヘッダとデータの両方が届いてからレスポンスを返す
+        StandInServer server = new StandInServer(requestLength + 3000, "HTTP/1.0 200 OK\r\n");
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            handshake.send(sender, data, 1000, 3000);
+            assertEquals(handshake.readStatus(sender, 5000), SourceHandshake.STATUS_OK);
+            assertEquals(handshake.getStatusLine(), "HTTP/1.0 200 OK");
+            assertEquals(sender.getSentBytes(), requestLength + 3000);
+        } finally {
+            sender.close();
+        }
+        server.join(5000);
+        byte[] received = server.getReceived();
+        assertEquals(new String(received, 0, requestLength, "Shift_JIS"), REQUEST);
+        for (int i = 0; i < 3000; ++i) {
+            assertEquals(received[requestLength + i], data[1000 + i]);
+        }
+        server.shutdown();
+    }
+
+    public void testRejected() throws Exception {
+        SourceHandshake handshake = new SourceHandshake(REQUEST, "Shift_JIS");
+        StandInServer server = new StandInServer(handshake.getRequest().length,
+                "HTTP/1.0 403 Mountpoint in use\r\n");
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            handshake.send(sender, null, 0, 0);
+            assertEquals(handshake.readStatus(sender, 5000), 403);
+            assertEquals(handshake.getStatusLine(), "HTTP/1.0 403 Mountpoint in use");
+        } finally {
+            sender.close();
+            server.shutdown();
+        }
+    }
+
+    public void testTimeout() throws Exception {
+        SourceHandshake handshake = new SourceHandshake(REQUEST, "Shift_JIS");
+        // 何も応答しないサーバ
+        StandInServer server = new StandInServer(Integer.MAX_VALUE, null);
+        server.start();
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            handshake.send(sender, null, 0, 0);
+            final long start = System.currentTimeMillis();
+            try {
+                handshake.readStatus(sender, 300);
+                fail();
+            } catch (SocketTimeoutException e) {
+                assertTrue(System.currentTimeMillis() - start < 2000);
+            }
+            assertEquals(handshake.getStatusLine(), "");
+        } finally {
+            sender.close();
+            server.shutdown();
+        }
+    }
+}
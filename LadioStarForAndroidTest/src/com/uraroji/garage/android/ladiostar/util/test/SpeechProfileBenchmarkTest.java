@@ -0,0 +1,142 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import android.os.Debug;
+import android.util.Log;
+
+import com.uraroji.garage.android.ladiostar.util.Resampler;
+import com.uraroji.garage.android.ladiostar.util.SpeechProfile;
+import com.uraroji.garage.android.lame.Encoder;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * 標準の設定とトーク用の設定で、エンコードのCPU時間と出力サイズを比較する。<br />
+ * エンコーダはネイティブライブラリのため、端末上で実行すること。
+ */
+public class SpeechProfileBenchmarkTest extends TestCase {
+
+    private static final String TAG = "LadioStarTest";
+
+    private static final int SAMPLE_RATE = 44100;
+
+    private static final int BITRATE = 32;
+
+    private static final int QUALITY = 7;
+
+    private static final int SECONDS = 20;
+
+    private static final int BLOCK_LENGTH = SAMPLE_RATE / 10;
+
+    /**
+     * 音声に似せた信号を生成する。<br />
+     * 基本周波数が揺らぐ倍音と雑音を、音節ごとの包絡で変調する。
+     */
+    private static short[] createSpeechLikeSignal() {
+        final Random random = new Random(0);
+        short[] result = new short[SAMPLE_RATE * SECONDS];
+        double phase = 0;
+        for (int i = 0; i < result.length; ++i) {
+            final double t = (double) i / SAMPLE_RATE;
+            final double f0 = 150 + 30 * Math.sin(2 * Math.PI * 0.7 * t);
+            phase += 2 * Math.PI * f0 / SAMPLE_RATE;
+            double voiced = 0;
+            for (int h = 1; h <= 20; ++h) {
+                voiced += Math.sin(h * phase) / h;
+            }
+            final double envelope = Math.max(0, Math.sin(2 * Math.PI * 4 * t));
+            final double noise = random.nextGaussian() * 0.05;
+            result[i] = (short) (6000 * (envelope * voiced + noise));
+        }
+        return result;
+    }
+
+    private static long[] encode(short[] pcm, int encodeSampleRate, int lowpassFrequency) {
+        Resampler resampler = null;
+        short[] resampleBuffer = null;
+        if (encodeSampleRate != SAMPLE_RATE) {
+            resampler = new Resampler(SAMPLE_RATE, encodeSampleRate, lowpassFrequency,
+                    BLOCK_LENGTH);
+            resampleBuffer = new short[resampler.getMaxOutputLength(BLOCK_LENGTH)];
+        }
+        byte[] mp3buffer = new byte[(int) (7200 + BLOCK_LENGTH * 1.25)];
+
+        final long startCpu = Debug.threadCpuTimeNanos();
+        Encoder encoder = new Encoder.Builder(encodeSampleRate, 1, encodeSampleRate, BITRATE)
+                .quality(QUALITY).create();
+        long bytes = 0;
+        try {
+            short[] block = new short[BLOCK_LENGTH];
+            for (int offset = 0; offset < pcm.length; offset += BLOCK_LENGTH) {
+                final int len = Math.min(BLOCK_LENGTH, pcm.length - offset);
+                System.arraycopy(pcm, offset, block, 0, len);
+                int result;
+                if (resampler != null) {
+                    final int n = resampler.process(block, 0, len, resampleBuffer, 0);
+                    result = encoder.encode(resampleBuffer, resampleBuffer, n, mp3buffer);
+                } else {
+                    result = encoder.encode(block, block, len, mp3buffer);
+                }
+                assertTrue(result >= 0);
+                bytes += result;
+            }
+            final int result = encoder.flush(mp3buffer);
+            assertTrue(result >= 0);
+            bytes += result;
+        } finally {
+            encoder.close();
+        }
+        final long cpu = Debug.threadCpuTimeNanos() - startCpu;
+
+        return new long[] {
+                cpu, bytes
+        };
+    }
+
+    public void testSpeechProfileReducesCpuTime() {
+        final short[] pcm = createSpeechLikeSignal();
+        final int speechSampleRate = SpeechProfile.getSampleRate(BITRATE, SAMPLE_RATE);
+        final int speechLowpass = SpeechProfile.getLowpassFrequency(BITRATE, SAMPLE_RATE);
+
+        // 初回のネイティブライブラリの読み込みなどを計測に含めないよう、一度空回しする
+        encode(pcm, SAMPLE_RATE, 0);
+
+        final long[] standard = encode(pcm, SAMPLE_RATE, 0);
+        final long[] speech = encode(pcm, speechSampleRate, speechLowpass);
+
+        Log.i(TAG, "Standard " + SAMPLE_RATE + "Hz: cpu=" + (standard[0] / 1000000)
+                + "ms/" + SECONDS + "s, bytes=" + standard[1]);
+        Log.i(TAG, "Speech " + speechSampleRate + "Hz (lowpass " + speechLowpass
+                + "Hz): cpu=" + (speech[0] / 1000000) + "ms/" + SECONDS + "s, bytes="
+                + speech[1]);
+
+        assertTrue(speech[0] < standard[0]);
+        // 同じビットレートなので出力のサイズはほぼ変わらない
+        final long expectedBytes = BITRATE * 1000L / 8 * SECONDS;
+        assertTrue(Math.abs(standard[1] - expectedBytes) < expectedBytes / 10);
+        assertTrue(Math.abs(speech[1] - expectedBytes) < expectedBytes / 10);
+    }
+}
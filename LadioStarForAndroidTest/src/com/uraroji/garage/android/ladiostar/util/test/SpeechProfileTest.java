@@ -0,0 +1,50 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.SpeechProfile;
+
+import junit.framework.TestCase;
+
+public class SpeechProfileTest extends TestCase {
+
+    public void testSampleRate() {
+        assertEquals(SpeechProfile.getSampleRate(16, 44100), 11025);
+        assertEquals(SpeechProfile.getSampleRate(32, 44100), 16000);
+        assertEquals(SpeechProfile.getSampleRate(48, 44100), 22050);
+        assertEquals(SpeechProfile.getSampleRate(128, 44100), 32000);
+        // 録音のサンプリングレートより高くはならない
+        assertEquals(SpeechProfile.getSampleRate(128, 22050), 22050);
+        assertEquals(SpeechProfile.getSampleRate(32, 8000), 8000);
+    }
+
+    public void testLowpassFrequency() {
+        assertEquals(SpeechProfile.getLowpassFrequency(32, 44100), 7000);
+        // 出力のナイキスト周波数より低くなる
+        assertEquals(SpeechProfile.getLowpassFrequency(32, 8000), 3600);
+        for (int bitrate = 8; bitrate <= 320; bitrate += 8) {
+            assertTrue(SpeechProfile.getLowpassFrequency(bitrate, 44100) * 2 < SpeechProfile
+                    .getSampleRate(bitrate, 44100));
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameQueue;
+import com.uraroji.garage.android.ladiostar.util.ServerEntry;
+import com.uraroji.garage.android.ladiostar.util.SocketChannelSender;
+import com.uraroji.garage.android.ladiostar.util.SourceHandshake;
+import com.uraroji.garage.android.ladiostar.util.StandbyConnection;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+
+public class StandbyConnectionTest extends TestCase {
+
+    private static final String OK = "HTTP/1.0 200 OK";
+
+    private static SourceHandshake createHandshake() throws IOException {
+        return new SourceHandshake("SOURCE /test HTTP/1.0\r\n\r\n", "US-ASCII");
+    }
+
+    private static final int FRAME_LENGTH = 400;
+
+    /**
+     * フレームの間隔（ミリ秒）。128kbpsのMP3のフレームとほぼ同じ。
+     */
+    private static final long FRAME_INTERVAL = 25;
+
+    /**
+     * ヘッダを受け取るとレスポンスを返し、その後のデータを受け取る代理サーバ
+     */
+    private static class MockServer extends Thread {
+
+        private final ServerSocket mServerSocket;
+
+        private final String mResponse;
+
+        private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+        private volatile int mAcceptCount = 0;
+
+        private volatile long mFirstDataTime = -1;
+
+        private volatile long mLastDataTime = -1;
+
+        public MockServer(String response) throws IOException {
+            mResponse = response;
+            mServerSocket = new ServerSocket();
+            mServerSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+            start();
+        }
+
+        public ServerEntry getEntry() {
+            return new ServerEntry("127.0.0.1", mServerSocket.getLocalPort(), 1);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = mServerSocket.accept();
+                    synchronized (mSockets) {
+                        mSockets.add(socket);
+                    }
+                    ++mAcceptCount;
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }.start();
+                }
+            } catch (IOException e) {
+                // 終了
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                final InputStream in = socket.getInputStream();
+                final OutputStream out = socket.getOutputStream();
+                // ヘッダの終わりの空行まで読む
+                int newLines = 0;
+                while (newLines < 2) {
+                    final int b = in.read();
+                    if (b < 0) {
+                        return;
+                    }
+                    if (b == '\n') {
+                        ++newLines;
+                    } else if (b != '\r') {
+                        newLines = 0;
+                    }
+                }
+                out.write((mResponse + "\r\n").getBytes());
+                out.flush();
+
+                final byte[] buf = new byte[4096];
+                int size;
+                while ((size = in.read(buf)) >= 0) {
+                    final long now = System.currentTimeMillis();
+                    synchronized (mReceived) {
+                        mReceived.write(buf, 0, size);
+                    }
+                    if (mFirstDataTime < 0) {
+                        mFirstDataTime = now;
+                    }
+                    mLastDataTime = now;
+                }
+            } catch (IOException e) {
+                // 切断
+            }
+        }
+
+        public byte[] getReceived() {
+            synchronized (mReceived) {
+                return mReceived.toByteArray();
+            }
+        }
+
+        /**
+         * 接続をリセットして止まる
+         */
+        public void kill() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket s : mSockets) {
+                    if (!s.isClosed()) {
+                        s.setSoLinger(true, 0);
+                        s.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private final ArrayList<MockServer> mServers = new ArrayList<MockServer>();
+
+    private StandbyConnection mStandby;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mStandby != null) {
+            mStandby.close();
+        }
+        for (MockServer s : mServers) {
+            s.kill();
+        }
+        super.tearDown();
+    }
+
+    private MockServer startServer(String response) throws IOException {
+        final MockServer s = new MockServer(response);
+        mServers.add(s);
+        return s;
+    }
+
+    private static void waitReady(StandbyConnection standby) throws InterruptedException {
+        final long limit = System.currentTimeMillis() + 5000;
+        while (!standby.isReady() && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        assertTrue(standby.isReady());
+    }
+
+    private static long readSequence(byte[] data, int offset) {
+        long seq = 0;
+        for (int i = 0; i < 8; ++i) {
+            seq = (seq << 8) | (data[offset + i] & 0xFF);
+        }
+        return seq;
+    }
+
+    private static void putFrame(Mp3FrameQueue queue, long seq) {
+        final byte[] frame = new byte[FRAME_LENGTH];
+        for (int i = 0; i < 8; ++i) {
+            frame[i] = (byte) (seq >> (56 - i * 8));
+        }
+        queue.put(frame, 0, frame.length, seq * FRAME_INTERVAL * 1000, 44100, 128);
+    }
+
+    public void testFailover() throws Exception {
+        final MockServer primary = startServer(OK);
+        final MockServer secondary = startServer(OK);
+
+        final SocketChannelSender sender0 = new SocketChannelSender(2000, 1000, 4096);
+        sender0.connect("127.0.0.1", primary.getEntry().getPort(), 1000);
+        final SourceHandshake handshake = createHandshake();
+        handshake.send(sender0, null, 0, 0);
+        assertEquals(handshake.readStatus(sender0, 1000), SourceHandshake.STATUS_OK);
+
+        mStandby = new StandbyConnection(1000, 10000, 2000, 1000, 4096);
+        mStandby.setTarget(secondary.getEntry());
+        waitReady(mStandby);
+
+        final Mp3FrameQueue queue = new Mp3FrameQueue(FRAME_LENGTH * 200, 200);
+        final Mp3FrameQueue.Cursor cursor = new Mp3FrameQueue.Cursor(0);
+        final byte[] buf = new byte[FRAME_LENGTH * 4];
+        SocketChannelSender sender = sender0;
+        boolean failedOver = false;
+        long resumedSequence = -1;
+
+        for (long seq = 0; seq < 80; ++seq) {
+            putFrame(queue, seq);
+            if (seq == 40) {
+                primary.kill();
+            }
+            while (true) {
+                final long readPosition = Math.max(cursor.getPosition(),
+                        queue.getOldestSequence());
+                final int size = queue.read(cursor, buf, 0, buf.length);
+                if (size == 0) {
+                    break;
+                }
+                try {
+                    sender.write(buf, 0, size);
+                } catch (IOException e) {
+                    assertFalse(failedOver);
+                    final SocketChannelSender standby = mStandby.take(createHandshake(), 1000);
+                    assertNotNull(standby);
+                    sender.close();
+                    sender = standby;
+                    // 送信に失敗したフレームから送り直す
+                    cursor.setPosition(readPosition);
+                    resumedSequence = readPosition;
+                    failedOver = true;
+                }
+            }
+            Thread.sleep(FRAME_INTERVAL);
+        }
+        assertTrue(failedOver);
+
+        final long limit = System.currentTimeMillis() + 2000;
+        while (secondary.getReceived().length < (80 - resumedSequence) * FRAME_LENGTH
+                && System.currentTimeMillis() < limit) {
+            Thread.sleep(10);
+        }
+        sender.close();
+
+        // 予備のサーバには、送信に失敗したフレームから最後のフレームまでが順に届く
+        final byte[] received = secondary.getReceived();
+        assertEquals(received.length, (80 - resumedSequence) * FRAME_LENGTH);
+        for (int i = 0; i < received.length / FRAME_LENGTH; ++i) {
+            assertEquals(readSequence(received, i * FRAME_LENGTH), resumedSequence + i);
+        }
+
+        // 元のサーバが受け取った最後の完全なフレームより後から再開しているので、失ったフレームはない
+        final int primaryFrames = primary.getReceived().length / FRAME_LENGTH;
+        assertTrue(resumedSequence <= primaryFrames);
+
+        // 音の途切れ = 元のサーバが最後に受け取ってから、予備のサーバが最初に受け取るまでの時間
+        final long gap = secondary.mFirstDataTime - primary.mLastDataTime;
+        assertTrue("gap=" + gap + ", resent=" + (primaryFrames - resumedSequence), gap < 500);
+    }
+
+    public void testNotReady() throws Exception {
+        mStandby = new StandbyConnection(500, 10000, 2000, 1000, 4096);
+        assertFalse(mStandby.isReady());
+        assertNull(mStandby.take(createHandshake(), 500));
+
+        // 接続できないサーバ
+        final MockServer down = startServer(OK);
+        final ServerEntry entry = down.getEntry();
+        down.kill();
+        mStandby.setTarget(entry);
+        Thread.sleep(300);
+        assertFalse(mStandby.isReady());
+        assertNull(mStandby.take(createHandshake(), 500));
+    }
+
+    public void testRejected() throws Exception {
+        final MockServer server = startServer("HTTP/1.0 403 Mountpoint in use");
+        mStandby = new StandbyConnection(1000, 10000, 2000, 1000, 4096);
+        mStandby.setTarget(server.getEntry());
+        waitReady(mStandby);
+        assertNull(mStandby.take(createHandshake(), 1000));
+        // 渡した後は接続先がなくなる
+        assertNull(mStandby.getTarget());
+        assertFalse(mStandby.isReady());
+    }
+
+    public void testIcyStatus() throws Exception {
+        // 最初の接続と同じように、HTTP/1.0以外の200のステータス行も受け付ける
+        final MockServer server = startServer("ICY 200 OK");
+        mStandby = new StandbyConnection(1000, 10000, 2000, 1000, 4096);
+        mStandby.setTarget(server.getEntry());
+        waitReady(mStandby);
+        final SourceHandshake handshake = createHandshake();
+        final SocketChannelSender sender = mStandby.take(handshake, 1000);
+        assertNotNull(sender);
+        assertEquals(handshake.getStatusLine(), "ICY 200 OK");
+        sender.close();
+    }
+
+    public void testRefresh() throws Exception {
+        final MockServer server = startServer(OK);
+        mStandby = new StandbyConnection(1000, 200, 2000, 1000, 4096);
+        mStandby.setTarget(server.getEntry());
+        waitReady(mStandby);
+
+        // 長く使わない接続は接続し直す
+        Thread.sleep(1000);
+        assertTrue(server.mAcceptCount >= 3);
+        waitReady(mStandby);
+        final SocketChannelSender sender = mStandby.take(createHandshake(), 1000);
+        assertNotNull(sender);
+        sender.close();
+    }
+}
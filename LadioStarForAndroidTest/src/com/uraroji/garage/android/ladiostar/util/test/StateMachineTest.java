@@ -0,0 +1,156 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.StateMachine;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StateMachineTest extends TestCase {
+
+    private static final int STOPPED = 0;
+
+    private static final int CONNECTING = 1;
+
+    private static final int BROADCASTING = 2;
+
+    private static final int STOPPING = 4;
+
+    private static StateMachine create() {
+        return new StateMachine(STOPPED, new int[][] {
+                { STOPPED, CONNECTING },
+                { CONNECTING, BROADCASTING },
+                { CONNECTING, STOPPING },
+                { BROADCASTING, CONNECTING },
+                { BROADCASTING, STOPPING },
+                { STOPPING, STOPPED },
+        });
+    }
+
+    public void testTransition() {
+        StateMachine stateMachine = create();
+        assertEquals(stateMachine.get(), STOPPED);
+        assertEquals(stateMachine.transitionTo(CONNECTING), STOPPED);
+        assertEquals(stateMachine.transitionTo(BROADCASTING), CONNECTING);
+        assertEquals(stateMachine.transitionTo(STOPPING), BROADCASTING);
+        // 同じ状態への遷移は何もしない
+        assertEquals(stateMachine.transitionTo(STOPPING), STOPPING);
+        // 停止中から接続中には戻れない
+        assertEquals(stateMachine.transitionTo(CONNECTING), -1);
+        assertEquals(stateMachine.get(), STOPPING);
+        assertEquals(stateMachine.getRejectedCount(), 1);
+        assertEquals(stateMachine.transitionTo(STOPPED), STOPPING);
+        assertEquals(stateMachine.get(), STOPPED);
+    }
+
+    public void testCompareAndSet() {
+        StateMachine stateMachine = create();
+        assertTrue(stateMachine.compareAndSet(STOPPED, CONNECTING));
+        // 現在の状態が異なる
+        assertFalse(stateMachine.compareAndSet(STOPPED, CONNECTING));
+        assertEquals(stateMachine.getRejectedCount(), 0);
+        // 表にない遷移
+        assertFalse(stateMachine.compareAndSet(CONNECTING, STOPPED));
+        assertEquals(stateMachine.getRejectedCount(), 1);
+        assertEquals(stateMachine.get(), CONNECTING);
+
+        assertTrue(stateMachine.isAllowed(BROADCASTING, CONNECTING));
+        assertTrue(stateMachine.isAllowed(STOPPED, STOPPED));
+        assertFalse(stateMachine.isAllowed(STOPPED, STOPPING));
+        assertFalse(stateMachine.isAllowed(STOPPED, 32));
+    }
+
+    public void testListener() {
+        StateMachine stateMachine = create();
+        final ArrayList<String> transitions = new ArrayList<String>();
+        stateMachine.setTransitionListener(new StateMachine.TransitionListener() {
+            @Override
+            public void onTransition(int from, int to) {
+                transitions.add(from + "->" + to);
+            }
+        });
+        stateMachine.transitionTo(CONNECTING);
+        stateMachine.transitionTo(CONNECTING);
+        stateMachine.compareAndSet(CONNECTING, BROADCASTING);
+        stateMachine.transitionTo(STOPPED);
+        // 変化しなかった遷移と拒否した遷移は通知しない
+        assertEquals(transitions.size(), 2);
+        assertEquals(transitions.get(0), "0->1");
+        assertEquals(transitions.get(1), "1->2");
+    }
+
+    public void testConcurrentStart() throws Exception {
+        final StateMachine stateMachine = create();
+        final AtomicInteger started = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger overlapped = new AtomicInteger();
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; ++j) {
+                        if (stateMachine.compareAndSet(STOPPED, CONNECTING)) {
+                            started.incrementAndGet();
+                            if (running.incrementAndGet() != 1) {
+                                overlapped.incrementAndGet();
+                            }
+                            stateMachine.transitionTo(STOPPING);
+                            running.decrementAndGet();
+                            stateMachine.transitionTo(STOPPED);
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        // 開始できるのは停止している状態からだけなので、同時に開始したスレッドはない
+        assertEquals(stateMachine.get(), STOPPED);
+        assertTrue(started.get() > 0);
+        assertEquals(overlapped.get(), 0);
+        assertEquals(stateMachine.getRejectedCount(), 0);
+    }
+
+    public void testInvalidState() {
+        try {
+            new StateMachine(32, new int[0][]);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            new StateMachine(0, new int[][] {
+                { 0 }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
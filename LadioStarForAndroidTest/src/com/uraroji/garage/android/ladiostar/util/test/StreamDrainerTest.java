@@ -0,0 +1,345 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.Mp3FrameParser;
+import com.uraroji.garage.android.ladiostar.util.Mp3Link;
+import com.uraroji.garage.android.ladiostar.util.SocketChannelSender;
+import com.uraroji.garage.android.ladiostar.util.StreamDrainer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+public class StreamDrainerTest extends TestCase {
+
+    /**
+     * 接続が閉じられるまで受信し続けるサーバ
+     */
+    private static class StandInServer extends Thread {
+
+        /**
+         * 受信するか。受信しない場合は接続したままにする。
+         */
+        private final boolean mRead;
+
+        private final ServerSocket mServerSocket;
+
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+
+        private volatile Socket mSocket;
+
+        public StandInServer(boolean read) throws IOException {
+            mRead = read;
+            mServerSocket = new ServerSocket();
+            // 受信しない場合にすぐにあふれるように、受信バッファを小さくする
+            mServerSocket.setReceiveBufferSize(4096);
+            mServerSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        }
+
+        public int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        public synchronized byte[] getReceived() {
+            return mReceived.toByteArray();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mSocket = mServerSocket.accept();
+                if (!mRead) {
+                    return;
+                }
+                InputStream in = mSocket.getInputStream();
+                byte[] buf = new byte[1024];
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    synchronized (this) {
+                        mReceived.write(buf, 0, n);
+                    }
+                }
+            } catch (IOException e) {
+            }
+        }
+
+        public void shutdown() throws IOException {
+            if (mSocket != null) {
+                mSocket.close();
+            }
+            mServerSocket.close();
+        }
+    }
+
+    /**
+     * 別スレッドから書き込まれたデータを返すソース
+     */
+    private static class QueueSource implements StreamDrainer.Source {
+
+        private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+
+        private boolean mIsFinished = false;
+
+        public synchronized void put(byte[] data) {
+            mPending.write(data, 0, data.length);
+            notifyAll();
+        }
+
+        public synchronized void finish() {
+            mIsFinished = true;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length, long timeoutMs)
+                throws InterruptedException {
+            if (mPending.size() == 0) {
+                if (mIsFinished) {
+                    return -1;
+                }
+                wait(timeoutMs);
+            }
+            final byte[] pending = mPending.toByteArray();
+            final int readSize = Math.min(pending.length, length);
+            System.arraycopy(pending, 0, buffer, offset, readSize);
+            mPending.reset();
+            mPending.write(pending, readSize, pending.length - readSize);
+            return readSize;
+        }
+    }
+
+    private static byte[] createData(int length, int fill) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte) (fill + i);
+        }
+        return data;
+    }
+
+    public void testDrainAll() throws Exception {
+        StandInServer server = new StandInServer(true);
+        server.start();
+        final QueueSource source = new QueueSource();
+        // 停止した時点でバッファに残っていたデータ
+        source.put(createData(3000, 0));
+        // 停止した後にエンコーダから出てくる最後のデータ
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    source.put(createData(500, 1));
+                    Thread.sleep(100);
+                    source.put(createData(10, 2));
+                    source.finish();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        producer.start();
+
+        StreamDrainer drainer = new StreamDrainer(5000);
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            assertTrue(drainer.drain(source, sender, new byte[1024]));
+        } finally {
+            sender.close();
+        }
+        server.join(5000);
+
+        assertTrue(drainer.isCompleted());
+        assertEquals(drainer.getDrainedBytes(), 3510);
+        assertTrue(drainer.getElapsedMs() >= 0);
+        // 最後のデータまでサーバに届いている
+        byte[] received = server.getReceived();
+        assertEquals(received.length, 3510);
+        assertEquals(received[0], (byte) 0);
+        assertEquals(received[3000], (byte) 1);
+        assertEquals(received[3500], (byte) 2);
+        assertEquals(received[3509], (byte) 11);
+        server.shutdown();
+    }
+
+    public void testDeadline() throws Exception {
+        StandInServer server = new StandInServer(true);
+        server.start();
+        // 終了しないソース
+        QueueSource source = new QueueSource();
+        source.put(createData(100, 0));
+
+        StreamDrainer drainer = new StreamDrainer(300);
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        final long start = System.currentTimeMillis();
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            assertFalse(drainer.drain(source, sender, new byte[1024]));
+        } finally {
+            sender.close();
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        server.join(5000);
+
+        assertFalse(drainer.isCompleted());
+        // 期限までに読み込んだデータは送っている
+        assertEquals(drainer.getDrainedBytes(), 100);
+        assertEquals(server.getReceived().length, 100);
+        server.shutdown();
+    }
+
+    /**
+     * エンコードステージの代わりに、MP3リンクにフレームを書き込む
+     */
+    private static class FrameProducer extends Thread {
+
+        private final Mp3Link mLink;
+
+        private final int mFrameCount;
+
+        public FrameProducer(Mp3Link link, int frameCount) {
+            mLink = link;
+            mFrameCount = frameCount;
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int i = 0; i < mFrameCount; ++i) {
+                    Thread.sleep(10);
+                    writeFrame(mLink, 0x40 + i);
+                }
+            } catch (InterruptedException e) {
+            } finally {
+                mLink.finish();
+            }
+        }
+    }
+
+    /**
+     * MPEG-1 Layer III 128kbps 44100Hz
+     */
+    private static final byte[] HEADER_MPEG1_128K_44100 = new byte[] {
+            (byte) 0xFF, (byte) 0xFB, (byte) 0x90, (byte) 0x00
+    };
+
+    private static final int FRAME_LENGTH = Mp3FrameParser.getFrameLength(
+            HEADER_MPEG1_128K_44100, 0);
+
+    /**
+     * ヘッダの後ろをfillで埋めたフレームを書き込む
+     */
+    private static void writeFrame(Mp3Link link, int fill) {
+        final byte[] frame = new byte[FRAME_LENGTH];
+        System.arraycopy(HEADER_MPEG1_128K_44100, 0, frame, 0, HEADER_MPEG1_128K_44100.length);
+        for (int i = HEADER_MPEG1_128K_44100.length; i < frame.length; ++i) {
+            frame[i] = (byte) fill;
+        }
+        link.write(frame, 0, frame.length);
+    }
+
+    public void testDrainFrameQueue() throws Exception {
+        StandInServer server = new StandInServer(true);
+        server.start();
+        final Mp3Link link = new Mp3Link(FRAME_LENGTH * 100, 100);
+        final Mp3Link.Reader reader = link.openReader();
+        // 停止した時点で送っていないフレーム
+        for (int i = 0; i < 20; ++i) {
+            writeFrame(link, i);
+        }
+        // 停止した後にエンコーダから出てくる最後のフレーム
+        FrameProducer producer = new FrameProducer(link, 5);
+        producer.start();
+
+        StreamDrainer drainer = new StreamDrainer(5000);
+        SocketChannelSender sender = new SocketChannelSender(5000, 2000, 0);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            assertTrue(drainer.drain(reader, sender, new byte[1024]));
+        } finally {
+            sender.close();
+        }
+        server.join(5000);
+
+        assertTrue(drainer.isCompleted());
+        assertEquals(reader.availableBytes(), 0);
+        assertEquals(reader.getDroppedFrames(), 0);
+        assertEquals(drainer.getDrainedBytes(), 25 * FRAME_LENGTH);
+        // 最後のフレームまで、順番どおりにサーバに届いている
+        byte[] received = server.getReceived();
+        assertEquals(received.length, 25 * FRAME_LENGTH);
+        for (int i = 0; i < 20; ++i) {
+            assertEquals(received[i * FRAME_LENGTH + 4], (byte) i);
+        }
+        for (int i = 0; i < 5; ++i) {
+            assertEquals(received[(20 + i) * FRAME_LENGTH + 4], (byte) (0x40 + i));
+        }
+        assertEquals(received[received.length - 1], (byte) 0x44);
+        server.shutdown();
+    }
+
+    public void testWriteStopsAtDeadline() throws Exception {
+        // 接続したまま受信しないサーバ
+        StandInServer server = new StandInServer(false);
+        server.start();
+        final int frameCount = 4096;
+        final Mp3Link link = new Mp3Link(FRAME_LENGTH * frameCount, frameCount);
+        // 終了しないエンコーダ
+        final Mp3Link.Reader reader = link.openReader();
+        for (int i = 0; i < frameCount; ++i) {
+            writeFrame(link, i);
+        }
+
+        final long drainTimeout = 200;
+        StreamDrainer drainer = new StreamDrainer(drainTimeout);
+        // 送信と同じ長いタイムアウト。書き込みは送り切る期限で打ち切られる。
+        SocketChannelSender sender = new SocketChannelSender(20000, 8000, 4096);
+        try {
+            sender.connect("127.0.0.1", server.getPort(), 5000);
+            assertFalse(drainer.drain(reader, sender, new byte[16 * 1024]));
+        } finally {
+            sender.close();
+        }
+
+        assertFalse(drainer.isCompleted());
+        // 書き込み中でも期限を過ぎたらすぐにやめる
+        assertTrue(drainer.getElapsedMs() >= drainTimeout);
+        assertTrue("elapsed=" + drainer.getElapsedMs(), drainer.getElapsedMs() < drainTimeout + 200);
+        assertTrue(drainer.getDrainedBytes() > 0);
+        assertTrue(drainer.getDrainedBytes() < (long) FRAME_LENGTH * frameCount);
+        server.shutdown();
+    }
+
+    public void testInvalidTimeout() {
+        try {
+            new StreamDrainer(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+}
@@ -0,0 +1,329 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.StreamServer;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class StreamServerTest extends TestCase {
+
+    private static final long POLL_INTERVAL = 10;
+
+    /**
+     * ストリームのi番目のバイトが(i % 251)になるデータを返すデータ元
+     */
+    private static class PatternSource implements StreamServer.Source {
+
+        private long mProduced = 0;
+
+        private long mAvailable = 0;
+
+        public synchronized void feed(int bytes) {
+            mAvailable += bytes;
+        }
+
+        @Override
+        public synchronized int read(byte[] dst, int offset, int len) {
+            final int l = (int) Math.min(len, mAvailable - mProduced);
+            for (int i = 0; i < l; ++i) {
+                dst[offset + i] = pattern(mProduced + i);
+            }
+            mProduced += l;
+            return l;
+        }
+    }
+
+    private static byte pattern(long position) {
+        return (byte) (position % 251);
+    }
+
+    private StreamServer mServer;
+
+    private final ArrayList<Socket> mSockets = new ArrayList<Socket>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (Socket s : mSockets) {
+            s.close();
+        }
+        if (mServer != null) {
+            mServer.close();
+        }
+        super.tearDown();
+    }
+
+    private StreamServer startServer(PatternSource source, int capacity, int burstBytes,
+            int maxClients, int metaInt) throws IOException {
+        mServer = new StreamServer(source, capacity, burstBytes, maxClients, metaInt,
+                POLL_INTERVAL, 5000, 5000);
+        mServer.start(0);
+        return mServer;
+    }
+
+    private Socket connect(boolean icyMetadata) throws IOException {
+        final Socket s = new Socket("127.0.0.1", mServer.getPort());
+        mSockets.add(s);
+        s.setSoTimeout(5000);
+        final String request = "GET /stream HTTP/1.0\r\nHost: localhost\r\n"
+                + (icyMetadata ? "Icy-MetaData: 1\r\n" : "") + "\r\n";
+        s.getOutputStream().write(request.getBytes("ISO-8859-1"));
+        return s;
+    }
+
+    /**
+     * レスポンスヘッダを空行まで読み込む
+     */
+    private static String readHeader(InputStream in) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        while (!sb.toString().endsWith("\r\n\r\n")) {
+            final int b = in.read();
+            if (b < 0) {
+                break;
+            }
+            sb.append((char) b);
+        }
+        return sb.toString();
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            final int r = in.read(buf, total, len - total);
+            if (r < 0) {
+                throw new IOException("Unexpected end of stream.");
+            }
+            total += r;
+        }
+    }
+
+    /**
+     * 受信したデータがストリームのpositionバイト目から連続しているか確かめる
+     */
+    private static void assertPattern(byte[] buf, int len, long position) {
+        for (int i = 0; i < len; ++i) {
+            assertEquals(buf[i], pattern(position + i));
+        }
+    }
+
+    private void waitClients(int count) throws InterruptedException {
+        final long timeout = System.currentTimeMillis() + 10000;
+        while (mServer.getClientCount() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(mServer.getClientCount(), count);
+    }
+
+    public void testBurstOnConnect() throws Exception {
+        final PatternSource source = new PatternSource();
+        startServer(source, 64 * 1024, 4000, 10, 16000);
+        // 1000バイトずつ別のチャンクとして読み込ませる
+        for (int i = 0; i < 10; ++i) {
+            source.feed(1000);
+            Thread.sleep(POLL_INTERVAL * 3);
+        }
+
+        final Socket s = connect(false);
+        final InputStream in = s.getInputStream();
+        final String header = readHeader(in);
+        assertTrue(header.startsWith("HTTP/1.0 200 OK\r\n"));
+        assertTrue(header.indexOf("Content-Type: audio/mpeg\r\n") >= 0);
+        assertTrue(header.indexOf("icy-metaint") < 0);
+
+        // 接続しただけで、バーストの大きさ以上の直近のデータがチャンクの境界から届く
+        final byte[] buf = new byte[10000];
+        int total = 0;
+        s.setSoTimeout(500);
+        try {
+            int r;
+            while ((r = in.read(buf, total, buf.length - total)) > 0) {
+                total += r;
+            }
+        } catch (SocketTimeoutException e) {
+            // 届いたデータはすべて読み込んだ
+        }
+        assertTrue(total >= 4000);
+        assertEquals(total % 1000, 0);
+        assertPattern(buf, total, 10000 - total);
+    }
+
+    public void testIcyMetadata() throws Exception {
+        final PatternSource source = new PatternSource();
+        startServer(source, 64 * 1024, 0, 10, 1000);
+        mServer.setStreamName("Name");
+        mServer.setStreamTitle("Title");
+
+        final Socket s = connect(true);
+        final InputStream in = s.getInputStream();
+        waitClients(1);
+        source.feed(2500);
+
+        final String header = readHeader(in);
+        assertTrue(header.indexOf("icy-metaint: 1000\r\n") >= 0);
+        assertTrue(header.indexOf("icy-name: Name\r\n") >= 0);
+
+        final byte[] buf = new byte[1000];
+        readFully(in, buf, 1000);
+        assertPattern(buf, 1000, 0);
+        // "StreamTitle='Title';"は20バイトなので、16バイト単位で2つ
+        assertEquals(in.read(), 2);
+        readFully(in, buf, 32);
+        assertEquals(new String(buf, 0, 20, "UTF-8"), "StreamTitle='Title';");
+        assertEquals(buf[20], 0);
+
+        readFully(in, buf, 1000);
+        assertPattern(buf, 1000, 1000);
+        // タイトルが変わっていない場合は空のメタデータ
+        assertEquals(in.read(), 0);
+        readFully(in, buf, 500);
+        assertPattern(buf, 500, 2000);
+    }
+
+    public void testRejectWhenFull() throws Exception {
+        final PatternSource source = new PatternSource();
+        startServer(source, 64 * 1024, 0, 1, 16000);
+
+        final Socket first = connect(false);
+        assertTrue(readHeader(first.getInputStream()).startsWith("HTTP/1.0 200 OK"));
+        waitClients(1);
+
+        final Socket second = connect(false);
+        assertTrue(readHeader(second.getInputStream()).startsWith(
+                "HTTP/1.0 503 Service Unavailable"));
+        assertEquals(second.getInputStream().read(), -1);
+        assertEquals(mServer.getRejectedCount(), 1);
+        assertEquals(mServer.getClientCount(), 1);
+
+        // 切断した分だけ接続できるようになる
+        first.close();
+        final long timeout = System.currentTimeMillis() + 5000;
+        while (mServer.getClientCount() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        final Socket third = connect(false);
+        assertTrue(readHeader(third.getInputStream()).startsWith("HTTP/1.0 200 OK"));
+    }
+
+    public void testManyClients() throws Exception {
+        final int clients = 300;
+        final int bytes = 20000;
+        final PatternSource source = new PatternSource();
+        startServer(source, 256 * 1024, 0, clients, 16000);
+
+        final AtomicInteger succeeded = new AtomicInteger();
+        final ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < clients; ++i) {
+            final Socket s = connect(false);
+            final Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final InputStream in = s.getInputStream();
+                        if (!readHeader(in).startsWith("HTTP/1.0 200 OK")) {
+                            return;
+                        }
+                        final byte[] buf = new byte[bytes];
+                        readFully(in, buf, bytes);
+                        for (int j = 0; j < bytes; ++j) {
+                            if (buf[j] != pattern(j)) {
+                                return;
+                            }
+                        }
+                        succeeded.incrementAndGet();
+                    } catch (IOException e) {
+                        // 失敗として数える
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        waitClients(clients);
+
+        // 128kbpsのMP3と同程度の間隔で少しずつ送る
+        for (int i = 0; i < bytes / 500; ++i) {
+            source.feed(500);
+            Thread.sleep(POLL_INTERVAL);
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+        }
+
+        // すべてのクライアントが欠けることなく同じストリームを受け取る
+        assertEquals(succeeded.get(), clients);
+        assertEquals(mServer.getSkippedBytes(), 0);
+        assertEquals(mServer.getSentBytes(), (long) clients * bytes);
+        assertEquals(mServer.getAcceptedCount(), clients);
+    }
+
+    public void testSlowClientSkips() throws Exception {
+        final int chunk = 16 * 1024;
+        final int chunks = 1024;
+        final PatternSource source = new PatternSource();
+        startServer(source, 256 * 1024, 0, 10, 16000);
+
+        // 読み込まないクライアントと、読み込み続けるクライアント
+        final Socket slow = connect(false);
+        final Socket fast = connect(false);
+        waitClients(2);
+        final AtomicInteger received = new AtomicInteger();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    final InputStream in = fast.getInputStream();
+                    readHeader(in);
+                    final byte[] buf = new byte[64 * 1024];
+                    int r;
+                    while (received.get() < chunk * chunks
+                            && (r = in.read(buf)) > 0) {
+                        received.addAndGet(r);
+                    }
+                } catch (IOException e) {
+                    // 読み込んだ分で判定する
+                }
+            }
+        };
+        reader.start();
+
+        for (int i = 0; i < chunks; ++i) {
+            source.feed(chunk);
+            if (i % 8 == 0) {
+                Thread.sleep(POLL_INTERVAL);
+            }
+        }
+        reader.join(20000);
+
+        // 遅いクライアントは古いデータを飛ばし、速いクライアントは待たされない
+        assertTrue(mServer.getSkippedBytes() > 0);
+        assertTrue(received.get() >= chunk * chunks / 2);
+        assertFalse(slow.isClosed());
+    }
+}
@@ -0,0 +1,133 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.UpdateThrottle;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class UpdateThrottleTest extends TestCase {
+
+    private static final long INTERVAL_MSEC = 300;
+
+    private final List<String> mApplied = new ArrayList<String>();
+
+    private final List<Long> mAppliedTimes = new ArrayList<Long>();
+
+    private Runnable update(final String value) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mApplied) {
+                    mApplied.add(value);
+                    mAppliedTimes.add(System.currentTimeMillis());
+                    mApplied.notifyAll();
+                }
+            }
+        };
+    }
+
+    private List<String> awaitApplied(int count, long timeoutMsec) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMsec;
+        synchronized (mApplied) {
+            while (mApplied.size() < count) {
+                final long waitMsec = deadline - System.currentTimeMillis();
+                if (waitMsec <= 0) {
+                    break;
+                }
+                mApplied.wait(waitMsec);
+            }
+            return new ArrayList<String>(mApplied);
+        }
+    }
+
+    public void testCoalesce() throws InterruptedException {
+        UpdateThrottle throttle = new UpdateThrottle(INTERVAL_MSEC);
+        // 最初の変更はすぐに反映する
+        throttle.submit(update("a"));
+        assertEquals(awaitApplied(1, 0).size(), 1);
+        // 間隔の間の変更はまとめて、最後の変更だけを反映する
+        throttle.submit(update("b"));
+        throttle.submit(update("c"));
+        throttle.submit(update("d"));
+        assertTrue(throttle.hasPending());
+        assertEquals(awaitApplied(1, 0).size(), 1);
+
+        List<String> applied = awaitApplied(2, INTERVAL_MSEC * 5);
+        assertEquals(applied.size(), 2);
+        assertEquals(applied.get(0), "a");
+        assertEquals(applied.get(1), "d");
+        assertFalse(throttle.hasPending());
+        synchronized (mApplied) {
+            final long gap = mAppliedTimes.get(1) - mAppliedTimes.get(0);
+            assertTrue("gap=" + gap, gap >= INTERVAL_MSEC);
+        }
+        // まとめた変更は1回だけ反映する
+        Thread.sleep(INTERVAL_MSEC * 2);
+        assertEquals(awaitApplied(3, 0).size(), 2);
+
+        // 間隔が過ぎた後の変更はすぐに反映する
+        throttle.submit(update("e"));
+        applied = awaitApplied(3, 0);
+        assertEquals(applied.size(), 3);
+        assertEquals(applied.get(2), "e");
+    }
+
+    public void testReset() throws InterruptedException {
+        UpdateThrottle throttle = new UpdateThrottle(INTERVAL_MSEC);
+        throttle.submit(update("a"));
+        throttle.submit(update("b"));
+        assertTrue(throttle.hasPending());
+        // 保留中の変更は捨てる
+        throttle.reset();
+        assertFalse(throttle.hasPending());
+
+        // リセット後の最初の変更は間隔を待たずにすぐに反映する
+        throttle.submit(update("c"));
+        assertEquals(awaitApplied(2, 0).size(), 2);
+        Thread.sleep(INTERVAL_MSEC * 2);
+        final List<String> applied = awaitApplied(3, 0);
+        assertEquals(applied.size(), 2);
+        assertEquals(applied.get(0), "a");
+        assertEquals(applied.get(1), "c");
+    }
+
+    public void testInvalidArguments() {
+        try {
+            new UpdateThrottle(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+        try {
+            new UpdateThrottle(INTERVAL_MSEC).submit(null);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // OK
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.UplinkEstimator;
+
+import junit.framework.TestCase;
+
+public class UplinkEstimatorTest extends TestCase {
+
+    public void testUnsaturatedIsLowerBound() {
+        UplinkEstimator estimator = new UplinkEstimator(0.5, 1000, 1000);
+        assertEquals(estimator.getBytesPerSec(), -1);
+
+        // 送信待ちのデータがたまらない間は、送った速さ以上の帯域があるとしか言えない
+        for (int i = 0; i <= 10; ++i) {
+            estimator.onWrite(4000, 0, i * 1000);
+        }
+        assertEquals(estimator.getBytesPerSec(), 4000);
+        assertFalse(estimator.isBounded());
+
+        // 送る量が減っても推定値は下げない
+        for (int i = 11; i <= 20; ++i) {
+            estimator.onWrite(1000, 0, i * 1000);
+        }
+        assertEquals(estimator.getBytesPerSec(), 4000);
+        assertEquals(estimator.getSampleCount(), 20);
+        assertEquals(estimator.getSaturatedCount(), 0);
+    }
+
+    public void testSaturated() {
+        UplinkEstimator estimator = new UplinkEstimator(0.5, 1000, 1000);
+        for (int i = 0; i <= 10; ++i) {
+            estimator.onWrite(8000, 0, i * 1000);
+        }
+        assertEquals(estimator.getBytesPerSec(), 8000);
+
+        // 送信待ちのデータが増え続ける間は、送った速さが帯域
+        estimator.onWrite(2000, 3000, 11000);
+        assertTrue(estimator.isSaturated());
+        assertTrue(estimator.isBounded());
+        assertEquals(estimator.getBytesPerSec(), 5000);
+        estimator.onWrite(2000, 6000, 12000);
+        assertEquals(estimator.getBytesPerSec(), 3500);
+
+        // 許容範囲内の増加は飽和とみなさない
+        estimator.onWrite(2000, 6500, 13000);
+        assertFalse(estimator.isSaturated());
+        assertEquals(estimator.getBytesPerSec(), 3500);
+        assertTrue(estimator.isBounded());
+    }
+
+    public void testOverflow() {
+        UplinkEstimator estimator = new UplinkEstimator(1.0, 1000, 1000);
+        estimator.onWrite(4000, 50000, 0);
+        estimator.onWrite(4000, 50000, 1000);
+        assertFalse(estimator.isSaturated());
+
+        // 送信待ちのデータが上限に達して捨てられた場合は、増えていなくても飽和
+        estimator.onOverflow();
+        estimator.onWrite(2000, 50000, 2000);
+        assertTrue(estimator.isSaturated());
+        assertEquals(estimator.getBytesPerSec(), 2000);
+    }
+
+    public void testResetInterval() {
+        UplinkEstimator estimator = new UplinkEstimator(1.0, 1000, 1000);
+        estimator.onWrite(4000, 0, 0);
+        estimator.onWrite(4000, 0, 1000);
+        assertEquals(estimator.getBytesPerSec(), 4000);
+
+        // 接続が切れていた時間は計算に含めない
+        estimator.resetInterval();
+        estimator.onWrite(4000, 0, 60000);
+        estimator.onWrite(4000, 0, 61000);
+        assertEquals(estimator.getBytesPerSec(), 4000);
+    }
+}
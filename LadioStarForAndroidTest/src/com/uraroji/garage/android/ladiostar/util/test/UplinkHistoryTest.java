@@ -0,0 +1,99 @@
+/* 
+ * Copyright (c) 2011 Y.Hirano
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL
+ * THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package com.uraroji.garage.android.ladiostar.util.test;
+
+import com.uraroji.garage.android.ladiostar.util.UplinkHistory;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class UplinkHistoryTest extends TestCase {
+
+    private static final int[] BITRATES = {
+            24, 32, 48, 64
+    };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = File.createTempFile("UplinkHistoryTest", ".txt");
+        mFile.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        super.tearDown();
+    }
+
+    public void testPut() {
+        UplinkHistory history = new UplinkHistory(null);
+        assertEquals(history.get("WIFI"), -1);
+
+        // 下限しか分からない場合は記録しない
+        history.put("MOBILE/LTE", 3000, false);
+        assertEquals(history.get("MOBILE/LTE"), -1);
+
+        history.put("MOBILE/LTE", 5000, true);
+        assertEquals(history.get("MOBILE/LTE"), 5000);
+        assertEquals(history.get("WIFI"), -1);
+
+        // 記録より低い下限は記録を変えない
+        history.put("MOBILE/LTE", 4000, false);
+        assertEquals(history.get("MOBILE/LTE"), 5000);
+
+        // 記録より高い下限は、記録が古いことを示すので消す
+        history.put("MOBILE/LTE", 6000, false);
+        assertEquals(history.get("MOBILE/LTE"), -1);
+    }
+
+    public void testFile() {
+        new UplinkHistory(mFile).put("MOBILE/HSPA", 7000, true);
+        assertTrue(mFile.exists());
+        assertEquals(new UplinkHistory(mFile).get("MOBILE/HSPA"), 7000);
+    }
+
+    public void testBrokenFile() throws IOException {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write("UplinkHistory 1\nWIFI\tabc\n".getBytes("UTF-8"));
+        out.close();
+        assertEquals(new UplinkHistory(mFile).get("WIFI"), -1);
+    }
+
+    public void testChooseBitrate() {
+        // 分からない場合は指定したビットレートのまま
+        assertEquals(UplinkHistory.chooseBitrate(-1, BITRATES, 48, 1.25), 48);
+        // 48kbpsは6144バイト/秒なので、余裕を含めて7680バイト/秒必要
+        assertEquals(UplinkHistory.chooseBitrate(7680, BITRATES, 64, 1.25), 48);
+        assertEquals(UplinkHistory.chooseBitrate(7679, BITRATES, 64, 1.25), 32);
+        // 指定したビットレートは超えない
+        assertEquals(UplinkHistory.chooseBitrate(100000, BITRATES, 32, 1.25), 32);
+        // どれも収まらない場合は一番低いビットレート
+        assertEquals(UplinkHistory.chooseBitrate(100, BITRATES, 64, 1.25), 24);
+    }
+}